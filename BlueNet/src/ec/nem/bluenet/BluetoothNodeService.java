@@ -10,6 +10,7 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
+import ec.nem.bluenet.net.IPv6Header;
 import ec.nem.bluenet.net.Segment;
 import ec.nem.bluenet.net.Socket;
 import ec.nem.bluenet.net.SocketManager;
@@ -168,15 +169,16 @@ public class BluetoothNodeService extends Service {
 		broadcastMessage(null, o);
 	}
 	
+	/**
+	 * Sends a message to every other node on the network.  It goes out as a
+	 * single broadcast that each link carries once, rather than a copy per node.
+	 */
 	public void broadcastMessage(String text, Object o){
-		List<Node> nodes = mCommThread.getAvailableNodes();
-		/*if(nodes.size()<=0){
-			Toast.makeText(getApplicationContext(), "No nodes Connected", Toast.LENGTH_LONG);
-		}*/
-			
-		for (Node n :nodes) {
-			sendMessage(n, text, o);
-		}
+		resetTimeout();
+		Message m = new Message(username, getLocalNode().getAddress(),
+				text, o, (System.currentTimeMillis() / 1000L));
+		socket.connectBroadcast(port);
+		socket.send(Message.serialize(m), IPv6Header.TC_DEFAULT);
 	}
 	
 	public void sendMessage(Node destinationNode, String text) {
@@ -188,13 +190,22 @@ public class BluetoothNodeService extends Service {
 	}
 	
 	public void sendMessage(Node destinationNode, String text, Object o){
+		sendMessage(destinationNode, text, o, IPv6Header.TC_DEFAULT);
+	}
+	
+	/**
+	 * Sends a message with the given IPv6 traffic class.  On a busy link
+	 * IPv6Header.TC_INTERACTIVE goes ahead of ordinary messages, and
+	 * IPv6Header.TC_BULK gives way to them.
+	 */
+	public void sendMessage(Node destinationNode, String text, Object o, int trafficClass){
 		resetTimeout();
 		// Don't send message to self
 		if (destinationNode != getLocalNode()) {
 			Message m = new Message(username, getLocalNode().getAddress(),
 					text, o, (System.currentTimeMillis() / 1000L));
 			socket.connect(destinationNode, port);
-			socket.send(Message.serialize(m));
+			socket.send(Message.serialize(m), trafficClass);
 		}
 	}
 	
@@ -10,8 +10,13 @@ import android.util.Log;
 import ec.nem.bluenet.net.Layer;
 import ec.nem.bluenet.net.LinkLayer;
 import ec.nem.bluenet.net.NetworkLayer;
+import ec.nem.bluenet.net.RoutingTable;
 import ec.nem.bluenet.net.SocketManager;
 import ec.nem.bluenet.net.TransportLayer;
+import ec.nem.bluenet.net.link.BluetoothTransport;
+import ec.nem.bluenet.net.link.LinkStats;
+import ec.nem.bluenet.net.link.LinkTransport;
+import ec.nem.bluenet.net.routing.RoutingStats;
 
 /*
  * This sets up the communication between all the layers and the application. 
@@ -32,6 +37,14 @@ public class CommunicationThread extends Thread {
 	private long timeout;  ///< Milliseconds to wait without being notified until quit.
 	
 	public CommunicationThread(Context context, long timeout) {
+		this(context, timeout, new BluetoothTransport());
+	}
+	
+	/**
+	 * Builds the stack on top of the given link transport, e.g. a
+	 * PipeTransport or TcpTransport to run a mesh without radios.
+	 */
+	public CommunicationThread(Context context, long timeout, LinkTransport transport) {
 		Log.d(TAG, "Initializing Communication Thread");
 		setPriority(Thread.MIN_PRIORITY);
 		
@@ -43,7 +56,7 @@ public class CommunicationThread extends Thread {
 		mSocketManager = SocketManager.getInstance();
 		
 		mTransportLayer = new TransportLayer();
-		mLinkLayer = new LinkLayer(this);
+		mLinkLayer = new LinkLayer(this, transport);
 		mNetworkLayer = new NetworkLayer(this);
 		
 		Log.d(TAG, "Hooking up handlers");
@@ -63,6 +76,20 @@ public class CommunicationThread extends Thread {
 		return context;
 	}
 	
+	/**
+	 * The link layer at the bottom of the stack, for tuning it before run().
+	 */
+	public LinkLayer getLinkLayer() {
+		return mLinkLayer;
+	}
+	
+	/**
+	 * The network layer, which runs the routing protocol.
+	 */
+	public NetworkLayer getNetworkLayer() {
+		return mNetworkLayer;
+	}
+	
 	/**
 	 * Connects to all nodes in the network.
 	 */
@@ -165,6 +192,50 @@ public class CommunicationThread extends Thread {
 		return mLinkLayer.getLocalNode();
 	}
 	
+	/**
+	 * Records what a neighbor advertised in its Hello, so the link layer
+	 * knows what it may use on the link to it.
+	 */
+	public void setPeerCapabilities(String address, int linkFeatures, int deflateDictionary) {
+		mLinkLayer.setPeerCapabilities(address, linkFeatures, deflateDictionary);
+	}
+	
+	/** Gets the largest datagram that goes to the neighbor in one frame */
+	public int getMaxDatagramLength(String address) {
+		return mLinkLayer.getMaxDatagramLength(address);
+	}
+	
+	/**
+	 * Hands the link layer the routing table NetworkLayer just built, so it
+	 * can forward transit traffic without passing it up the stack.
+	 */
+	public void setRoutingTable(RoutingTable table) {
+		mLinkLayer.setRoutingTable(table);
+	}
+	
+	/**
+	 * Gets the link layer's counters for the connection to a neighbor
+	 * @return the stats, or null if there is no connection to it
+	 */
+	public LinkStats getLinkStats(String address) {
+		return mLinkLayer.getLinkStats(address);
+	}
+	
+	/**
+	 * Gets the counters on routing table computation
+	 */
+	public RoutingStats getRoutingStats() {
+		return mNetworkLayer.getRoutingStats();
+	}
+	
+	/**
+	 * Sets how long link state changes are held before routes are
+	 * recomputed, in milliseconds; see NetworkLayer.setSpfHoldDown
+	 */
+	public void setSpfHoldDown(long holdDown) {
+		mNetworkLayer.setSpfHoldDown(holdDown);
+	}
+	
 	public void setApplicationLayerHandler(Handler h) {
 		mTransportLayer.setAboveTargetHandler(h);
 	}
@@ -9,6 +9,8 @@ public class NodeFactory {
 	public static NodeFactory factory = new NodeFactory();
 	
 	private HashMap<String, Node> mByMac = new HashMap<String, Node>();
+	/** The same nodes, keyed on their packed 6 byte address */
+	private HashMap<Long, Node> mByPacked = new HashMap<Long, Node>();
 	
 	private NodeFactory() {
 	}
@@ -31,4 +33,37 @@ public class NodeFactory {
 			return null;
 		}
 	}
+	
+	/**
+	 * Gets the node for the 6 byte address at bytes[offset], as packed in
+	 * routing messages.  It is the same node as for the address written out
+	 * in upper case, as Node itself keeps it.
+	 */
+	public synchronized Node fromMacAddress(byte[] bytes, int offset) {
+		long packed = 0;
+		for (int i = 0; i < 6; ++i) {
+			packed = (packed << 8) | (bytes[offset + i] & 0xFF);
+		}
+		Node n = mByPacked.get(packed);
+		if (n != null) {
+			return n;
+		}
+		
+		StringBuilder sb = new StringBuilder(17);
+		for (int i = 0; i < 6; ++i) {
+			if (i > 0) {
+				sb.append(':');
+			}
+			sb.append(Character.toUpperCase(Character.forDigit((bytes[offset + i] >> 4) & 0xF, 16)));
+			sb.append(Character.toUpperCase(Character.forDigit(bytes[offset + i] & 0xF, 16)));
+		}
+		try {
+			n = fromMacAddress(sb.toString());
+		} catch (ParseException e) {
+			// Can't happen; the string was made from six bytes
+			return null;
+		}
+		mByPacked.put(packed, n);
+		return n;
+	}
 }
@@ -1,6 +1,7 @@
 package ec.nem.bluenet.net;
 
 import java.text.MessageFormat;
+import java.util.Arrays;
 
 import ec.nem.bluenet.utils.Utils;
 
@@ -8,6 +9,42 @@ public class IPv6Header {
 	public static final int NH_UDP = 1;
 //	public static final int NH_SCTP = 2; 
 	public static final int NH_ROUTING = 3;
+
+	/** Traffic class for routing control messages (CS6); always sent first */
+	public static final int TC_CONTROL = 0xC0;
+	/** Traffic class for interactive traffic such as chat (CS4) */
+	public static final int TC_INTERACTIVE = 0x80;
+	/** Traffic class for ordinary traffic (CS0) */
+	public static final int TC_DEFAULT = 0x00;
+	/** Traffic class for bulk transfers that should give way to everything else (CS1) */
+	public static final int TC_BULK = 0x20;
+
+	/** Hop limit sockets send with.  0 is what older nodes leave it at; relays don't touch that */
+	public static final int DEFAULT_HOP_LIMIT = 64;
+
+	/**
+	 * Destination of a broadcast to every node on the network: ff03::1, all
+	 * nodes in the realm-local (mesh) scope of RFC 7346.  Don't modify.
+	 */
+	public static final byte[] BROADCAST_ADDRESS = {
+		(byte) 0xff, 0x03, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x01
+	};
+	/** Largest flow label.  Broadcasts carry their sequence number there */
+	public static final int MAX_FLOW_LABEL = 0xFFFFF;
+
+	/** Length of the header on the wire */
+	public static final int HEADER_LENGTH = 40;
+	/** Where the next header field sits in the header on the wire */
+	public static final int NEXT_HEADER_OFFSET = 6;
+	/** Where the hop limit sits in the header on the wire */
+	public static final int HOP_LIMIT_OFFSET = 7;
+	/** Where the destination address starts in the header on the wire */
+	public static final int DESTINATION_OFFSET = 24;
+	
+	/** Whether an address is BROADCAST_ADDRESS */
+	public static boolean isBroadcast(byte[] address) {
+		return Arrays.equals(address, BROADCAST_ADDRESS);
+	}
 	
 	public byte[] headerFields = new byte[8];
 	
@@ -1,5 +1,8 @@
 package ec.nem.bluenet.net;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -8,6 +11,12 @@ public abstract class Layer {
 	public static final int MESSAGE_SEND = 0;
 	public static final int MESSAGE_RECV = 1;
 	public static final int MESSAGE_ERROR = 2;
+	/**
+	 * Jumps the queue of the receiving handler.  The object is taken from the
+	 * head of the sender's urgent queue when the message is handled, so
+	 * urgent messages still come out in the order they were sent.
+	 */
+	private static final int MESSAGE_URGENT = 3;
 	
 	/** Handles input to this layer from an upper layer */
 	protected Handler hReceiveFromAbove;
@@ -23,6 +32,11 @@ public abstract class Layer {
 	/** Processes packets as they flow up the stack */
 	protected HandlerThread upThread;
 	
+	/** Objects passed urgently to the layer below, oldest first */
+	private final Queue<Object> mUrgentBelow = new ConcurrentLinkedQueue<Object>();
+	/** Objects passed urgently to the layer above, oldest first */
+	private final Queue<Object> mUrgentAbove = new ConcurrentLinkedQueue<Object>();
+	
 	public Layer() {
 		downThread = new HandlerThread("DownThread");
 		upThread = new HandlerThread("UpThread");
@@ -33,6 +47,10 @@ public abstract class Layer {
 		hReceiveFromAbove = new Handler(downThread.getLooper()) {
 			@Override
 			public void handleMessage(Message msg) {
+				if (msg.what == MESSAGE_URGENT) {
+					msg.what = MESSAGE_SEND;
+					msg.obj = ((Queue<?>) msg.obj).poll();
+				}
 				handleMessageFromAbove(msg);
 			}
 		};
@@ -40,6 +58,10 @@ public abstract class Layer {
 		hReceiveFromBelow = new Handler(upThread.getLooper()) {
 			@Override
 			public void handleMessage(Message msg) {
+				if (msg.what == MESSAGE_URGENT) {
+					msg.what = MESSAGE_RECV;
+					msg.obj = ((Queue<?>) msg.obj).poll();
+				}
 				handleMessageFromBelow(msg);
 			}
 		};
@@ -79,6 +101,30 @@ public abstract class Layer {
 		hSendAbove.sendMessage(msg);
 	}
 	
+	/**
+	 * Passes a message to the layer below this one ahead of everything
+	 * already waiting there that was not itself sent urgently.
+	 */
+	public void sendUrgentMessageBelow(Object o) {
+		mUrgentBelow.add(o);
+		hSendBelow.sendMessageAtFrontOfQueue(hSendBelow.obtainMessage(MESSAGE_URGENT, mUrgentBelow));
+	}
+	
+	/**
+	 * Passes a message to the layer above this one ahead of everything
+	 * already waiting there that was not itself sent urgently.
+	 */
+	public void sendUrgentMessageAbove(Object o) {
+		mUrgentAbove.add(o);
+		hSendAbove.sendMessageAtFrontOfQueue(hSendAbove.obtainMessage(MESSAGE_URGENT, mUrgentAbove));
+	}
+	
+	/** Tells the layer above this one that something it sent down failed */
+	public void sendErrorAbove(Object o) {
+		Message msg = hSendAbove.obtainMessage(MESSAGE_ERROR, o);
+		hSendAbove.sendMessage(msg);
+	}
+	
 	/**
 	 * Called by the communication thread when the application is requesting
 	 * to turn off the communication service.  Should use this function to clean up
@@ -1,46 +1,229 @@
 package ec.nem.bluenet.net;
 
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import android.bluetooth.*;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 import ec.nem.bluenet.CommunicationThread;
 import ec.nem.bluenet.Node;
 import ec.nem.bluenet.NodeFactory;
 import ec.nem.bluenet.NodeListener;
+import ec.nem.bluenet.net.link.ArqSession;
+import ec.nem.bluenet.net.link.BluetoothTransport;
+import ec.nem.bluenet.net.link.BufferPool;
+import ec.nem.bluenet.net.link.CobsCodec;
+import ec.nem.bluenet.net.link.DeflateCodec;
+import ec.nem.bluenet.net.link.Fragmenter;
+import ec.nem.bluenet.net.link.FrameCodec;
+import ec.nem.bluenet.net.link.FrameDecoder;
+import ec.nem.bluenet.net.link.FrameWriter;
+import ec.nem.bluenet.net.link.Framing;
+import ec.nem.bluenet.net.link.IoEngine;
+import ec.nem.bluenet.net.link.IphcCodec;
+import ec.nem.bluenet.net.link.LengthCodec;
+import ec.nem.bluenet.net.link.LinkConnection;
+import ec.nem.bluenet.net.link.LinkMonitor;
+import ec.nem.bluenet.net.link.LinkStats;
+import ec.nem.bluenet.net.link.LinkTransport;
+import ec.nem.bluenet.net.link.PppCodec;
+import ec.nem.bluenet.net.link.QueuePolicy;
+import ec.nem.bluenet.net.link.Reassembler;
+import ec.nem.bluenet.net.link.ThreadIoEngine;
 
 /**
  * Responsible for moving frames between nodes on the network.<br>
  * <br>
  * 
  * In our case, this just means managing Bluetooth connectivity. In the
- * traditional internet, it could mean WiFi, ethernet, etc.
+ * traditional internet, it could mean WiFi, ethernet, etc.  The actual
+ * connections come from a LinkTransport, so the same framing and routing
+ * can also run over in-memory pipes or loopback TCP.<br>
+ * <br>
+ * 
+ * Connecting to a neighbor can take seconds, so it happens on a small
+ * connector pool.  Frames for a neighbor we are still connecting to wait in
+ * its queue and are written once the link comes up; if it doesn't come up
+ * in time they are dropped and a LinkError is sent to the layer above.<br>
+ * <br>
+ * 
+ * Datagrams to a neighbor that advertised our Deflate dictionary in its
+ * Hello are compressed, unless they don't shrink.  Every so often the time
+ * spent compressing is weighed against the airtime it saved, measured from
+ * how long writes to that neighbor take, and compression to a neighbor that
+ * isn't worth it is switched off for a while.<br>
+ * <br>
+ * 
+ * With setLinkArq(), datagrams to neighbors that understand it are sent
+ * through an ArqSession, which resends what the neighbor reports missing.
+ * Its timers run on the down thread.<br>
+ * <br>
+ * 
+ * Frames are PPP framed until a neighbor's Hello says it reads the framing
+ * picked with setFraming(); we read every framing whatever we send.<br>
+ * <br>
+ * 
+ * Neighbors that advertise FEATURE_KEEPALIVE are probed with LCP echoes,
+ * which measure the RTT, jitter and loss of the link, and a connection to
+ * one that goes silent for the dead interval is closed rather than left for
+ * the socket to notice.<br>
+ * <br>
+ * 
+ * Once NetworkLayer has handed down a routing table, datagrams passing
+ * through on their way to another node are forwarded straight from the
+ * receive buffer: the destination is read in place, the hop limit is
+ * decremented, and the bytes are framed for the next hop on the thread
+ * that read them.  Only when the next hop needs compression, ARQ or
+ * fragments do they go by the down thread, and they never go up the stack.
  * 
  * @author Darren White, Matt Mullins, Ivan Hernandez
  */
 public class LinkLayer extends Layer {
 	private static final String TAG = "LinkLayer";
-	public static final String NAME = "BlueMesh";
-	public static final java.util.UUID UUID = 
-			java.util.UUID.fromString("7b3612de-9166-4262-9f48-1bddf968c423");
+	public static final String NAME = BluetoothTransport.NAME;
+	public static final java.util.UUID UUID = BluetoothTransport.UUID;
+	/** Default number of threads making outgoing connections */
+	public static final int DEFAULT_CONNECTOR_THREADS = 2;
+	/** Default time to wait for an outgoing connection, in milliseconds */
+	public static final long DEFAULT_CONNECT_TIMEOUT = 15000;
+	/** Default largest datagram sent in one frame; bigger ones are fragmented */
+	public static final int DEFAULT_LINK_MTU = 1024;
+	/** Datagrams compressed between checks on whether compression pays */
+	public static final int COMPRESSION_WINDOW = 32;
+	/** Default time compression stays off for a neighbor where it didn't pay, in milliseconds */
+	public static final long DEFAULT_COMPRESSION_BACKOFF = 60000;
+	/** Airtime assumed per byte until enough has been written to measure it; about RFCOMM's */
+	public static final long DEFAULT_NANOS_PER_BYTE = 10000;
+	/** Bytes written to a neighbor before its measured airtime is trusted */
+	private static final int AIRTIME_SAMPLE_BYTES = 16 * 1024;
+
+	/** Feature flag: the node acknowledges ArqSession frames */
+	public static final int FEATURE_ARQ = 0x01;
+	/** Feature flag: the node reads Framing.LENGTH frames */
+	public static final int FEATURE_LENGTH_FRAMING = 0x02;
+	/** Feature flag: the node reads Framing.COBS frames */
+	public static final int FEATURE_COBS_FRAMING = 0x04;
+	/** Feature flag: the node answers LCP Echo-Requests */
+	public static final int FEATURE_KEEPALIVE = 0x08;
+	/** What we understand on our links, advertised in Hello */
+	public static final int FEATURES = FEATURE_ARQ | FEATURE_LENGTH_FRAMING | FEATURE_COBS_FRAMING
+			| FEATURE_KEEPALIVE;
+	/** Default time between probes of a neighbor, in milliseconds */
+	public static final long DEFAULT_KEEPALIVE_INTERVAL = 1000;
+	/** Default time a neighbor may stay silent before its link is taken for dead, in milliseconds */
+	public static final long DEFAULT_DEAD_INTERVAL = 5000;
 
 	CommunicationThread mCommThread;
 	AcceptThread mAcceptThread;
 
-	private BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+	private final LinkTransport mTransport;
 
-	private Map<String, ConnectionThread> mConnectionThreads;
+	/** Every neighbor we are connected or connecting to, by MAC address */
+	private final ConcurrentHashMap<String, PeerConnection> mConnections =
+			new ConcurrentHashMap<String, PeerConnection>();
+
+	/** Runs the blocking connect() calls, so one slow peer never stalls the down thread */
+	private final ThreadPoolExecutor mConnector;
+	/** How long frames wait for an outgoing connection, in milliseconds */
+	private volatile long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/** Reads and writes every connection once it is up */
+	private volatile IoEngine mEngine = new ThreadIoEngine();
+
+	// Frame encoders shared by all connections; buffers come from BufferPool.shared
+	private final PppCodec mPppCodec = new PppCodec();
+	private final LengthCodec mLengthCodec = new LengthCodec();
+	private final CobsCodec mCobsCodec = new CobsCodec();
+	/** Framing sent to neighbors that read it; others get PPP */
+	private volatile Framing mFraming = Framing.LENGTH;
+
+	/** Byte budget for one coalesced write, applied to new connections */
+	private volatile int mMaxBatchBytes = FrameWriter.DEFAULT_MAX_BATCH_BYTES;
+	/** How long a writer waits for more frames before writing, in microseconds */
+	private volatile long mLingerMicros = FrameWriter.DEFAULT_LINGER_MICROS;
+
+	/** Most frames that may wait for one neighbor, applied to new connections */
+	private volatile int mMaxQueuedFrames = FrameWriter.DEFAULT_MAX_QUEUED_FRAMES;
+	/** Most encoded bytes that may wait for one neighbor, applied to new connections */
+	private volatile int mMaxQueuedBytes = FrameWriter.DEFAULT_MAX_QUEUED_BYTES;
+	/** What to do with a frame for a neighbor whose queue is full */
+	private volatile QueuePolicy mQueuePolicy = QueuePolicy.DROP_TAIL;
+
+	/** Whether to send compressed IPv6 headers; we always accept them */
+	private volatile boolean mHeaderCompression = false;
+	/** Our own MAC, which compressed headers leave out; looked up on first use */
+	private volatile byte[] mLocalAddressBytes;
+
+	/** Largest datagram sent in one frame, or 0 to never fragment */
+	private volatile int mLinkMtu = DEFAULT_LINK_MTU;
+	/** Most bytes held for partial datagrams per neighbor, applied to new connections */
+	private volatile int mMaxReassemblyBytes = Reassembler.DEFAULT_MAX_BYTES;
+	/** How long a partial datagram waits for its next fragment, in milliseconds */
+	private volatile long mReassemblyTimeout = Reassembler.DEFAULT_TIMEOUT;
+
+	/** Whether to compress datagrams for neighbors that can inflate them */
+	private volatile boolean mPayloadCompression = true;
+	/** How long compression stays off for a neighbor where it didn't pay, in milliseconds */
+	private volatile long mCompressionBackoff = DEFAULT_COMPRESSION_BACKOFF;
+	/** Whether to send datagrams through an ArqSession to neighbors that understand it */
+	private volatile boolean mLinkArq = false;
+	/** Neighbors whose Hello advertised FEATURE_ARQ */
+	private final Set<String> mArqPeers =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Neighbors whose Hello advertised FEATURE_KEEPALIVE */
+	private final Set<String> mKeepalivePeers =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Time between probes, or 0 to send none; applied to new connections */
+	private volatile long mKeepaliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+	/** How long a probed neighbor may stay silent, in milliseconds */
+	private volatile long mDeadInterval = DEFAULT_DEAD_INTERVAL;
+	/** The FEATURE_ framing flags in each neighbor's Hello */
+	private final ConcurrentHashMap<String, Integer> mPeerFraming =
+			new ConcurrentHashMap<String, Integer>();
+	/** Neighbors whose Hello advertised our Deflate dictionary */
+	private final Set<String> mInflatingPeers =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Compressor for every neighbor; only the down thread uses it */
+	private final DeflateCodec mDeflate = new DeflateCodec();
+
+	/** What NetworkLayer last computed; null until it has, which leaves all forwarding to it */
+	private volatile RoutingTable mRoutingTable;
+	/** Whether to forward transit datagrams without passing them up the stack */
+	private volatile boolean mCutThrough = true;
+	/** Our own IPv6 address; looked up on first use */
+	private volatile byte[] mLocalIpAddress;
+
+	/** Shares of the interactive, normal and bulk bands, applied to new connections */
+	private volatile int[] mTrafficWeights = FrameWriter.DEFAULT_WEIGHTS;
 
 	public LinkLayer(CommunicationThread commThread) {
+		this(commThread, new BluetoothTransport());
+	}
+
+	public LinkLayer(CommunicationThread commThread, LinkTransport transport) {
 		super();
 		mCommThread = commThread;
+		mTransport = transport;
+
+		mConnector = new ThreadPoolExecutor(DEFAULT_CONNECTOR_THREADS, DEFAULT_CONNECTOR_THREADS,
+				30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Connector");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		mConnector.allowCoreThreadTimeOut(true);
 	}
 
 	@Override
@@ -49,30 +232,33 @@ public class LinkLayer extends Layer {
 		Node node = NodeFactory.factory.fromMacAddress(segment.nextHopMACAddress);
 
 		try {
-			ByteArrayOutputStream packet = new ByteArrayOutputStream();
-			packet.write(segment.IPHeader.headerFields);
-			packet.write(segment.IPHeader.sourceAddress);
-			packet.write(segment.IPHeader.destinationAddress);
-			packet.write(segment.transportSegment.getRawBytes());
-
-			LinkFrame frame = new LinkFrame();
-			frame.data = packet.toByteArray();
-			frame.protocol = LinkFrame.PROTOCOL_IP6;
+			IPv6Header header = segment.IPHeader;
+			byte[] payload = segment.transportSegment.getRawBytes();
+			byte[] compressed = null;
+			if (mHeaderCompression) {
+				compressed = IphcCodec.compress(header.headerFields,
+						header.sourceAddress, header.destinationAddress,
+						getLocalAddressBytes(), segment.nextHopMACAddress, payload.length);
+			}
 
-			byte[] bytes = frame.encapsulate();
+			short protocol;
+			byte[][] parts;
+			if (compressed != null) {
+				protocol = LinkFrame.PROTOCOL_IPHC;
+				parts = new byte[][] { compressed, payload };
+			} else {
+				protocol = LinkFrame.PROTOCOL_IP6;
+				parts = new byte[][] { header.headerFields, header.sourceAddress,
+						header.destinationAddress, payload };
+			}
 
 			// mCommThread.showProgress(true);
-			Handler h = connectToNode(node);
-			if (h != null) {
-				android.os.Message m = h.obtainMessage();
-				m.obj = bytes;
-				Log.d(TAG, "Sending a message:" + m + "\nTo:" + node);
-				h.sendMessage(m);
-				// mCommThread.showProgress(false);
-			}
-			else{
-				Log.d(TAG, "Failed to send message to " +node);
-			}
+			Log.d(TAG, "Sending a message:" + segment + "\nTo:" + node);
+			PeerConnection peer = getConnection(node.getAddress());
+			peer.countHeader(header.getNextHeader(), compressed);
+
+			transmit(peer, protocol, parts, FrameWriter.bandFor(header.getTrafficClass()));
+			// mCommThread.showProgress(false);
 		} catch (Exception e) {
 			/// TODO later this can be wtf it shuoldn't happen
 			Log.e(TAG, "Message from above killed us", e);
@@ -80,85 +266,451 @@ public class LinkLayer extends Layer {
 	}
 
 	/**
-	 * Connects to the specified node and adds the handler thread to our list of handlers
-	 * @param n The node to create a connection to
-	 * @return The Handler for the Node to which we connected.
+	 * Sends a datagram to a neighbor, compressed and through ARQ if it takes
+	 * them.  Only call on the down thread.
+	 */
+	private void transmit(PeerConnection peer, short protocol, byte[][] parts, int band) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+
+		if (mPayloadCompression && peer.shouldCompress()) {
+			long start = System.nanoTime();
+			byte[] deflated = mDeflate.compress(protocol, parts);
+			peer.countCompression(length, deflated == null ? length : deflated.length,
+					System.nanoTime() - start);
+			if (deflated != null) {
+				protocol = DeflateCodec.PROTOCOL_DEFLATE;
+				parts = new byte[][] { deflated };
+				length = deflated.length;
+			}
+		}
+		if (mLinkArq && mArqPeers.contains(peer.mRemoteAddress)) {
+			// Compressed first, so what is kept for resending is small
+			byte[] arq = peer.mArq.send(protocol, parts, band, System.currentTimeMillis());
+			protocol = ArqSession.PROTOCOL_ARQ;
+			parts = new byte[][] { arq };
+			length = arq.length;
+			peer.sendDatagram(protocol, parts, length, band);
+			peer.scheduleArq();
+		} else {
+			peer.sendDatagram(protocol, parts, length, band);
+		}
+	}
+
+	/**
+	 * Gets our own MAC address as bytes, or null if the transport can't
+	 * tell us yet.
 	 */
-	private Handler connectToNode(Node n) {
-		ConnectionThread c = mConnectionThreads.get(n.getAddress());
-		
-		if (c != null && c.getHandler() != null) {
-			return c.getHandler();
+	private byte[] getLocalAddressBytes() {
+		if (mLocalAddressBytes == null) {
+			Node local = getLocalNode();
+			if (local != null) {
+				mLocalAddressBytes = local.getAddressBytes();
+			}
+		}
+		return mLocalAddressBytes;
+	}
+
+	/** Gets our own IPv6 address, or null if the transport can't tell us yet */
+	private byte[] getLocalIpAddress() {
+		if (mLocalIpAddress == null) {
+			Node local = getLocalNode();
+			if (local != null) {
+				mLocalIpAddress = local.getIPAddress();
+			}
 		}
+		return mLocalIpAddress;
+	}
+
+	/**
+	 * Gets the connection to the specified node, starting to connect to it if
+	 * we have none.  Frames can be queued on it right away.
+	 * @param address The MAC address of the node
+	 * @return The connection for the Node
+	 */
+	private PeerConnection getConnection(String address) {
+		PeerConnection c = mConnections.get(address);
+		if (c != null) {
+			return c;
+		}
+
+		PeerConnection peer = new PeerConnection(address);
+		c = mConnections.putIfAbsent(address, peer);
+		if (c != null) {
+			return c;
+		}
+
+		startConnecting(peer);
+		return peer;
+	}
+
+	/**
+	 * Connects to the peer on the connector pool, and gives up on it if that
+	 * takes longer than the connect timeout.
+	 */
+	private void startConnecting(final PeerConnection peer) {
+		Log.d(TAG, MessageFormat.format("Attempting to connect to {0}", peer.mRemoteAddress));
 
-		BluetoothDevice device;
-		BluetoothSocket socket;
 		try {
-			device = mBluetoothAdapter.getRemoteDevice(n.getAddress());
-			socket = device.createRfcommSocketToServiceRecord(UUID);
+			mConnector.execute(new Runnable() {
+				public void run() {
+					LinkConnection connection;
+					try {
+						connection = mTransport.connect(peer.mRemoteAddress);
+					} catch (IOException e) {
+						Log.d(TAG, MessageFormat.format("{0},IOException: {1}",
+								e.toString(), e.getMessage()));
+						peer.fail("could not connect: " + e.getMessage());
+						return;
+					}
 
-			try {
-				Log.d(TAG, MessageFormat.format(
-						"Attemtpting to connect to {0}",
-						n.getAddress()));
-				socket.connect();
-				Log.d(TAG, MessageFormat.format(
-						"Succeeded in connecting to {0}",
-						n.getAddress()));
-			} catch (IOException e) {
-				Log.d(TAG, MessageFormat.format(
-						"Failed to connect to {0}\nException:{1}",
-						n.getAddress(), e.getMessage()));
-				// Try a hack for some broken devices (like ones by HTC)
-				// instead:
-				Method m = device.getClass().getMethod("createRfcommSocket",
-						new Class[] { int.class });
-				socket = (BluetoothSocket) m.invoke(device, Integer.valueOf(1));
-				socket.connect(); // If this fails, then we can't connect.
-				Log.d(TAG, MessageFormat.format(
-						"Succeeded in connecting to {0}",
-						n.getAddress()));
+					// We may have timed out, or the peer may have connected to us first
+					if (!peer.attach(connection)) {
+						try {
+							connection.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			peer.fail("link layer stopped");
+			return;
+		}
+
+		hReceiveFromAbove.postDelayed(new Runnable() {
+			public void run() {
+				peer.fail("timed out connecting");
 			}
+		}, mConnectTimeout);
+	}
 
-			ConnectionThread ct = new ConnectionThread(socket);
-			ct.start();
-			return ct.getHandler();
-		} catch (IOException e) {
-			Log.d(TAG, MessageFormat.format("{0},IOException: {1}",
-					e.toString(), e.getMessage()));
-			return null;
-		} catch (NoSuchMethodException e) {
-			Log.e(TAG,
-					MessageFormat.format("{0},NoSuchMethodException: {1}",
-							e.toString(), e.getMessage()));
-			return null;
-		} catch (InvocationTargetException e) {
-			Log.e(TAG, MessageFormat.format(
-					"{0},InvocationTargetException: {1}", e.toString(),
-					e.getMessage()));
-			return null;
-		} catch (IllegalAccessException e) {
-			Log.e(TAG,
-					MessageFormat.format("{0},IllegalAccessException: {1}",
-							e.toString(), e.getMessage()));
-			return null;
+	/**
+	 * Takes on a connection a neighbor made to us.  If we were still
+	 * connecting to it ourselves, the frames parked for it go out on this one.
+	 */
+	private void adopt(LinkConnection connection) {
+		String address = connection.getRemoteAddress();
+
+		while (true) {
+			PeerConnection c = mConnections.get(address);
+			if (c != null && c.attach(connection)) {
+				return;
+			}
+
+			// Either we had nothing, or an older link the peer has evidently given up on
+			PeerConnection fresh = new PeerConnection(address);
+			boolean installed = (c == null)
+					? mConnections.putIfAbsent(address, fresh) == null
+					: mConnections.replace(address, c, fresh);
+			if (installed) {
+				if (c != null) {
+					c.closeConnection();
+				}
+				fresh.attach(connection);
+				return;
+			}
 		}
 	}
 	
 	@Override
 	public void handleMessageFromBelow(android.os.Message msg) {}
 
+	/**
+	 * Sets how frames queued for a neighbor are merged into writes.  Applies
+	 * to connections made after the call.
+	 *
+	 * @param maxBatchBytes most encoded bytes to put in one write
+	 * @param lingerMicros how long to wait for more frames once one is queued;
+	 *        0 only merges frames that are already waiting
+	 */
+	public void setWriteCoalescing(int maxBatchBytes, long lingerMicros) {
+		mMaxBatchBytes = maxBatchBytes;
+		mLingerMicros = lingerMicros;
+	}
+
+	/**
+	 * Sets how much may be queued for each neighbor, and what happens to a
+	 * frame for a neighbor whose queue is full.  Applies to connections made
+	 * after the call.
+	 *
+	 * @param maxFrames most frames waiting for one neighbor in each traffic band
+	 * @param maxBytes most encoded bytes waiting for one neighbor in each traffic band
+	 * @param policy what to do with a frame that doesn't fit; with
+	 *        QueuePolicy.BLOCK the link layer's down thread waits, which in
+	 *        turn backs up the layers above
+	 */
+	public void setQueueLimits(int maxFrames, int maxBytes, QueuePolicy policy) {
+		mMaxQueuedFrames = maxFrames;
+		mMaxQueuedBytes = maxBytes;
+		mQueuePolicy = policy;
+	}
+
+	/**
+	 * Sets the engine that services connections made after the call.  The
+	 * default gives each connection its own reader and writer thread; a
+	 * PollingIoEngine keeps the thread count fixed however many neighbors
+	 * there are.  Shutting down the engine being replaced is up to the
+	 * caller, once its connections are gone.
+	 */
+	public void setIoEngine(IoEngine engine) {
+		mEngine = engine;
+	}
+
+	/**
+	 * Turns sending compressed IPv6 headers on or off.  Compressed headers
+	 * are always understood on receipt, but a node running an older BlueNet
+	 * drops them, so this is off unless every node is known to be current.
+	 */
+	public void setHeaderCompression(boolean enabled) {
+		mHeaderCompression = enabled;
+	}
+
+	/**
+	 * Sets the largest datagram sent as a single frame.  Bigger ones are sent
+	 * in fragments of this size, which take turns with other traffic to the
+	 * same neighbor instead of holding it up.
+	 *
+	 * @param mtu the link MTU in bytes, or 0 to never fragment
+	 */
+	public void setLinkMtu(int mtu) {
+		mLinkMtu = mtu;
+	}
+
+	/**
+	 * Gets the largest datagram, IPv6 header included, that goes to a
+	 * neighbor in one frame: the link MTU less the ARQ header if the link to
+	 * it runs ARQ.  Deflate never makes a datagram longer, and the framing
+	 * itself is not counted against the MTU.
+	 *
+	 * @return the length in bytes, or Integer.MAX_VALUE if nothing is fragmented
+	 */
+	public int getMaxDatagramLength(String address) {
+		int mtu = mLinkMtu;
+		if (mtu <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		if (mLinkArq && mArqPeers.contains(address)) {
+			mtu -= ArqSession.MAX_HEADER_LENGTH;
+		}
+		return mtu;
+	}
+
+	/**
+	 * Turns compressing datagrams on or off.  Either way, only neighbors
+	 * that advertised our dictionary are sent compressed frames, and we
+	 * always inflate the ones we get.
+	 */
+	public void setPayloadCompression(boolean enabled) {
+		mPayloadCompression = enabled;
+	}
+
+	/**
+	 * Sets how long compression stays off for a neighbor after it was found
+	 * to cost more time than it saved, in milliseconds.
+	 */
+	public void setCompressionBackoff(long backoff) {
+		mCompressionBackoff = backoff;
+	}
+
+	/**
+	 * Turns on resending lost frames hop by hop, for neighbors that
+	 * advertised FEATURE_ARQ.  We always acknowledge ARQ frames we get,
+	 * whether or not this is on.
+	 */
+	public void setLinkArq(boolean enabled) {
+		mLinkArq = enabled;
+	}
+
+	/**
+	 * Sets the framing used for neighbors whose Hello says they read it.
+	 * PPP is the only one older nodes read, and its frames grow with the
+	 * number of 0x7e and 0x7d bytes in them; LENGTH frames cost a fixed four
+	 * bytes and aren't scanned at either end; COBS costs at most one byte in
+	 * 254 but, like PPP, still finds its place again if the stream is cut.
+	 * Takes effect on the next frame.
+	 */
+	public void setFraming(Framing framing) {
+		mFraming = framing;
+	}
+
+	/**
+	 * Gives the link layer the routing table to forward transit datagrams
+	 * with, each time NetworkLayer builds a new one.
+	 */
+	public void setRoutingTable(RoutingTable table) {
+		mRoutingTable = table;
+	}
+
+	/**
+	 * Turns forwarding transit datagrams in the link layer on or off.  When
+	 * off, they go up to NetworkLayer and back down as before.
+	 */
+	public void setCutThrough(boolean enabled) {
+		mCutThrough = enabled;
+	}
+
+	/**
+	 * Sets how often neighbors that advertised FEATURE_KEEPALIVE are probed,
+	 * and how long one may go without sending anything before its link is
+	 * closed.  Probes also keep the RTT, jitter and loss in LinkStats up to
+	 * date.  The interval applies to connections made after the call.
+	 *
+	 * @param interval time between probes in milliseconds, or 0 to send
+	 *        none and never close a link for being quiet
+	 * @param deadInterval longest silence in milliseconds; a few intervals,
+	 *        so one lost probe isn't taken for a dead link
+	 */
+	public void setKeepalive(long interval, long deadInterval) {
+		mKeepaliveInterval = interval;
+		mDeadInterval = deadInterval;
+	}
+
+	/**
+	 * Records what a neighbor said, in its Hello, it understands: its
+	 * FEATURE_ flags and the Deflate dictionary it inflates with.  We only
+	 * compress to it if that dictionary is ours.
+	 */
+	public void setPeerCapabilities(String address, int linkFeatures, int deflateDictionary) {
+		if ((linkFeatures & FEATURE_ARQ) != 0) {
+			mArqPeers.add(address);
+		} else {
+			mArqPeers.remove(address);
+		}
+		if ((linkFeatures & FEATURE_KEEPALIVE) != 0) {
+			mKeepalivePeers.add(address);
+		} else {
+			mKeepalivePeers.remove(address);
+		}
+		mPeerFraming.put(address, linkFeatures & (FEATURE_LENGTH_FRAMING | FEATURE_COBS_FRAMING));
+		if (deflateDictionary != 0 && deflateDictionary == DeflateCodec.DICTIONARY_ID) {
+			mInflatingPeers.add(address);
+		} else {
+			mInflatingPeers.remove(address);
+		}
+	}
+
+	/** Whether a[offset, offset + b.length) holds the same bytes as b */
+	private static boolean regionEquals(byte[] a, int offset, byte[] b) {
+		for (int i = 0; i < b.length; ++i) {
+			if (a[offset + i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Gets the framing we send to a neighbor in, given what it reads */
+	private Framing framingFor(String address) {
+		Framing framing = mFraming;
+		Integer features = mPeerFraming.get(address);
+		if (framing == Framing.LENGTH && features != null
+				&& (features & FEATURE_LENGTH_FRAMING) != 0) {
+			return Framing.LENGTH;
+		}
+		if (framing == Framing.COBS && features != null
+				&& (features & FEATURE_COBS_FRAMING) != 0) {
+			return Framing.COBS;
+		}
+		return Framing.PPP;
+	}
+
+	private FrameCodec codecFor(Framing framing) {
+		switch (framing) {
+		case LENGTH:
+			return mLengthCodec;
+		case COBS:
+			return mCobsCodec;
+		default:
+			return mPppCodec;
+		}
+	}
+
+	/**
+	 * Sets how each neighbor's link is shared between interactive, normal and
+	 * bulk traffic when all three are waiting, picked by the IPv6 traffic
+	 * class.  Routing control traffic always goes ahead of all of them.
+	 * Applies to connections made after the call.
+	 */
+	public void setTrafficWeights(int interactive, int normal, int bulk) {
+		mTrafficWeights = new int[] { interactive, normal, bulk };
+	}
+
+	/**
+	 * Sets how much memory each connection may hold for datagrams being put
+	 * back together, and how long a partial datagram may wait for its next
+	 * fragment.  Applies to connections made after the call.
+	 */
+	public void setReassemblyLimits(int maxBytes, long timeout) {
+		mMaxReassemblyBytes = maxBytes;
+		mReassemblyTimeout = timeout;
+	}
+
+	/**
+	 * Sets how many outgoing connections may be attempted at once.
+	 */
+	public void setConnectorThreads(int threads) {
+		if (threads > mConnector.getMaximumPoolSize()) {
+			mConnector.setMaximumPoolSize(threads);
+			mConnector.setCorePoolSize(threads);
+		} else {
+			mConnector.setCorePoolSize(threads);
+			mConnector.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Sets how long frames for a neighbor wait for the connection to it
+	 * before they are dropped, in milliseconds.
+	 */
+	public void setConnectTimeout(long timeout) {
+		mConnectTimeout = timeout;
+	}
+
+	/**
+	 * Gets the counters for the connection to the given neighbor
+	 * @return the stats, or null if we have no connection to it
+	 */
+	public LinkStats getLinkStats(String address) {
+		PeerConnection c = mConnections.get(address);
+		return c == null ? null : c.getStats();
+	}
+
+	/**
+	 * Gets the counters for every current connection
+	 */
+	public List<LinkStats> getLinkStats() {
+		List<LinkStats> out = new ArrayList<LinkStats>();
+		for (PeerConnection c : mConnections.values()) {
+			out.add(c.getStats());
+		}
+		return out;
+	}
+
 	@Override
 	public void stopLayer() {
 		if (mAcceptThread != null)
 			mAcceptThread.stopThread();
 
+		mConnector.shutdownNow();
+		mEngine.shutdown();
+		for (PeerConnection c : mConnections.values()) {
+			c.endInflate();
+		}
 		super.stopLayer();
+		// mDeflate belongs to the down thread; let it finish with it first
+		try {
+			downThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mDeflate.end();
 	}
 
 	public void run() {
-		mConnectionThreads = new HashMap<String, ConnectionThread>();
-
 		try {
 			mAcceptThread = new AcceptThread();
 			mAcceptThread.start();
@@ -168,16 +720,12 @@ public class LinkLayer extends Layer {
 	}
 
 	public List<Node> getPairedNodes() {
-		Set<BluetoothDevice> paired = mBluetoothAdapter.getBondedDevices();
 		ArrayList<Node> out = new ArrayList<Node>();
 
-		for (BluetoothDevice device : paired) {
+		for (String address : mTransport.getPairedAddresses()) {
 			try {
-				String address = device.getAddress();
-				if (address != null) {
-					Node n = NodeFactory.factory.fromMacAddress(address);
-					out.add(n);
-				}
+				Node n = NodeFactory.factory.fromMacAddress(address);
+				out.add(n);
 			} catch (ParseException ex) {
 				Log.e(TAG,ex.getMessage());
 				// TODO: handle errors, but if Android gives us a bad Bluetooth
@@ -190,7 +738,7 @@ public class LinkLayer extends Layer {
 
 	public Node getLocalNode() {
 		try {
-			return NodeFactory.factory.fromMacAddress(mBluetoothAdapter.getAddress());
+			return NodeFactory.factory.fromMacAddress(mTransport.getLocalAddress());
 		} catch (ParseException e) {
 			Log.e(TAG, "Parse exception parsing address: " + e.getMessage());
 			return null;
@@ -198,21 +746,16 @@ public class LinkLayer extends Layer {
 	}
 
 	private class AcceptThread extends Thread {
-		private BluetoothServerSocket mServerSocket;
 		private boolean running = true;
 
 		public AcceptThread() throws IOException {
-			mServerSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, UUID);
+			mTransport.listen();
 		}
 
 		public void run() {
 			try {
 				while (running) {
-					BluetoothSocket socket = mServerSocket.accept();
-					if (socket != null) {
-						ConnectionThread thread = new ConnectionThread(socket);
-						thread.start();
-					}
+					adopt(mTransport.accept());
 				}
 			} catch (IOException e) {
 				if (running) {
@@ -226,129 +769,661 @@ public class LinkLayer extends Layer {
 			if (running == true) {
 				running = false;
 				// Will cause accept() to throw IOException and quit blocking:
-				try {
-					mServerSocket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+				mTransport.close();
 			}
 		}
 	}
 
-	private class ConnectionThread extends Thread {
-		private static final String TAG = "ConnectionThread";
-		private BluetoothSocket mSocket;
-		private Handler mHandler;
-		private HandlerThread mHandlerThread;
-		private String mRemoteAddress;
+	/**
+	 * Everything we keep for one neighbor: the frames queued for it, and once
+	 * the link is up, the connection and the engine servicing it.
+	 */
+	private class PeerConnection implements IoEngine.Channel {
+		private static final String TAG = "PeerConnection";
+		private static final int CONNECTING = 0;
+		private static final int CONNECTED = 1;
+		private static final int CLOSED = 2;
 
-		private ConnectionThread(BluetoothSocket socket) {
-			mSocket = socket;
+		private final String mRemoteAddress;
+		private final FrameWriter mWriter;
+		private LinkConnection mSocket;
+		private InputStream mIn;
+		private OutputStream mOut;
+		private IoEngine mSocketEngine;
+		private int mState = CONNECTING;
+		/** MAC of the neighbor, which compressed headers from it leave out */
+		private byte[] mRemoteAddressBytes;
+		// Header compression counters; only the down thread updates these
+		private volatile long mCompressedFrames;
+		private volatile long mFullHeaderFrames;
+		private volatile long mUdpHeaderBytesSaved;
+		private volatile long mRoutingHeaderBytesSaved;
+		/** Tag for the next datagram we fragment; only the down thread uses it */
+		private int mNextFragmentTag;
+		// Payload compression counters; only the down thread updates these
+		private volatile long mPayloadBytesIn;
+		private volatile long mPayloadBytesOut;
+		private volatile long mCompressNanos;
+		/** When compression may be tried again after it didn't pay */
+		private volatile long mCompressionOffUntil;
+		private int mWindowFrames;
+		private long mWindowSaved;
+		private long mWindowNanos;
+		// Only touched by the engine, one onReceive at a time
+		private final FrameDecoder mDecoder = new FrameDecoder();
+		private final Reassembler mReassembler;
+		/** Guarded by itself, since the link may be closed from another thread while it inflates */
+		private final DeflateCodec mInflate;
+		private boolean mInflateEnded;
+		private volatile long mDecompressNanos;
+		// Scratch space for forwarding; only the engine, one onReceive at a time
+		private final IPv6Header mForwardHeader = new IPv6Header();
+		private final byte[] mForwardFull = new byte[IPv6Header.HEADER_LENGTH];
+		/** Transit datagrams from this neighbor dropped for reaching their hop limit */
+		private volatile long mExpiredFrames;
+		/** Transit datagrams queued for this neighbor straight from another connection's receive buffer */
+		private final AtomicLong mCutThroughFrames = new AtomicLong();
+		/** RTT, jitter and loss measured by probing the neighbor */
+		private final LinkMonitor mMonitor = new LinkMonitor(System.nanoTime());
+		/** Probes the neighbor on the down thread, and closes the link if it has gone quiet */
+		private final Runnable mKeepaliveTimer = new Runnable() {
+			public void run() {
+				synchronized (PeerConnection.this) {
+					if (mState != CONNECTED) {
+						return;
+					}
+				}
+				long interval = mKeepaliveInterval;
+				if (interval <= 0) {
+					return;
+				}
+				if (mKeepalivePeers.contains(mRemoteAddress)) {
+					long silent = (System.nanoTime() - mMonitor.getLastHeard()) / 1000000;
+					if (silent > mDeadInterval) {
+						Log.d(TAG, MessageFormat.format("Heard nothing from {0} for {1} ms; closing the link",
+								mRemoteAddress, silent));
+						closeConnection();
+						return;
+					}
+					sendLcp(mMonitor.probe(System.nanoTime()));
+				}
+				hReceiveFromAbove.postDelayed(this, interval);
+			}
+		};
+		/** Sequencing and acknowledgements for this connection */
+		private final ArqSession mArq = new ArqSession();
+		/** Resends and acknowledges on the down thread when the ArqSession is due */
+		private final Runnable mArqTimer = new Runnable() {
+			public void run() {
+				synchronized (PeerConnection.this) {
+					if (mState == CLOSED) {
+						return;
+					}
+				}
+				for (ArqSession.Outgoing o : mArq.poll(System.currentTimeMillis())) {
+					sendDatagram(ArqSession.PROTOCOL_ARQ, new byte[][] { o.data }, o.data.length, o.band);
+				}
+				scheduleArq();
+			}
+		};
 
-			HandlerThread mHandlerThread = new HandlerThread("connection");
-			mHandlerThread.start();
+		private PeerConnection(String address) {
+			mRemoteAddress = address;
+			mWriter = new FrameWriter(BufferPool.shared, mMaxBatchBytes, mLingerMicros);
+			mWriter.setQueueLimits(mMaxQueuedFrames, mMaxQueuedBytes, mQueuePolicy);
+			int[] weights = mTrafficWeights;
+			mWriter.setWeights(weights[0], weights[1], weights[2]);
+			mReassembler = new Reassembler(mMaxReassemblyBytes, mReassemblyTimeout);
+			mInflate = new DeflateCodec(mMaxReassemblyBytes);
+			try {
+				mRemoteAddressBytes = NodeFactory.factory.fromMacAddress(address).getAddressBytes();
+			} catch (ParseException e) {
+				Log.e(TAG, "Could not create node from address " + address);
+			}
+		}
 
-			mHandler = new Handler(mHandlerThread.getLooper()) {
-				public void handleMessage(android.os.Message msg) {
-					try {
-						mSocket.getOutputStream().write((byte[]) msg.obj);
-					} catch (IOException e) {
-						Log.d(TAG, mRemoteAddress + " has left the network.");
-						closeConnection();
+		/** Counts the header bytes saved on a frame for this neighbor */
+		public void countHeader(int nextHeader, byte[] compressed) {
+			if (compressed == null) {
+				mFullHeaderFrames++;
+				return;
+			}
+
+			mCompressedFrames++;
+			int saved = IphcCodec.HEADER_LENGTH - compressed.length;
+			if (nextHeader == IPv6Header.NH_ROUTING) {
+				mRoutingHeaderBytesSaved += saved;
+			} else {
+				mUdpHeaderBytesSaved += saved;
+			}
+		}
+
+		/**
+		 * Queues an encoded frame in one of the FrameWriter bands; it is
+		 * written once the link is up.
+		 */
+		public void send(ByteBuffer frame, int band) {
+			if (!mWriter.enqueue(frame, band)) {
+				Log.d(TAG, "Failed to send message to " + mRemoteAddress);
+				synchronized (this) {
+					if (mState == CLOSED) {
+						return;
 					}
 				}
-			};
+				if (mWriter.getQueuePolicy() == QueuePolicy.REJECT) {
+					sendErrorAbove(new LinkError(mRemoteAddress, LinkError.QUEUE_FULL, 1));
+				}
+			}
+		}
 
-			BluetoothDevice remote = mSocket.getRemoteDevice();
-			mRemoteAddress = remote.getAddress();
-			mConnectionThreads.put(mRemoteAddress, this);
-			for (NodeListener l : mCommThread.getNodeListeners()) {
-				l.onNodeEnter(mRemoteAddress);
+		/**
+		 * Queues a datagram, in fragments if it is bigger than the link MTU.
+		 * Only call on the down thread.
+		 */
+		public void sendDatagram(short protocol, byte[][] parts, int length, int band) {
+			int mtu = mLinkMtu;
+			FrameCodec codec = codecFor(framingFor(mRemoteAddress));
+			if (mtu > 0 && length > mtu) {
+				// Fragments are encoded as the writer gets to them
+				send(new Fragmenter(codec, protocol, nextFragmentTag(), mtu, parts), band);
+			} else {
+				// Frame the headers and payload straight into one pooled buffer
+				send(codec.encode(protocol, parts), band);
 			}
 		}
 
-		public Handler getHandler() {
-			return mHandler;
+		/** Queues an LCP packet ahead of all other traffic */
+		private void sendLcp(byte[] packet) {
+			send(codecFor(framingFor(mRemoteAddress)).encode(LinkMonitor.PROTOCOL_LCP, packet),
+					FrameWriter.BAND_CONTROL);
 		}
 
-		public void closeConnection() {
-			try {
-				try {
-					mSocket.getInputStream().close();
-				} catch (IOException e) {
-					e.printStackTrace();
+		/** Sets the ARQ timer for whenever the session next needs attention */
+		public void scheduleArq() {
+			long deadline = mArq.getDeadline();
+			hReceiveFromAbove.removeCallbacks(mArqTimer);
+			if (deadline != Long.MAX_VALUE) {
+				hReceiveFromAbove.postDelayed(mArqTimer,
+						Math.max(0, deadline - System.currentTimeMillis()));
+			}
+		}
+
+		/** Queues a datagram to go out in fragments */
+		public void send(Fragmenter datagram, int band) {
+			if (!mWriter.enqueue(datagram, band)) {
+				Log.d(TAG, "Failed to send message to " + mRemoteAddress);
+				synchronized (this) {
+					if (mState == CLOSED) {
+						return;
+					}
 				}
+				if (mWriter.getQueuePolicy() == QueuePolicy.REJECT) {
+					sendErrorAbove(new LinkError(mRemoteAddress, LinkError.QUEUE_FULL, 1));
+				}
+			}
+		}
 
+		/** Whether datagrams to this neighbor should be compressed right now */
+		public boolean shouldCompress() {
+			return mInflatingPeers.contains(mRemoteAddress)
+					&& System.currentTimeMillis() >= mCompressionOffUntil;
+		}
+
+		/**
+		 * Counts one datagram through the compressor, and every
+		 * COMPRESSION_WINDOW of them switches compression off for a while if
+		 * it took longer than sending the bytes it saved would have.
+		 */
+		public void countCompression(int in, int out, long nanos) {
+			mPayloadBytesIn += in;
+			mPayloadBytesOut += out;
+			mCompressNanos += nanos;
+
+			mWindowSaved += in - out;
+			mWindowNanos += nanos;
+			if (++mWindowFrames < COMPRESSION_WINDOW) {
+				return;
+			}
+
+			long written = mWriter.getBytesWritten();
+			long nanosPerByte = written < AIRTIME_SAMPLE_BYTES
+					? DEFAULT_NANOS_PER_BYTE : mWriter.getWriteNanos() / written;
+			if (mWindowNanos > mWindowSaved * nanosPerByte) {
+				Log.d(TAG, MessageFormat.format(
+						"Compression to {0} saved {1} bytes for {2} us of CPU; turning it off",
+						mRemoteAddress, mWindowSaved, mWindowNanos / 1000));
+				mCompressionOffUntil = System.currentTimeMillis() + mCompressionBackoff;
+			}
+			mWindowFrames = 0;
+			mWindowSaved = 0;
+			mWindowNanos = 0;
+		}
+
+		public int nextFragmentTag() {
+			mNextFragmentTag = (mNextFragmentTag + 1) & 0xFFFF;
+			return mNextFragmentTag;
+		}
+
+		/**
+		 * Starts moving frames over the given connection.
+		 * @return false if this peer is not waiting for a connection any more
+		 */
+		public boolean attach(LinkConnection socket) {
+			synchronized (this) {
+				if (mState != CONNECTING) {
+					return false;
+				}
 				try {
-					mSocket.getOutputStream().close();
+					mIn = socket.getInputStream();
+					mOut = socket.getOutputStream();
 				} catch (IOException e) {
-					e.printStackTrace();
+					Log.e(TAG, "Could not set up connection to " + mRemoteAddress, e);
+					return false;
 				}
+				mSocket = socket;
+				mSocketEngine = mEngine;
+				mState = CONNECTED;
+			}
+			Log.d(TAG, MessageFormat.format("Connected to {0}", mRemoteAddress));
 
-				try {
+			// The neighbor's silence is timed from now, not from when we started connecting
+			mMonitor.heard(System.nanoTime());
+			mSocketEngine.register(this);
+			if (mKeepaliveInterval > 0) {
+				hReceiveFromAbove.postDelayed(mKeepaliveTimer, mKeepaliveInterval);
+			}
+
+			for (NodeListener l : mCommThread.getNodeListeners()) {
+				l.onNodeEnter(mRemoteAddress);
+			}
+			return true;
+		}
+
+		/**
+		 * Gives up on a connection that never came up, dropping the frames
+		 * parked for it and telling the layer above.
+		 */
+		public void fail(String reason) {
+			synchronized (this) {
+				if (mState != CONNECTING) {
+					return;
+				}
+				mState = CLOSED;
+			}
+
+			mConnections.remove(mRemoteAddress, this);
+			int dropped = mWriter.close();
+			Log.d(TAG, MessageFormat.format("Giving up on {0}: {1}, dropped {2} frames",
+					mRemoteAddress, reason, dropped));
+			sendErrorAbove(new LinkError(mRemoteAddress, reason, dropped));
+		}
+
+		public LinkStats getStats() {
+			LinkStats stats = new LinkStats();
+			stats.address = mRemoteAddress;
+			stats.writes = mWriter.getWrites();
+			stats.framesWritten = mWriter.getFramesWritten();
+			stats.bytesWritten = mWriter.getBytesWritten();
+			stats.maxFramesPerWrite = mWriter.getMaxFramesPerWrite();
+			stats.framesPerWriteHistogram = mWriter.getFramesPerWriteHistogram();
+			stats.queuedFrames = mWriter.getQueuedFrames();
+			stats.queuedBytes = mWriter.getQueuedBytes();
+			stats.queuedFramesPerBand = mWriter.getQueuedFramesPerBand();
+			stats.peakQueuedFrames = mWriter.getPeakQueuedFrames();
+			stats.droppedFrames = mWriter.getDroppedFrames();
+			stats.droppedBytes = mWriter.getDroppedBytes();
+			stats.queuedDatagrams = mWriter.getQueuedDatagrams();
+			stats.reassembledDatagrams = mReassembler.getDatagrams();
+			stats.droppedReassemblies = mReassembler.getDropped();
+			stats.compressedFrames = mCompressedFrames;
+			stats.fullHeaderFrames = mFullHeaderFrames;
+			stats.udpHeaderBytesSaved = mUdpHeaderBytesSaved;
+			stats.routingHeaderBytesSaved = mRoutingHeaderBytesSaved;
+			stats.payloadCompression = mPayloadCompression && shouldCompress();
+			stats.payloadBytesIn = mPayloadBytesIn;
+			stats.payloadBytesOut = mPayloadBytesOut;
+			stats.compressNanos = mCompressNanos;
+			stats.decompressNanos = mDecompressNanos;
+			stats.arq = mLinkArq && mArqPeers.contains(mRemoteAddress);
+			stats.arqSrtt = mArq.getSrtt();
+			stats.arqRto = mArq.getRto();
+			stats.arqWindow = mArq.getWindow();
+			stats.arqUnacked = mArq.getUnacked();
+			stats.arqRetransmits = mArq.getRetransmits();
+			stats.arqFastRetransmits = mArq.getFastRetransmits();
+			stats.arqAbandoned = mArq.getAbandoned();
+			stats.arqDuplicates = mArq.getDuplicates();
+			stats.framing = framingFor(mRemoteAddress);
+			stats.badFrames = mDecoder.getFramesDropped();
+			stats.keepalive = mKeepaliveInterval > 0 && mKeepalivePeers.contains(mRemoteAddress);
+			stats.rtt = mMonitor.getRtt() / 1000;
+			stats.rttJitter = mMonitor.getJitter() / 1000;
+			stats.loss = mMonitor.getLoss();
+			stats.probesSent = mMonitor.getProbesSent();
+			stats.probesLost = mMonitor.getProbesLost();
+			stats.silence = (System.nanoTime() - mMonitor.getLastHeard()) / 1000000;
+			stats.cutThroughFrames = mCutThroughFrames.get();
+			stats.expiredFrames = mExpiredFrames;
+			return stats;
+		}
+
+		public void closeConnection() {
+			// Both the reader and the writer notice a dead link; only tell everyone once
+			synchronized (this) {
+				if (mState == CLOSED) {
+					return;
+				}
+				mState = CLOSED;
+			}
+
+			try {
+				if (mSocket != null) {
+					mSocketEngine.unregister(this);
 					mSocket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
 				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mWriter.close();
+			endInflate();
+			hReceiveFromAbove.removeCallbacks(mArqTimer);
+			hReceiveFromAbove.removeCallbacks(mKeepaliveTimer);
 
-				if (mHandlerThread != null)
-					mHandlerThread.quit();
-			} catch (NullPointerException e) {
+			// A newer connection from the same peer may have replaced us; it still stands
+			if (!mConnections.remove(mRemoteAddress, this)) {
+				return;
+			}
+
+			for (NodeListener l : mCommThread.getNodeListeners()) {
+				l.onNodeExit(mRemoteAddress);
+			}
+			try {
+				mCommThread.removeNode(NodeFactory.factory.fromMacAddress(mRemoteAddress));
+			} catch (ParseException e) {
+				Log.e(TAG,"Could not create node from address " + mRemoteAddress);
 				e.printStackTrace();
-			} finally {
-				mConnectionThreads.remove(mRemoteAddress);
-				for (NodeListener l : mCommThread.getNodeListeners()) {
-					l.onNodeExit(mRemoteAddress);
+			}
+		}
+
+		/** Frees the native zlib state of mInflate; later compressed frames are dropped */
+		void endInflate() {
+			synchronized (mInflate) {
+				if (!mInflateEnded) {
+					mInflateEnded = true;
+					mInflate.end();
 				}
-				try {
-					mCommThread.removeNode(NodeFactory.factory.fromMacAddress(mRemoteAddress));
-				} catch (ParseException e) {
-					Log.e(TAG,"Could not create node from address " + mRemoteAddress);
-					e.printStackTrace();
+			}
+		}
+
+		public InputStream getInputStream() {
+			return mIn;
+		}
+
+		public OutputStream getOutputStream() {
+			return mOut;
+		}
+
+		public FrameWriter getWriter() {
+			return mWriter;
+		}
+
+		public void onReceive(byte[] data, int offset, int length) {
+			mMonitor.heard(System.nanoTime());
+			// A chunk may hold the tail of one frame and the start of several more
+			int end = offset + length;
+			while (offset < end) {
+				offset += mDecoder.feed(data, offset, end - offset);
+				if (mDecoder.hasFrame()) {
+					handleFrame(mDecoder.getProtocol(), mDecoder.getBuffer(),
+							FrameDecoder.DATA_OFFSET, mDecoder.getDataLength());
 				}
 			}
 		}
 
-		public void run() {
-			try {
-				ByteArrayOutputStream os = new ByteArrayOutputStream();
-				InputStream is = mSocket.getInputStream();
-				byte[] buffer = new byte[512];
-				while (true) {
-					int n = is.read(buffer, 0, 512);
-					for (int j = 0; j < n; j++) {
-						int i = buffer[j];
-						os.write(i);
-						// Log.d(TAG, "Connection thread got something..." + i);
-
-						if (i == 0x7e) {
-							LinkFrame frame = LinkFrame.fromEncapsulated(os.toByteArray());
-							// Make sure it at least has an IP header on it
-							if (frame.bytesRead >= 40 && frame.protocol == LinkFrame.PROTOCOL_IP6) {
-								Segment s = Segment.deserialize(frame.data);
-
-								// finally, I think we're ready to send s up the
-								// chain
-								Log.d(TAG, "Got a message:" + s);
-								sendMessageAbove(s);
-							}
-
-							os = new ByteArrayOutputStream();
-						} 
+		public void onClosed(IOException e) {
+			Log.d(TAG, MessageFormat.format("{0} has left the network: {1}",
+					mRemoteAddress, e.getMessage()));
+			closeConnection();
+		}
+
+		/**
+		 * Forwards a datagram meant for another node straight from the
+		 * receive buffer, if the routing table knows where it goes and we are
+		 * already connected there.
+		 *
+		 * @return false if it is for us, a routing message, or otherwise
+		 *         left for NetworkLayer
+		 */
+		private boolean forward(short protocol, byte[] data, int offset, int length) {
+			RoutingTable table = mRoutingTable;
+			byte[] local = getLocalIpAddress();
+			if (!mCutThrough || table == null || local == null) {
+				return false;
+			}
+
+			// Where the destination and hop limit are, and where the payload starts
+			byte[] header;
+			int headerOffset;
+			int payloadOffset;
+			if (protocol == LinkFrame.PROTOCOL_IP6) {
+				if (length < IPv6Header.HEADER_LENGTH) {
+					return false;
+				}
+				header = data;
+				headerOffset = offset;
+				payloadOffset = offset + IPv6Header.HEADER_LENGTH;
+			} else {
+				int headerLength = IphcCodec.decompress(data, offset, length,
+						mRemoteAddressBytes, getLocalAddressBytes(), mForwardHeader);
+				if (headerLength < 0) {
+					return false;
+				}
+				// Laid out as on the wire, so the rest reads the same either way
+				header = mForwardFull;
+				headerOffset = 0;
+				System.arraycopy(mForwardHeader.headerFields, 0, header, 0, 8);
+				System.arraycopy(mForwardHeader.sourceAddress, 0, header, 8, 16);
+				System.arraycopy(mForwardHeader.destinationAddress, 0, header, IPv6Header.DESTINATION_OFFSET, 16);
+				payloadOffset = offset + headerLength;
+			}
+
+			// Broadcasts are for us too, and NetworkLayer decides where they go next
+			int destination = headerOffset + IPv6Header.DESTINATION_OFFSET;
+			if ((header[headerOffset + IPv6Header.NEXT_HEADER_OFFSET] & 0xFF) == IPv6Header.NH_ROUTING
+					|| regionEquals(header, destination, local)
+					|| header[destination] == IPv6Header.BROADCAST_ADDRESS[0]) {
+				return false;
+			}
+			Node nextHop = table.getNextHopForFlow(header, headerOffset);
+			PeerConnection out = nextHop == null ? null : mConnections.get(nextHop.getAddress());
+			if (out == null) {
+				return false;
+			}
+
+			int hopLimit = header[headerOffset + IPv6Header.HOP_LIMIT_OFFSET] & 0xFF;
+			if (hopLimit == 1) {
+				mExpiredFrames++;
+				return true;
+			} else if (hopLimit > 1) {
+				header[headerOffset + IPv6Header.HOP_LIMIT_OFFSET] = (byte) (hopLimit - 1);
+			}
+
+			int payloadLength = offset + length - payloadOffset;
+			byte[] head = null;
+			if (mHeaderCompression) {
+				System.arraycopy(header, headerOffset, mForwardHeader.headerFields, 0, 8);
+				System.arraycopy(header, headerOffset + 8, mForwardHeader.sourceAddress, 0, 16);
+				System.arraycopy(header, destination, mForwardHeader.destinationAddress, 0, 16);
+				head = IphcCodec.compress(mForwardHeader.headerFields, mForwardHeader.sourceAddress,
+						mForwardHeader.destinationAddress, getLocalAddressBytes(),
+						out.mRemoteAddressBytes, payloadLength);
+			}
+			short outProtocol = LinkFrame.PROTOCOL_IPHC;
+			if (head == null) {
+				outProtocol = LinkFrame.PROTOCOL_IP6;
+				if (header != data) {
+					head = mForwardFull;
+				}
+			}
+
+			int trafficClass = ((header[headerOffset] & 0x0F) << 4) | ((header[headerOffset + 1] & 0xF0) >>> 4);
+			int band = FrameWriter.bandFor(trafficClass);
+			int mtu = mLinkMtu;
+			int outLength = (head == null ? IPv6Header.HEADER_LENGTH : head.length) + payloadLength;
+
+			if ((mPayloadCompression && out.shouldCompress())
+					|| (mLinkArq && mArqPeers.contains(out.mRemoteAddress))
+					|| (mtu > 0 && outLength > mtu)) {
+				// The compressor, ARQ and fragment tags belong to the down thread
+				final PeerConnection peer = out;
+				final short p = outProtocol;
+				final byte[][] parts = head == null
+						? new byte[][] { Arrays.copyOfRange(data, offset, offset + length) }
+						: new byte[][] { head.clone(), Arrays.copyOfRange(data, payloadOffset, payloadOffset + payloadLength) };
+				final int b = band;
+				hReceiveFromAbove.post(new Runnable() {
+					public void run() {
+						transmit(peer, p, parts, b);
 					}
+				});
+				return true;
+			}
+
+			// Counted first, so it is never behind what the neighbor has seen
+			out.mCutThroughFrames.incrementAndGet();
+			FrameCodec codec = codecFor(framingFor(out.mRemoteAddress));
+			if (head == null) {
+				out.send(codec.encode(outProtocol, data, offset, length), band);
+			} else {
+				out.send(codec.encode(outProtocol, head, data, payloadOffset, payloadLength), band);
+			}
+			return true;
+		}
+
+		/**
+		 * Handles a single decoded frame.  The data is only valid until the
+		 * decoder is fed again.
+		 */
+		private void handleFrame(short protocol, byte[] data, int offset, int length) {
+			if (protocol == Fragmenter.PROTOCOL_FRAGMENT) {
+				// Fragments never nest, so a fragment inside one is garbage
+				if (mReassembler.add(data, offset, length)
+						&& mReassembler.getProtocol() != Fragmenter.PROTOCOL_FRAGMENT) {
+					handleFrame(mReassembler.getProtocol(), mReassembler.getBuffer(),
+							0, mReassembler.getLength());
+				}
+				return;
+			}
+			if (protocol == LinkMonitor.PROTOCOL_LCP) {
+				// Echo requests are answered at once so the neighbor's RTT is the link's
+				byte[] reply = LinkMonitor.reply(data, offset, length);
+				if (reply != null) {
+					sendLcp(reply);
+				} else {
+					mMonitor.receive(data, offset, length, System.nanoTime());
+				}
+				return;
+			}
+			if (protocol == ArqSession.PROTOCOL_ARQ) {
+				// Fragments carry ARQ frames, which carry anything but those two
+				boolean fresh = mArq.receive(data, offset, length, System.currentTimeMillis());
+				short inner = mArq.getProtocol();
+				if (fresh && inner != ArqSession.PROTOCOL_ARQ && inner != Fragmenter.PROTOCOL_FRAGMENT) {
+					handleFrame(inner, data, mArq.getOffset(), mArq.getLength());
+				}
+				// Owe an acknowledgement, or may have learned something needs resending
+				scheduleArq();
+				return;
+			}
+			if (protocol == DeflateCodec.PROTOCOL_DEFLATE) {
+				// Datagrams are compressed before they are fragmented, and only once
+				long start = System.nanoTime();
+				boolean ok;
+				synchronized (mInflate) {
+					ok = !mInflateEnded && mInflate.decompress(data, offset, length);
+				}
+				mDecompressNanos += System.nanoTime() - start;
+				short inner = mInflate.getProtocol();
+				if (ok && inner != DeflateCodec.PROTOCOL_DEFLATE && inner != Fragmenter.PROTOCOL_FRAGMENT) {
+					handleFrame(inner, mInflate.getBuffer(), 0, mInflate.getLength());
+				} else {
+					Log.d(TAG, "Dropping frame that would not inflate from " + mRemoteAddress);
+				}
+				return;
+			}
+
+			if ((protocol == LinkFrame.PROTOCOL_IP6 || protocol == LinkFrame.PROTOCOL_IPHC)
+					&& forward(protocol, data, offset, length)) {
+				return;
+			}
+
+			Segment s = null;
+
+			// Make sure it at least has an IP header on it
+			if (length >= 40 && protocol == LinkFrame.PROTOCOL_IP6) {
+				s = Segment.deserialize(data, offset, length);
+			} else if (protocol == LinkFrame.PROTOCOL_IPHC) {
+				IPv6Header header = new IPv6Header();
+				int headerLength = IphcCodec.decompress(data, offset, length,
+						mRemoteAddressBytes, getLocalAddressBytes(), header);
+				if (headerLength < 0) {
+					Log.d(TAG, "Dropping frame with a bad compressed header from " + mRemoteAddress);
+					return;
+				}
+				s = Segment.deserialize(header, data, offset + headerLength, length - headerLength);
+			}
+
+			if (s != null) {
+				// finally, I think we're ready to send s up the
+				// chain
+				Log.d(TAG, "Got a message:" + s);
+				// Routing messages should not wait behind a backlog of data
+				if (FrameWriter.bandFor(s.IPHeader.getTrafficClass()) == FrameWriter.BAND_CONTROL) {
+					sendUrgentMessageAbove(s);
+				} else {
+					sendMessageAbove(s);
 				}
-			} catch (Exception e) {
-				Log.d(TAG, "Cannot send data on Bluetooth node.");
-				closeConnection();
 			}
 		}
 	}
 
+	/**
+	 * Sent to the layer above, as a MESSAGE_ERROR, when frames for a
+	 * neighbor could not be delivered.
+	 */
+	public static class LinkError {
+		/** Reason given when a frame was refused because the neighbor's queue was full */
+		public static final String QUEUE_FULL = "queue full";
+
+		/** MAC address of the neighbor */
+		public final String address;
+		/** What went wrong */
+		public final String reason;
+		/** Number of frames that were thrown away */
+		public final int droppedFrames;
+
+		public LinkError(String address, String reason, int droppedFrames) {
+			this.address = address;
+			this.reason = reason;
+			this.droppedFrames = droppedFrames;
+		}
+
+		@Override
+		public String toString() {
+			return MessageFormat.format("LinkError::{0} {1}, {2} frames dropped",
+					address, reason, droppedFrames);
+		}
+	}
+
 	/**
 	 * Helper class to represent a single frame on link
 	 */
 	public static class LinkFrame {
 		public static final short PROTOCOL_IP6 = 0x0057;
+		/** IPv6 with the header compressed by IphcCodec */
+		public static final short PROTOCOL_IPHC = 0x0061;
+
+		private static final PppCodec sCodec = new PppCodec();
 
 		public byte[] data;
 		public short protocol;
@@ -366,36 +1441,11 @@ public class LinkLayer extends Layer {
 		 * @return the encapsulated and escaped version of it
 		 */
 		public byte[] encapsulate() {
-			// first layer of frame format
-			ByteArrayOutputStream toEscape = new ByteArrayOutputStream();
-			try {
-				toEscape.write((protocol >> 8) & 0xFF);
-				toEscape.write(protocol & 0xFF);
-				toEscape.write(data);
-			} catch (Exception e) {
-				Log.e(TAG, "Encapsulation broke");
-			}
-
-			// escaped frame for sending directly across the wire
-			ByteArrayOutputStream escaped = new ByteArrayOutputStream();
-
-			// framing
-			escaped.write(0x7e);
-
-			// bulk data!
-			for (byte i : toEscape.toByteArray()) {
-				if (i != 0x7e && i != 0x7d) {
-					escaped.write(i);
-				} else {
-					escaped.write(0x7d);
-					escaped.write(i ^ 0x20);
-				}
-			}
-
-			// framing
-			escaped.write(0x7e);
-
-			return escaped.toByteArray();
+			ByteBuffer frame = sCodec.encode(protocol, data);
+			byte[] escaped = new byte[frame.limit()];
+			System.arraycopy(frame.array(), 0, escaped, 0, escaped.length);
+			sCodec.release(frame);
+			return escaped;
 		}
 
 		/**
@@ -422,43 +1472,32 @@ public class LinkLayer extends Layer {
 
 			int startReading = 0;
 
-			if (bytes[0] == 0x7e) {
+			if (bytes[0] == PppCodec.FLAG) {
 				startReading = 1;
 			}
 
-			// undo the escaping done in "escaped" above
-			ByteArrayOutputStream unescaped = new ByteArrayOutputStream();
-			int bytesRead = 0;
-
-			for (int i = startReading; i < bytes.length; ++i) {
-				if (bytes[i] == 0x7e) {
-					bytesRead = i + 1;
-					break;
-				} else if (bytes[i] == 0x7d) {
-					unescaped.write(bytes[i + 1] ^ 0x20);
-					i++; // skip *two* input characters this loop
-				} else {
-					unescaped.write(bytes[i]);
-				}
+			// find the closing flag; an escaped 0x7e never appears on the wire
+			int end = startReading;
+			while (end < bytes.length && bytes[end] != PppCodec.FLAG) {
+				++end;
 			}
+			int bytesRead = end < bytes.length ? end + 1 : 0;
 
-			if (unescaped.size() < 2) {
-				return ret;
-			} else {
-				byte[] unescapedBytes = unescaped.toByteArray();
-				short proto = (short) ((unescapedBytes[0] << 8) | unescapedBytes[1]);
-
-				ByteArrayOutputStream data = new ByteArrayOutputStream();
-				try {
-					data.write(unescapedBytes, 2, unescapedBytes.length - 2);
-				} catch (Exception e) {
-				}
+			// undo the escaping done in encapsulate() on a single copy
+			int length = end - startReading;
+			byte[] unescaped = new byte[length];
+			System.arraycopy(bytes, startReading, unescaped, 0, length);
+			length = PppCodec.unescape(unescaped, 0, length);
 
-				ret.protocol = proto;
-				ret.bytesRead = bytesRead;
-				ret.data = data.toByteArray();
+			if (length < 2) {
+				return ret;
 			}
 
+			ret.protocol = (short) (((unescaped[0] & 0xFF) << 8) | (unescaped[1] & 0xFF));
+			ret.bytesRead = bytesRead;
+			ret.data = new byte[length - 2];
+			System.arraycopy(unescaped, 2, ret.data, 0, length - 2);
+
 			return ret;
 		}
 	}
@@ -9,6 +9,9 @@ import ec.nem.bluenet.CommunicationThread;
 import ec.nem.bluenet.Node;
 import ec.nem.bluenet.NodeFactory;
 //import ec.nem.bluenet.BaseActivity.ProgressHandler;
+import ec.nem.bluenet.net.link.DeflateCodec;
+import ec.nem.bluenet.net.link.FrameWriter;
+import ec.nem.bluenet.net.link.LinkStats;
 import ec.nem.bluenet.net.routing.*;
 import ec.nem.bluenet.utils.Utils;
 
@@ -22,16 +25,68 @@ import android.util.Log;
  * @author Darren White drastically cleaned up by Ivan Hernandez
  */
 
-public class NetworkLayer extends Layer {
+public class NetworkLayer extends Layer implements RoutingMessageSender {
 	private static final String TAG = "NetworkLayer";
+	/** How often link costs are brought up to date, in milliseconds */
+	public static final long LINK_COST_INTERVAL = 5000;
+	/** How often unanswered database summaries and requests are looked for, in milliseconds */
+	public static final long SYNC_CHECK_INTERVAL = 1000;
+	/** How long link state changes are held by default before routes are recomputed, in milliseconds */
+	public static final long DEFAULT_SPF_HOLD_DOWN = 50;
 	CommunicationThread mCommThread;
-	RoutingTable mRoutingTable = new RoutingTable();
+	/** Replaced whole whenever routing changes, so lookups need no lock */
+	volatile RoutingTable mRoutingTable = new RoutingTable();
 	RoutingProtocol mRoutingProtocol;
+	/** Broadcasts already delivered and relayed; only touched on the up thread */
+	private final SeenCache mSeenBroadcasts = new SeenCache(SeenCache.DEFAULT_CAPACITY);
+	/**
+	 * Sequence number of the next broadcast we send, carried in the flow
+	 * label.  Starts anywhere so relays don't take a restarted node's
+	 * broadcasts for ones they have already seen.
+	 */
+	private int mBroadcastSequence = new Random().nextInt(IPv6Header.MAX_FLOW_LABEL + 1);
+	
+	/** How long link state changes are held before routes are recomputed, in milliseconds */
+	private volatile long mSpfHoldDown = DEFAULT_SPF_HOLD_DOWN;
+	/** A recomputation is scheduled; only touched on the up thread */
+	private boolean mSpfScheduled;
+	/** When the first change waiting on it arrived, from System.nanoTime() */
+	private long mSpfScheduledAt;
+	// Counters for RoutingStats, only touched on the up thread
+	private long mTableBuilds;
+	private long mLastStaleness;
+	private long mMaxStaleness;
+	private long mTotalStaleness;
+	
+	/** Recomputes routes once the hold-down is up */
+	private final Runnable mSpfTimer = new Runnable() {
+		public void run() {
+			runSpf();
+		}
+	};
+	
+	/** Brings link costs up to date on the up thread, where routing lives */
+	private final Runnable mLinkCostTimer = new Runnable() {
+		public void run() {
+			updateLinkCosts();
+			hReceiveFromBelow.postDelayed(this, LINK_COST_INTERVAL);
+		}
+	};
+	
+	/** Sends again what neighbors haven't answered while swapping databases */
+	private final Runnable mSyncTimer = new Runnable() {
+		public void run() {
+			mRoutingProtocol.retransmitSync(System.currentTimeMillis());
+			hReceiveFromBelow.postDelayed(this, SYNC_CHECK_INTERVAL);
+		}
+	};
 	
 	public NetworkLayer(CommunicationThread t) {
 		super();
 		mCommThread = t;
 		mRoutingProtocol = new RoutingProtocol(mCommThread.getLocalNode(), this);
+		hReceiveFromBelow.postDelayed(mLinkCostTimer, LINK_COST_INTERVAL);
+		hReceiveFromBelow.postDelayed(mSyncTimer, SYNC_CHECK_INTERVAL);
 	}
 	
 	/**
@@ -39,22 +94,60 @@ public class NetworkLayer extends Layer {
 	 */
 	public void connectToAll() {
 		for (Node n: mCommThread.getPairedNodes()) {
-			mRoutingProtocol.connectTo(n);
+			connectTo(n);
 		}
 	}
 	
 	/**
-	 * This connects to the specified node
+	 * This connects to the specified node.  May be called from any thread;
+	 * the Hello is sent from the up thread, where routing lives.
 	 */
-	public void connectTo(Node n) {
-		mRoutingProtocol.connectTo(n);
+	public void connectTo(final Node n) {
+		hReceiveFromBelow.post(new Runnable() {
+			public void run() {
+				mRoutingProtocol.connectTo(n);
+			}
+		});
 	}
 	
 	/**
-	 * This removes from the network the specified node
+	 * This removes from the network the specified node.  Called from the
+	 * link layer's threads, so the routing state is changed on the up
+	 * thread, where routing lives.
 	 */
-	public void removeNode(Node n) {
-		mRoutingProtocol.removeNode(n);
+	public void removeNode(final Node n) {
+		hReceiveFromBelow.post(new Runnable() {
+			public void run() {
+				mRoutingProtocol.removeNode(n);
+				scheduleSpf();
+			}
+		});
+	}
+	
+	/**
+	 * Sets how long link state changes are held before routes are
+	 * recomputed, so that a burst of LSAs, such as the whole database a new
+	 * neighbor sends, costs one computation.  Routes lag changes by up to
+	 * this long.  0 recomputes after every change.
+	 * @param holdDown in milliseconds
+	 */
+	public void setSpfHoldDown(long holdDown) {
+		mSpfHoldDown = holdDown;
+	}
+	
+	/**
+	 * Gets the counters on routing table computation.  They are read without
+	 * stopping routing, so may be a change behind.
+	 */
+	public RoutingStats getRoutingStats() {
+		RoutingStats stats = new RoutingStats();
+		mRoutingProtocol.getStats(stats);
+		stats.holdDown = mSpfHoldDown;
+		stats.tableBuilds = mTableBuilds;
+		stats.lastStaleness = mLastStaleness;
+		stats.maxStaleness = mMaxStaleness;
+		stats.totalStaleness = mTotalStaleness;
+		return stats;
 	}
 	
 	@Override
@@ -62,7 +155,23 @@ public class NetworkLayer extends Layer {
 		Segment s = (Segment) msg.obj;
 		
 		byte[] destination = s.IPHeader.destinationAddress;
-		Node nextHop = mRoutingTable.getNextHop(destination);
+		if (IPv6Header.isBroadcast(destination)) {
+			// Stamp it so relays can tell it apart from others, then flood it
+			// from the up thread, where routing lives, as if it had arrived
+			s.IPHeader.sourceAddress = mCommThread.getLocalNode().getIPAddress();
+			s.IPHeader.setFlowLabel(mBroadcastSequence);
+			mBroadcastSequence = (mBroadcastSequence + 1) & IPv6Header.MAX_FLOW_LABEL;
+			Message m = hReceiveFromBelow.obtainMessage();
+			m.obj = s;
+			hReceiveFromBelow.sendMessage(m);
+			return;
+		}
+		
+		// Relays tell flows apart by their source
+		if (isUnspecified(s.IPHeader.sourceAddress)) {
+			s.IPHeader.sourceAddress = mCommThread.getLocalNode().getIPAddress();
+		}
+		Node nextHop = mRoutingTable.getNextHop(s.IPHeader.sourceAddress, destination, s.IPHeader.getFlowLabel());
 		if(nextHop != null) {
 			s.nextHopMACAddress = nextHop.getAddressBytes();
 			Log.d(TAG, "Sending to:" + s );
@@ -75,19 +184,60 @@ public class NetworkLayer extends Layer {
 		}
 	}
 
+	/** Whether an address is ::, as sockets leave the source */
+	private static boolean isUnspecified(byte[] address) {
+		for (byte b : address) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Handles a neighbor the link layer could not reach.  Routing forgets any
+	 * Hello still waiting on it, so a later connectTo can try again.
+	 */
+	private void handleLinkError(LinkLayer.LinkError error) {
+		Log.w(TAG, error.toString());
+		if (LinkLayer.LinkError.QUEUE_FULL.equals(error.reason)) {
+			// The neighbor is there, just backed up
+			return;
+		}
+		try {
+			mRoutingProtocol.linkFailed(NodeFactory.factory.fromMacAddress(error.address));
+		} catch (ParseException e) {
+			Log.e(TAG, "Could not create node from address " + error.address);
+		}
+	}
+
 	@Override
 	public void handleMessageFromBelow(Message msg) {
+		if (msg.what == MESSAGE_ERROR) {
+			handleLinkError((LinkLayer.LinkError) msg.obj);
+			return;
+		}
+		
 		Segment s = (Segment) msg.obj;
 		
 		if (s.IPHeader.getNextHeader() == IPv6Header.NH_ROUTING) {
 			dispatchRoutingMessage(s);
+		} else if (IPv6Header.isBroadcast(s.IPHeader.destinationAddress)) {
+			handleBroadcast(s);
 		} else {
 			byte[] destination = s.IPHeader.destinationAddress;
 			Node myNode = mCommThread.getLocalNode();
 			
 			if (!Arrays.equals(destination, myNode.getIPAddress())) {
 				// handle packets that should be transported through this node 
-				Node nextHop = mRoutingTable.getNextHop(destination);
+				int hopLimit = s.IPHeader.getHopLimit();
+				if (hopLimit == 1) {
+					Log.w(TAG, "Hop limit reached, dropping:" + s);
+					return;
+				} else if (hopLimit > 1) {
+					s.IPHeader.setHopLimit(hopLimit - 1);
+				}
+				Node nextHop = mRoutingTable.getNextHop(s.IPHeader.sourceAddress, destination, s.IPHeader.getFlowLabel());
 
 				if(nextHop == null){
 					Log.w(TAG,
@@ -98,7 +248,7 @@ public class NetworkLayer extends Layer {
 				else{
 					s.nextHopMACAddress = nextHop.getAddressBytes();
 					Log.d(TAG, "Forwarding message to:" + nextHop);
-					sendMessageBelow(s);
+					sendSegmentBelow(s);
 				}
 			}
 			else {
@@ -109,8 +259,54 @@ public class NetworkLayer extends Layer {
 		}
 	}
 
+	/**
+	 * Delivers a broadcast here and passes it on to our children in the
+	 * shortest path tree rooted at its source, once however many times it
+	 * arrives.  Broadcasts we send ourselves come through here too.
+	 */
+	private void handleBroadcast(Segment s) {
+		IPv6Header header = s.IPHeader;
+		if (!mSeenBroadcasts.add(header.sourceAddress, header.getFlowLabel())) {
+			return;
+		}
+		
+		boolean ours = Arrays.equals(header.sourceAddress, mCommThread.getLocalNode().getIPAddress());
+		if (!ours) {
+			Log.d(TAG, "Sending up:" + s );
+			sendMessageAbove(s);
+		}
+		
+		int hopLimit = header.getHopLimit();
+		if (!ours && hopLimit == 1) {
+			return;
+		}
+		List<Node> children = mRoutingProtocol.getBroadcastChildren(header.sourceAddress);
+		if (children.isEmpty()) {
+			return;
+		}
+		
+		// The copy sent up is left as it arrived
+		IPv6Header relayHeader = new IPv6Header();
+		relayHeader.headerFields = header.headerFields.clone();
+		relayHeader.sourceAddress = header.sourceAddress;
+		relayHeader.destinationAddress = header.destinationAddress;
+		if (!ours && hopLimit > 1) {
+			relayHeader.setHopLimit(hopLimit - 1);
+		}
+		for (Node child : children) {
+			Segment relay = new Segment(s.getType());
+			relay.IPHeader = relayHeader;
+			relay.transportSegment = s.transportSegment;
+			relay.nextHopMACAddress = child.getAddressBytes();
+			sendMessageBelow(relay);
+		}
+	}
+
 	@Override
 	public void stopLayer() {
+		hReceiveFromBelow.removeCallbacks(mLinkCostTimer);
+		hReceiveFromBelow.removeCallbacks(mSyncTimer);
+		hReceiveFromBelow.removeCallbacks(mSpfTimer);
 		super.stopLayer();
 	}
 	
@@ -130,8 +326,18 @@ public class NetworkLayer extends Layer {
 		return mRoutingProtocol.quit();
 	}
 	
+	/**
+	 * Gets the longest routing message that goes to a neighbor in one frame,
+	 * allowing for an uncompressed IPv6 header.
+	 */
+	public int getMaxRoutingMessageLength(Node n) {
+		int datagram = mCommThread.getMaxDatagramLength(n.getAddress());
+		return datagram == Integer.MAX_VALUE ? datagram : datagram - IPv6Header.HEADER_LENGTH;
+	}
+	
 	public void sendRoutingMessage(Node n, RoutingMessage msg) {
 		Segment segment = new Segment(Segment.TYPE_ROUTING);
+		addCapabilities(msg);
 		DataSegment dataSegment = (DataSegment) segment.transportSegment;
 		dataSegment.setRawBytes(RoutingMessage.serializeMessage(msg));
 		IPv6Header ipHeader = segment.IPHeader;
@@ -139,45 +345,121 @@ public class NetworkLayer extends Layer {
 		ipHeader.sourceAddress = mCommThread.getLocalNode().getIPAddress();
 		ipHeader.destinationAddress = n.getIPAddress();
 		ipHeader.setNextHeader(IPv6Header.NH_ROUTING);
+		// Routing messages go ahead of application data on every link
+		ipHeader.setVersion(6);
+		ipHeader.setTrafficClass(IPv6Header.TC_CONTROL);
 		
 		segment.nextHopMACAddress = n.getAddressBytes();
 		
-		sendMessageBelow(segment);
+		sendSegmentBelow(segment);
+	}
+	
+	/**
+	 * Hands a segment to the link layer, putting control traffic ahead of
+	 * whatever data is already waiting there.  The link layer's own band
+	 * scheduling only sees a segment once it gets that far.
+	 */
+	private void sendSegmentBelow(Segment s) {
+		if (FrameWriter.bandFor(s.IPHeader.getTrafficClass()) == FrameWriter.BAND_CONTROL) {
+			sendUrgentMessageBelow(s);
+		} else {
+			sendMessageBelow(s);
+		}
+	}
+	
+	/**
+	 * Tells the neighbor, in a Hello or HelloAck, what it may use on the
+	 * link to us.  This has to happen before the message is serialized:
+	 * capabilities filled in afterwards never leave this node.
+	 */
+	private static void addCapabilities(RoutingMessage msg) {
+		if (msg.type == RoutingMessage.Type.Hello || msg.type == RoutingMessage.Type.HelloAck) {
+			msg.deflateDictionary = DeflateCodec.DICTIONARY_ID;
+			msg.linkFeatures = LinkLayer.FEATURES;
+		}
 	}
 	
 	private void dispatchRoutingMessage(Segment s) {
-		DataSegment ds = new DataSegment();
-		ds.setRawBytes(s.transportSegment.getRawBytes());
-		RoutingMessage rm = RoutingMessage.deserializeMessage(ds.getRawBytes());
+		RoutingMessage rm = RoutingMessage.deserializeMessage(s.transportSegment.getRawBytes());
 		if(rm != null){
-			/* Since the Node class is probably serialized without its addressBytes */ 
-		 	/* TODO: this violates encapsulation A LOT, since it depends on how RoutingMessage is 
-		 	* serialized and depends on Node's serialization mechanism */ 
-		 	if(rm.type == RoutingMessage.Type.Hello || 
-		 			rm.type == RoutingMessage.Type.HelloAck || 
-		 			rm.type == RoutingMessage.Type.Quit) { 
-		 		Node n = (Node) rm.obj; 
-		 		try { 
-		 			Node newNode = NodeFactory.factory.fromMacAddress(n.getAddress());
-		 			rm.obj = newNode; 
-		 		}catch(ParseException e) {
-		 			e.printStackTrace(); 
-		 		} 
-		 	}
+			if (rm.type == RoutingMessage.Type.Hello || rm.type == RoutingMessage.Type.HelloAck) {
+				Node n = (Node) rm.obj;
+				mCommThread.setPeerCapabilities(n.getAddress(), rm.linkFeatures, rm.deflateDictionary);
+			}
 			mRoutingProtocol.receiveMessage(rm);
-			
-			/* Get the routing table that might have been calculated */
-			Map<Node, RoutingProtocol.GraphNode> protocolTable = mRoutingProtocol.getRoutingTable();
-			if (protocolTable != null) {
-				RoutingTable routingTable = new RoutingTable();
-	
-				for (Node n : protocolTable.keySet()) {
-					// TODO If we want to change the distance in the graph this is where we do it.
-					routingTable.add(new Route(n.getIPAddress(), (short) 128, protocolTable.get(n).nextHop));
-				}
+			scheduleSpf();
+		}
+ 	}
 	
-				mRoutingTable = routingTable;
+	/**
+	 * Arranges for routes to be recomputed, if the link state has changed,
+	 * once the hold-down is up.  Changes that come in meanwhile are folded
+	 * into the same run.
+	 */
+	private void scheduleSpf() {
+		if (mSpfScheduled || !mRoutingProtocol.isRecomputePending()) {
+			return;
+		}
+		mSpfScheduled = true;
+		mSpfScheduledAt = System.nanoTime();
+		long holdDown = mSpfHoldDown;
+		if (holdDown <= 0) {
+			runSpf();
+		} else {
+			hReceiveFromBelow.postDelayed(mSpfTimer, holdDown);
+		}
+	}
+	
+	/** Recomputes routes and swaps in a routing table built from them */
+	private void runSpf() {
+		mSpfScheduled = false;
+		if (!mRoutingProtocol.isRecomputePending()) {
+			return;
+		}
+		mRoutingProtocol.recomputeRoutingTable();
+		updateRoutingTable();
+		
+		long staleness = (System.nanoTime() - mSpfScheduledAt) / 1000;
+		mTableBuilds++;
+		mLastStaleness = staleness;
+		mMaxStaleness = Math.max(mMaxStaleness, staleness);
+		mTotalStaleness += staleness;
+	}
+	
+	/**
+	 * Builds a routing table from the one routing has just calculated, if
+	 * any, and swaps it in
+	 */
+	private void updateRoutingTable() {
+		Map<Node, RoutingProtocol.GraphNode> protocolTable = mRoutingProtocol.getRoutingTable();
+		if (protocolTable != null) {
+			List<Route> routes = new ArrayList<Route>(protocolTable.size());
+
+			for (Node n : protocolTable.keySet()) {
+				routes.add(new Route(n.getIPAddress(), (short) 128, protocolTable.get(n).nextHops));
 			}
+
+			RoutingTable routingTable = new RoutingTable(routes);
+			mRoutingTable = routingTable;
+			// The link layer forwards most transit traffic itself
+			mCommThread.setRoutingTable(routingTable);
 		}
- 	}
+	}
+	
+	/**
+	 * Hands routing the latest measurements of the link to each neighbor,
+	 * from the link layer's probes, and schedules a recomputation if that
+	 * changed any costs.  Links without probe replies yet are left alone.
+	 */
+	private void updateLinkCosts() {
+		for (Node n : mRoutingProtocol.getNeighbors()) {
+			LinkStats stats = mCommThread.getLinkStats(n.getAddress());
+			if (stats == null || !stats.keepalive || stats.rtt == 0) {
+				continue;
+			}
+			int cost = LinkCost.fromMeasurements(stats.loss, stats.rtt);
+			mRoutingProtocol.updateLinkCost(n, cost);
+		}
+		scheduleSpf();
+	}
 }
@@ -1,16 +1,28 @@
 package ec.nem.bluenet.net;
 
+import java.util.*;
+
 import ec.nem.bluenet.*;
 
 public class Route {
 	final byte[] mAddress;
 	final short mPrefixLength;
-	final Node mNextHop;
+	/** Every next hop on an equally short path, empty if there is none */
+	final List<Node> mNextHops;
 
 	public Route(byte[] address, short prefixLength, Node nextHop) {
+		this(address, prefixLength, nextHop == null
+				? Collections.<Node>emptyList() : Collections.singletonList(nextHop));
+	}
+
+	/**
+	 * A route with several equal cost next hops.  RoutingTable spreads flows
+	 * across them, so keep them in the same order on every rebuild.
+	 */
+	public Route(byte[] address, short prefixLength, List<Node> nextHops) {
 		mAddress = address;
 		mPrefixLength = prefixLength;
-		mNextHop = nextHop;
+		mNextHops = Collections.unmodifiableList(new ArrayList<Node>(nextHops));
 	}
 	
 	public byte[] getAddress() {
@@ -21,23 +33,32 @@ public class Route {
 		return mPrefixLength;
 	}
 	
+	/** The first of the next hops, or null if there are none */
 	public Node getNextHop() {
-		return mNextHop;
+		return mNextHops.isEmpty() ? null : mNextHops.get(0);
+	}
+	
+	public List<Node> getNextHops() {
+		return mNextHops;
 	}
 	
 	public boolean matchesAddress(byte[] otherAddress) {
-		for (int i = 0; i < mPrefixLength; ++i) {
-			// pull the bit out of both addresses
-			int index = i / 8;
-			int bitIx = i % 8;
-			int bitmask = 0x80 >>> bitIx;
-			
-			if ( (mAddress[index] & bitmask) != (otherAddress[index] & bitmask) ) {
-				// bits don't match => the addresses don't match
+		// compare whole bytes, then the leading bits of a partial last one
+		int bytes = mPrefixLength >>> 3;
+		for (int i = 0; i < bytes; ++i) {
+			if (mAddress[i] != otherAddress[i]) {
 				return false;
 			}
 		}
-		
+
+		int bits = mPrefixLength & 7;
+		if (bits != 0) {
+			int bitmask = 0xFF00 >>> bits;
+			if (((mAddress[bytes] ^ otherAddress[bytes]) & bitmask) != 0) {
+				return false;
+			}
+		}
+
 		// if we get this far, then all of the bits matched
 		return true;
 	}
@@ -6,41 +6,297 @@ import android.util.Log;
 
 import ec.nem.bluenet.*;
 
+/**
+ * Longest prefix match over a fixed set of routes.<br>
+ * <br>
+ *
+ * A table never changes once it is built; NetworkLayer builds a new one
+ * whenever routing does and swaps it in, so lookups take no lock.  /128
+ * host routes, which are all routing ever makes, sit in an open addressing
+ * hash table keyed on the address as two longs.  Shorter prefixes go in a
+ * path compressed binary trie, consulted only when no host route matches.
+ * Neither allocates on lookup.<br>
+ * <br>
+ *
+ * Where two routes have the same prefix, the first one given wins.<br>
+ * <br>
+ *
+ * A route may have several equal cost next hops.  Lookups that give the
+ * flow pick one by hashing its source, destination and flow label, so each
+ * flow keeps to one path, and arrives in order, while different flows are
+ * spread over all of them.
+ */
 public class RoutingTable {
 	public static final String TAG = "RoutingTable";
-	List<Route> mEntries = new LinkedList<Route>();
-	
-	public synchronized void add(Route route) {
-		mEntries.add(route);
-	}
-	
-	public synchronized void remove(Route route) {
-		mEntries.remove(route);
-	}
-	
-	public synchronized Node getNextHop(byte[] ipAddress) {
-		int maxPrefixLength = -1;
-		Route winningRoute = null;
-		
-		for (Route r : mEntries) {
-			if (r.matchesAddress(ipAddress)) {
-				if (r.getPrefixLength() > maxPrefixLength) {
-					winningRoute = r;
-					maxPrefixLength = r.getPrefixLength();
-				} else {
-					Log.d(TAG,
-							"PrefixLength is bad... WTF length:"
-									+ r.getPrefixLength());
-				}
+
+	private final List<Route> mEntries;
+
+	// Host routes: slot i is empty if mHostHops[i] is null
+	private final long[] mHostHi;
+	private final long[] mHostLo;
+	private final Node[][] mHostHops;
+	private final int mHostMask;
+
+	/** Root of the trie of shorter prefixes, the zero length prefix */
+	private final TrieNode mRoot;
+
+	/** An empty table */
+	public RoutingTable() {
+		this(Collections.<Route>emptyList());
+	}
+
+	public RoutingTable(Collection<Route> routes) {
+		mEntries = Collections.unmodifiableList(new ArrayList<Route>(routes));
+
+		int hosts = 0;
+		for (Route r : routes) {
+			if (r.getPrefixLength() == 128 && !r.getNextHops().isEmpty()) {
+				hosts++;
+			}
+		}
+		// Keep the table at most half full so probes stay short
+		int capacity = 2;
+		while (capacity < 2 * hosts) {
+			capacity <<= 1;
+		}
+		mHostHi = new long[capacity];
+		mHostLo = new long[capacity];
+		mHostHops = new Node[capacity][];
+		mHostMask = capacity - 1;
+
+		mRoot = new TrieNode(0, 0, 0, null);
+		for (Route r : routes) {
+			if (r.getNextHops().isEmpty()) {
+				// Such as the route to ourselves
+				continue;
+			}
+			long hi = high(r.getAddress());
+			long lo = low(r.getAddress());
+			Node[] hops = r.getNextHops().toArray(new Node[r.getNextHops().size()]);
+			if (r.getPrefixLength() == 128) {
+				putHost(hi, lo, hops);
+			} else {
+				insert(hi, lo, r.getPrefixLength(), hops);
+			}
+		}
+	}
+
+	/** The routes the table was built from */
+	public List<Route> getRoutes() {
+		return mEntries;
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Finds the route with the longest prefix matching the address.
+	 * @return its first next hop, or null if no route matches
+	 */
+	public Node getNextHop(byte[] ipAddress) {
+		return getNextHop(ipAddress, 0);
+	}
+
+	/**
+	 * Finds the first next hop for the address at ipAddress[offset, offset +
+	 * 16).
+	 */
+	public Node getNextHop(byte[] ipAddress, int offset) {
+		Node[] hops = lookup(toLong(ipAddress, offset), toLong(ipAddress, offset + 8));
+		return hops == null ? null : hops[0];
+	}
+
+	/**
+	 * Finds the next hop for a flow, choosing among equal cost next hops by
+	 * the flow's hash.
+	 */
+	public Node getNextHop(byte[] source, byte[] destination, int flowLabel) {
+		long hi = toLong(destination, 0);
+		long lo = toLong(destination, 8);
+		Node[] hops = lookup(hi, lo);
+		if (hops == null) {
+			return null;
+		}
+		if (hops.length == 1) {
+			return hops[0];
+		}
+		return hops[flowHash(toLong(source, 0), toLong(source, 8), hi, lo, flowLabel) % hops.length];
+	}
+
+	/**
+	 * Finds the next hop for the datagram whose IPv6 header, as on the wire,
+	 * starts at header[offset], such as one in a received frame.
+	 */
+	public Node getNextHopForFlow(byte[] header, int offset) {
+		int destination = offset + IPv6Header.DESTINATION_OFFSET;
+		long hi = toLong(header, destination);
+		long lo = toLong(header, destination + 8);
+		Node[] hops = lookup(hi, lo);
+		if (hops == null) {
+			return null;
+		}
+		if (hops.length == 1) {
+			return hops[0];
+		}
+		int flowLabel = ((header[offset + 1] & 0x0F) << 16) | ((header[offset + 2] & 0xFF) << 8) | (header[offset + 3] & 0xFF);
+		return hops[flowHash(toLong(header, offset + 8), toLong(header, offset + 16), hi, lo, flowLabel) % hops.length];
+	}
+
+	/** The next hops of the longest prefix matching the address, or null */
+	private Node[] lookup(long hi, long lo) {
+		for (int i = hash(hi, lo) & mHostMask; mHostHops[i] != null; i = (i + 1) & mHostMask) {
+			if (mHostHi[i] == hi && mHostLo[i] == lo) {
+				return mHostHops[i];
 			}
 		}
-		
+
+		Node[] best = null;
+		TrieNode node = mRoot;
+		while (node != null && ((hi ^ node.hi) & node.maskHi) == 0 && ((lo ^ node.lo) & node.maskLo) == 0) {
+			if (node.hops != null) {
+				best = node.hops;
+			}
+			if (node.length == 128) {
+				break;
+			}
+			node = bit(hi, lo, node.length) == 0 ? node.zero : node.one;
+		}
+
 		/* protect against NullPointerException, in the case that there is no next hop */
-		if (winningRoute == null) {
+		if (best == null) {
 			Log.e(TAG, "Next hop is not contained in routing table.");
-			return null;
 		}
-		
-		return winningRoute.getNextHop();
+		return best;
+	}
+
+	private void putHost(long hi, long lo, Node[] hops) {
+		int i = hash(hi, lo) & mHostMask;
+		while (mHostHops[i] != null) {
+			if (mHostHi[i] == hi && mHostLo[i] == lo) {
+				return;
+			}
+			i = (i + 1) & mHostMask;
+		}
+		mHostHi[i] = hi;
+		mHostLo[i] = lo;
+		mHostHops[i] = hops;
+	}
+
+	/** Adds a prefix to the trie, splitting a compressed path where it branches off */
+	private void insert(long hi, long lo, int length, Node[] hops) {
+		TrieNode node = mRoot;
+		while (true) {
+			// node's prefix is a prefix of the one being added
+			if (node.length == length) {
+				if (node.hops == null) {
+					node.hops = hops;
+				}
+				return;
+			}
+
+			int b = bit(hi, lo, node.length);
+			TrieNode child = b == 0 ? node.zero : node.one;
+			if (child == null) {
+				node.setChild(b, new TrieNode(hi, lo, length, hops));
+				return;
+			}
+
+			int common = Math.min(commonLength(hi, lo, child.hi, child.lo), Math.min(length, child.length));
+			if (common == child.length) {
+				node = child;
+				continue;
+			}
+
+			TrieNode split = new TrieNode(hi, lo, common, null);
+			node.setChild(b, split);
+			split.setChild(bit(child.hi, child.lo, common), child);
+			if (common == length) {
+				split.hops = hops;
+			} else {
+				split.setChild(bit(hi, lo, common), new TrieNode(hi, lo, length, hops));
+			}
+			return;
+		}
+	}
+
+	/**
+	 * A prefix in the trie.  Only changed while the table is being built,
+	 * and reached through a final field afterwards, so readers on other
+	 * threads see it whole.
+	 */
+	private static class TrieNode {
+		final long hi;
+		final long lo;
+		final long maskHi;
+		final long maskLo;
+		final int length;
+		Node[] hops;
+		TrieNode zero;
+		TrieNode one;
+
+		TrieNode(long hi, long lo, int length, Node[] hops) {
+			this.maskHi = length >= 64 ? -1L : length == 0 ? 0 : -1L << (64 - length);
+			this.maskLo = length <= 64 ? 0 : length >= 128 ? -1L : -1L << (128 - length);
+			this.hi = hi & maskHi;
+			this.lo = lo & maskLo;
+			this.length = length;
+			this.hops = hops;
+		}
+
+		void setChild(int bit, TrieNode child) {
+			if (bit == 0) {
+				zero = child;
+			} else {
+				one = child;
+			}
+		}
+	}
+
+	/** First 8 bytes of an address, big-endian */
+	private static long high(byte[] a) {
+		return toLong(a, 0);
+	}
+
+	/** Last 8 bytes of an address, big-endian */
+	private static long low(byte[] a) {
+		return toLong(a, 8);
+	}
+
+	/** 8 bytes of an address from offset, big-endian */
+	private static long toLong(byte[] a, int offset) {
+		long v = 0;
+		int end = Math.min(offset + 8, a.length);
+		for (int i = offset; i < end; ++i) {
+			v |= (a[i] & 0xFFL) << (8 * (7 - (i - offset)));
+		}
+		return v;
+	}
+
+	/** Bit i of the address, counting from the most significant */
+	private static int bit(long hi, long lo, int i) {
+		return (int) (i < 64 ? (hi >>> (63 - i)) & 1 : (lo >>> (127 - i)) & 1);
+	}
+
+	/** How many leading bits two addresses share */
+	private static int commonLength(long hi1, long lo1, long hi2, long lo2) {
+		long x = hi1 ^ hi2;
+		if (x != 0) {
+			return Long.numberOfLeadingZeros(x);
+		}
+		return 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+	}
+
+	/** Hash of a flow, never negative */
+	private static int flowHash(long srcHi, long srcLo, long dstHi, long dstLo, int flowLabel) {
+		int h = hash(srcHi ^ dstLo, srcLo ^ dstHi);
+		h = hash(h ^ ((long) flowLabel << 32), dstHi + dstLo);
+		return h & 0x7FFFFFFF;
+	}
+
+	private static int hash(long hi, long lo) {
+		long h = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32));
 	}
 }
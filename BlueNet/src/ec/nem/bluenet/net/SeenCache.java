@@ -0,0 +1,77 @@
+package ec.nem.bluenet.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the broadcasts most recently seen, by source address and
+ * sequence number, so a node delivers and relays each one only once however
+ * many neighbors pass it on.  Holds at most a fixed number, forgetting the
+ * oldest first.<br>
+ * <br>
+ *
+ * Not thread safe; NetworkLayer only uses it on its up thread.
+ */
+class SeenCache {
+	/** How many broadcasts are remembered by default */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final Map<Key, Boolean> mSeen;
+
+	public SeenCache(final int capacity) {
+		mSeen = new LinkedHashMap<Key, Boolean>(capacity * 2) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Notes a broadcast.
+	 *
+	 * @return true if it hadn't been seen before
+	 */
+	public boolean add(byte[] source, int sequence) {
+		return mSeen.put(new Key(source, sequence), Boolean.TRUE) == null;
+	}
+
+	public int size() {
+		return mSeen.size();
+	}
+
+	private static final class Key {
+		final long hi;
+		final long lo;
+		final int sequence;
+
+		Key(byte[] address, int sequence) {
+			long h = 0;
+			long l = 0;
+			for (int i = 0; i < 8; ++i) {
+				h = (h << 8) | (address[i] & 0xFF);
+				l = (l << 8) | (address[i + 8] & 0xFF);
+			}
+			this.hi = h;
+			this.lo = l;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return hi == k.hi && lo == k.lo && sequence == k.sequence;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = hi * 31 + lo;
+			return (int) (h ^ (h >>> 32)) * 31 + sequence;
+		}
+	}
+}
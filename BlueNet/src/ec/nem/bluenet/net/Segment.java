@@ -1,6 +1,5 @@
 package ec.nem.bluenet.net;
 
-import java.io.ByteArrayOutputStream;
 import java.text.MessageFormat;
 
 public class Segment {
@@ -48,28 +47,45 @@ public class Segment {
 	}
 
 	public static Segment deserialize(byte[] data) {
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		return deserialize(data, 0, data.length);
+	}
+
+	/**
+	 * Parses a segment out of data[offset, offset + length), which must hold
+	 * the 40 byte IPv6 header followed by the transport segment.
+	 */
+	public static Segment deserialize(byte[] data, int offset, int length) {
 		//we only support udp
 		Segment s = new Segment(Segment.TYPE_UDP);
 		// pull out IP header
-		
-		os.write(data, 0, 8);
-		s.IPHeader.headerFields = os.toByteArray();
+		System.arraycopy(data, offset, s.IPHeader.headerFields, 0, 8);
 
 		// pull out source IP
-		os.reset();
-		os.write(data, 8, 16);
-		s.IPHeader.sourceAddress = os.toByteArray();
+		System.arraycopy(data, offset + 8, s.IPHeader.sourceAddress, 0, 16);
 
 		// pull out destination IP
-		os.reset();
-		os.write(data, 24, 16);
-		s.IPHeader.destinationAddress = os.toByteArray();
+		System.arraycopy(data, offset + 24, s.IPHeader.destinationAddress, 0, 16);
 
 		// rest of the data
-		os.reset();
-		os.write(data, 40, data.length - 40);
-		s.transportSegment.setRawBytes(os.toByteArray());
+		byte[] rest = new byte[length - 40];
+		System.arraycopy(data, offset + 40, rest, 0, rest.length);
+		s.transportSegment.setRawBytes(rest);
+		return s;
+	}
+
+	/**
+	 * Builds a segment around an IPv6 header that has already been parsed,
+	 * such as one rebuilt from a compressed header.  data[offset, offset +
+	 * length) holds the transport segment.
+	 */
+	public static Segment deserialize(IPv6Header header, byte[] data, int offset, int length) {
+		//we only support udp
+		Segment s = new Segment(Segment.TYPE_UDP);
+		s.IPHeader = header;
+
+		byte[] rest = new byte[length];
+		System.arraycopy(data, offset, rest, 0, length);
+		s.transportSegment.setRawBytes(rest);
 		return s;
 	}
 }
@@ -32,6 +32,12 @@ public class Socket {
 	 */
 	private Segment mSegment;
 	
+	/*
+	 * The IPv6 traffic class this socket sends with, which decides how its
+	 * data is queued against other traffic on each hop
+	 */
+	private int mTrafficClass = IPv6Header.TC_DEFAULT;
+	
 	/*
 	 * The thread managing what this socket sends
 	 */
@@ -81,10 +87,34 @@ public class Socket {
 		return mSourcePort;
 	}
 	
+	/**
+	 * Sets the traffic class send(byte[]) uses, one of the IPv6Header TC_
+	 * constants.
+	 */
+	public void setTrafficClass(int trafficClass) {
+		mTrafficClass = trafficClass;
+	}
+	
+	public int getTrafficClass() {
+		return mTrafficClass;
+	}
+	
 	/*
 	 * Connects to the specified None on the specified port.
 	 */
 	public boolean connect(Node node, int destinationPort) {
+		return connect(node.getIPAddress(), destinationPort);
+	}
+	
+	/*
+	 * Connects to every node on the network on the specified port.  What is
+	 * sent is flooded across the network once rather than sent to each node.
+	 */
+	public boolean connectBroadcast(int destinationPort) {
+		return connect(IPv6Header.BROADCAST_ADDRESS.clone(), destinationPort);
+	}
+	
+	private boolean connect(byte[] address, int destinationPort) {
 		mDestinationPort = destinationPort;
 		mSegment = new Segment(mType);
 		switch(mType) {
@@ -95,7 +125,7 @@ public class Socket {
 			break;
 		}
 		
-		mSegment.IPHeader.destinationAddress = node.getIPAddress();
+		mSegment.IPHeader.destinationAddress = address;
 		
 		switch (mType) {
 		case Segment.TYPE_UDP:
@@ -117,6 +147,21 @@ public class Socket {
 	 * @param data The data to be sent
 	 */
 	public void send(byte[] data) {
+		send(data, mTrafficClass);
+	}
+	
+	/**
+	 * Sends the given data with the given traffic class, leaving the class
+	 * set on the socket alone
+	 * 
+	 * @param data The data to be sent
+	 * @param trafficClass one of the IPv6Header TC_ constants
+	 */
+	public void send(byte[] data, int trafficClass) {
+		// With the version set, compressed headers carry the class in one byte
+		mSegment.IPHeader.setVersion(6);
+		mSegment.IPHeader.setTrafficClass(trafficClass);
+		mSegment.IPHeader.setHopLimit(IPv6Header.DEFAULT_HOP_LIMIT);
 		switch(mType) {
 		case Segment.TYPE_UDP:
 			UDPHeader header = (UDPHeader) mSegment.transportSegment;
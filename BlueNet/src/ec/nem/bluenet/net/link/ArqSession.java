@@ -0,0 +1,476 @@
+package ec.nem.bluenet.net.link;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Selective-repeat ARQ over one connection to a neighbor.<br>
+ * <br>
+ *
+ * Each datagram is sent as a PROTOCOL_ARQ frame with a 16 bit sequence
+ * number and kept until the neighbor acknowledges it.  Acknowledgements are
+ * a cumulative "next expected" sequence number plus a bitmap of the 32
+ * after it, and ride on whatever data goes back the other way; when nothing
+ * does, a bare acknowledgement goes out after ACK_DELAY.  A frame the
+ * bitmap shows three later frames overtook is resent at once, and one that
+ * stays unacknowledged past the retransmission timeout is resent then.  The
+ * timeout follows the measured round trip time as in RFC 6298, and the
+ * window, the number of frames kept for resending, is twice the number sent
+ * in a round trip, as seen by how many are outstanding when each
+ * acknowledgement comes back.  A frame pushed out of a full window, or resent
+ * MAX_RETRANSMITS times, is given up on.<br>
+ * <br>
+ *
+ * Frames are handed up as soon as they arrive, in or out of order, and
+ * duplicates are dropped.  Each session starts with a random epoch, so a
+ * neighbor that starts a new session on the same link is not taken for a
+ * stream of duplicates.<br>
+ * <br>
+ *
+ * <pre>
+ *   byte 0:  F_DATA F_ACK 000000
+ *   byte 1:  epoch of this sender (4) | epoch being acknowledged (4)
+ *   F_DATA:  sequence number (2)
+ *   F_ACK:   next expected sequence number (2), bitmap (4)
+ *   F_DATA:  inner protocol (2), datagram
+ * </pre>
+ *
+ * Thread safe: frames arrive on the engine's thread, while sending,
+ * retransmitting and acknowledging happen on the link layer's.  Times are
+ * in milliseconds.
+ */
+public class ArqSession {
+	/** PPP protocol number of an ARQ frame; not an assigned one, so only BlueNet nodes agree on it */
+	public static final short PROTOCOL_ARQ = 0x0041;
+	/** Flag: the frame carries a datagram */
+	public static final int F_DATA = 0x80;
+	/** Flag: the frame carries an acknowledgement */
+	public static final int F_ACK = 0x40;
+	/** Most bytes an ARQ frame adds to a datagram: flags, epochs, sequence, acknowledgement and inner protocol */
+	public static final int MAX_HEADER_LENGTH = 2 + 2 + 6 + 2;
+
+	/** Fewest frames kept for resending */
+	public static final int MIN_WINDOW = 16;
+	/** Most frames kept for resending; the receiver tracks this many */
+	public static final int MAX_WINDOW = 64;
+	/** Times a frame is resent before it is given up on */
+	public static final int MAX_RETRANSMITS = 6;
+	/** Frames acknowledged past a missing one before it is resent early */
+	public static final int DUPLICATE_THRESHOLD = 3;
+	/** Longest an acknowledgement waits for data to ride on */
+	public static final long ACK_DELAY = 10;
+	public static final long INITIAL_RTO = 1000;
+	public static final long MIN_RTO = 50;
+	public static final long MAX_RTO = 10000;
+
+	private static final Random sRandom = new Random();
+
+	/** One datagram waiting for its acknowledgement */
+	private static class Entry {
+		final int seq;
+		final short protocol;
+		final byte[] data;
+		final int band;
+		long sentAt;
+		int retransmits;
+		boolean resendNow;
+
+		Entry(int seq, short protocol, byte[] data, int band, long now) {
+			this.seq = seq;
+			this.protocol = protocol;
+			this.data = data;
+			this.band = band;
+			this.sentAt = now;
+		}
+	}
+
+	/** A frame for the link layer to send, in one of the FrameWriter bands */
+	public static class Outgoing {
+		public final int band;
+		public final byte[] data;
+
+		Outgoing(int band, byte[] data) {
+			this.band = band;
+			this.data = data;
+		}
+	}
+
+	// Sending side
+	private final int mEpoch = 1 + sRandom.nextInt(15);
+	private final Entry[] mUnacked = new Entry[MAX_WINDOW];
+	/** Oldest sequence number not yet acknowledged or given up on */
+	private int mBase;
+	private int mNextSeq;
+	/** Starts wide open; until the link has been measured, nothing is given up on early */
+	private int mWindow = MAX_WINDOW;
+	private long mSrtt;
+	private long mRttvar;
+	private long mRto = INITIAL_RTO;
+	/** Frames outstanding when an acknowledgement arrives, averaged; about one round trip's worth */
+	private int mPipe;
+
+	// Receiving side
+	private int mPeerEpoch;
+	/** Next sequence number we expect from the neighbor */
+	private int mExpected;
+	/** Bit i set if mExpected + i has arrived */
+	private long mReceived;
+	/** When an acknowledgement must go out, or Long.MAX_VALUE if none is owed */
+	private long mAckDue = Long.MAX_VALUE;
+
+	// The datagram last accepted by receive()
+	private short mProtocol;
+	private int mOffset;
+	private int mLength;
+
+	private long mRetransmits;
+	private long mFastRetransmits;
+	private long mAbandoned;
+	private long mDuplicates;
+
+	/**
+	 * Starts sending a datagram.
+	 *
+	 * @param band the FrameWriter band it goes in, kept for resending
+	 * @param now the current time
+	 * @return the data of the PROTOCOL_ARQ frame to send
+	 */
+	public synchronized byte[] send(short protocol, byte[][] parts, int band, long now) {
+		if (seqDiff(mNextSeq, mBase) >= mWindow) {
+			// The oldest has had its chance; the newest is more use
+			abandon(mBase);
+			advanceBase();
+		}
+
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		byte[] data = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, data, offset, part.length);
+			offset += part.length;
+		}
+
+		Entry e = new Entry(mNextSeq, protocol, data, band, now);
+		mUnacked[slot(mNextSeq)] = e;
+		mNextSeq = (mNextSeq + 1) & 0xFFFF;
+		return frame(e);
+	}
+
+	/**
+	 * Takes in the data of a PROTOCOL_ARQ frame.
+	 *
+	 * @return true if it carried a new datagram, which can then be read with
+	 *         getProtocol(), getOffset() and getLength() from the same array
+	 */
+	public synchronized boolean receive(byte[] data, int offset, int length, long now) {
+		if (length < 2) {
+			return false;
+		}
+		int flags = data[offset] & 0xFF;
+		int epochs = data[offset + 1] & 0xFF;
+		int pos = offset + 2;
+		int end = offset + length;
+
+		int seq = -1;
+		if ((flags & F_DATA) != 0) {
+			if (end - pos < 2) {
+				return false;
+			}
+			seq = readShort(data, pos);
+			pos += 2;
+		}
+		if ((flags & F_ACK) != 0) {
+			if (end - pos < 6) {
+				return false;
+			}
+			// An acknowledgement for an earlier session of ours means nothing now
+			if ((epochs & 0x0F) == mEpoch) {
+				long bitmap = ((long) readShort(data, pos + 2) << 16) | readShort(data, pos + 4);
+				acknowledge(readShort(data, pos), bitmap, now);
+			}
+			pos += 6;
+		}
+		if (seq < 0 || end - pos < 2) {
+			return false;
+		}
+
+		int epoch = epochs >>> 4;
+		if (epoch != mPeerEpoch) {
+			mPeerEpoch = epoch;
+			mExpected = seq;
+			mReceived = 0;
+		}
+
+		int d = seqDiff(seq, mExpected);
+		if (d >= 32768) {
+			// Behind what we expect: a copy of something we already have
+			mDuplicates++;
+			mAckDue = now;
+			return false;
+		}
+		if (d >= MAX_WINDOW) {
+			// The neighbor gave up on what we are missing; move on
+			int shift = d - MAX_WINDOW + 1;
+			mReceived = shift >= 64 ? 0 : mReceived >>> shift;
+			mExpected = (mExpected + shift) & 0xFFFF;
+			d = MAX_WINDOW - 1;
+		}
+		if ((mReceived & (1L << d)) != 0) {
+			mDuplicates++;
+			mAckDue = now;
+			return false;
+		}
+		mReceived |= 1L << d;
+		while ((mReceived & 1) != 0) {
+			mReceived >>>= 1;
+			mExpected = (mExpected + 1) & 0xFFFF;
+		}
+		// A gap means something was lost; tell the sender straight away
+		mAckDue = Math.min(mAckDue, mReceived != 0 ? now : now + ACK_DELAY);
+
+		mProtocol = (short) readShort(data, pos);
+		mOffset = pos + 2;
+		mLength = end - mOffset;
+		return true;
+	}
+
+	/**
+	 * Gets the frames that have to go out now: resent datagrams, and an
+	 * acknowledgement if one is owed and nothing else carries it.
+	 */
+	public synchronized List<Outgoing> poll(long now) {
+		List<Outgoing> out = new ArrayList<Outgoing>();
+		boolean timedOut = false;
+
+		for (int seq = mBase; seq != mNextSeq; seq = (seq + 1) & 0xFFFF) {
+			Entry e = mUnacked[slot(seq)];
+			if (e == null) {
+				continue;
+			}
+			boolean expired = now - e.sentAt >= mRto;
+			if (!e.resendNow && !expired) {
+				continue;
+			}
+			if (e.retransmits >= MAX_RETRANSMITS) {
+				abandon(seq);
+				continue;
+			}
+			if (e.resendNow) {
+				mFastRetransmits++;
+			} else {
+				timedOut = true;
+			}
+			e.resendNow = false;
+			e.retransmits++;
+			e.sentAt = now;
+			mRetransmits++;
+			out.add(new Outgoing(e.band, frame(e)));
+		}
+		advanceBase();
+
+		if (timedOut) {
+			// Back off, as the link may just be slower than we thought
+			mRto = Math.min(mRto * 2, MAX_RTO);
+		}
+		if (out.isEmpty() && now >= mAckDue) {
+			out.add(new Outgoing(FrameWriter.BAND_CONTROL, ackFrame()));
+		}
+		return out;
+	}
+
+	/** When poll() next has something to do, or Long.MAX_VALUE if never */
+	public synchronized long getDeadline() {
+		long deadline = mAckDue;
+		for (int seq = mBase; seq != mNextSeq; seq = (seq + 1) & 0xFFFF) {
+			Entry e = mUnacked[slot(seq)];
+			if (e != null) {
+				deadline = Math.min(deadline, e.resendNow ? 0 : e.sentAt + mRto);
+			}
+		}
+		return deadline;
+	}
+
+	/** Handles the neighbor's acknowledgement of what we sent; hold the lock */
+	private void acknowledge(int next, long bitmap, long now) {
+		int inFlight = seqDiff(mNextSeq, mBase);
+		int advance = seqDiff(next, mBase);
+		if (advance > inFlight) {
+			// Old news, or nonsense
+			return;
+		}
+		if (advance > 0 || bitmap != 0) {
+			mPipe = mPipe == 0 ? inFlight : (7 * mPipe + inFlight) / 8;
+			mWindow = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, 2 * mPipe));
+		}
+
+		for (int i = 0; i < advance; ++i) {
+			clear((mBase + i) & 0xFFFF, now);
+		}
+		int highest = -1;
+		for (int i = 0; i < 32; ++i) {
+			if ((bitmap & (1L << i)) != 0) {
+				int seq = (next + 1 + i) & 0xFFFF;
+				if (seqDiff(seq, mBase) < inFlight) {
+					clear(seq, now);
+					highest = seq;
+				}
+			}
+		}
+		advanceBase();
+
+		// Anything DUPLICATE_THRESHOLD or more behind the newest acknowledged is lost
+		if (highest >= 0) {
+			for (int seq = mBase; seq != highest; seq = (seq + 1) & 0xFFFF) {
+				Entry e = mUnacked[slot(seq)];
+				if (e != null && e.retransmits == 0 && !e.resendNow
+						&& seqDiff(highest, seq) >= DUPLICATE_THRESHOLD) {
+					e.resendNow = true;
+				}
+			}
+		}
+	}
+
+	/** Forgets an acknowledged datagram, taking an RTT sample from it; hold the lock */
+	private void clear(int seq, long now) {
+		Entry e = mUnacked[slot(seq)];
+		if (e == null || e.seq != seq) {
+			return;
+		}
+		mUnacked[slot(seq)] = null;
+		// Karn: a resent frame's acknowledgement could be for either copy
+		if (e.retransmits == 0) {
+			sampleRtt(now - e.sentAt);
+		}
+	}
+
+	private void sampleRtt(long rtt) {
+		if (mSrtt == 0) {
+			mSrtt = Math.max(rtt, 1);
+			mRttvar = rtt / 2;
+		} else {
+			mRttvar = (3 * mRttvar + Math.abs(mSrtt - rtt)) / 4;
+			mSrtt = (7 * mSrtt + rtt) / 8;
+		}
+		mRto = Math.max(MIN_RTO, Math.min(MAX_RTO, mSrtt + Math.max(ACK_DELAY, 4 * mRttvar)));
+	}
+
+	private void abandon(int seq) {
+		if (mUnacked[slot(seq)] != null) {
+			mUnacked[slot(seq)] = null;
+			mAbandoned++;
+		}
+	}
+
+	/** Moves mBase past everything acknowledged or given up on; hold the lock */
+	private void advanceBase() {
+		while (mBase != mNextSeq && mUnacked[slot(mBase)] == null) {
+			mBase = (mBase + 1) & 0xFFFF;
+		}
+	}
+
+	/** Builds a data frame for the entry, carrying our acknowledgement too; hold the lock */
+	private byte[] frame(Entry e) {
+		boolean ack = mPeerEpoch != 0;
+		byte[] out = new byte[2 + 2 + (ack ? 6 : 0) + 2 + e.data.length];
+		out[0] = (byte) (F_DATA | (ack ? F_ACK : 0));
+		out[1] = (byte) ((mEpoch << 4) | mPeerEpoch);
+		writeShort(out, 2, e.seq);
+		int pos = 4;
+		if (ack) {
+			pos = writeAck(out, pos);
+		}
+		writeShort(out, pos, e.protocol);
+		System.arraycopy(e.data, 0, out, pos + 2, e.data.length);
+		return out;
+	}
+
+	private byte[] ackFrame() {
+		byte[] out = new byte[2 + 6];
+		out[0] = (byte) F_ACK;
+		out[1] = (byte) ((mEpoch << 4) | mPeerEpoch);
+		writeAck(out, 2);
+		return out;
+	}
+
+	/** Writes our acknowledgement, which is then no longer owed; hold the lock */
+	private int writeAck(byte[] out, int pos) {
+		long bitmap = (mReceived >>> 1) & 0xFFFFFFFFL;
+		writeShort(out, pos, mExpected);
+		writeShort(out, pos + 2, (int) (bitmap >>> 16));
+		writeShort(out, pos + 4, (int) bitmap);
+		mAckDue = Long.MAX_VALUE;
+		return pos + 6;
+	}
+
+	public short getProtocol() {
+		return mProtocol;
+	}
+
+	public int getOffset() {
+		return mOffset;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	public synchronized long getSrtt() {
+		return mSrtt;
+	}
+
+	public synchronized long getRto() {
+		return mRto;
+	}
+
+	public synchronized int getWindow() {
+		return mWindow;
+	}
+
+	public synchronized int getUnacked() {
+		int n = 0;
+		for (int seq = mBase; seq != mNextSeq; seq = (seq + 1) & 0xFFFF) {
+			if (mUnacked[slot(seq)] != null) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	public synchronized long getRetransmits() {
+		return mRetransmits;
+	}
+
+	public synchronized long getFastRetransmits() {
+		return mFastRetransmits;
+	}
+
+	public synchronized long getAbandoned() {
+		return mAbandoned;
+	}
+
+	public synchronized long getDuplicates() {
+		return mDuplicates;
+	}
+
+	/** How far a is after b, modulo the sequence space */
+	private static int seqDiff(int a, int b) {
+		return (a - b) & 0xFFFF;
+	}
+
+	private static int slot(int seq) {
+		return seq % MAX_WINDOW;
+	}
+
+	private static int readShort(byte[] b, int pos) {
+		return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+	}
+
+	private static void writeShort(byte[] b, int pos, int v) {
+		b[pos] = (byte) (v >> 8);
+		b[pos + 1] = (byte) v;
+	}
+}
@@ -0,0 +1,142 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * Bluetooth RFCOMM links, the transport BlueNet uses on real devices.
+ */
+public class BluetoothTransport implements LinkTransport {
+	private static final String TAG = "BluetoothTransport";
+	/** Name of the SDP record we listen under */
+	public static final String NAME = "BlueMesh";
+	/** UUID of the SDP record we listen under */
+	public static final java.util.UUID UUID =
+			java.util.UUID.fromString("7b3612de-9166-4262-9f48-1bddf968c423");
+
+	private BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+	private BluetoothServerSocket mServerSocket;
+
+	public String getLocalAddress() {
+		return mBluetoothAdapter.getAddress();
+	}
+
+	public List<String> getPairedAddresses() {
+		Set<BluetoothDevice> paired = mBluetoothAdapter.getBondedDevices();
+		ArrayList<String> out = new ArrayList<String>();
+
+		for (BluetoothDevice device : paired) {
+			String address = device.getAddress();
+			if (address != null) {
+				out.add(address);
+			}
+		}
+
+		return out;
+	}
+
+	public LinkConnection connect(String address) throws IOException {
+		BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+		BluetoothSocket socket = device.createRfcommSocketToServiceRecord(UUID);
+
+		try {
+			Log.d(TAG, MessageFormat.format("Attemtpting to connect to {0}", address));
+			socket.connect();
+		} catch (IOException e) {
+			Log.d(TAG, MessageFormat.format(
+					"Failed to connect to {0}\nException:{1}",
+					address, e.getMessage()));
+			// Try a hack for some broken devices (like ones by HTC)
+			// instead:
+			try {
+				Method m = device.getClass().getMethod("createRfcommSocket",
+						new Class[] { int.class });
+				socket = (BluetoothSocket) m.invoke(device, Integer.valueOf(1));
+			} catch (NoSuchMethodException ex) {
+				throw new IOException(ex.toString());
+			} catch (InvocationTargetException ex) {
+				throw new IOException(ex.toString());
+			} catch (IllegalAccessException ex) {
+				throw new IOException(ex.toString());
+			}
+			socket.connect(); // If this fails, then we can't connect.
+		}
+		Log.d(TAG, MessageFormat.format("Succeeded in connecting to {0}", address));
+
+		return new BluetoothConnection(socket);
+	}
+
+	public void listen() throws IOException {
+		mServerSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, UUID);
+	}
+
+	public LinkConnection accept() throws IOException {
+		BluetoothSocket socket = mServerSocket.accept();
+		if (socket == null) {
+			throw new IOException("Server socket returned no connection");
+		}
+		return new BluetoothConnection(socket);
+	}
+
+	public void close() {
+		if (mServerSocket != null) {
+			// Will cause accept() to throw IOException and quit blocking:
+			try {
+				mServerSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class BluetoothConnection implements LinkConnection {
+		private final BluetoothSocket mSocket;
+		private final String mRemoteAddress;
+
+		BluetoothConnection(BluetoothSocket socket) {
+			mSocket = socket;
+			mRemoteAddress = socket.getRemoteDevice().getAddress();
+		}
+
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return mSocket.getInputStream();
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return mSocket.getOutputStream();
+		}
+
+		public void close() throws IOException {
+			try {
+				mSocket.getInputStream().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			try {
+				mSocket.getOutputStream().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			mSocket.close();
+		}
+	}
+}
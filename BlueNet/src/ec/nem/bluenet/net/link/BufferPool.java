@@ -0,0 +1,95 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of heap ByteBuffers bucketed by power-of-two capacity.<br>
+ * <br>
+ *
+ * The link layer encodes every frame into a scratch buffer that only lives
+ * until it has been written to the socket, so handing those buffers back
+ * here saves one large allocation per frame under sustained traffic.
+ * Buffers larger than the biggest bucket are simply allocated and dropped.
+ */
+public class BufferPool {
+	/** Smallest bucket is 2^6 = 64 bytes */
+	private static final int MIN_SHIFT = 6;
+	/** Largest bucket is 2^18 = 256KB, enough for an escaped 64KB datagram */
+	private static final int MAX_SHIFT = 18;
+	/** Number of idle buffers kept per bucket */
+	private static final int DEFAULT_MAX_PER_BUCKET = 16;
+
+	/** Pool shared by the whole stack */
+	public static final BufferPool shared = new BufferPool(DEFAULT_MAX_PER_BUCKET);
+
+	private final Bucket[] mBuckets;
+	private final int mMaxPerBucket;
+
+	public BufferPool(int maxPerBucket) {
+		mBuckets = new Bucket[MAX_SHIFT - MIN_SHIFT + 1];
+		for (int i = 0; i < mBuckets.length; ++i) {
+			mBuckets[i] = new Bucket();
+		}
+		mMaxPerBucket = maxPerBucket;
+	}
+
+	/**
+	 * Gets a cleared buffer that can hold at least the given number of bytes.
+	 * The buffer is backed by an array, so callers may work on array() directly.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int bucket = bucketFor(capacity);
+		if (bucket < 0) {
+			return ByteBuffer.allocate(capacity);
+		}
+
+		ByteBuffer b = mBuckets[bucket].buffers.poll();
+		if (b == null) {
+			return ByteBuffer.allocate(1 << (bucket + MIN_SHIFT));
+		}
+		mBuckets[bucket].idle.decrementAndGet();
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Hands a buffer back to the pool.  The caller must not touch it afterwards.
+	 */
+	public void release(ByteBuffer b) {
+		if (b == null || !b.hasArray()) {
+			return;
+		}
+
+		int capacity = b.capacity();
+		int bucket = bucketFor(capacity);
+		// Only exact bucket sizes come from us; anything else is left to the GC
+		if (bucket < 0 || (1 << (bucket + MIN_SHIFT)) != capacity) {
+			return;
+		}
+		Bucket pool = mBuckets[bucket];
+		if (pool.idle.incrementAndGet() > mMaxPerBucket) {
+			pool.idle.decrementAndGet();
+			return;
+		}
+		pool.buffers.offer(b);
+	}
+
+	/** Returns the bucket index for a capacity, or -1 if it is too big to pool */
+	private static int bucketFor(int capacity) {
+		int shift = MIN_SHIFT;
+		while ((1 << shift) < capacity) {
+			if (++shift > MAX_SHIFT) {
+				return -1;
+			}
+		}
+		return shift - MIN_SHIFT;
+	}
+
+	/** Idle buffers of one capacity, and how many there are */
+	private static final class Bucket {
+		final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicInteger idle = new AtomicInteger();
+	}
+}
@@ -0,0 +1,167 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames with Consistent Overhead Byte Stuffing (Framing.COBS)
+ * straight into a pooled buffer.<br>
+ * <br>
+ *
+ * The protocol field and data are COBS encoded, which leaves no zero bytes
+ * in them, and the result is wrapped in zero bytes.  COBS splits its input
+ * at every zero and into blocks of at most 254 bytes, and starts each block
+ * with one byte giving its length, in place of the zero that ended it.  So
+ * however the data looks a frame grows by at most one byte in 254 plus the
+ * two delimiters, where PPP escaping can double it.<br>
+ * <br>
+ *
+ * Runs between zeros are block copied, as in PppCodec.
+ */
+public class CobsCodec implements FrameCodec {
+	/** Opens and closes every COBS frame */
+	public static final byte DELIMITER = 0x00;
+	/** Code byte of a block of 254 bytes with no zero after it */
+	public static final int MAX_CODE = 0xFF;
+
+	private final BufferPool mPool;
+
+	public CobsCodec() {
+		this(BufferPool.shared);
+	}
+
+	public CobsCodec(BufferPool pool) {
+		mPool = pool;
+	}
+
+	public ByteBuffer encode(short protocol, byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+
+		ByteBuffer out = mPool.acquire(maxEncodedLength(length));
+		byte[] dst = out.array();
+		long state = begin(dst, protocol);
+		for (byte[] part : parts) {
+			state = stuff(part, 0, part.length, dst, state);
+		}
+
+		out.limit(finish(dst, state));
+		return out;
+	}
+
+	public ByteBuffer encode(short protocol, byte[] data, int offset, int length) {
+		ByteBuffer out = mPool.acquire(maxEncodedLength(length));
+		byte[] dst = out.array();
+		long state = begin(dst, protocol);
+		state = stuff(data, offset, length, dst, state);
+
+		out.limit(finish(dst, state));
+		return out;
+	}
+
+	public ByteBuffer encode(short protocol, byte[] head, byte[] data, int offset, int length) {
+		ByteBuffer out = mPool.acquire(maxEncodedLength(head.length + length));
+		byte[] dst = out.array();
+		long state = begin(dst, protocol);
+		state = stuff(head, 0, head.length, dst, state);
+		state = stuff(data, offset, length, dst, state);
+
+		out.limit(finish(dst, state));
+		return out;
+	}
+
+	public void release(ByteBuffer frame) {
+		mPool.release(frame);
+	}
+
+	/**
+	 * Worst case size of an encoded frame: two delimiters, the protocol field
+	 * and data, a code byte for every 254 of those and one more to end on.
+	 */
+	public static int maxEncodedLength(int dataLength) {
+		int length = 2 + dataLength;
+		return 2 + length + length / (MAX_CODE - 1) + 1;
+	}
+
+	/*
+	 * The encoder's state between calls to stuff() is where the current
+	 * block's code byte goes, and where the next byte goes; the code is the
+	 * distance between them.  Both are packed in a long so the codec needs
+	 * no fields.
+	 */
+
+	private static long pack(int codePos, int pos) {
+		return ((long) codePos << 32) | pos;
+	}
+
+	/** Writes the opening delimiter and the stuffed protocol field */
+	private static long begin(byte[] dst, short protocol) {
+		dst[0] = DELIMITER;
+		long state = pack(1, 2);
+		state = stuff((byte) (protocol >> 8), dst, state);
+		return stuff((byte) protocol, dst, state);
+	}
+
+	private static long stuff(byte b, byte[] dst, long state) {
+		int codePos = (int) (state >>> 32);
+		int pos = (int) state;
+		if (b == 0) {
+			dst[codePos] = (byte) (pos - codePos);
+			codePos = pos++;
+		} else {
+			dst[pos++] = b;
+			if (pos - codePos == MAX_CODE) {
+				dst[codePos] = (byte) MAX_CODE;
+				codePos = pos++;
+			}
+		}
+		return pack(codePos, pos);
+	}
+
+	/**
+	 * Stuffs src[offset, offset + length) into dst, carrying on the block
+	 * described by state.
+	 *
+	 * @return the new state
+	 */
+	private static long stuff(byte[] src, int offset, int length, byte[] dst, long state) {
+		int codePos = (int) (state >>> 32);
+		int pos = (int) state;
+		int end = offset + length;
+		int i = offset;
+
+		while (i < end) {
+			// Copy up to the next zero, or as much as fits in this block
+			int limit = Math.min(end, i + MAX_CODE - (pos - codePos));
+			int run = i;
+			while (i < limit && src[i] != 0) {
+				++i;
+			}
+			int n = i - run;
+			System.arraycopy(src, run, dst, pos, n);
+			pos += n;
+
+			if (i < limit) {
+				// The zero ends the block; its code byte stands in for it
+				dst[codePos] = (byte) (pos - codePos);
+				codePos = pos++;
+				++i;
+			} else if (pos - codePos == MAX_CODE) {
+				dst[codePos] = (byte) MAX_CODE;
+				codePos = pos++;
+			}
+		}
+
+		return pack(codePos, pos);
+	}
+
+	/** Ends the last block and writes the closing delimiter */
+	private static int finish(byte[] dst, long state) {
+		int codePos = (int) (state >>> 32);
+		int pos = (int) state;
+		dst[codePos] = (byte) (pos - codePos);
+		dst[pos++] = DELIMITER;
+		return pos;
+	}
+}
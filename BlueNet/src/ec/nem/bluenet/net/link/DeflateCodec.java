@@ -0,0 +1,287 @@
+package ec.nem.bluenet.net.link;
+
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ec.nem.bluenet.Message;
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.net.IPv6Header;
+import ec.nem.bluenet.net.UDPHeader;
+import ec.nem.bluenet.net.routing.DatabaseDescription;
+import ec.nem.bluenet.net.routing.LinkCost;
+import ec.nem.bluenet.net.routing.LinkStateAdvertisement;
+import ec.nem.bluenet.net.routing.LinkStateRequest;
+import ec.nem.bluenet.net.routing.LinkStateUpdate;
+import ec.nem.bluenet.net.routing.RoutingMessage;
+
+/**
+ * Compresses whole datagrams with Deflate before they are framed.<br>
+ * <br>
+ *
+ * A compressed datagram goes out as a PROTOCOL_DEFLATE frame whose data is
+ * the datagram's own PPP protocol number followed by raw Deflate data.  Each
+ * datagram is compressed on its own, since the queues may drop any frame,
+ * so most of the win comes from a preset dictionary: samples of the headers
+ * and messages BlueNet sends, including the class descriptors and names
+ * every application Message repeats.  Both ends must use the same
+ * dictionary, which is why nodes advertise DICTIONARY_ID before compressing
+ * to each other.<br>
+ * <br>
+ *
+ * Not thread safe; each thread that compresses or inflates needs its own.
+ */
+public class DeflateCodec {
+	/** PPP protocol number of a compressed datagram, as in RFC 1979 */
+	public static final short PROTOCOL_DEFLATE = 0x00fd;
+	/** Datagrams shorter than this are sent as they are */
+	public static final int MIN_LENGTH = 64;
+	/** Default largest datagram we inflate, to stop a hostile frame eating memory */
+	public static final int DEFAULT_MAX_LENGTH = Reassembler.DEFAULT_MAX_BYTES;
+
+	/** The port BluetoothNodeService binds by default, for the sample UDP header */
+	private static final int DEFAULT_PORT = 50000;
+
+	/** The preset dictionary */
+	public static final byte[] DICTIONARY = buildDictionary();
+	/** Adler-32 of the dictionary, advertised to neighbors */
+	public static final int DICTIONARY_ID = checksum(DICTIONARY);
+
+	private final int mMaxLength;
+	private Deflater mDeflater;
+	private Inflater mInflater;
+	private byte[] mScratch = new byte[1024];
+
+	// The datagram last inflated by decompress()
+	private short mProtocol;
+	private byte[] mBuffer = new byte[1024];
+	private int mLength;
+
+	public DeflateCodec() {
+		this(DEFAULT_MAX_LENGTH);
+	}
+
+	public DeflateCodec(int maxLength) {
+		mMaxLength = maxLength;
+	}
+
+	/**
+	 * Compresses a datagram made of the given parts.
+	 *
+	 * @return the data of a PROTOCOL_DEFLATE frame, or null if the datagram
+	 *         is too short or wouldn't get any shorter
+	 */
+	public byte[] compress(short protocol, byte[][] parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		if (length < MIN_LENGTH) {
+			return null;
+		}
+
+		if (mDeflater == null) {
+			mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+		mDeflater.reset();
+		mDeflater.setDictionary(DICTIONARY);
+		for (byte[] part : parts) {
+			// The parts go one after another into the same stream
+			mDeflater.setInput(part);
+			while (!mDeflater.needsInput()) {
+				if (!deflate(length)) {
+					return null;
+				}
+			}
+		}
+		mDeflater.finish();
+		while (!mDeflater.finished()) {
+			if (!deflate(length)) {
+				return null;
+			}
+		}
+
+		int compressed = (int) mDeflater.getBytesWritten();
+		byte[] out = new byte[2 + compressed];
+		out[0] = (byte) (protocol >> 8);
+		out[1] = (byte) protocol;
+		System.arraycopy(mScratch, 0, out, 2, compressed);
+		return out;
+	}
+
+	/** Runs the deflater into mScratch; false once the output can't beat length */
+	private boolean deflate(int length) {
+		int written = (int) mDeflater.getBytesWritten();
+		// Two bytes of the frame go on the inner protocol number
+		int room = length - 2 - written;
+		if (room <= 0) {
+			return false;
+		}
+		if (mScratch.length < written + room) {
+			byte[] bigger = new byte[Math.max(written + room, mScratch.length * 2)];
+			System.arraycopy(mScratch, 0, bigger, 0, written);
+			mScratch = bigger;
+		}
+		mDeflater.deflate(mScratch, written, room);
+		return true;
+	}
+
+	/**
+	 * Inflates the data of a PROTOCOL_DEFLATE frame.
+	 *
+	 * @return true if it held a good datagram, which can then be read with
+	 *         getProtocol(), getBuffer() and getLength()
+	 */
+	public boolean decompress(byte[] data, int offset, int length) {
+		if (length < 2) {
+			return false;
+		}
+		mProtocol = (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+
+		if (mInflater == null) {
+			mInflater = new Inflater(true);
+		}
+		mInflater.reset();
+		mInflater.setDictionary(DICTIONARY);
+		mInflater.setInput(data, offset + 2, length - 2);
+		mLength = 0;
+		try {
+			while (!mInflater.finished()) {
+				if (mLength == mBuffer.length) {
+					if (mBuffer.length >= mMaxLength) {
+						return false;
+					}
+					byte[] bigger = new byte[Math.min(mMaxLength, mBuffer.length * 2)];
+					System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+					mBuffer = bigger;
+				}
+				int n = mInflater.inflate(mBuffer, mLength, mBuffer.length - mLength);
+				if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+					// Cut short
+					return false;
+				}
+				mLength += n;
+			}
+		} catch (DataFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	public short getProtocol() {
+		return mProtocol;
+	}
+
+	/** The datagram last inflated; only good until the next decompress() */
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/** Frees the native zlib state; the codec must not be used afterwards */
+	public void end() {
+		if (mDeflater != null) {
+			mDeflater.end();
+		}
+		if (mInflater != null) {
+			mInflater.end();
+		}
+	}
+
+	/**
+	 * Builds the dictionary from what actually goes into compressed
+	 * datagrams: uncompressed IPv6 and UDP headers, then one of each routing
+	 * message in its binary encoding.  zlib reaches furthest back for the
+	 * strings at the end of the dictionary, so the most common payloads go
+	 * last, the application Message after everything else.
+	 */
+	private static byte[] buildDictionary() {
+		try {
+			Node node = new Node("00:00:00:00:00:00");
+
+			LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+			lsa.source = node;
+			lsa.others.add(node);
+			lsa.costs.put(node, LinkCost.HOP_COST);
+
+			DatabaseDescription description = new DatabaseDescription();
+			description.source = node;
+			description.sequences.put(node, LinkStateAdvertisement.initialSequence);
+
+			LinkStateRequest request = new LinkStateRequest();
+			request.source = node;
+			request.origins.add(node);
+
+			LinkStateUpdate lsu = new LinkStateUpdate();
+			lsu.source = node;
+			lsu.lsas.add(lsa);
+
+			UDPHeader udp = new UDPHeader();
+			udp.setSourcePort(DEFAULT_PORT);
+			udp.setDestinationPort(DEFAULT_PORT);
+			udp.setData(new byte[0]);
+
+			Message message = new Message("Unknown", node.getAddress(), "", "", 0);
+
+			byte[][] samples = {
+					ipHeader(node, IPv6Header.NH_ROUTING, IPv6Header.TC_CONTROL),
+					RoutingMessage.serializeMessage(routing(RoutingMessage.Type.DatabaseDescription, description)),
+					RoutingMessage.serializeMessage(routing(RoutingMessage.Type.LinkStateRequest, request)),
+					RoutingMessage.serializeMessage(routing(RoutingMessage.Type.LinkStateUpdate, lsu)),
+					RoutingMessage.serializeMessage(routing(RoutingMessage.Type.Hello, node)),
+					RoutingMessage.serializeMessage(routing(RoutingMessage.Type.LinkStateAdvertisement, lsa)),
+					ipHeader(node, IPv6Header.NH_UDP, IPv6Header.TC_DEFAULT),
+					udp.getRawBytes(),
+					Message.serialize(message) };
+			int length = 0;
+			for (byte[] sample : samples) {
+				length += sample.length;
+			}
+			byte[] out = new byte[length];
+			int offset = 0;
+			for (byte[] sample : samples) {
+				System.arraycopy(sample, 0, out, offset, sample.length);
+				offset += sample.length;
+			}
+			return out;
+		} catch (Exception e) {
+			// Still a working codec, but no neighbor will agree to use it
+			return new byte[0];
+		}
+	}
+
+	private static RoutingMessage routing(RoutingMessage.Type type, Object obj) {
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = type;
+		msg.obj = obj;
+		return msg;
+	}
+
+	/** An uncompressed IPv6 header between two link-local addresses */
+	private static byte[] ipHeader(Node node, int nextHeader, int trafficClass) {
+		IPv6Header header = new IPv6Header();
+		header.setVersion(6);
+		header.setTrafficClass(trafficClass);
+		header.setNextHeader(nextHeader);
+		header.setHopLimit(IPv6Header.DEFAULT_HOP_LIMIT);
+		byte[] address = node.getIPAddress();
+		byte[] out = new byte[IPv6Header.HEADER_LENGTH];
+		System.arraycopy(header.headerFields, 0, out, 0, 8);
+		System.arraycopy(address, 0, out, 8, 16);
+		System.arraycopy(address, 0, out, 24, 16);
+		return out;
+	}
+
+	private static int checksum(byte[] b) {
+		if (b.length == 0) {
+			return 0;
+		}
+		Adler32 adler = new Adler32();
+		adler.update(b, 0, b.length);
+		return (int) adler.getValue();
+	}
+}
@@ -0,0 +1,126 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits one datagram into fragment frames, encoding each only when the
+ * writer asks for it.<br>
+ * <br>
+ *
+ * A fragment frame uses PROTOCOL_FRAGMENT and starts with a flags byte and
+ * the 16 bit tag of its datagram.  The first fragment also carries the
+ * datagram's own protocol and its total length, so the receiver can set
+ * aside room for it:
+ *
+ * <pre>
+ *   first:  flags(1) tag(2) protocol(2) length(4) data...
+ *   others: flags(1) tag(2) data...
+ * </pre>
+ *
+ * Fragments of one datagram are sent in order on one connection, so they
+ * need no offsets; fragments of different datagrams may be interleaved.
+ */
+public class Fragmenter {
+	/** PPP protocol number of a fragment frame (the one multilink PPP uses) */
+	public static final short PROTOCOL_FRAGMENT = 0x003d;
+	/** Set on the first fragment of a datagram */
+	public static final int FLAG_BEGIN = 0x80;
+	/** Set on the last fragment of a datagram */
+	public static final int FLAG_END = 0x40;
+	/** Length of the header on every fragment */
+	public static final int HEADER_LENGTH = 3;
+	/** Extra header carried by the first fragment */
+	public static final int BEGIN_HEADER_LENGTH = 6;
+
+	private final FrameCodec mCodec;
+	private final short mProtocol;
+	private final int mTag;
+	private final int mFragmentSize;
+	private final byte[][] mParts;
+	private final int mLength;
+	private final byte[] mScratch;
+
+	// Where the next fragment starts
+	private int mPart;
+	private int mPartOffset;
+	private int mSent;
+	private boolean mDone;
+
+	/**
+	 * @param codec encodes the fragment frames
+	 * @param protocol the protocol of the datagram being split
+	 * @param tag identifies the datagram among others in flight on the link
+	 * @param fragmentSize most datagram bytes to put in one fragment
+	 * @param parts the datagram, in pieces, as FrameCodec.encode() takes it
+	 */
+	public Fragmenter(FrameCodec codec, short protocol, int tag, int fragmentSize, byte[]... parts) {
+		mCodec = codec;
+		mProtocol = protocol;
+		mTag = tag;
+		mFragmentSize = fragmentSize;
+		mParts = parts;
+
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		mLength = length;
+		mScratch = new byte[HEADER_LENGTH + BEGIN_HEADER_LENGTH + fragmentSize];
+	}
+
+	public boolean hasNext() {
+		return !mDone;
+	}
+
+	/** Datagram bytes not yet handed out in a fragment */
+	public int getRemaining() {
+		return mLength - mSent;
+	}
+
+	/** About how many bytes the next fragment will take, before framing */
+	public int getNextLength() {
+		return 4 + HEADER_LENGTH + (mSent == 0 ? BEGIN_HEADER_LENGTH : 0)
+				+ Math.min(mFragmentSize, mLength - mSent);
+	}
+
+	/** Encodes the next fragment into a pooled buffer */
+	public ByteBuffer next() {
+		byte[] out = mScratch;
+		int pos = HEADER_LENGTH;
+		int flags = 0;
+
+		if (mSent == 0 && !mDone) {
+			flags |= FLAG_BEGIN;
+			out[pos++] = (byte) (mProtocol >> 8);
+			out[pos++] = (byte) mProtocol;
+			out[pos++] = (byte) (mLength >>> 24);
+			out[pos++] = (byte) (mLength >>> 16);
+			out[pos++] = (byte) (mLength >>> 8);
+			out[pos++] = (byte) mLength;
+		}
+
+		int want = Math.min(mFragmentSize, mLength - mSent);
+		mSent += want;
+		while (want > 0) {
+			byte[] part = mParts[mPart];
+			int n = Math.min(want, part.length - mPartOffset);
+			System.arraycopy(part, mPartOffset, out, pos, n);
+			pos += n;
+			want -= n;
+			mPartOffset += n;
+			if (mPartOffset == part.length) {
+				mPart++;
+				mPartOffset = 0;
+			}
+		}
+		if (mSent == mLength) {
+			flags |= FLAG_END;
+			mDone = true;
+		}
+		out[0] = (byte) flags;
+		out[1] = (byte) (mTag >> 8);
+		out[2] = (byte) mTag;
+
+		return mCodec.encode(PROTOCOL_FRAGMENT, out, 0, pos);
+	}
+}
@@ -0,0 +1,37 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames for the wire into pooled buffers.  Every Framing has one;
+ * FrameDecoder reads all of them.<br>
+ * <br>
+ *
+ * Implementations keep no state between calls, so one instance can be
+ * shared by every connection and thread.
+ */
+public interface FrameCodec {
+	/**
+	 * Encodes a frame whose data is the concatenation of parts.
+	 *
+	 * @return a buffer from the pool, positioned at 0 with its limit at the
+	 *         end of the frame.  Hand it back with {@link #release(ByteBuffer)}
+	 *         once it has been written.
+	 */
+	public ByteBuffer encode(short protocol, byte[]... parts);
+
+	/**
+	 * Encodes a frame whose data is the given slice of an array.
+	 */
+	public ByteBuffer encode(short protocol, byte[] data, int offset, int length);
+
+	/**
+	 * Encodes a frame whose data is head followed by the given slice of an
+	 * array, such as a rewritten header and a payload still sitting in a
+	 * receive buffer.
+	 */
+	public ByteBuffer encode(short protocol, byte[] head, byte[] data, int offset, int length);
+
+	/** Returns a buffer obtained from encode() to the pool */
+	public void release(ByteBuffer frame);
+}
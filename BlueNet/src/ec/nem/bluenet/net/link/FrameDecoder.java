@@ -0,0 +1,351 @@
+package ec.nem.bluenet.net.link;
+
+/**
+ * Resumable decoder for every Framing: PPP in HDLC-like framing (RFC 1662),
+ * length-prefixed frames and COBS frames, in any mix.<br>
+ * <br>
+ *
+ * Bytes are fed in whatever chunks the socket returns.  The decoder keeps its
+ * state between calls, decodes straight into a single growable frame buffer,
+ * and stops as soon as a frame is complete so the caller can handle it before
+ * feeding the rest of the chunk:
+ *
+ * <pre>
+ * int off = 0;
+ * while (off &lt; n) {
+ *     off += decoder.feed(buffer, off, n - off);
+ *     if (decoder.hasFrame()) {
+ *         handle(decoder.getProtocol(), decoder.getBuffer(), FrameDecoder.DATA_OFFSET, decoder.getDataLength());
+ *     }
+ * }
+ * </pre>
+ *
+ * Between frames, the first byte says which framing the next one uses:
+ * PppCodec.FLAG, LengthCodec.MARKER or CobsCodec.DELIMITER.  Anything else
+ * there is discarded.  A PPP or COBS frame that is aborted, malformed or
+ * grows past the size limit is discarded up to its closing delimiter, and a
+ * length-prefixed one that is too long is skipped.  Empty frames and runts
+ * too short to hold a protocol field are silently skipped.
+ */
+public class FrameDecoder {
+	/** Offset of the data in getBuffer(), just past the 2 byte protocol field */
+	public static final int DATA_OFFSET = 2;
+	/** Largest decoded frame accepted by default */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 17;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// What the next byte means
+	private static final int BETWEEN = 0;
+	private static final int PPP = 1;
+	private static final int COBS = 2;
+	private static final int LENGTH_HEADER = 3;
+	private static final int LENGTH_BODY = 4;
+
+	private final int mMaxFrameLength;
+	private byte[] mFrame = new byte[INITIAL_CAPACITY];
+	private int mLength;
+
+	private int mState = BETWEEN;
+	/** Throwing the rest of this PPP or COBS frame away, or skipping a long length-prefixed one */
+	private boolean mDiscarding;
+	/** PPP: the last byte fed was an escape */
+	private boolean mEscaped;
+	/** COBS: bytes left in the current block; 0 means the next byte is a code or the delimiter */
+	private int mBlockLeft;
+	/** COBS: the block just finished stood in for a zero, unless it was the last */
+	private boolean mPendingZero;
+	/** Length-prefixed: header bytes still to come, then body bytes still to come */
+	private int mRemaining;
+	/** A complete frame is sitting in mFrame */
+	private boolean mReady;
+
+	private long mFramesDecoded;
+	private long mFramesDropped;
+
+	public FrameDecoder() {
+		this(DEFAULT_MAX_FRAME_LENGTH);
+	}
+
+	public FrameDecoder(int maxFrameLength) {
+		mMaxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Consumes bytes from in[offset, offset + length), stopping just after
+	 * the last byte of a frame.  Any frame returned by the previous call is
+	 * discarded.
+	 *
+	 * @return the number of bytes consumed
+	 */
+	public int feed(byte[] in, int offset, int length) {
+		if (mReady) {
+			mReady = false;
+			mLength = 0;
+		}
+
+		final int end = offset + length;
+		int i = offset;
+
+		while (i < end) {
+			switch (mState) {
+			case BETWEEN:
+				i = begin(in, i, end);
+				break;
+			case PPP:
+				i = feedPpp(in, i, end);
+				break;
+			case COBS:
+				i = feedCobs(in, i, end);
+				break;
+			case LENGTH_HEADER:
+				i = feedLengthHeader(in, i, end);
+				break;
+			case LENGTH_BODY:
+				i = feedLengthBody(in, i, end);
+				break;
+			}
+			if (mReady) {
+				break;
+			}
+		}
+
+		return i - offset;
+	}
+
+	/** Looks for the byte that opens a frame and takes up its framing */
+	private int begin(byte[] in, int i, int end) {
+		while (i < end) {
+			byte b = in[i++];
+			mLength = 0;
+			mDiscarding = false;
+			if (b == PppCodec.FLAG) {
+				mState = PPP;
+				mEscaped = false;
+				return i;
+			} else if (b == CobsCodec.DELIMITER) {
+				mState = COBS;
+				mBlockLeft = 0;
+				mPendingZero = false;
+				return i;
+			} else if (b == LengthCodec.MARKER) {
+				mState = LENGTH_HEADER;
+				mRemaining = LengthCodec.HEADER_LENGTH - 1;
+				return i;
+			}
+		}
+		return i;
+	}
+
+	private int feedPpp(byte[] in, int i, int end) {
+		while (i < end) {
+			if (mEscaped) {
+				mEscaped = false;
+				byte b = in[i++];
+				if (b == PppCodec.FLAG) {
+					// 0x7d 0x7e aborts the frame
+					drop();
+					mState = BETWEEN;
+					return i;
+				}
+				append((byte) (b ^ PppCodec.ESCAPE_XOR));
+				continue;
+			}
+
+			// Copy the run up to the next special byte in one go
+			int run = i;
+			byte b = 0;
+			while (i < end) {
+				b = in[i];
+				if (b == PppCodec.FLAG || b == PppCodec.ESCAPE) {
+					break;
+				}
+				++i;
+			}
+			append(in, run, i - run);
+
+			if (i == end) {
+				break;
+			}
+
+			++i;
+			if (b == PppCodec.ESCAPE) {
+				mEscaped = true;
+			} else {
+				end();
+				return i;
+			}
+		}
+		return i;
+	}
+
+	private int feedCobs(byte[] in, int i, int end) {
+		while (i < end) {
+			if (mBlockLeft == 0) {
+				byte code = in[i++];
+				if (code == CobsCodec.DELIMITER) {
+					end();
+					return i;
+				}
+				if (mPendingZero) {
+					append((byte) 0);
+				}
+				mBlockLeft = (code & 0xFF) - 1;
+				mPendingZero = (code & 0xFF) != CobsCodec.MAX_CODE;
+				continue;
+			}
+
+			// Copy what is left of the block, which can't hold a zero
+			int limit = Math.min(end, i + mBlockLeft);
+			int run = i;
+			while (i < limit && in[i] != CobsCodec.DELIMITER) {
+				++i;
+			}
+			append(in, run, i - run);
+			mBlockLeft -= i - run;
+
+			if (i < limit) {
+				// Closed in the middle of a block, so something is missing
+				++i;
+				drop();
+				mState = BETWEEN;
+				return i;
+			}
+		}
+		return i;
+	}
+
+	private int feedLengthHeader(byte[] in, int i, int end) {
+		while (i < end && mRemaining > 0) {
+			// The header is gathered in mFrame, then overwritten by the body
+			mFrame[LengthCodec.HEADER_LENGTH - 1 - mRemaining] = in[i++];
+			--mRemaining;
+		}
+		if (mRemaining == 0) {
+			int length = ((mFrame[0] & 0xFF) << 16) | ((mFrame[1] & 0xFF) << 8) | (mFrame[2] & 0xFF);
+			mState = LENGTH_BODY;
+			mRemaining = length;
+			mLength = 0;
+			if (length < DATA_OFFSET || length > mMaxFrameLength) {
+				++mFramesDropped;
+				mDiscarding = true;
+			} else {
+				reserve(length);
+			}
+			if (length == 0) {
+				mState = BETWEEN;
+			}
+		}
+		return i;
+	}
+
+	private int feedLengthBody(byte[] in, int i, int end) {
+		int n = Math.min(end - i, mRemaining);
+		if (!mDiscarding) {
+			System.arraycopy(in, i, mFrame, mLength, n);
+			mLength += n;
+		}
+		mRemaining -= n;
+		if (mRemaining == 0) {
+			mState = BETWEEN;
+			if (!mDiscarding) {
+				++mFramesDecoded;
+				mReady = true;
+			}
+		}
+		return i + n;
+	}
+
+	/** Closes a PPP or COBS frame */
+	private void end() {
+		mState = BETWEEN;
+		if (mDiscarding) {
+			return;
+		}
+		if (mLength >= DATA_OFFSET) {
+			++mFramesDecoded;
+			mReady = true;
+		} else if (mLength > 0) {
+			// A runt; back-to-back delimiters are just an empty frame
+			++mFramesDropped;
+		}
+	}
+
+	/** Counts a frame thrown away part way, unless it already was */
+	private void drop() {
+		if (!mDiscarding) {
+			++mFramesDropped;
+		}
+		mLength = 0;
+	}
+
+	/** Whether the last call to feed() completed a frame */
+	public boolean hasFrame() {
+		return mReady;
+	}
+
+	/** Protocol field of the completed frame */
+	public short getProtocol() {
+		return (short) (((mFrame[0] & 0xFF) << 8) | (mFrame[1] & 0xFF));
+	}
+
+	/**
+	 * Buffer holding the completed frame, protocol field first.  It is reused
+	 * by the next call to feed().
+	 */
+	public byte[] getBuffer() {
+		return mFrame;
+	}
+
+	/** Number of data bytes in the completed frame, starting at DATA_OFFSET */
+	public int getDataLength() {
+		return mLength - DATA_OFFSET;
+	}
+
+	/** Number of complete frames decoded so far */
+	public long getFramesDecoded() {
+		return mFramesDecoded;
+	}
+
+	/** Number of aborted, malformed, oversized and runt frames thrown away so far */
+	public long getFramesDropped() {
+		return mFramesDropped;
+	}
+
+	private void append(byte b) {
+		if (!mDiscarding && reserve(1)) {
+			mFrame[mLength++] = b;
+		}
+	}
+
+	private void append(byte[] src, int offset, int length) {
+		if (length > 0 && !mDiscarding && reserve(length)) {
+			System.arraycopy(src, offset, mFrame, mLength, length);
+			mLength += length;
+		}
+	}
+
+	/**
+	 * Makes room for n more bytes, doubling the buffer as needed.  If the
+	 * frame would pass the size limit the rest of it is discarded.
+	 */
+	private boolean reserve(int n) {
+		int needed = mLength + n;
+		if (needed > mMaxFrameLength) {
+			++mFramesDropped;
+			mLength = 0;
+			mDiscarding = true;
+			return false;
+		}
+		if (needed > mFrame.length) {
+			int capacity = mFrame.length;
+			while (capacity < needed) {
+				capacity <<= 1;
+			}
+			byte[] bigger = new byte[Math.min(capacity, mMaxFrameLength)];
+			System.arraycopy(mFrame, 0, bigger, 0, mLength);
+			mFrame = bigger;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,744 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Writes encoded frames to one peer, coalescing whatever is queued into a
+ * single write on the stream.<br>
+ * <br>
+ *
+ * On RFCOMM every write() is at least one radio packet, so a burst of small
+ * frames written one at a time wastes most of the airtime on per-packet
+ * overhead.  The writer blocks for the first frame, then keeps taking frames
+ * until the batch would pass maxBatchBytes, the queue is empty and the
+ * linger time has run out.  A linger of zero only merges frames that were
+ * already waiting and never delays a frame.<br>
+ * <br>
+ *
+ * Frames can be queued before there is a stream to write them to, which is
+ * how sends to a neighbor we are still connecting to are parked.<br>
+ * <br>
+ *
+ * The queue is bounded both in frames and in encoded bytes, so a neighbor
+ * whose link has slowed down cannot eat all our memory.  What happens to a
+ * frame that doesn't fit is up to the QueuePolicy.<br>
+ * <br>
+ *
+ * Datagrams too big for the link MTU are queued as Fragmenters, which are
+ * bounded by count instead.  The writer takes turns between the queue of
+ * whole frames and each datagram in flight, one frame at a time, so a small
+ * frame never waits behind more than a fragment of a big one.<br>
+ * <br>
+ *
+ * Frames are queued in one of four bands, usually picked from the IPv6
+ * traffic class with bandFor().  Each band has its own room under the queue
+ * limits, so a flood of bulk data cannot crowd out anything more important.
+ * BAND_CONTROL always goes first, so routing traffic is not held up by
+ * application data.  The other three bands share what is left by deficit
+ * round robin, in proportion to their weights.
+ */
+public class FrameWriter {
+	/** Default byte budget for one write */
+	public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+	/** Default time to wait for more frames before writing, in microseconds */
+	public static final long DEFAULT_LINGER_MICROS = 0;
+	/** Number of buckets in the frames-per-write histogram */
+	public static final int HISTOGRAM_BUCKETS = 6;
+	/** Default number of frames that may wait for the writer */
+	public static final int DEFAULT_MAX_QUEUED_FRAMES = 256;
+	/** Default number of encoded bytes that may wait for the writer */
+	public static final int DEFAULT_MAX_QUEUED_BYTES = 256 * 1024;
+	/** Default number of fragmented datagrams that may wait for the writer */
+	public static final int DEFAULT_MAX_QUEUED_DATAGRAMS = 4;
+	/** Default longest time a BLOCK caller waits for room, in milliseconds */
+	public static final long DEFAULT_BLOCK_TIMEOUT = 1000;
+
+	/** Band for routing control traffic, served before everything else */
+	public static final int BAND_CONTROL = 0;
+	/** Band for interactive traffic */
+	public static final int BAND_HIGH = 1;
+	/** Band for ordinary traffic */
+	public static final int BAND_NORMAL = 2;
+	/** Band for bulk traffic */
+	public static final int BAND_LOW = 3;
+	/** Number of bands */
+	public static final int BANDS = 4;
+	/** Default shares of BAND_HIGH, BAND_NORMAL and BAND_LOW */
+	public static final int[] DEFAULT_WEIGHTS = { 4, 2, 1 };
+	/** Bytes a band may send per round for each unit of weight */
+	public static final int QUANTUM_BYTES = 1024;
+
+	private OutputStream mOut;
+	private final BufferPool mPool;
+	private final int mMaxBatchBytes;
+	private final long mLingerMicros;
+	/** Guards everything queued, and is waited on by the writer and BLOCK callers */
+	private final Object mLock = new Object();
+	private final Band[] mBands = new Band[BANDS];
+	/** The weighted band whose turn it is */
+	private int mCurrentBand = BAND_HIGH;
+	/** Whether the current band has been given its quantum for this turn */
+	private boolean mQuantumGiven;
+	private volatile boolean mClosed;
+	/** Run after each frame is queued, for engines that write on demand */
+	private volatile Runnable mOnQueued;
+
+	// Queue limits, and what the queue holds; guarded by mLock
+	private int mMaxQueuedFrames = DEFAULT_MAX_QUEUED_FRAMES;
+	private int mMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+	private int mMaxQueuedDatagrams = DEFAULT_MAX_QUEUED_DATAGRAMS;
+	private QueuePolicy mPolicy = QueuePolicy.DROP_TAIL;
+	private long mBlockTimeout = DEFAULT_BLOCK_TIMEOUT;
+	private int mBlockedSenders;
+
+	private volatile int mPeakQueuedFrames;
+	private volatile long mDroppedFrames;
+	private volatile long mDroppedBytes;
+
+	// Only the writer thread updates these
+	private volatile long mWrites;
+	private volatile long mFramesWritten;
+	private volatile long mBytesWritten;
+	private volatile long mWriteNanos;
+	private volatile int mMaxFramesPerWrite;
+	private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+
+	public FrameWriter(BufferPool pool) {
+		this(pool, DEFAULT_MAX_BATCH_BYTES, DEFAULT_LINGER_MICROS);
+	}
+
+	public FrameWriter(BufferPool pool, int maxBatchBytes, long lingerMicros) {
+		mPool = pool;
+		mMaxBatchBytes = maxBatchBytes;
+		mLingerMicros = lingerMicros;
+
+		for (int i = 0; i < BANDS; ++i) {
+			mBands[i] = new Band();
+		}
+		setWeights(DEFAULT_WEIGHTS[0], DEFAULT_WEIGHTS[1], DEFAULT_WEIGHTS[2]);
+	}
+
+	/**
+	 * Picks the band for an IPv6 traffic class from its class selector, the
+	 * top three bits: CS6 and CS7 are control, CS4 and CS5 high, CS1 low, and
+	 * everything else normal.
+	 */
+	public static int bandFor(int trafficClass) {
+		switch ((trafficClass >>> 5) & 7) {
+		case 6:
+		case 7:
+			return BAND_CONTROL;
+		case 4:
+		case 5:
+			return BAND_HIGH;
+		case 1:
+			return BAND_LOW;
+		default:
+			return BAND_NORMAL;
+		}
+	}
+
+	/**
+	 * Sets how the link is shared between the bands below BAND_CONTROL when
+	 * all of them have something to send.  Each gets its weight times
+	 * QUANTUM_BYTES per round.
+	 */
+	public void setWeights(int high, int normal, int low) {
+		synchronized (mLock) {
+			mBands[BAND_HIGH].quantum = Math.max(1, high) * QUANTUM_BYTES;
+			mBands[BAND_NORMAL].quantum = Math.max(1, normal) * QUANTUM_BYTES;
+			mBands[BAND_LOW].quantum = Math.max(1, low) * QUANTUM_BYTES;
+		}
+	}
+
+	/**
+	 * Sets how much may wait for the writer in each band, and what to do
+	 * with a frame that doesn't fit.  A single frame larger than maxBytes is
+	 * still accepted into an empty band.
+	 */
+	public void setQueueLimits(int maxFrames, int maxBytes, QueuePolicy policy) {
+		synchronized (mLock) {
+			mMaxQueuedFrames = maxFrames;
+			mMaxQueuedBytes = maxBytes;
+			mPolicy = policy;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets how many fragmented datagrams may wait for the writer.  Beyond
+	 * that the queue policy applies to whole datagrams.
+	 */
+	public void setMaxQueuedDatagrams(int maxDatagrams) {
+		synchronized (mLock) {
+			mMaxQueuedDatagrams = maxDatagrams;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets how long a caller waits for room under QueuePolicy.BLOCK before
+	 * the frame is dropped, in milliseconds.
+	 */
+	public void setBlockTimeout(long timeout) {
+		synchronized (mLock) {
+			mBlockTimeout = timeout;
+		}
+	}
+
+	/**
+	 * Sets something to run after each frame is queued.  Engines that don't
+	 * keep a thread in writeLoop() use it to learn there is work to do.
+	 */
+	public void setOnQueued(Runnable onQueued) {
+		mOnQueued = onQueued;
+	}
+
+	public QueuePolicy getQueuePolicy() {
+		synchronized (mLock) {
+			return mPolicy;
+		}
+	}
+
+	/**
+	 * Queues an encoded frame in BAND_NORMAL.
+	 * @see #enqueue(ByteBuffer, int)
+	 */
+	public boolean enqueue(ByteBuffer frame) {
+		return enqueue(frame, BAND_NORMAL);
+	}
+
+	/**
+	 * Queues an encoded frame, positioned at 0 with its limit at the end of
+	 * the frame.  The writer releases it to the pool once written.
+	 *
+	 * @param band one of the BAND_ constants
+	 * @return false if the writer has been closed or the queue policy threw
+	 *         the frame away, in which case it was released immediately
+	 */
+	public boolean enqueue(ByteBuffer frame, int band) {
+		int length = frame.limit();
+
+		synchronized (mLock) {
+			if (!mClosed && !fits(band, length)) {
+				switch (mPolicy) {
+				case DROP_OLDEST:
+					Band queue = mBands[band];
+					while (!fits(band, length) && !queue.frames.isEmpty()) {
+						ByteBuffer oldest = queue.frames.poll();
+						queue.bytes -= oldest.limit();
+						drop(oldest);
+					}
+					break;
+				case BLOCK:
+					awaitRoom(false, band, length);
+					break;
+				default:
+					break;
+				}
+			}
+
+			if (mClosed) {
+				mPool.release(frame);
+				return false;
+			}
+			if (!fits(band, length)) {
+				drop(frame);
+				return false;
+			}
+
+			mBands[band].frames.add(frame);
+			mBands[band].bytes += length;
+			int queued = countFrames();
+			if (queued > mPeakQueuedFrames) {
+				mPeakQueuedFrames = queued;
+			}
+			mLock.notifyAll();
+		}
+
+		queued();
+		return true;
+	}
+
+	/**
+	 * Queues a datagram in BAND_NORMAL.
+	 * @see #enqueue(Fragmenter, int)
+	 */
+	public boolean enqueue(Fragmenter datagram) {
+		return enqueue(datagram, BAND_NORMAL);
+	}
+
+	/**
+	 * Queues a datagram to be sent in fragments, taking turns with the
+	 * whole frames and any other datagrams in its band.
+	 *
+	 * @param band one of the BAND_ constants
+	 * @return false if the writer has been closed or the queue policy threw
+	 *         the datagram away
+	 */
+	public boolean enqueue(Fragmenter datagram, int band) {
+		synchronized (mLock) {
+			if (!mClosed && !fitsDatagram(band)) {
+				switch (mPolicy) {
+				case DROP_OLDEST:
+					Fragmenter oldest = mBands[band].datagrams.poll();
+					mDroppedFrames++;
+					mDroppedBytes += oldest.getRemaining();
+					break;
+				case BLOCK:
+					awaitRoom(true, band, 0);
+					break;
+				default:
+					break;
+				}
+			}
+
+			if (mClosed) {
+				return false;
+			}
+			if (!fitsDatagram(band)) {
+				mDroppedFrames++;
+				mDroppedBytes += datagram.getRemaining();
+				return false;
+			}
+
+			mBands[band].datagrams.add(datagram);
+			mLock.notifyAll();
+		}
+
+		queued();
+		return true;
+	}
+
+	/** Whether a frame of the given length may join a band; hold mLock */
+	private boolean fits(int band, int length) {
+		Band queue = mBands[band];
+		return queue.frames.isEmpty()
+				|| (queue.frames.size() < mMaxQueuedFrames && queue.bytes + length <= mMaxQueuedBytes);
+	}
+
+	/** Whether another fragmented datagram may join a band; hold mLock */
+	private boolean fitsDatagram(int band) {
+		return mBands[band].datagrams.size() < Math.max(1, mMaxQueuedDatagrams);
+	}
+
+	/** Whole frames queued in every band; hold mLock */
+	private int countFrames() {
+		int n = 0;
+		for (Band band : mBands) {
+			n += band.frames.size();
+		}
+		return n;
+	}
+
+	/** Waits for room under QueuePolicy.BLOCK, up to the block timeout; hold mLock */
+	private void awaitRoom(boolean datagram, int band, int length) {
+		long deadline = System.currentTimeMillis() + mBlockTimeout;
+		++mBlockedSenders;
+		try {
+			while (!mClosed && !(datagram ? fitsDatagram(band) : fits(band, length))) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					break;
+				}
+				mLock.wait(wait);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			--mBlockedSenders;
+		}
+	}
+
+	/** Counts and releases a frame the queue policy threw away; hold mLock */
+	private void drop(ByteBuffer frame) {
+		mDroppedFrames++;
+		mDroppedBytes += frame.limit();
+		mPool.release(frame);
+	}
+
+	private void queued() {
+		Runnable onQueued = mOnQueued;
+		if (onQueued != null) {
+			onQueued.run();
+		}
+	}
+
+	/**
+	 * Takes the next frame to write: control first, then the other bands by
+	 * deficit round robin; hold mLock.
+	 *
+	 * @return the frame, or null if nothing is queued
+	 */
+	private ByteBuffer take() {
+		ByteBuffer frame = null;
+		if (!mBands[BAND_CONTROL].isEmpty()) {
+			frame = mBands[BAND_CONTROL].take();
+		} else if (!isEmpty()) {
+			while (frame == null) {
+				Band band = mBands[mCurrentBand];
+				if (band.isEmpty()) {
+					band.deficit = 0;
+				} else {
+					if (!mQuantumGiven) {
+						band.deficit += band.quantum;
+						mQuantumGiven = true;
+					}
+					if (band.deficit >= band.headLength()) {
+						frame = band.take();
+						band.deficit -= frame.limit();
+						// Stay on this band until its deficit runs out
+						continue;
+					}
+				}
+				mCurrentBand = (mCurrentBand == BANDS - 1) ? BAND_CONTROL + 1 : mCurrentBand + 1;
+				mQuantumGiven = false;
+			}
+		}
+
+		if (frame != null && mBlockedSenders > 0) {
+			mLock.notifyAll();
+		}
+		return frame;
+	}
+
+	private boolean isEmpty() {
+		for (Band band : mBands) {
+			if (!band.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes frames to out until close() is called.  Run this on the
+	 * connection's writer thread.
+	 *
+	 * @throws IOException when the stream fails; the writer is closed and all
+	 *         queued frames are released
+	 */
+	public void writeLoop(OutputStream out) throws IOException {
+		mOut = out;
+		ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+		// A frame that did not fit the last batch
+		ByteBuffer carried = null;
+		try {
+			while (true) {
+				ByteBuffer first = carried;
+				carried = null;
+				if (first == null) {
+					synchronized (mLock) {
+						while (!mClosed && isEmpty()) {
+							try {
+								mLock.wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						if (mClosed) {
+							return;
+						}
+						first = take();
+					}
+				}
+
+				batch.add(first);
+				int bytes = first.limit();
+				long deadline = System.nanoTime() + mLingerMicros * 1000;
+
+				while (bytes < mMaxBatchBytes) {
+					ByteBuffer next;
+					synchronized (mLock) {
+						long wait = deadline - System.nanoTime();
+						while (!mClosed && isEmpty() && wait > 0) {
+							try {
+								mLock.wait(wait / 1000000, (int) (wait % 1000000));
+							} catch (InterruptedException e) {
+								break;
+							}
+							wait = deadline - System.nanoTime();
+						}
+						if (mClosed) {
+							break;
+						}
+						next = take();
+					}
+					if (next == null) {
+						break;
+					}
+					if (bytes + next.limit() > mMaxBatchBytes) {
+						carried = next;
+						break;
+					}
+					batch.add(next);
+					bytes += next.limit();
+				}
+
+				write(batch, bytes);
+				batch.clear();
+				if (mClosed) {
+					return;
+				}
+			}
+		} finally {
+			for (ByteBuffer b : batch) {
+				mPool.release(b);
+			}
+			if (carried != null) {
+				mPool.release(carried);
+			}
+			close();
+		}
+	}
+
+	/**
+	 * Writes out everything queued right now, in batches of up to
+	 * maxBatchBytes, without waiting for more.  For engines that share a
+	 * thread between connections; only one thread may drain at a time.
+	 *
+	 * @return the number of frames written
+	 * @throws IOException when the stream fails; the writer is closed and all
+	 *         queued frames are released
+	 */
+	public int drain(OutputStream out) throws IOException {
+		mOut = out;
+		ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+		int frames = 0;
+
+		ByteBuffer next;
+		synchronized (mLock) {
+			next = take();
+		}
+		try {
+			while (next != null) {
+				int bytes = 0;
+				do {
+					batch.add(next);
+					bytes += next.limit();
+					synchronized (mLock) {
+						next = take();
+					}
+				} while (next != null && bytes + next.limit() <= mMaxBatchBytes);
+
+				write(batch, bytes);
+				frames += batch.size();
+				batch.clear();
+			}
+		} catch (IOException e) {
+			for (ByteBuffer b : batch) {
+				mPool.release(b);
+			}
+			if (next != null) {
+				mPool.release(next);
+			}
+			close();
+			throw e;
+		}
+		return frames;
+	}
+
+	/**
+	 * Stops the writer.  Frames that have not been written yet are dropped;
+	 * a fragmented datagram counts as one frame.
+	 *
+	 * @return the number of frames dropped
+	 */
+	public int close() {
+		synchronized (mLock) {
+			mClosed = true;
+			int dropped = 0;
+			for (Band band : mBands) {
+				dropped += band.frames.size() + band.datagrams.size();
+				for (ByteBuffer b : band.frames) {
+					mPool.release(b);
+				}
+				band.frames.clear();
+				band.datagrams.clear();
+				band.bytes = 0;
+			}
+			mLock.notifyAll();
+			return dropped;
+		}
+	}
+
+	/** Number of whole frames waiting to be written */
+	public int getQueuedFrames() {
+		synchronized (mLock) {
+			return countFrames();
+		}
+	}
+
+	/** Number of whole frames waiting to be written in each band */
+	public int[] getQueuedFramesPerBand() {
+		synchronized (mLock) {
+			int[] out = new int[BANDS];
+			for (int i = 0; i < BANDS; ++i) {
+				out[i] = mBands[i].frames.size();
+			}
+			return out;
+		}
+	}
+
+	/** Number of encoded bytes waiting to be written, not counting datagrams */
+	public int getQueuedBytes() {
+		synchronized (mLock) {
+			int n = 0;
+			for (Band band : mBands) {
+				n += band.bytes;
+			}
+			return n;
+		}
+	}
+
+	/** Number of fragmented datagrams waiting to be written */
+	public int getQueuedDatagrams() {
+		synchronized (mLock) {
+			int n = 0;
+			for (Band band : mBands) {
+				n += band.datagrams.size();
+			}
+			return n;
+		}
+	}
+
+	/** Most frames that have ever waited at once */
+	public int getPeakQueuedFrames() {
+		return mPeakQueuedFrames;
+	}
+
+	/** Number of frames and datagrams the queue policy threw away */
+	public long getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/** Number of encoded bytes the queue policy threw away */
+	public long getDroppedBytes() {
+		return mDroppedBytes;
+	}
+
+	public long getWrites() {
+		return mWrites;
+	}
+
+	public long getFramesWritten() {
+		return mFramesWritten;
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/**
+	 * Time spent in write() and flush().  Over a radio link that blocks
+	 * while the data goes out, it roughly measures the airtime used.
+	 */
+	public long getWriteNanos() {
+		return mWriteNanos;
+	}
+
+	public int getMaxFramesPerWrite() {
+		return mMaxFramesPerWrite;
+	}
+
+	/**
+	 * Gets how many writes carried 1, 2-3, 4-7, 8-15, 16-31 and 32 or more
+	 * frames.
+	 */
+	public long[] getFramesPerWriteHistogram() {
+		synchronized (mHistogram) {
+			return mHistogram.clone();
+		}
+	}
+
+	private void write(ArrayList<ByteBuffer> batch, int bytes) throws IOException {
+		int frames = batch.size();
+		long start = System.nanoTime();
+
+		if (frames == 1) {
+			ByteBuffer frame = batch.get(0);
+			mOut.write(frame.array(), 0, frame.limit());
+		} else {
+			ByteBuffer gathered = mPool.acquire(bytes);
+			byte[] dst = gathered.array();
+			int pos = 0;
+			for (ByteBuffer frame : batch) {
+				System.arraycopy(frame.array(), 0, dst, pos, frame.limit());
+				pos += frame.limit();
+			}
+			try {
+				mOut.write(dst, 0, pos);
+			} finally {
+				mPool.release(gathered);
+			}
+		}
+		mOut.flush();
+		mWriteNanos += System.nanoTime() - start;
+
+		for (ByteBuffer frame : batch) {
+			mPool.release(frame);
+		}
+
+		mWrites++;
+		mFramesWritten += frames;
+		mBytesWritten += bytes;
+		if (frames > mMaxFramesPerWrite) {
+			mMaxFramesPerWrite = frames;
+		}
+		int bucket = 31 - Integer.numberOfLeadingZeros(frames);
+		synchronized (mHistogram) {
+			mHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+		}
+	}
+
+	/**
+	 * One priority band: its whole frames, and its datagrams going out in
+	 * fragments.  Guarded by the writer's lock.
+	 */
+	private static class Band {
+		final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+		final ArrayDeque<Fragmenter> datagrams = new ArrayDeque<Fragmenter>();
+		/** Encoded bytes in frames */
+		int bytes;
+		/** Whether the next turn goes to a datagram rather than a whole frame */
+		boolean datagramTurn;
+		int quantum;
+		int deficit;
+
+		boolean isEmpty() {
+			return frames.isEmpty() && datagrams.isEmpty();
+		}
+
+		private boolean datagramNext() {
+			return (datagramTurn || frames.isEmpty()) && !datagrams.isEmpty();
+		}
+
+		/** About how long the frame take() would return is */
+		int headLength() {
+			return datagramNext() ? datagrams.peek().getNextLength() : frames.peek().limit();
+		}
+
+		/** Takes the next frame, taking turns between whole frames and each datagram */
+		ByteBuffer take() {
+			if (datagramNext()) {
+				Fragmenter datagram = datagrams.poll();
+				ByteBuffer frame = datagram.next();
+				if (datagram.hasNext()) {
+					// To the back of the line, behind any other datagrams
+					datagrams.add(datagram);
+				}
+				datagramTurn = false;
+				return frame;
+			}
+
+			ByteBuffer frame = frames.poll();
+			bytes -= frame.limit();
+			datagramTurn = true;
+			return frame;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package ec.nem.bluenet.net.link;
+
+/**
+ * How frames are delimited on the byte stream to a neighbor.  Each frame
+ * starts with a byte that says which framing it uses, so a receiver reads
+ * any mix of them; a sender only uses one the neighbor has advertised.
+ */
+public enum Framing {
+	/** PPP in HDLC-like framing; the size of a frame depends on its contents */
+	PPP,
+	/** A length header, so the receiver copies frames without looking at them */
+	LENGTH,
+	/** Consistent overhead byte stuffing: at most one extra byte in 254 */
+	COBS
+}
@@ -0,0 +1,49 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Services the connections to our neighbors: writes the frames queued for
+ * each one and hands up whatever bytes arrive.<br>
+ * <br>
+ *
+ * How many threads that takes is up to the engine.  ThreadIoEngine gives
+ * every connection a reader and a writer thread, while PollingIoEngine
+ * shares a fixed set of threads between all of them.
+ */
+public interface IoEngine {
+	/**
+	 * One connection, as an engine sees it.
+	 */
+	public interface Channel {
+		InputStream getInputStream();
+
+		OutputStream getOutputStream();
+
+		/** Holds the frames waiting to be written to this connection */
+		FrameWriter getWriter();
+
+		/**
+		 * Called with bytes read from the connection.  Calls for one channel
+		 * never overlap, and the data is only valid during the call.
+		 */
+		void onReceive(byte[] data, int offset, int length);
+
+		/**
+		 * Called when reading or writing fails, or the other end closes the
+		 * connection.  May be called more than once.
+		 */
+		void onClosed(IOException e);
+	}
+
+	/** Starts servicing a connection */
+	void register(Channel channel);
+
+	/** Stops servicing a connection; the caller closes it */
+	void unregister(Channel channel);
+
+	/** Stops servicing every connection and lets the engine's threads go */
+	void shutdown();
+}
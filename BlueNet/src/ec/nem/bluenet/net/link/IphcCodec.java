@@ -0,0 +1,346 @@
+package ec.nem.bluenet.net.link;
+
+import ec.nem.bluenet.net.IPv6Header;
+
+/**
+ * Compresses the 40 byte IPv6 header for one hop, in the spirit of
+ * 6LoWPAN IPHC (RFC 6282).<br>
+ * <br>
+ *
+ * BlueNet addresses are always fe80:: followed by the 6 byte MAC, and the
+ * header fields are nearly always the same few values, so most of the
+ * header can be rebuilt from the link addresses on either end of the hop.
+ * A compressed header is two bytes of modes followed by whatever fields
+ * couldn't be elided, in header order:
+ *
+ * <pre>
+ *   byte 0: HF(2) PL(2) NH(2) HL(2)
+ *   byte 1: SAM(2) DAM(2) 0000
+ *
+ *   HF   00 version, traffic class and flow label inline (4 bytes)
+ *        01 version 6, flow label 0, traffic class inline (1 byte)
+ *        10 version 6, traffic class 0, flow label 0
+ *        11 all four bytes zero
+ *   PL   00 payload length inline (2 bytes)
+ *        01 payload length is everything after the header
+ *        10 payload length 0
+ *   NH   00 next header inline (1 byte), 01 NH_UDP, 10 NH_ROUTING
+ *   HL   00 hop limit inline (1 byte), 01 0, 10 64, 11 255
+ *   SAM/DAM
+ *        00 address inline (16 bytes)
+ *        01 fe80::/80 prefix elided, MAC inline (6 bytes)
+ *        10 unspecified address ::
+ *        11 fe80:: plus the MAC of the link sender (SAM) or receiver (DAM)
+ * </pre>
+ *
+ * The header fields are rebuilt exactly, so a header this stack leaves
+ * partly unset (version 0, payload length 0) survives the hop unchanged.
+ */
+public final class IphcCodec {
+	/** Length of a full IPv6 header */
+	public static final int HEADER_LENGTH = 40;
+	/** Length of the longest compressed header */
+	public static final int MAX_COMPRESSED_LENGTH = 2 + 4 + 2 + 1 + 1 + 16 + 16;
+
+	private static final int MAC_LENGTH = 6;
+	private static final int PREFIX_LENGTH = 16 - MAC_LENGTH;
+
+	private static final int INLINE = 0;
+	private static final int HF_TC_ONLY = 1;
+	private static final int HF_V6 = 2;
+	private static final int HF_ZERO = 3;
+	private static final int PL_DERIVED = 1;
+	private static final int PL_ZERO = 2;
+	private static final int NH_UDP = 1;
+	private static final int NH_ROUTING = 2;
+	private static final int HL_0 = 1;
+	private static final int HL_64 = 2;
+	private static final int HL_255 = 3;
+	private static final int AM_MAC = 1;
+	private static final int AM_UNSPECIFIED = 2;
+	private static final int AM_LINK = 3;
+
+	private IphcCodec() {}
+
+	/**
+	 * Compresses a header for the hop from linkSource to linkDestination.
+	 *
+	 * @param headerFields the first 8 bytes of the header
+	 * @param source the 16 byte source address
+	 * @param destination the 16 byte destination address
+	 * @param linkSource MAC of the node sending this hop, or null if unknown
+	 * @param linkDestination MAC of the node receiving this hop, or null
+	 * @param payloadLength number of bytes that will follow the header
+	 * @return the compressed header, or null if it would be no shorter
+	 */
+	public static byte[] compress(byte[] headerFields, byte[] source, byte[] destination,
+			byte[] linkSource, byte[] linkDestination, int payloadLength) {
+		byte[] out = new byte[MAX_COMPRESSED_LENGTH];
+		int pos = 2;
+
+		int hf;
+		int v = (headerFields[0] & 0xF0) >>> 4;
+		int tc = ((headerFields[0] & 0x0F) << 4) | ((headerFields[1] & 0xF0) >>> 4);
+		boolean noFlow = (headerFields[1] & 0x0F) == 0 && headerFields[2] == 0 && headerFields[3] == 0;
+		if (v == 0 && tc == 0 && noFlow) {
+			hf = HF_ZERO;
+		} else if (v == 6 && tc == 0 && noFlow) {
+			hf = HF_V6;
+		} else if (v == 6 && noFlow) {
+			hf = HF_TC_ONLY;
+			out[pos++] = (byte) tc;
+		} else {
+			hf = INLINE;
+			System.arraycopy(headerFields, 0, out, pos, 4);
+			pos += 4;
+		}
+
+		int pl;
+		int length = ((headerFields[4] & 0xFF) << 8) | (headerFields[5] & 0xFF);
+		if (length == 0) {
+			pl = PL_ZERO;
+		} else if (length == payloadLength) {
+			pl = PL_DERIVED;
+		} else {
+			pl = INLINE;
+			out[pos++] = headerFields[4];
+			out[pos++] = headerFields[5];
+		}
+
+		int nh;
+		int next = headerFields[6] & 0xFF;
+		if (next == IPv6Header.NH_UDP) {
+			nh = NH_UDP;
+		} else if (next == IPv6Header.NH_ROUTING) {
+			nh = NH_ROUTING;
+		} else {
+			nh = INLINE;
+			out[pos++] = headerFields[6];
+		}
+
+		int hl;
+		int hops = headerFields[7] & 0xFF;
+		if (hops == 0) {
+			hl = HL_0;
+		} else if (hops == 64) {
+			hl = HL_64;
+		} else if (hops == 255) {
+			hl = HL_255;
+		} else {
+			hl = INLINE;
+			out[pos++] = headerFields[7];
+		}
+
+		int sam = addressMode(source, linkSource);
+		pos = writeAddress(sam, source, out, pos);
+		int dam = addressMode(destination, linkDestination);
+		pos = writeAddress(dam, destination, out, pos);
+
+		if (pos >= HEADER_LENGTH) {
+			return null;
+		}
+
+		out[0] = (byte) ((hf << 6) | (pl << 4) | (nh << 2) | hl);
+		out[1] = (byte) ((sam << 6) | (dam << 4));
+
+		byte[] header = new byte[pos];
+		System.arraycopy(out, 0, header, 0, pos);
+		return header;
+	}
+
+	/**
+	 * Rebuilds a header compressed by compress().
+	 *
+	 * @param in holds the compressed header followed by the payload
+	 * @param offset where the compressed header starts
+	 * @param length number of bytes in the header and payload together
+	 * @param linkSource MAC of the node that sent this hop
+	 * @param linkDestination MAC of the node that received this hop
+	 * @param header filled in with the full header
+	 * @return the length of the compressed header, or -1 if it is malformed
+	 */
+	public static int decompress(byte[] in, int offset, int length,
+			byte[] linkSource, byte[] linkDestination, IPv6Header header) {
+		if (length < 2) {
+			return -1;
+		}
+		int end = offset + length;
+		int hf = (in[offset] >>> 6) & 3;
+		int pl = (in[offset] >>> 4) & 3;
+		int nh = (in[offset] >>> 2) & 3;
+		int hl = in[offset] & 3;
+		int sam = (in[offset + 1] >>> 6) & 3;
+		int dam = (in[offset + 1] >>> 4) & 3;
+		int pos = offset + 2;
+
+		byte[] fields = header.headerFields;
+		int need = (hf == INLINE ? 4 : hf == HF_TC_ONLY ? 1 : 0)
+				+ (pl == INLINE ? 2 : 0)
+				+ (nh == INLINE ? 1 : 0)
+				+ (hl == INLINE ? 1 : 0)
+				+ addressLength(sam) + addressLength(dam);
+		if (pl == 3 || nh == 3 || pos + need > end) {
+			return -1;
+		}
+		int payloadOffset = pos + need;
+
+		switch (hf) {
+		case INLINE:
+			System.arraycopy(in, pos, fields, 0, 4);
+			pos += 4;
+			break;
+		case HF_TC_ONLY:
+			int tc = in[pos++] & 0xFF;
+			fields[0] = (byte) (0x60 | (tc >>> 4));
+			fields[1] = (byte) (tc << 4);
+			fields[2] = 0;
+			fields[3] = 0;
+			break;
+		case HF_V6:
+			fields[0] = 0x60;
+			fields[1] = 0;
+			fields[2] = 0;
+			fields[3] = 0;
+			break;
+		default:
+			fields[0] = 0;
+			fields[1] = 0;
+			fields[2] = 0;
+			fields[3] = 0;
+			break;
+		}
+
+		switch (pl) {
+		case INLINE:
+			fields[4] = in[pos++];
+			fields[5] = in[pos++];
+			break;
+		case PL_DERIVED:
+			int payloadLength = end - payloadOffset;
+			fields[4] = (byte) (payloadLength >>> 8);
+			fields[5] = (byte) payloadLength;
+			break;
+		default:
+			fields[4] = 0;
+			fields[5] = 0;
+			break;
+		}
+
+		switch (nh) {
+		case INLINE:
+			fields[6] = in[pos++];
+			break;
+		case NH_UDP:
+			fields[6] = IPv6Header.NH_UDP;
+			break;
+		default:
+			fields[6] = IPv6Header.NH_ROUTING;
+			break;
+		}
+
+		switch (hl) {
+		case INLINE:
+			fields[7] = in[pos++];
+			break;
+		case HL_0:
+			fields[7] = 0;
+			break;
+		case HL_64:
+			fields[7] = 64;
+			break;
+		default:
+			fields[7] = (byte) 255;
+			break;
+		}
+
+		pos = readAddress(sam, in, pos, linkSource, header.sourceAddress);
+		if (pos < 0) {
+			return -1;
+		}
+		pos = readAddress(dam, in, pos, linkDestination, header.destinationAddress);
+		if (pos < 0) {
+			return -1;
+		}
+		return pos - offset;
+	}
+
+	private static int addressMode(byte[] address, byte[] link) {
+		for (int i = 0; i < 16; ++i) {
+			if (address[i] != 0) {
+				if (!isLinkLocal(address)) {
+					return INLINE;
+				}
+				if (link != null && matchesMac(address, link)) {
+					return AM_LINK;
+				}
+				return AM_MAC;
+			}
+		}
+		return AM_UNSPECIFIED;
+	}
+
+	/** Whether the address is fe80:: followed by a MAC, as Node.getIPAddress() makes them */
+	private static boolean isLinkLocal(byte[] address) {
+		if (address[0] != (byte) 0xFE || address[1] != (byte) 0x80) {
+			return false;
+		}
+		for (int i = 2; i < PREFIX_LENGTH; ++i) {
+			if (address[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matchesMac(byte[] address, byte[] mac) {
+		for (int i = 0; i < MAC_LENGTH; ++i) {
+			if (address[PREFIX_LENGTH + i] != mac[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int addressLength(int mode) {
+		return mode == INLINE ? 16 : mode == AM_MAC ? MAC_LENGTH : 0;
+	}
+
+	private static int writeAddress(int mode, byte[] address, byte[] out, int pos) {
+		if (mode == INLINE) {
+			System.arraycopy(address, 0, out, pos, 16);
+			return pos + 16;
+		} else if (mode == AM_MAC) {
+			System.arraycopy(address, PREFIX_LENGTH, out, pos, MAC_LENGTH);
+			return pos + MAC_LENGTH;
+		}
+		return pos;
+	}
+
+	private static int readAddress(int mode, byte[] in, int pos, byte[] link, byte[] address) {
+		switch (mode) {
+		case INLINE:
+			System.arraycopy(in, pos, address, 0, 16);
+			return pos + 16;
+		case AM_UNSPECIFIED:
+			for (int i = 0; i < 16; ++i) {
+				address[i] = 0;
+			}
+			return pos;
+		default:
+			if (mode == AM_LINK && link == null) {
+				return -1;
+			}
+			address[0] = (byte) 0xFE;
+			address[1] = (byte) 0x80;
+			for (int i = 2; i < PREFIX_LENGTH; ++i) {
+				address[i] = 0;
+			}
+			if (mode == AM_MAC) {
+				System.arraycopy(in, pos, address, PREFIX_LENGTH, MAC_LENGTH);
+				return pos + MAC_LENGTH;
+			}
+			System.arraycopy(link, 0, address, PREFIX_LENGTH, MAC_LENGTH);
+			return pos;
+		}
+	}
+}
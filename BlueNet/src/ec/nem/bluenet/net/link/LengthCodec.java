@@ -0,0 +1,103 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes length-prefixed frames (Framing.LENGTH) straight into a pooled
+ * buffer.<br>
+ * <br>
+ *
+ * A frame is a MARKER byte, the length of the protocol field and data as
+ * 24 bits big-endian, then the protocol field and data as they are:
+ *
+ * <pre>
+ *   MARKER(1) length(3) protocol(2) data...
+ * </pre>
+ *
+ * Nothing is escaped, so a frame is always HEADER_LENGTH bytes longer than
+ * its contents and both ends move it with plain arraycopies.  The price is
+ * that a receiver which loses its place can't find the next frame by
+ * looking for a delimiter, which doesn't happen on RFCOMM or TCP.
+ */
+public class LengthCodec implements FrameCodec {
+	/** First byte of every length-prefixed frame */
+	public static final byte MARKER = 0x7f;
+	/** Bytes before the protocol field */
+	public static final int HEADER_LENGTH = 4;
+	/** Longest protocol field and data a header can describe */
+	public static final int MAX_LENGTH = 0xFFFFFF;
+
+	private final BufferPool mPool;
+
+	public LengthCodec() {
+		this(BufferPool.shared);
+	}
+
+	public LengthCodec(BufferPool pool) {
+		mPool = pool;
+	}
+
+	public ByteBuffer encode(short protocol, byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+
+		ByteBuffer out = mPool.acquire(encodedLength(length));
+		byte[] dst = out.array();
+		int pos = begin(dst, protocol, length);
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, dst, pos, part.length);
+			pos += part.length;
+		}
+
+		out.limit(pos);
+		return out;
+	}
+
+	public ByteBuffer encode(short protocol, byte[] data, int offset, int length) {
+		ByteBuffer out = mPool.acquire(encodedLength(length));
+		byte[] dst = out.array();
+		int pos = begin(dst, protocol, length);
+		System.arraycopy(data, offset, dst, pos, length);
+
+		out.limit(pos + length);
+		return out;
+	}
+
+	public ByteBuffer encode(short protocol, byte[] head, byte[] data, int offset, int length) {
+		ByteBuffer out = mPool.acquire(encodedLength(head.length + length));
+		byte[] dst = out.array();
+		int pos = begin(dst, protocol, head.length + length);
+		System.arraycopy(head, 0, dst, pos, head.length);
+		pos += head.length;
+		System.arraycopy(data, offset, dst, pos, length);
+
+		out.limit(pos + length);
+		return out;
+	}
+
+	public void release(ByteBuffer frame) {
+		mPool.release(frame);
+	}
+
+	/** Size of an encoded frame, which doesn't depend on the data */
+	public static int encodedLength(int dataLength) {
+		return HEADER_LENGTH + 2 + dataLength;
+	}
+
+	/** Writes the header and protocol field */
+	private static int begin(byte[] dst, short protocol, int dataLength) {
+		int length = 2 + dataLength;
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Frame too long: " + dataLength);
+		}
+		dst[0] = MARKER;
+		dst[1] = (byte) (length >> 16);
+		dst[2] = (byte) (length >> 8);
+		dst[3] = (byte) length;
+		dst[4] = (byte) (protocol >> 8);
+		dst[5] = (byte) protocol;
+		return HEADER_LENGTH + 2;
+	}
+}
@@ -0,0 +1,21 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to a single neighbor, as handed out by a
+ * {@link LinkTransport}.
+ */
+public interface LinkConnection {
+	/** Gets the MAC address of the peer at the other end */
+	public String getRemoteAddress();
+
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	/** Closes both directions.  Blocked reads and writes throw IOException. */
+	public void close() throws IOException;
+}
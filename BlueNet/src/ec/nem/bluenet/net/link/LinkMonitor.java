@@ -0,0 +1,184 @@
+package ec.nem.bluenet.net.link;
+
+/**
+ * Keeps watch on one connection to a neighbor with LCP Echo-Requests
+ * (RFC 1661, section 5.8).<br>
+ * <br>
+ *
+ * The link layer sends a probe every so often and the neighbor echoes it
+ * straight back in its control band.  Each reply gives a round trip time
+ * sample, smoothed as TCP does (RFC 6298): the RTT with a gain of 1/8 and
+ * its mean deviation, the jitter, with a gain of 1/4.  A probe still
+ * unanswered after the RTT plus four times the jitter, and never less than
+ * MIN_PROBE_TIMEOUT, counts as lost, and the loss rate is smoothed with a
+ * gain of 1/8.  Any frame at all from the neighbor shows the link is alive;
+ * the link layer gives up on it once nothing has been heard for its dead
+ * interval.<br>
+ * <br>
+ *
+ * <pre>
+ *   code(1) identifier(1) length(2) magic number(4)
+ * </pre>
+ *
+ * Thread safe: replies arrive on the engine's thread, while probes go out
+ * on the link layer's.  Times are from System.nanoTime().
+ */
+public class LinkMonitor {
+	/** PPP protocol number of the Link Control Protocol */
+	public static final short PROTOCOL_LCP = (short) 0xC021;
+	public static final int ECHO_REQUEST = 9;
+	public static final int ECHO_REPLY = 10;
+	/** Length of an echo packet; we send no data after the magic number */
+	public static final int ECHO_LENGTH = 8;
+
+	/** Least time a probe gets to come back before it counts as lost, in nanoseconds */
+	public static final long MIN_PROBE_TIMEOUT = 250 * 1000000L;
+	/** How long a probe gets before there is an RTT to go by, in nanoseconds */
+	public static final long INITIAL_PROBE_TIMEOUT = 1000 * 1000000L;
+
+	/** When each identifier was sent, if it is still outstanding */
+	private final long[] mSentAt = new long[256];
+	private final boolean[] mOutstanding = new boolean[256];
+	private int mNextId;
+
+	private long mRtt;
+	private long mJitter;
+	private double mLoss;
+	private long mProbesSent;
+	private long mProbesLost;
+	private long mReplies;
+
+	/** Set on every chunk received, without taking the lock */
+	private volatile long mLastHeard;
+
+	public LinkMonitor(long now) {
+		mLastHeard = now;
+	}
+
+	/**
+	 * Starts a probe, first counting any earlier ones that have run out of
+	 * time as lost.
+	 *
+	 * @return the data of the PROTOCOL_LCP frame to send
+	 */
+	public synchronized byte[] probe(long now) {
+		expire(now);
+
+		int id = mNextId;
+		mNextId = (mNextId + 1) & 0xFF;
+		if (mOutstanding[id]) {
+			// 256 probes out at once; the oldest has long since been lost
+			lost();
+		}
+		mSentAt[id] = now;
+		mOutstanding[id] = true;
+		mProbesSent++;
+
+		byte[] out = new byte[ECHO_LENGTH];
+		out[0] = (byte) ECHO_REQUEST;
+		out[1] = (byte) id;
+		out[3] = (byte) ECHO_LENGTH;
+		// The magic number is left 0, as RFC 1661 has it when none was negotiated
+		return out;
+	}
+
+	/** Counts probes that have been out too long as lost */
+	private void expire(long now) {
+		long timeout = getProbeTimeout();
+		for (int id = 0; id < mOutstanding.length; ++id) {
+			if (mOutstanding[id] && now - mSentAt[id] > timeout) {
+				mOutstanding[id] = false;
+				lost();
+			}
+		}
+	}
+
+	private void lost() {
+		mProbesLost++;
+		mLoss += (1 - mLoss) / 8;
+	}
+
+	/**
+	 * Builds the answer to an LCP packet from the neighbor.
+	 *
+	 * @return the data of the Echo-Reply to send, or null if the packet
+	 *         wasn't an Echo-Request
+	 */
+	public static byte[] reply(byte[] data, int offset, int length) {
+		if (length < ECHO_LENGTH || data[offset] != ECHO_REQUEST) {
+			return null;
+		}
+		byte[] out = new byte[length];
+		System.arraycopy(data, offset, out, 0, length);
+		out[0] = (byte) ECHO_REPLY;
+		return out;
+	}
+
+	/**
+	 * Takes an LCP packet from the neighbor that wasn't a request.  Echo
+	 * replies to probes still outstanding give RTT samples.
+	 */
+	public synchronized void receive(byte[] data, int offset, int length, long now) {
+		if (length < ECHO_LENGTH || data[offset] != ECHO_REPLY) {
+			return;
+		}
+		int id = data[offset + 1] & 0xFF;
+		if (!mOutstanding[id]) {
+			// Already counted lost, or not ours
+			return;
+		}
+		mOutstanding[id] = false;
+		mReplies++;
+		mLoss -= mLoss / 8;
+
+		long sample = now - mSentAt[id];
+		if (mReplies == 1) {
+			mRtt = sample;
+			mJitter = sample / 2;
+		} else {
+			mJitter += (Math.abs(sample - mRtt) - mJitter) / 4;
+			mRtt += (sample - mRtt) / 8;
+		}
+	}
+
+	/** Notes that something arrived from the neighbor */
+	public void heard(long now) {
+		mLastHeard = now;
+	}
+
+	/** When anything last arrived from the neighbor */
+	public long getLastHeard() {
+		return mLastHeard;
+	}
+
+	/** How long a probe has to come back before it counts as lost */
+	public synchronized long getProbeTimeout() {
+		if (mReplies == 0) {
+			return INITIAL_PROBE_TIMEOUT;
+		}
+		return Math.max(MIN_PROBE_TIMEOUT, mRtt + 4 * mJitter);
+	}
+
+	/** Smoothed round trip time, in nanoseconds, or 0 before the first reply */
+	public synchronized long getRtt() {
+		return mRtt;
+	}
+
+	/** Smoothed mean deviation of the round trip time, in nanoseconds */
+	public synchronized long getJitter() {
+		return mJitter;
+	}
+
+	/** Smoothed fraction of probes lost, from 0 to 1 */
+	public synchronized double getLoss() {
+		return mLoss;
+	}
+
+	public synchronized long getProbesSent() {
+		return mProbesSent;
+	}
+
+	public synchronized long getProbesLost() {
+		return mProbesLost;
+	}
+}
@@ -0,0 +1,139 @@
+package ec.nem.bluenet.net.link;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+/**
+ * A snapshot of the counters kept for the connection to one neighbor.
+ */
+public class LinkStats {
+	/** MAC address of the neighbor */
+	public String address;
+
+	/** Number of write() calls made on the connection */
+	public long writes;
+	/** Number of frames those writes carried */
+	public long framesWritten;
+	/** Number of encoded bytes those writes carried */
+	public long bytesWritten;
+	/** Most frames ever merged into one write */
+	public int maxFramesPerWrite;
+	/** Writes that carried 1, 2-3, 4-7, 8-15, 16-31 and 32+ frames */
+	public long[] framesPerWriteHistogram = new long[FrameWriter.HISTOGRAM_BUCKETS];
+	/** Frames waiting for the writer when the snapshot was taken */
+	public int queuedFrames;
+	/** Encoded bytes waiting for the writer when the snapshot was taken */
+	public int queuedBytes;
+	/** Of those, how many are in each FrameWriter band, control first */
+	public int[] queuedFramesPerBand = new int[FrameWriter.BANDS];
+	/** Most frames that have ever waited for the writer at once */
+	public int peakQueuedFrames;
+	/** Frames thrown away because the queue was full */
+	public long droppedFrames;
+	/** Encoded bytes thrown away because the queue was full */
+	public long droppedBytes;
+	/** Fragmented datagrams waiting for the writer when the snapshot was taken */
+	public int queuedDatagrams;
+	/** Fragmented datagrams received and put back together */
+	public long reassembledDatagrams;
+	/** Fragmented datagrams received but dropped for lack of room, time or fragments */
+	public long droppedReassemblies;
+	/** Frames sent with a compressed IPv6 header */
+	public long compressedFrames;
+	/** Frames sent with the full 40 byte IPv6 header */
+	public long fullHeaderFrames;
+	/** Header bytes compression kept off the air for UDP traffic */
+	public long udpHeaderBytesSaved;
+	/** Header bytes compression kept off the air for routing messages */
+	public long routingHeaderBytesSaved;
+	/** Whether datagrams to the neighbor are being Deflate compressed right now */
+	public boolean payloadCompression;
+	/** Bytes of the datagrams offered to the compressor */
+	public long payloadBytesIn;
+	/** What those datagrams took after compression, counting ones sent as they were */
+	public long payloadBytesOut;
+	/** Time spent compressing datagrams to the neighbor, in nanoseconds */
+	public long compressNanos;
+	/** Time spent inflating datagrams from the neighbor, in nanoseconds */
+	public long decompressNanos;
+	/** Whether datagrams to the neighbor go through ARQ */
+	public boolean arq;
+	/** ARQ's smoothed round trip time to the neighbor, in milliseconds */
+	public long arqSrtt;
+	/** ARQ's retransmission timeout, in milliseconds */
+	public long arqRto;
+	/** Frames ARQ keeps for resending */
+	public int arqWindow;
+	/** Frames waiting for an acknowledgement when the snapshot was taken */
+	public int arqUnacked;
+	/** Frames resent, including fast retransmits */
+	public long arqRetransmits;
+	/** Frames resent because later ones were acknowledged before them */
+	public long arqFastRetransmits;
+	/** Frames given up on, after too many resends or pushed out of the window */
+	public long arqAbandoned;
+	/** Copies of frames from the neighbor that we already had */
+	public long arqDuplicates;
+	/** How frames to the neighbor are framed right now */
+	public Framing framing = Framing.PPP;
+	/** Frames from the neighbor thrown away as aborted, malformed or too long */
+	public long badFrames;
+	/** Whether the neighbor is being probed */
+	public boolean keepalive;
+	/** Smoothed round trip time of probes, in microseconds */
+	public long rtt;
+	/** Smoothed mean deviation of the round trip time, in microseconds */
+	public long rttJitter;
+	/** Smoothed fraction of probes lost, from 0 to 1 */
+	public double loss;
+	/** Probes sent to the neighbor */
+	public long probesSent;
+	/** Probes that didn't come back in time */
+	public long probesLost;
+	/** How long since anything arrived from the neighbor, in milliseconds */
+	public long silence;
+	/**
+	 * Transit datagrams the link layer queued for the neighbor straight from
+	 * the receive buffer, not counting those it had to hand to the down thread
+	 */
+	public long cutThroughFrames;
+	/** Transit datagrams from the neighbor dropped at their hop limit */
+	public long expiredFrames;
+
+	/** Average number of frames merged into each write */
+	public double getFramesPerWrite() {
+		return writes == 0 ? 0 : (double) framesWritten / writes;
+	}
+
+	/** Compressed size over original size of what went through the compressor */
+	public double getCompressionRatio() {
+		return payloadBytesIn == 0 ? 1 : (double) payloadBytesOut / payloadBytesIn;
+	}
+
+	@Override
+	public String toString() {
+		return MessageFormat.format(
+				"LinkStats::{0} writes:{1} frames:{2} bytes:{3} frames/write:{4} max:{5} histogram:{6} queued:{7} ({8} bytes, peak {9}) dropped:{10} ({11} bytes)"
+				+ " compressed:{12}/{13} saved udp:{14} routing:{15}"
+				+ " datagrams queued:{16} reassembled:{17} dropped:{18} bands:{19}"
+				+ " deflate:{20} ratio:{21} cpu:{22}/{23} ns"
+				+ " arq:{24} srtt:{25} rto:{26} window:{27} unacked:{28} resent:{29} (fast {30}) abandoned:{31} dup:{32}"
+				+ " framing:{33} bad:{34}"
+				+ " keepalive:{35} rtt:{36} us jitter:{37} us loss:{38} probes:{39} lost:{40} silent:{41} ms"
+				+ " forwarded:{42} expired:{43}",
+				address, writes, framesWritten, bytesWritten,
+				getFramesPerWrite(), maxFramesPerWrite,
+				Arrays.toString(framesPerWriteHistogram), queuedFrames,
+				queuedBytes, peakQueuedFrames, droppedFrames, droppedBytes,
+				compressedFrames, compressedFrames + fullHeaderFrames,
+				udpHeaderBytesSaved, routingHeaderBytesSaved,
+				queuedDatagrams, reassembledDatagrams, droppedReassemblies,
+				Arrays.toString(queuedFramesPerBand),
+				payloadCompression, getCompressionRatio(), compressNanos, decompressNanos,
+				arq, arqSrtt, arqRto, arqWindow, arqUnacked, arqRetransmits,
+				arqFastRetransmits, arqAbandoned, arqDuplicates,
+				framing, badFrames,
+				keepalive, rtt, rttJitter, loss, probesSent, probesLost, silence,
+				cutThroughFrames, expiredFrames);
+	}
+}
@@ -0,0 +1,39 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Moves bytes between this device and its one-hop neighbors.<br>
+ * <br>
+ *
+ * The link layer only needs stream connections to and from peers named by
+ * a Bluetooth-style MAC address ("00:11:22:AA:BB:CC"), so RFCOMM is just one
+ * way to provide them.  The in-memory and TCP implementations let the rest
+ * of the stack run on a plain JVM without any radios.
+ */
+public interface LinkTransport {
+	/** Gets the MAC address that identifies this device on the mesh */
+	public String getLocalAddress();
+
+	/** Gets the addresses of the peers this device may connect to */
+	public List<String> getPairedAddresses();
+
+	/**
+	 * Opens a connection to the given peer.  This blocks until the
+	 * connection is up or has failed.
+	 */
+	public LinkConnection connect(String address) throws IOException;
+
+	/** Starts accepting connections from peers */
+	public void listen() throws IOException;
+
+	/**
+	 * Waits for a peer to connect to us.  Throws once close() has been
+	 * called.
+	 */
+	public LinkConnection accept() throws IOException;
+
+	/** Stops accepting connections.  Established connections are not affected. */
+	public void close();
+}
@@ -0,0 +1,280 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Links between stacks running in the same JVM, joined by in-memory pipes.<br>
+ * <br>
+ *
+ * Every transport belongs to a {@link Hub}, which plays the part of the
+ * radio: it knows which addresses are listening and which pairs of devices
+ * are paired, so a whole mesh topology can be built inside one process.
+ */
+public class PipeTransport implements LinkTransport {
+	/** Bytes buffered in each direction before a writer blocks */
+	public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+	/** Handed to accept() to wake it up when the transport is closed */
+	private static final LinkConnection CLOSED = new PipeConnection(null, null, null);
+
+	private final Hub mHub;
+	private final String mAddress;
+	private final BlockingQueue<LinkConnection> mIncoming = new LinkedBlockingQueue<LinkConnection>();
+	private volatile boolean mListening;
+
+	public PipeTransport(Hub hub, String address) {
+		mHub = hub;
+		mAddress = address;
+		hub.register(this);
+	}
+
+	public String getLocalAddress() {
+		return mAddress;
+	}
+
+	public List<String> getPairedAddresses() {
+		return mHub.getPaired(mAddress);
+	}
+
+	public LinkConnection connect(String address) throws IOException {
+		PipeTransport peer = mHub.lookup(address);
+		if (peer == null || !peer.mListening) {
+			throw new IOException("Nobody is listening at " + address);
+		}
+
+		Pipe toPeer = new Pipe(mHub.mPipeCapacity);
+		Pipe fromPeer = new Pipe(mHub.mPipeCapacity);
+		peer.mIncoming.add(new PipeConnection(mAddress, toPeer, fromPeer));
+		return new PipeConnection(address, fromPeer, toPeer);
+	}
+
+	public void listen() throws IOException {
+		mListening = true;
+	}
+
+	public LinkConnection accept() throws IOException {
+		LinkConnection c;
+		try {
+			c = mIncoming.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while accepting");
+		}
+		if (c == CLOSED) {
+			throw new IOException("Transport closed");
+		}
+		return c;
+	}
+
+	public void close() {
+		mListening = false;
+		mIncoming.add(CLOSED);
+	}
+
+	/**
+	 * The shared medium that PipeTransports connect through.
+	 */
+	public static class Hub {
+		private final Map<String, PipeTransport> mTransports = new HashMap<String, PipeTransport>();
+		private final Map<String, Set<String>> mPairs = new HashMap<String, Set<String>>();
+		private final int mPipeCapacity;
+
+		public Hub() {
+			this(DEFAULT_PIPE_CAPACITY);
+		}
+
+		public Hub(int pipeCapacity) {
+			mPipeCapacity = pipeCapacity;
+		}
+
+		/** Pairs two devices, so each shows up in the other's paired list */
+		public synchronized void pair(String a, String b) {
+			pairedWith(a).add(b);
+			pairedWith(b).add(a);
+		}
+
+		synchronized void register(PipeTransport t) {
+			mTransports.put(t.getLocalAddress(), t);
+		}
+
+		synchronized PipeTransport lookup(String address) {
+			return mTransports.get(address);
+		}
+
+		synchronized List<String> getPaired(String address) {
+			return new ArrayList<String>(pairedWith(address));
+		}
+
+		private Set<String> pairedWith(String address) {
+			Set<String> s = mPairs.get(address);
+			if (s == null) {
+				s = new HashSet<String>();
+				mPairs.put(address, s);
+			}
+			return s;
+		}
+	}
+
+	private static class PipeConnection implements LinkConnection {
+		private final String mRemoteAddress;
+		private final Pipe mIn;
+		private final Pipe mOut;
+		private final InputStream mInputStream;
+		private final OutputStream mOutputStream;
+
+		PipeConnection(String remoteAddress, Pipe in, Pipe out) {
+			mRemoteAddress = remoteAddress;
+			mIn = in;
+			mOut = out;
+
+			mInputStream = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return mIn.read(b, off, len);
+				}
+
+				@Override
+				public int available() {
+					return mIn.available();
+				}
+
+				@Override
+				public void close() {
+					mIn.closeReader();
+				}
+			};
+
+			mOutputStream = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					mOut.write(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					mOut.closeWriter();
+				}
+			};
+		}
+
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		public InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		public OutputStream getOutputStream() {
+			return mOutputStream;
+		}
+
+		public void close() {
+			mIn.closeReader();
+			mOut.closeWriter();
+		}
+	}
+
+	/**
+	 * A bounded, blocking byte ring buffer for one direction of a connection.
+	 */
+	private static class Pipe {
+		private final byte[] mBuffer;
+		private int mHead;
+		private int mCount;
+		private boolean mReaderClosed;
+		private boolean mWriterClosed;
+
+		Pipe(int capacity) {
+			mBuffer = new byte[capacity];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			while (mCount == 0) {
+				if (mReaderClosed) {
+					throw new IOException("Pipe closed");
+				}
+				if (mWriterClosed) {
+					return -1;
+				}
+				await();
+			}
+			if (mReaderClosed) {
+				throw new IOException("Pipe closed");
+			}
+
+			int n = Math.min(len, mCount);
+			int first = Math.min(n, mBuffer.length - mHead);
+			System.arraycopy(mBuffer, mHead, b, off, first);
+			System.arraycopy(mBuffer, 0, b, off + first, n - first);
+			mHead = (mHead + n) % mBuffer.length;
+			mCount -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				while (mCount == mBuffer.length && !mReaderClosed && !mWriterClosed) {
+					await();
+				}
+				if (mReaderClosed || mWriterClosed) {
+					throw new IOException("Pipe closed");
+				}
+
+				int tail = (mHead + mCount) % mBuffer.length;
+				int n = Math.min(len, mBuffer.length - mCount);
+				int first = Math.min(n, mBuffer.length - tail);
+				System.arraycopy(b, off, mBuffer, tail, first);
+				System.arraycopy(b, off + first, mBuffer, 0, n - first);
+				mCount += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized int available() {
+			return mCount;
+		}
+
+		synchronized void closeReader() {
+			mReaderClosed = true;
+			notifyAll();
+		}
+
+		synchronized void closeWriter() {
+			mWriterClosed = true;
+			notifyAll();
+		}
+
+		private void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted on pipe");
+			}
+		}
+	}
+}
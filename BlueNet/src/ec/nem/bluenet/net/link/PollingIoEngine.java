@@ -0,0 +1,181 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Services every connection from a fixed number of poller threads.<br>
+ * <br>
+ *
+ * RFCOMM sockets only come as blocking streams, so there is nothing like a
+ * selector to wait on.  Instead each poller owns a share of the connections
+ * and loops over them: it writes out whatever has been queued, then reads
+ * from any connection whose available() says there are bytes waiting.  A
+ * poller that found nothing to do parks, starting at MIN_IDLE_MICROS and
+ * backing off to maxIdleMicros; queuing a frame wakes it straight away.<br>
+ * <br>
+ *
+ * Some things to be aware of:
+ * <ul>
+ * <li>A connection whose writes block holds up the other connections on
+ * the same poller until the write goes through.</li>
+ * <li>available() doesn't report end of stream on every transport.  A peer
+ * that goes away while the link is idle is noticed when a write to it
+ * fails, or when the stream throws.</li>
+ * <li>Linger is ignored; each pass writes what is queued right then.</li>
+ * </ul>
+ */
+public class PollingIoEngine implements IoEngine {
+	/** Default number of poller threads */
+	public static final int DEFAULT_THREADS = 2;
+	/** Shortest time an idle poller parks for, in microseconds */
+	public static final long MIN_IDLE_MICROS = 50;
+	/** Default longest time an idle poller parks for, in microseconds */
+	public static final long DEFAULT_MAX_IDLE_MICROS = 2000;
+	/** Size of the buffer each poller reads into */
+	public static final int READ_BUFFER_SIZE = 4096;
+
+	private final Poller[] mPollers;
+	private final long mMaxIdleMicros;
+	private final AtomicInteger mNext = new AtomicInteger();
+	private final ConcurrentHashMap<Channel, Slot> mSlots = new ConcurrentHashMap<Channel, Slot>();
+
+	public PollingIoEngine() {
+		this(DEFAULT_THREADS, DEFAULT_MAX_IDLE_MICROS);
+	}
+
+	public PollingIoEngine(int threads, long maxIdleMicros) {
+		mMaxIdleMicros = maxIdleMicros;
+		mPollers = new Poller[threads];
+		for (int i = 0; i < threads; ++i) {
+			mPollers[i] = new Poller("IoPoller-" + i);
+			mPollers[i].start();
+		}
+	}
+
+	public void register(Channel channel) {
+		Poller poller = mPollers[(mNext.getAndIncrement() & 0x7fffffff) % mPollers.length];
+		Slot slot = new Slot(channel, poller);
+		mSlots.put(channel, slot);
+		poller.mSlots.add(slot);
+
+		channel.getWriter().setOnQueued(slot);
+		// Frames may have been queued before the connection came up
+		slot.run();
+	}
+
+	public void unregister(Channel channel) {
+		Slot slot = mSlots.remove(channel);
+		if (slot != null) {
+			slot.mClosed = true;
+			slot.mPoller.mSlots.remove(slot);
+			channel.getWriter().setOnQueued(null);
+		}
+	}
+
+	public void shutdown() {
+		for (Poller p : mPollers) {
+			p.mRunning = false;
+			LockSupport.unpark(p);
+		}
+	}
+
+	/**
+	 * A registered connection.  Running it marks the connection as having
+	 * frames to write and wakes its poller.
+	 */
+	private static class Slot implements Runnable {
+		final Channel mChannel;
+		final Poller mPoller;
+		final InputStream mIn;
+		final AtomicBoolean mReady = new AtomicBoolean();
+		volatile boolean mClosed;
+
+		Slot(Channel channel, Poller poller) {
+			mChannel = channel;
+			mPoller = poller;
+			mIn = channel.getInputStream();
+		}
+
+		public void run() {
+			if (mReady.compareAndSet(false, true)) {
+				mPoller.mReady.add(this);
+				LockSupport.unpark(mPoller);
+			}
+		}
+	}
+
+	private class Poller extends Thread {
+		final CopyOnWriteArrayList<Slot> mSlots = new CopyOnWriteArrayList<Slot>();
+		final ConcurrentLinkedQueue<Slot> mReady = new ConcurrentLinkedQueue<Slot>();
+		volatile boolean mRunning = true;
+
+		Poller(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			long idle = 0;
+
+			while (mRunning) {
+				boolean busy = false;
+
+				Slot slot;
+				while ((slot = mReady.poll()) != null) {
+					// Clear first, so a frame queued during the write wakes us again
+					slot.mReady.set(false);
+					if (slot.mClosed) {
+						continue;
+					}
+					try {
+						if (slot.mChannel.getWriter().drain(slot.mChannel.getOutputStream()) > 0) {
+							busy = true;
+						}
+					} catch (IOException e) {
+						fail(slot, e);
+					}
+				}
+
+				for (Slot s : mSlots) {
+					try {
+						int n = s.mIn.available();
+						if (n > 0) {
+							n = s.mIn.read(buffer, 0, Math.min(n, buffer.length));
+							if (n < 0) {
+								throw new EOFException("Connection closed by peer");
+							}
+							s.mChannel.onReceive(buffer, 0, n);
+							busy = true;
+						}
+					} catch (IOException e) {
+						fail(s, e);
+					} catch (RuntimeException e) {
+						fail(s, new IOException(e.toString()));
+					}
+				}
+
+				if (busy) {
+					idle = 0;
+				} else {
+					idle = (idle == 0) ? MIN_IDLE_MICROS : Math.min(idle * 2, mMaxIdleMicros);
+					LockSupport.parkNanos(this, idle * 1000);
+				}
+			}
+		}
+
+		private void fail(Slot slot, IOException e) {
+			unregister(slot.mChannel);
+			slot.mChannel.onClosed(e);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames using PPP in HDLC-like framing (RFC 1662) straight into a
+ * pooled buffer, and unescapes received frames in place.<br>
+ * <br>
+ *
+ * The frame is wrapped in 0x7e flags, and any 0x7e or 0x7d in the protocol
+ * field or data is sent as 0x7d followed by the byte XOR 0x20.  Runs of bytes
+ * that need no escaping are block copied, so the common case costs one scan
+ * and one arraycopy per input array, with no intermediate streams.<br>
+ * <br>
+ *
+ * This is Framing.PPP, which every node understands.
+ */
+public class PppCodec implements FrameCodec {
+	public static final byte FLAG = 0x7e;
+	public static final byte ESCAPE = 0x7d;
+	public static final int ESCAPE_XOR = 0x20;
+
+	private final BufferPool mPool;
+
+	public PppCodec() {
+		this(BufferPool.shared);
+	}
+
+	public PppCodec(BufferPool pool) {
+		mPool = pool;
+	}
+
+	/**
+	 * Encodes a frame whose data is the concatenation of parts.
+	 *
+	 * @return a buffer from the pool, positioned at 0 with its limit at the
+	 *         end of the frame.  Hand it back with {@link #release(ByteBuffer)}
+	 *         once it has been written.
+	 */
+	public ByteBuffer encode(short protocol, byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+
+		ByteBuffer out = mPool.acquire(maxEncodedLength(length));
+		byte[] dst = out.array();
+		int pos = begin(dst, protocol);
+		for (byte[] part : parts) {
+			pos = escape(part, 0, part.length, dst, pos);
+		}
+		dst[pos++] = FLAG;
+
+		out.limit(pos);
+		return out;
+	}
+
+	/**
+	 * Encodes a frame whose data is the given slice of an array.
+	 */
+	public ByteBuffer encode(short protocol, byte[] data, int offset, int length) {
+		ByteBuffer out = mPool.acquire(maxEncodedLength(length));
+		byte[] dst = out.array();
+		int pos = begin(dst, protocol);
+		pos = escape(data, offset, length, dst, pos);
+		dst[pos++] = FLAG;
+
+		out.limit(pos);
+		return out;
+	}
+
+	/**
+	 * Encodes a frame whose data is head followed by the given slice of an
+	 * array.
+	 */
+	public ByteBuffer encode(short protocol, byte[] head, byte[] data, int offset, int length) {
+		ByteBuffer out = mPool.acquire(maxEncodedLength(head.length + length));
+		byte[] dst = out.array();
+		int pos = begin(dst, protocol);
+		pos = escape(head, 0, head.length, dst, pos);
+		pos = escape(data, offset, length, dst, pos);
+		dst[pos++] = FLAG;
+
+		out.limit(pos);
+		return out;
+	}
+
+	/** Returns a buffer obtained from encode() to the pool */
+	public void release(ByteBuffer frame) {
+		mPool.release(frame);
+	}
+
+	/**
+	 * Worst case size of an encoded frame: two flags, plus every protocol and
+	 * data byte escaped.
+	 */
+	public static int maxEncodedLength(int dataLength) {
+		return 2 + 2 * (2 + dataLength);
+	}
+
+	/** Writes the opening flag and the escaped protocol field */
+	private static int begin(byte[] dst, short protocol) {
+		int pos = 0;
+		dst[pos++] = FLAG;
+		pos = escapeByte((byte) (protocol >> 8), dst, pos);
+		pos = escapeByte((byte) protocol, dst, pos);
+		return pos;
+	}
+
+	private static int escapeByte(byte b, byte[] dst, int pos) {
+		if (b == FLAG || b == ESCAPE) {
+			dst[pos++] = ESCAPE;
+			dst[pos++] = (byte) (b ^ ESCAPE_XOR);
+		} else {
+			dst[pos++] = b;
+		}
+		return pos;
+	}
+
+	/**
+	 * Escapes src[offset, offset + length) into dst starting at pos.
+	 *
+	 * @return the index in dst just past the escaped bytes
+	 */
+	public static int escape(byte[] src, int offset, int length, byte[] dst, int pos) {
+		int end = offset + length;
+		int run = offset;
+
+		for (int i = offset; i < end; ++i) {
+			byte b = src[i];
+			if (b == FLAG || b == ESCAPE) {
+				int n = i - run;
+				System.arraycopy(src, run, dst, pos, n);
+				pos += n;
+				dst[pos++] = ESCAPE;
+				dst[pos++] = (byte) (b ^ ESCAPE_XOR);
+				run = i + 1;
+			}
+		}
+
+		int n = end - run;
+		System.arraycopy(src, run, dst, pos, n);
+		return pos + n;
+	}
+
+	/**
+	 * Undoes escape() in place over bytes[offset, offset + length).  A trailing
+	 * lone escape byte is dropped.
+	 *
+	 * @return the number of unescaped bytes, which now start at offset
+	 */
+	public static int unescape(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		int w = offset;
+
+		for (int r = offset; r < end; ++r) {
+			byte b = bytes[r];
+			if (b == ESCAPE) {
+				if (++r == end) {
+					break;
+				}
+				b = (byte) (bytes[r] ^ ESCAPE_XOR);
+			}
+			bytes[w++] = b;
+		}
+
+		return w - offset;
+	}
+}
@@ -0,0 +1,15 @@
+package ec.nem.bluenet.net.link;
+
+/**
+ * What a FrameWriter does with a frame when its queue is full.
+ */
+public enum QueuePolicy {
+	/** Drop the new frame */
+	DROP_TAIL,
+	/** Drop frames from the head of the queue until the new one fits */
+	DROP_OLDEST,
+	/** Make the caller wait for room, up to the writer's block timeout */
+	BLOCK,
+	/** Drop the new frame and report it to the sender */
+	REJECT
+}
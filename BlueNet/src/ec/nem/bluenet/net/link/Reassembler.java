@@ -0,0 +1,189 @@
+package ec.nem.bluenet.net.link;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Puts fragmented datagrams from one connection back together.<br>
+ * <br>
+ *
+ * The buffers for datagrams in progress are bounded by maxBytes.  A
+ * datagram that would go over is dropped, as is one whose fragments stop
+ * arriving for longer than the timeout.  Not thread safe; one connection's
+ * frames are handled one at a time.
+ */
+public class Reassembler {
+	/** Default most bytes held for datagrams in progress */
+	public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+	/** Default time a partial datagram is kept without new fragments, in milliseconds */
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	private final int mMaxBytes;
+	private final long mTimeout;
+	private final HashMap<Integer, Partial> mPartials = new HashMap<Integer, Partial>();
+	private int mHeldBytes;
+	private long mLastExpiry;
+
+	// The datagram last completed by add()
+	private short mProtocol;
+	private byte[] mBuffer;
+	private int mLength;
+
+	private long mDatagrams;
+	private long mDropped;
+
+	private static class Partial {
+		final short protocol;
+		/** null while discarding the rest of a dropped datagram */
+		final byte[] buffer;
+		int filled;
+		long lastSeen;
+
+		Partial(short protocol, byte[] buffer, long now) {
+			this.protocol = protocol;
+			this.buffer = buffer;
+			this.lastSeen = now;
+		}
+	}
+
+	public Reassembler() {
+		this(DEFAULT_MAX_BYTES, DEFAULT_TIMEOUT);
+	}
+
+	public Reassembler(int maxBytes, long timeout) {
+		mMaxBytes = maxBytes;
+		mTimeout = timeout;
+	}
+
+	/**
+	 * Takes one fragment frame's data (after the PPP protocol field).
+	 *
+	 * @return true if this fragment completed a datagram, which can then be
+	 *         read with getProtocol(), getBuffer() and getLength()
+	 */
+	public boolean add(byte[] data, int offset, int length) {
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		if (length < Fragmenter.HEADER_LENGTH) {
+			return false;
+		}
+		int flags = data[offset] & 0xFF;
+		Integer tag = Integer.valueOf(((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF));
+		offset += Fragmenter.HEADER_LENGTH;
+		length -= Fragmenter.HEADER_LENGTH;
+
+		Partial p;
+		if ((flags & Fragmenter.FLAG_BEGIN) != 0) {
+			if (length < Fragmenter.BEGIN_HEADER_LENGTH) {
+				return false;
+			}
+			// A datagram we never saw the end of is gone for good
+			forget(mPartials.remove(tag), true);
+
+			short protocol = (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+			int total = ((data[offset + 2] & 0xFF) << 24) | ((data[offset + 3] & 0xFF) << 16)
+					| ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+			offset += Fragmenter.BEGIN_HEADER_LENGTH;
+			length -= Fragmenter.BEGIN_HEADER_LENGTH;
+
+			if (total < 0 || mHeldBytes + total > mMaxBytes) {
+				mDropped++;
+				p = new Partial(protocol, null, now);
+			} else {
+				p = new Partial(protocol, new byte[total], now);
+				mHeldBytes += total;
+			}
+			mPartials.put(tag, p);
+		} else {
+			p = mPartials.get(tag);
+			if (p == null) {
+				// Its first fragment was lost or it timed out
+				return false;
+			}
+			p.lastSeen = now;
+		}
+
+		if (p.buffer != null) {
+			if (p.filled + length > p.buffer.length) {
+				mPartials.remove(tag);
+				forget(p, true);
+				return false;
+			}
+			System.arraycopy(data, offset, p.buffer, p.filled, length);
+			p.filled += length;
+		}
+
+		if ((flags & Fragmenter.FLAG_END) == 0) {
+			return false;
+		}
+
+		mPartials.remove(tag);
+		if (p.buffer == null || p.filled != p.buffer.length) {
+			forget(p, p.buffer != null);
+			return false;
+		}
+		forget(p, false);
+		mProtocol = p.protocol;
+		mBuffer = p.buffer;
+		mLength = p.filled;
+		mDatagrams++;
+		return true;
+	}
+
+	public short getProtocol() {
+		return mProtocol;
+	}
+
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/** Number of datagrams put back together */
+	public long getDatagrams() {
+		return mDatagrams;
+	}
+
+	/** Number of datagrams dropped for lack of room, missing fragments or time */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	/** Bytes currently set aside for datagrams in progress */
+	public int getHeldBytes() {
+		return mHeldBytes;
+	}
+
+	private void forget(Partial p, boolean dropped) {
+		if (p == null) {
+			return;
+		}
+		if (p.buffer != null) {
+			mHeldBytes -= p.buffer.length;
+			if (dropped) {
+				mDropped++;
+			}
+		}
+	}
+
+	private void expire(long now) {
+		// Checking every fragment would be wasted work; a tenth of the timeout is plenty
+		if (now - mLastExpiry < mTimeout / 10 || mPartials.isEmpty()) {
+			return;
+		}
+		mLastExpiry = now;
+
+		Iterator<Partial> it = mPartials.values().iterator();
+		while (it.hasNext()) {
+			Partial p = it.next();
+			if (now - p.lastSeen > mTimeout) {
+				it.remove();
+				forget(p, true);
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Links carried over TCP on the loopback interface.<br>
+ * <br>
+ *
+ * Each simulated device listens on its own localhost port.  The directory
+ * passed in maps every MAC address in the simulated mesh to its port, and
+ * doubles as the paired device list.  Since TCP cannot tell us who is on the
+ * other end, the connecting side announces its address first.
+ */
+public class TcpTransport implements LinkTransport {
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private final String mAddress;
+	private final Map<String, Integer> mDirectory;
+	private ServerSocket mServerSocket;
+
+	/**
+	 * @param address MAC address of this device
+	 * @param directory localhost port of every device, including this one
+	 */
+	public TcpTransport(String address, Map<String, Integer> directory) {
+		mAddress = address;
+		mDirectory = directory;
+	}
+
+	public String getLocalAddress() {
+		return mAddress;
+	}
+
+	public List<String> getPairedAddresses() {
+		List<String> out = new ArrayList<String>(mDirectory.keySet());
+		out.remove(mAddress);
+		return out;
+	}
+
+	public LinkConnection connect(String address) throws IOException {
+		Integer port = mDirectory.get(address);
+		if (port == null) {
+			throw new IOException("No port known for " + address);
+		}
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getByName(null), port), CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			DataOutputStream os = new DataOutputStream(socket.getOutputStream());
+			os.writeUTF(mAddress);
+			os.flush();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		return new TcpConnection(address, socket);
+	}
+
+	public void listen() throws IOException {
+		Integer port = mDirectory.get(mAddress);
+		if (port == null) {
+			throw new IOException("No port known for " + mAddress);
+		}
+
+		mServerSocket = new ServerSocket();
+		mServerSocket.setReuseAddress(true);
+		mServerSocket.bind(new InetSocketAddress(InetAddress.getByName(null), port));
+	}
+
+	/**
+	 * Waits for a peer that connects and announces its address.  A socket
+	 * whose announcement fails, is garbled or doesn't come within
+	 * CONNECT_TIMEOUT is closed and the wait goes on, so one bad client
+	 * can't stop us accepting; only a failure of the listening socket
+	 * itself is thrown.
+	 */
+	public LinkConnection accept() throws IOException {
+		while (true) {
+			Socket socket = mServerSocket.accept();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(CONNECT_TIMEOUT);
+				String remote = new DataInputStream(socket.getInputStream()).readUTF();
+				socket.setSoTimeout(0);
+				return new TcpConnection(remote, socket);
+			} catch (IOException e) {
+				e.printStackTrace();
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	public void close() {
+		if (mServerSocket != null) {
+			try {
+				mServerSocket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class TcpConnection implements LinkConnection {
+		private final String mRemoteAddress;
+		private final Socket mSocket;
+
+		TcpConnection(String remoteAddress, Socket socket) {
+			mRemoteAddress = remoteAddress;
+			mSocket = socket;
+		}
+
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return mSocket.getInputStream();
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return mSocket.getOutputStream();
+		}
+
+		public void close() throws IOException {
+			mSocket.close();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gives every connection a blocking reader thread and a writer thread.<br>
+ * <br>
+ *
+ * This is the simplest engine and has the lowest latency, but the thread
+ * count grows with the number of neighbors.  Threads come from the given
+ * ThreadFactory, so on a JVM with virtual threads, passing a virtual thread
+ * factory keeps the blocking model without paying for platform threads.
+ */
+public class ThreadIoEngine implements IoEngine {
+	/** Size of the buffer each reader thread reads into */
+	public static final int READ_BUFFER_SIZE = 1024;
+
+	private final ThreadFactory mFactory;
+
+	public ThreadIoEngine() {
+		this(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "Connection");
+			}
+		});
+	}
+
+	public ThreadIoEngine(ThreadFactory factory) {
+		mFactory = factory;
+	}
+
+	public void register(final Channel channel) {
+		mFactory.newThread(new Runnable() {
+			public void run() {
+				try {
+					channel.getWriter().writeLoop(channel.getOutputStream());
+				} catch (IOException e) {
+					channel.onClosed(e);
+				}
+			}
+		}).start();
+
+		mFactory.newThread(new Runnable() {
+			public void run() {
+				InputStream in = channel.getInputStream();
+				byte[] buffer = new byte[READ_BUFFER_SIZE];
+				try {
+					while (true) {
+						int n = in.read(buffer, 0, buffer.length);
+						if (n < 0) {
+							throw new EOFException("Connection closed by peer");
+						}
+						channel.onReceive(buffer, 0, n);
+					}
+				} catch (IOException e) {
+					channel.onClosed(e);
+				} catch (RuntimeException e) {
+					channel.onClosed(new IOException(e.toString()));
+				}
+			}
+		}).start();
+	}
+
+	public void unregister(Channel channel) {
+		// Both threads end on their own once the connection is closed
+	}
+
+	public void shutdown() {}
+}
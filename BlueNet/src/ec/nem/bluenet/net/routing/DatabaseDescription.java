@@ -0,0 +1,62 @@
+package ec.nem.bluenet.net.routing;
+
+import java.io.EOFException;
+import java.text.MessageFormat;
+import java.util.*;
+
+import ec.nem.bluenet.*;
+
+/**
+ * A summary of a node's link state database, as in OSPF's Database
+ * Description packets (RFC 2328, section 10.6): the origin and sequence
+ * number of each LSA it holds, without their links.  Neighbors swap these
+ * when they connect and then ask with a LinkStateRequest for only the LSAs
+ * they are missing or hold older copies of, so two halves of a mesh that
+ * rejoin after a short split send each other little more than what changed.
+ * Both are sent again until they are answered, since a lost one would leave
+ * the databases apart until the next change floods.
+ */
+public class DatabaseDescription {
+	/** The node whose database this is */
+	public Node source;
+	/** Sequence number of the LSA held from each origin */
+	public HashMap<Node, Integer> sequences = new HashMap<Node, Integer>();
+	
+	/**
+	 * Writes the summary in the binary encoding:<br>
+	 * <br>
+	 *
+	 * <pre>
+	 *   source(6) count(varint) count * (origin(6) sequence(varint))
+	 * </pre>
+	 */
+	void write(WireBuffer out) {
+		out.writeNode(source);
+		out.writeVarint(sequences.size());
+		for (Map.Entry<Node, Integer> e: sequences.entrySet()) {
+			out.writeNode(e.getKey());
+			out.writeVarint(e.getValue());
+		}
+	}
+	
+	/** Reads back a summary written by write() */
+	static DatabaseDescription read(WireBuffer in) throws EOFException {
+		DatabaseDescription dd = new DatabaseDescription();
+		dd.source = in.readNode();
+		int count = in.readVarint();
+		if (count < 0 || count > in.remaining() / (WireBuffer.ADDRESS_LENGTH + 1)) {
+			throw new EOFException("More LSAs than the message holds");
+		}
+		for (int i = 0; i < count; ++i) {
+			Node origin = in.readNode();
+			dd.sequences.put(origin, in.readVarint());
+		}
+		return dd;
+	}
+	
+	@Override
+	public String toString() {
+		return MessageFormat.format("DatabaseDescription from {0} of {1} LSAs",
+				source.getAddress(), sequences.size());
+	}
+}
@@ -0,0 +1,49 @@
+package ec.nem.bluenet.net.routing;
+
+/**
+ * Cost of a link to a neighbor, for the shortest path computation.<br>
+ * <br>
+ *
+ * A perfect link costs HOP_COST, so with no measurements routing still
+ * counts hops.  A lossy link costs HOP_COST times its expected transmission
+ * count (ETX), 1 / delivery ratio, where the delivery ratio is that of the
+ * link layer's echo probes, which cross the link both ways.  A slow link
+ * costs a further HOP_COST for every RTT_PER_HOP of round trip time.<br>
+ * <br>
+ *
+ * Measurements wobble, so a neighbor's advertised cost is only changed when
+ * the new one is far enough off; see changed().
+ */
+public final class LinkCost {
+	/** Cost of a link that loses nothing and adds no delay; also the cost until a link is measured */
+	public static final int HOP_COST = 256;
+	/** Highest cost a link is given */
+	public static final int MAX_COST = 0xFFFF;
+	/** Round trip time, in microseconds, that costs as much as another hop */
+	public static final long RTT_PER_HOP = 100 * 1000;
+	/** Lowest delivery ratio counted; worse links cost the same as this */
+	public static final double MIN_DELIVERY_RATIO = 1.0 / 16;
+
+	private LinkCost() {}
+
+	/**
+	 * Works out the cost of a link.
+	 * @param loss fraction of probes lost, from 0 to 1
+	 * @param rtt smoothed round trip time, in microseconds
+	 */
+	public static int fromMeasurements(double loss, long rtt) {
+		double delivery = Math.max(MIN_DELIVERY_RATIO, 1 - loss);
+		long cost = Math.round(HOP_COST / delivery) + HOP_COST * Math.max(0, rtt) / RTT_PER_HOP;
+		return (int) Math.min(MAX_COST, cost);
+	}
+
+	/**
+	 * Whether a measured cost is far enough from the advertised one to
+	 * advertise instead: off by more than half, and by more than an
+	 * eighth of a hop, so small costs don't flap either.
+	 */
+	public static boolean changed(int advertised, int measured) {
+		int difference = Math.abs(measured - advertised);
+		return difference * 2 > advertised && difference * 8 > HOP_COST;
+	}
+}
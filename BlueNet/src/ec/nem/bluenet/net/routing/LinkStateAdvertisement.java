@@ -15,9 +15,83 @@ public class LinkStateAdvertisement implements Serializable {
 	public Node source;
 	public int sequence = initialSequence;
 	public ArrayList<Node> others = new ArrayList<Node>();
+	/** Cost of the link to each of the others; LinkCost.HOP_COST if missing */
+	public HashMap<Node, Integer> costs = new HashMap<Node, Integer>();
 	
 	public static final int initialSequence = 1;
 	
+	/** This version encoded as a RoutingMessage, shared by every copy sent */
+	private transient byte[] wire;
+	/** The sequence number wire was encoded at */
+	private transient int wireSequence;
+	
+	/** Cost of the link from the source to a neighbor */
+	public int costTo(Node n) {
+		Integer cost = costs.get(n);
+		return cost == null ? LinkCost.HOP_COST : cost;
+	}
+	
+	/**
+	 * The LSA as it goes on the wire, encoded by RoutingMessage, if it has
+	 * been encoded since the sequence number last changed.  Flooding sends
+	 * the same bytes to every neighbor, so an LSA must get a new sequence
+	 * number whenever it changes, and nobody may change the bytes.
+	 * 
+	 * @return the bytes, or null if they need encoding
+	 */
+	byte[] getWireBytes() {
+		return wire != null && wireSequence == sequence ? wire : null;
+	}
+	
+	/** Keeps the encoding of the LSA at its current sequence number */
+	void setWireBytes(byte[] wire) {
+		this.wire = wire;
+		this.wireSequence = sequence;
+	}
+	
+	/**
+	 * Writes the LSA in the binary encoding:<br>
+	 * <br>
+	 *
+	 * <pre>
+	 *   source(6) sequence(varint) count(varint) others(6 each) costs(varint each)
+	 * </pre>
+	 */
+	void write(WireBuffer out) {
+		out.writeNode(source);
+		out.writeVarint(sequence);
+		out.writeVarint(others.size());
+		for (Node n: others) {
+			out.writeNode(n);
+		}
+		for (Node n: others) {
+			out.writeVarint(costTo(n));
+		}
+	}
+	
+	/** Reads back an LSA written by write() */
+	static LinkStateAdvertisement read(WireBuffer in) throws EOFException {
+		LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+		lsa.source = in.readNode();
+		lsa.sequence = in.readVarint();
+		
+		int numNodes = in.readVarint();
+		if (numNodes < 0 || numNodes > in.remaining() / WireBuffer.ADDRESS_LENGTH) {
+			throw new EOFException("More neighbors than the message holds");
+		}
+		lsa.others.ensureCapacity(numNodes);
+		for (int i = 0; i < numNodes; ++i) {
+			lsa.others.add(in.readNode());
+		}
+		for (int i = 0; i < numNodes; ++i) {
+			int cost = in.readVarint();
+			if (cost != LinkCost.HOP_COST) {
+				lsa.costs.put(lsa.others.get(i), cost);
+			}
+		}
+		return lsa;
+	}
+	
 	private void writeObject(ObjectOutputStream oos) throws IOException {
 		oos.writeObject(source.getAddress());
 		oos.writeObject(sequence);
@@ -26,10 +100,16 @@ public class LinkStateAdvertisement implements Serializable {
 		for (Node n: others) {
 			oos.writeObject(n.getAddress());
 		}
+		
+		// After the addresses, so nodes that don't know of costs skip them
+		for (Node n: others) {
+			oos.writeInt(costTo(n));
+		}
 	}
 	
 	private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
 		others = new ArrayList<Node>();
+		costs = new HashMap<Node, Integer>();
 		
 		String source = (String) ois.readObject();
 		try {
@@ -42,15 +122,28 @@ public class LinkStateAdvertisement implements Serializable {
 		sequence = (Integer) ois.readObject();
 		
 		Integer numNodes = (Integer) ois.readObject();
+		Node[] nodes = new Node[numNodes];
 		for (int i = 0; i < numNodes; ++i) {
 			String address = (String) ois.readObject();
 			
 			try {
 				Node n = NodeFactory.factory.fromMacAddress(address);
 				others.add(n);
+				nodes[i] = n;
 			} catch (ParseException e) {
 				Log.d(TAG, "Failed to get node from factory properly");
 			}
 		}
+		
+		try {
+			for (int i = 0; i < numNodes; ++i) {
+				int cost = ois.readInt();
+				if (nodes[i] != null) {
+					costs.put(nodes[i], cost);
+				}
+			}
+		} catch (EOFException e) {
+			// From a node that doesn't send costs; every link costs a hop
+		}
 	}
 }
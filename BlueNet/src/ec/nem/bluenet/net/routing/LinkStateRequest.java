@@ -0,0 +1,59 @@
+package ec.nem.bluenet.net.routing;
+
+import java.io.EOFException;
+import java.text.MessageFormat;
+import java.util.*;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Asks a neighbor for the LSAs of the given origins, after its
+ * DatabaseDescription showed it holds newer ones than we do, as in OSPF's
+ * Link State Request packets (RFC 2328, section 10.7).  The neighbor answers
+ * with the LSAs in LinkStateUpdates.  One is sent in answer to every
+ * DatabaseDescription, empty if nothing is wanted, so the neighbor knows its
+ * summary arrived.
+ */
+public class LinkStateRequest {
+	/** The node asking */
+	public Node source;
+	/** Origins of the LSAs wanted */
+	public ArrayList<Node> origins = new ArrayList<Node>();
+	
+	/**
+	 * Writes the request in the binary encoding:<br>
+	 * <br>
+	 *
+	 * <pre>
+	 *   source(6) count(varint) origins(6 each)
+	 * </pre>
+	 */
+	void write(WireBuffer out) {
+		out.writeNode(source);
+		out.writeVarint(origins.size());
+		for (Node n: origins) {
+			out.writeNode(n);
+		}
+	}
+	
+	/** Reads back a request written by write() */
+	static LinkStateRequest read(WireBuffer in) throws EOFException {
+		LinkStateRequest lsr = new LinkStateRequest();
+		lsr.source = in.readNode();
+		int count = in.readVarint();
+		if (count < 0 || count > in.remaining() / WireBuffer.ADDRESS_LENGTH) {
+			throw new EOFException("More origins than the message holds");
+		}
+		lsr.origins.ensureCapacity(count);
+		for (int i = 0; i < count; ++i) {
+			lsr.origins.add(in.readNode());
+		}
+		return lsr;
+	}
+	
+	@Override
+	public String toString() {
+		return MessageFormat.format("LinkStateRequest from {0} for {1} LSAs",
+				source.getAddress(), origins.size());
+	}
+}
@@ -0,0 +1,67 @@
+package ec.nem.bluenet.net.routing;
+
+import java.io.EOFException;
+import java.text.MessageFormat;
+import java.util.*;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Several LSAs for one neighbor in a single message, as in OSPF's Link State
+ * Update packets (RFC 2328, section 13), so a flood or database sync pays
+ * for one datagram and one frame instead of one per LSA.  The receiver
+ * takes in every LSA before routes are recomputed, and doesn't flood them
+ * back to the node that sent them.
+ */
+public class LinkStateUpdate {
+	/** The node sending */
+	public Node source;
+	/** The LSAs, in the order they were queued */
+	public ArrayList<LinkStateAdvertisement> lsas = new ArrayList<LinkStateAdvertisement>();
+	
+	/**
+	 * Writes the update in the binary encoding:<br>
+	 * <br>
+	 *
+	 * <pre>
+	 *   source(6) count(varint) count * (length(varint) message(length))
+	 * </pre>
+	 *
+	 * Each message is the LSA's own RoutingMessage, as it would be sent on
+	 * its own, so the bytes cached with it are used as they are.
+	 */
+	void write(WireBuffer out) {
+		out.writeNode(source);
+		out.writeVarint(lsas.size());
+		for (LinkStateAdvertisement lsa: lsas) {
+			byte[] wire = RoutingMessage.serializeLsa(lsa);
+			out.writeVarint(wire.length);
+			out.writeBytes(wire);
+		}
+	}
+	
+	/** Reads back an update written by write() */
+	static LinkStateUpdate read(WireBuffer in) throws EOFException {
+		LinkStateUpdate lsu = new LinkStateUpdate();
+		lsu.source = in.readNode();
+		int count = in.readVarint();
+		if (count < 0 || count > in.remaining()) {
+			throw new EOFException("More LSAs than the message holds");
+		}
+		lsu.lsas.ensureCapacity(count);
+		for (int i = 0; i < count; ++i) {
+			RoutingMessage msg = RoutingMessage.deserializeMessage(in.readBytes(in.readVarint()));
+			if (msg == null || msg.type != RoutingMessage.Type.LinkStateAdvertisement) {
+				throw new EOFException("Update holds something other than an LSA");
+			}
+			lsu.lsas.add((LinkStateAdvertisement) msg.obj);
+		}
+		return lsu;
+	}
+	
+	@Override
+	public String toString() {
+		return MessageFormat.format("LinkStateUpdate from {0} of {1} LSAs",
+				source.getAddress(), lsas.size());
+	}
+}
@@ -1,9 +1,20 @@
 package ec.nem.bluenet.net.routing;
 
 import java.io.*;
+import java.text.MessageFormat;
+import java.text.ParseException;
 
 import android.util.Log;
 
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.NodeFactory;
+
+/**
+ * A message between the routing protocols of neighboring nodes.  Sent in a
+ * compact binary encoding, see serializeMessage(), to neighbors that have
+ * shown they read it, and with Java serialization, as nodes from before
+ * WIRE_VERSION send them, to the rest.
+ */
 public class RoutingMessage implements Serializable {
 	public static final String TAG = "RoutingMessage";
 	public static final long serialVersionUID = 1L;
@@ -12,33 +23,225 @@ public class RoutingMessage implements Serializable {
 		Hello,
 		HelloAck,
 		LinkStateAdvertisement,
-		Quit
+		Quit,
+		DatabaseDescription,
+		LinkStateRequest,
+		LinkStateUpdate
 	};
 	
+	/** First byte of every message, for the version of the encoding */
+	public static final byte WIRE_VERSION = 1;
+	/** First byte of a Java serialization stream, which older nodes send */
+	private static final byte LEGACY_MAGIC = (byte) 0xAC;
+	/** Types by their number on the wire, which is their ordinal */
+	private static final Type[] TYPES = Type.values();
+	
 	public Type type;
 	public Object obj;
+	/**
+	 * Sent in Hello and HelloAck: the id of the Deflate dictionary the sender
+	 * inflates frames with, or 0 if it can't.  Older nodes leave it out,
+	 * which reads as 0.
+	 */
+	public int deflateDictionary;
+	/**
+	 * Sent in Hello and HelloAck: the LinkLayer.FEATURE_ flags for what the
+	 * sender understands on its links.  Older nodes leave it out.
+	 */
+	public int linkFeatures;
+	/**
+	 * The encoding the sender reads: the version byte of a binary message,
+	 * and in a Hello or HelloAck sent with Java serialization, WIRE_VERSION
+	 * if the sender reads the binary encoding too.  Older nodes leave it
+	 * out, which reads as 0.
+	 */
+	public int wireVersion;
+	/**
+	 * Set for a neighbor not yet known to read the binary encoding, so
+	 * serializeMessage() uses Java serialization.  Only Hello, HelloAck,
+	 * LinkStateAdvertisement and Quit are understood that way.
+	 */
+	public transient boolean legacyEncoding;
 	
+	/**
+	 * Encodes a message for the wire:<br>
+	 * <br>
+	 *
+	 * <pre>
+	 *   version(1) type(1) body
+	 *   Hello, HelloAck:        node(6) deflateDictionary(varint) linkFeatures(varint)
+	 *   Quit:                   node(6)
+	 *   LinkStateAdvertisement: see LinkStateAdvertisement.write()
+	 *   DatabaseDescription:    see DatabaseDescription.write()
+	 *   LinkStateRequest:       see LinkStateRequest.write()
+	 *   LinkStateUpdate:        see LinkStateUpdate.write()
+	 * </pre>
+	 *
+	 * Nodes are their 6 byte Bluetooth addresses and numbers are varints;
+	 * see WireBuffer.  Readers ignore anything after the fields they know,
+	 * so fields may be added at the end without a new WIRE_VERSION.
+	 *
+	 * An LSA is encoded once for each sequence number, and kept with it; every
+	 * message sending it after that gets the same bytes, which must not be
+	 * changed.
+	 *
+	 * A message marked legacyEncoding is written with Java serialization
+	 * instead.
+	 *
+	 * @return the encoded message, or null if its obj isn't what its type
+	 *         carries
+	 */
 	public static byte[] serializeMessage(RoutingMessage msg) {
+		if (msg.legacyEncoding) {
+			return serializeLegacyMessage(msg);
+		}
+		if (msg.type == Type.LinkStateAdvertisement && msg.obj instanceof LinkStateAdvertisement) {
+			return serializeLsa((LinkStateAdvertisement) msg.obj);
+		}
+		return encode(msg);
+	}
+	
+	/** Encodes the message that carries an LSA on its own, or gives the bytes cached with it */
+	static byte[] serializeLsa(LinkStateAdvertisement lsa) {
+		byte[] wire = lsa.getWireBytes();
+		if (wire == null) {
+			RoutingMessage msg = new RoutingMessage();
+			msg.type = Type.LinkStateAdvertisement;
+			msg.obj = lsa;
+			wire = encode(msg);
+			lsa.setWireBytes(wire);
+		}
+		return wire;
+	}
+	
+	private static byte[] serializeLegacyMessage(RoutingMessage msg) {
 		try {
 			ByteArrayOutputStream os = new ByteArrayOutputStream();
 			ObjectOutputStream oos = new ObjectOutputStream(os);
 			oos.writeObject(msg);
+			oos.close();
 			return os.toByteArray();
 		} catch (IOException e) {
-			Log.e(TAG,e.getMessage());
+			Log.e(TAG, MessageFormat.format("Can''t send a {0} carrying {1}: {2}", msg.type, msg.obj, e.getMessage()));
+			return null;
+		}
+	}
+	
+	private static byte[] encode(RoutingMessage msg) {
+		WireBuffer out = new WireBuffer(64);
+		out.writeByte(WIRE_VERSION);
+		out.writeByte(msg.type.ordinal());
+		try {
+			switch (msg.type) {
+			case Hello:
+			case HelloAck:
+				out.writeNode((Node) msg.obj);
+				out.writeVarint(msg.deflateDictionary);
+				out.writeVarint(msg.linkFeatures);
+				break;
+			case Quit:
+				out.writeNode((Node) msg.obj);
+				break;
+			case LinkStateAdvertisement:
+				((LinkStateAdvertisement) msg.obj).write(out);
+				break;
+			case DatabaseDescription:
+				((DatabaseDescription) msg.obj).write(out);
+				break;
+			case LinkStateRequest:
+				((LinkStateRequest) msg.obj).write(out);
+				break;
+			case LinkStateUpdate:
+				((LinkStateUpdate) msg.obj).write(out);
+				break;
+			}
+		} catch (ClassCastException e) {
+			Log.e(TAG, MessageFormat.format("Can''t send a {0} carrying {1}", msg.type, msg.obj));
 			return null;
 		}
+		return out.toByteArray();
 	}
 	
+	/**
+	 * Decodes a message from the wire.  Messages from nodes that still send
+	 * them with Java serialization are read too.
+	 *
+	 * @return the message, or null if it couldn't be read
+	 */
 	public static RoutingMessage deserializeMessage(byte[] input) {
+		if (input == null || input.length < 2) {
+			Log.e(TAG, "Routing message too short");
+			return null;
+		}
+		if (input[0] == LEGACY_MAGIC) {
+			return deserializeLegacyMessage(input);
+		}
+		if (input[0] != WIRE_VERSION) {
+			Log.e(TAG, MessageFormat.format("Unknown routing message version {0}", input[0]));
+			return null;
+		}
+		
+		WireBuffer in = new WireBuffer(input, 0, input.length);
+		try {
+			in.readByte();
+			int type = in.readByte();
+			if (type >= TYPES.length) {
+				Log.e(TAG, MessageFormat.format("Unknown routing message type {0}", type));
+				return null;
+			}
+			
+			RoutingMessage msg = new RoutingMessage();
+			msg.type = TYPES[type];
+			msg.wireVersion = WIRE_VERSION;
+			switch (msg.type) {
+			case Hello:
+			case HelloAck:
+				msg.obj = in.readNode();
+				msg.deflateDictionary = in.readVarint();
+				msg.linkFeatures = in.readVarint();
+				break;
+			case Quit:
+				msg.obj = in.readNode();
+				break;
+			case LinkStateAdvertisement:
+				LinkStateAdvertisement lsa = LinkStateAdvertisement.read(in);
+				// Flooded on as it came, without encoding it again
+				lsa.setWireBytes(input);
+				msg.obj = lsa;
+				break;
+			case DatabaseDescription:
+				msg.obj = DatabaseDescription.read(in);
+				break;
+			case LinkStateRequest:
+				msg.obj = LinkStateRequest.read(in);
+				break;
+			case LinkStateUpdate:
+				msg.obj = LinkStateUpdate.read(in);
+				break;
+			}
+			return msg;
+		} catch (EOFException e) {
+			Log.e(TAG, "Routing message cut short");
+			return null;
+		}
+	}
+	
+	private static RoutingMessage deserializeLegacyMessage(byte[] input) {
 		try {
 			ByteArrayInputStream is = new ByteArrayInputStream(input);
 			ObjectInputStream ois = new ObjectInputStream(is);
 			RoutingMessage msg = (RoutingMessage) ois.readObject();
+			// Serialization makes a new Node; routing wants the one NodeFactory keeps
+			if (msg.obj instanceof Node) {
+				msg.obj = NodeFactory.factory.fromMacAddress(((Node) msg.obj).getAddress());
+			}
 			return msg;
 		} catch (IOException e) {
 			Log.e(TAG, e.getMessage());
 			return null;
+		} catch (ParseException e) {
+			Log.e(TAG, e.getMessage());
+			return null;
 		} catch (ClassNotFoundException e) {
 			/* This really shouldn't happen, since we *ARE* the RoutingMessage class! */
 			Log.e(TAG,e.getMessage());
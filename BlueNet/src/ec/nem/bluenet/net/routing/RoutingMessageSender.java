@@ -0,0 +1,18 @@
+package ec.nem.bluenet.net.routing;
+
+import ec.nem.bluenet.Node;
+
+/**
+ * Where RoutingProtocol sends its messages.  NetworkLayer puts them on the
+ * links to neighbors; a test can hand them straight to other protocols.
+ */
+public interface RoutingMessageSender {
+	/** Sends a routing message to a neighbor */
+	void sendRoutingMessage(Node n, RoutingMessage msg);
+
+	/**
+	 * Gets the longest routing message that goes to a neighbor in one frame,
+	 * or Integer.MAX_VALUE if there is no limit.
+	 */
+	int getMaxRoutingMessageLength(Node n);
+}
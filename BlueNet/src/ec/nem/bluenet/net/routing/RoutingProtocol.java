@@ -7,7 +7,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
@@ -15,7 +21,6 @@ import java.util.PriorityQueue;
 import android.os.Environment;
 import android.util.Log;
 import ec.nem.bluenet.Node;
-import ec.nem.bluenet.net.NetworkLayer;
 import ec.nem.bluenet.net.routing.RoutingMessage.Type;
 
 /**
@@ -34,8 +39,8 @@ public class RoutingProtocol {
 	*/
 	/// The node representing us
 	Node mNode;
-	///Our network layer that we use to send messages
-	NetworkLayer mNetworkLayer;
+	///Where we send messages, our network layer
+	RoutingMessageSender mSender;
 
 	///Possible states for nodes on the network to be in.
 	enum LinkState {
@@ -51,18 +56,56 @@ public class RoutingProtocol {
 	HashMap<Node, LinkStateAdvertisement> mGraph = new HashMap<Node, LinkStateAdvertisement>();
 	///The actual Routing Table
 	Map<Node, GraphNode> mRoutingTable;
+	///Where to relay broadcasts from each source, worked out as they arrive
+	HashMap<Node, List<Node>> mBroadcastChildren = new HashMap<Node, List<Node>>();
+	///Links both ends advertise, from each node, with their costs, as of the last routing table computation
+	HashMap<Node, HashMap<Node, Integer>> mEdges = new HashMap<Node, HashMap<Node, Integer>>();
+	///Nodes whose LSA changed since the routing table was last computed
+	HashSet<Node> mChanged = new HashSet<Node>();
+	///Database synchronizations with neighbors still waiting on an answer
+	HashMap<Node, Sync> mSyncs = new HashMap<Node, Sync>();
+	///Summaries from neighbors that finished the handshake before we did, handled once we do
+	HashMap<Node, DatabaseDescription> mEarlyDescriptions = new HashMap<Node, DatabaseDescription>();
+	///Neighbors that have shown they read the binary encoding; the rest are sent what older nodes understand
+	HashSet<Node> mBinaryNeighbors = new HashSet<Node>();
+	///LSAs waiting to go to each neighbor, by origin, sent together by flushLSAs
+	LinkedHashMap<Node, LinkedHashMap<Node, LinkStateAdvertisement>> mOutbox = new LinkedHashMap<Node, LinkedHashMap<Node, LinkStateAdvertisement>>();
+	
+	///Counters for RoutingStats, only touched on the network layer's up thread
+	long mSpfRuns;
+	long mFullSpfRuns;
+	long mChanges;
+	int mMaxChangesPerRun;
+	int mPendingChanges;
+	
+	///An incremental computation that would redo more than 1/this of the graph gives way to a full one
+	static final int INCREMENTAL_LIMIT_DIVISOR = 2;
+	///Bytes of a LinkStateUpdate besides its LSAs: version, type, source and count
+	static final int UPDATE_HEADER_LENGTH = 2 + 6 + 2;
+	///How long a summary or request waits for its answer before it is sent again, in milliseconds
+	static final long SYNC_RETRANSMIT_INTERVAL = 2000;
+	///Times a summary or request is sent before we stop waiting for its answer
+	static final int MAX_SYNC_SENDS = 4;
+
+	///Orders nodes by address, to break ties the same way on every node
+	static final Comparator<Node> ADDRESS_ORDER = new Comparator<Node>() {
+		public int compare(Node a, Node b) {
+			return a.getAddress().compareTo(b.getAddress());
+		}
+	};
 	
 	/**
 	 * Constructs a routing table with our local node and Network Layer Access
 	 * @param node Local node
-	 * @param networkLayer The network layer we're going to work with
+	 * @param sender The network layer we're going to work with
 	 */
-	public RoutingProtocol(Node node, NetworkLayer networkLayer) {
+	public RoutingProtocol(Node node, RoutingMessageSender sender) {
 		mNode = node;
-		mNetworkLayer = networkLayer;
+		mSender = sender;
 	}
 	
 	public void receiveMessage(RoutingMessage msg) {
+		noteWireVersion(msg);
 		switch (msg.type) {
 		case Hello: {
 			Node n = (Node) msg.obj;
@@ -79,7 +122,8 @@ public class RoutingProtocol {
 				RoutingMessage newMsg = new RoutingMessage();
 				newMsg.type = Type.HelloAck;
 				newMsg.obj = mNode;
-				mNetworkLayer.sendRoutingMessage(n, newMsg);
+				newMsg.wireVersion = RoutingMessage.WIRE_VERSION;
+				send(n, newMsg);
 
 				handshakeFinished(n);
 			} else {
@@ -102,8 +146,43 @@ public class RoutingProtocol {
 		}
 		
 		case LinkStateAdvertisement: {
+			// Only nodes from before LinkStateUpdate send these
 			LinkStateAdvertisement lsa = (LinkStateAdvertisement) msg.obj;
-			handleNewLsa(lsa);
+			handleNewLsa(lsa, null);
+			break;
+		}
+		
+		case LinkStateUpdate: {
+			LinkStateUpdate lsu = (LinkStateUpdate) msg.obj;
+			for (LinkStateAdvertisement lsa : lsu.lsas) {
+				handleNewLsa(lsa, lsu.source);
+			}
+			break;
+		}
+		
+		case DatabaseDescription: {
+			DatabaseDescription dd = (DatabaseDescription) msg.obj;
+			LinkState state = mLinks.get(dd.source);
+			if (state == LinkState.FullyConnected) {
+				handleDatabaseDescription(dd);
+			} else if (state == LinkState.HelloSent) {
+				// Its HelloAck is still on the way
+				mEarlyDescriptions.put(dd.source, dd);
+			} else {
+				Log.e(TAG, MessageFormat.format("Received erroneous DatabaseDescription from {0}. Current state:{1}",
+						dd.source.getAddress(), mLinks.get(dd.source)));
+			}
+			break;
+		}
+		
+		case LinkStateRequest: {
+			LinkStateRequest lsr = (LinkStateRequest) msg.obj;
+			if (mLinks.get(lsr.source) == LinkState.FullyConnected) {
+				handleLinkStateRequest(lsr);
+			} else {
+				Log.e(TAG, MessageFormat.format("Received erroneous LinkStateRequest from {0}. Current state:{1}",
+						lsr.source.getAddress(), mLinks.get(lsr.source)));
+			}
 			break;
 		}
 		
@@ -122,23 +201,79 @@ public class RoutingProtocol {
 		default:
 			Log.e(TAG, MessageFormat.format("Received some message I don't understand: {0}", msg));
 		}
+		
+		flushLSAs();
+	}
+	
+	/**
+	 * Notes whether the neighbor a message came from reads the binary
+	 * encoding.  Its Hello and HelloAck say so either way; any message only
+	 * the binary encoding has shows that it does.
+	 */
+	private void noteWireVersion(RoutingMessage msg) {
+		Node sender;
+		switch (msg.type) {
+		case Hello:
+		case HelloAck:
+			sender = (Node) msg.obj;
+			if (msg.wireVersion == 0) {
+				mBinaryNeighbors.remove(sender);
+				return;
+			}
+			break;
+		case DatabaseDescription:
+			sender = ((DatabaseDescription) msg.obj).source;
+			break;
+		case LinkStateRequest:
+			sender = ((LinkStateRequest) msg.obj).source;
+			break;
+		case LinkStateUpdate:
+			sender = ((LinkStateUpdate) msg.obj).source;
+			break;
+		default:
+			// A bare LSA doesn't say who passed it on, and Quit is the same either way
+			return;
+		}
+		mBinaryNeighbors.add(sender);
 	}
 	
-	void handleNewLsa(LinkStateAdvertisement lsa) {
+	/**
+	 * Sends a message to a neighbor in the encoding it reads.  Until it has
+	 * shown it reads the binary one, that is Java serialization, so only the
+	 * messages nodes from before WIRE_VERSION know may go to it.
+	 */
+	private void send(Node n, RoutingMessage msg) {
+		msg.legacyEncoding = !mBinaryNeighbors.contains(n);
+		mSender.sendRoutingMessage(n, msg);
+	}
+	
+	/**
+	 * Takes in an LSA if it is newer than the one we hold, and floods it on.
+	 * @param from The neighbor it came from, which needn't be sent it back, or null if not known
+	 */
+	void handleNewLsa(LinkStateAdvertisement lsa, Node from) {
 		if (!mGraph.containsKey(lsa.source) || mGraph.get(lsa.source).sequence < lsa.sequence) {
 			Log.d(TAG, MessageFormat.format(
 					"Got an LSA of sequence {0} from {1}",
 					lsa.sequence, lsa.source.getAddress()));
 			
-			sendLSA(lsa);
+			sendLSA(lsa, from);
 			
 			mGraph.put(lsa.source, lsa);
-			
-			recomputeRoutingTable();
+			changed(lsa.source);
 		} else {
 			Log.d(TAG, MessageFormat.format("Erroneous new LSA: sequence {0} from {1}",
 					lsa.sequence, lsa.source.getAddress()));
 		}
+		
+		// Whichever neighbor it came from, it answers any request for it
+		int held = mGraph.get(lsa.source).sequence;
+		for (Sync sync : mSyncs.values()) {
+			Integer wanted = sync.requested.get(lsa.source);
+			if (wanted != null && wanted <= held) {
+				sync.requested.remove(lsa.source);
+			}
+		}
 	}
 	
 	void handshakeFinished(Node n) {
@@ -155,51 +290,265 @@ public class RoutingProtocol {
 		}
 		
 		thisLsa.others.add(n);
+		// Counted as a hop until the link layer has measured it
+		thisLsa.costs.remove(n);
+		changed(mNode);
 		
-		sendLSA(thisLsa);
+		sendLSA(thisLsa, null);
 		
-		sendLSADb(n);
+		if (!mBinaryNeighbors.contains(n)) {
+			// Nodes from before WIRE_VERSION don't swap summaries, so are sent everything
+			Log.d(TAG, MessageFormat.format("Sending all {0} LSAs to {1}, which reads the old encoding",
+					mGraph.size(), n.getAddress()));
+			for (LinkStateAdvertisement lsa : mGraph.values()) {
+				if (lsa.source != n) {
+					queueLSA(n, lsa);
+				}
+			}
+			return;
+		}
+		mSyncs.put(n, new Sync());
+		sendDatabaseDescription(n);
+		DatabaseDescription early = mEarlyDescriptions.remove(n);
+		if (early != null) {
+			handleDatabaseDescription(early);
+		}
 	}
 
 	/**
-	 * Send the entire link state database to the new node
+	 * Sends the new node a summary of the link state database, so it can ask
+	 * for the LSAs it doesn't already have.  It sends us its own, so we can do
+	 * the same.  It is sent again by retransmitSync until the neighbor's
+	 * LinkStateRequest comes back.
 	 * 
-	 * @param n Node which to send the current database
+	 * @param n Node which to send the summary
 	 */
-	private void sendLSADb(Node n) {
-		for (Node origin : mGraph.keySet()) {
-			// Ignore the LSA received directly from the connecting node
-			if (n == origin)
+	private void sendDatabaseDescription(Node n) {
+		DatabaseDescription dd = new DatabaseDescription();
+		dd.source = mNode;
+		for (LinkStateAdvertisement lsa : mGraph.values()) {
+			// The node has its own LSA.  Ours was just flooded to it, but
+			// is listed in case that went missing
+			if (lsa.source == n)
 				continue;
+			dd.sequences.put(lsa.source, lsa.sequence);
+		}
+		
+		Log.d(TAG, MessageFormat.format("Sending summary of {0} LSAs to {1}",
+				dd.sequences.size(), n.getAddress()));
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = Type.DatabaseDescription;
+		msg.obj = dd;
+		send(n, msg);
+		
+		Sync sync = mSyncs.get(n);
+		if (sync != null) {
+			sync.describedAt = System.currentTimeMillis();
+			sync.descriptions++;
+		}
+	}
+
+	/**
+	 * Asks a neighbor for every LSA in its summary that we are missing or hold
+	 * an older copy of.  Our own LSA is never taken from anyone else.  The
+	 * request goes even if it is empty, to tell the neighbor its summary
+	 * arrived.
+	 */
+	private void handleDatabaseDescription(DatabaseDescription dd) {
+		Sync sync = mSyncs.get(dd.source);
+		if (sync == null) {
+			sync = new Sync();
+			mSyncs.put(dd.source, sync);
+		}
+		for (Map.Entry<Node, Integer> e : dd.sequences.entrySet()) {
+			Node origin = e.getKey();
+			LinkStateAdvertisement lsa = mGraph.get(origin);
+			if (origin != mNode && (lsa == null || lsa.sequence < e.getValue())) {
+				sync.requested.put(origin, e.getValue());
+			}
+		}
+		
+		Log.d(TAG, MessageFormat.format("{0} has {1} LSAs, {2} of them newer than ours",
+				dd.source.getAddress(), dd.sequences.size(), sync.requested.size()));
+		sendLinkStateRequest(dd.source, sync);
+	}
+
+	/** Asks a neighbor for the LSAs still wanted from it */
+	private void sendLinkStateRequest(Node n, Sync sync) {
+		LinkStateRequest lsr = new LinkStateRequest();
+		lsr.source = mNode;
+		lsr.origins.addAll(sync.requested.keySet());
+		
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = Type.LinkStateRequest;
+		msg.obj = lsr;
+		send(n, msg);
+		
+		if (!lsr.origins.isEmpty()) {
+			sync.requestedAt = System.currentTimeMillis();
+			sync.requests++;
+		}
+	}
+	
+	/**
+	 * Sends again every summary and request that has waited longer than
+	 * SYNC_RETRANSMIT_INTERVAL for its answer.  After MAX_SYNC_SENDS tries,
+	 * a neighbor that never answered our summary is sent our whole
+	 * database instead, and LSAs it never sent are left for flooding to
+	 * bring.
+	 * @param now The time, from System.currentTimeMillis
+	 */
+	public void retransmitSync(long now) {
+		Iterator<Map.Entry<Node, Sync>> it = mSyncs.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Node, Sync> e = it.next();
+			Node n = e.getKey();
+			Sync sync = e.getValue();
+			
+			if (sync.describedAt != 0 && now - sync.describedAt >= SYNC_RETRANSMIT_INTERVAL) {
+				if (sync.descriptions < MAX_SYNC_SENDS) {
+					Log.d(TAG, MessageFormat.format("Sending summary to {0} again", n.getAddress()));
+					sendDatabaseDescription(n);
+				} else {
+					Log.w(TAG, MessageFormat.format("{0} never answered our summary, sending it everything", n.getAddress()));
+					sync.describedAt = 0;
+					for (LinkStateAdvertisement lsa : mGraph.values()) {
+						if (lsa.source != n) {
+							queueLSA(n, lsa);
+						}
+					}
+				}
+			}
+			
+			if (!sync.requested.isEmpty() && now - sync.requestedAt >= SYNC_RETRANSMIT_INTERVAL) {
+				if (sync.requests < MAX_SYNC_SENDS) {
+					Log.d(TAG, MessageFormat.format("Asking {0} again for {1} LSAs",
+							n.getAddress(), sync.requested.size()));
+					sendLinkStateRequest(n, sync);
+				} else {
+					Log.w(TAG, MessageFormat.format("{0} never sent {1} LSAs we asked for",
+							n.getAddress(), sync.requested.size()));
+					sync.requested.clear();
+				}
+			}
+			
+			if (sync.describedAt == 0 && sync.requested.isEmpty()) {
+				it.remove();
+			}
+		}
+		flushLSAs();
+	}
 
-			RoutingMessage msg = new RoutingMessage();
-			msg.type = Type.LinkStateAdvertisement;
-			msg.obj = mGraph.get(origin);
-			mNetworkLayer.sendRoutingMessage(n, msg);
+	/**
+	 * Sends a neighbor the LSAs it asked for, leaving out any we no longer
+	 * hold.
+	 */
+	private void handleLinkStateRequest(LinkStateRequest lsr) {
+		// It answers our summary
+		Sync sync = mSyncs.get(lsr.source);
+		if (sync != null) {
+			sync.describedAt = 0;
+		}
+		for (Node origin : lsr.origins) {
+			LinkStateAdvertisement lsa = mGraph.get(origin);
+			if (lsa == null)
+				continue;
+			
+			queueLSA(lsr.source, lsa);
 		}
 	}
 
 	/**
-	 * Sends the Link State Advertisement to all connected nodes. 
+	 * Sends the Link State Advertisement to all connected nodes, once
+	 * flushLSAs is called. 
 	 * @param lsa The Link State Advertisement to send to 
+	 * @param from The neighbor it came from, which is left out, or null
 	 */
-	private void sendLSA(LinkStateAdvertisement lsa) {
+	private void sendLSA(LinkStateAdvertisement lsa, Node from) {
 		// Send the new link state announcement to all connected devices
-		RoutingMessage msg = new RoutingMessage();
-		msg.type = Type.LinkStateAdvertisement;
-		msg.obj = lsa;
 		LinkStateAdvertisement thisLsa = mGraph.get(mNode);
+		if (thisLsa == null) {
+			// No neighbors yet
+			return;
+		}
 		for (Node n: thisLsa.others) {
+			if (n == from)
+				continue;
 			Log.d(TAG, MessageFormat.format(
 					"Sending updated LSA sequence {0} from {1} to {2}",
 					lsa.sequence, lsa.source.getAddress(),
 					n.getAddress()));
-			mNetworkLayer.sendRoutingMessage(n, msg);
+			queueLSA(n, lsa);
 		}
 //		printRoutingTable(mRoutingTable);
 //		printLSAs(mGraph);
 	}
 
+	/** Queues an LSA for a neighbor, in place of any older one from the same origin */
+	private void queueLSA(Node n, LinkStateAdvertisement lsa) {
+		LinkedHashMap<Node, LinkStateAdvertisement> queue = mOutbox.get(n);
+		if (queue == null) {
+			queue = new LinkedHashMap<Node, LinkStateAdvertisement>();
+			mOutbox.put(n, queue);
+		}
+		queue.put(lsa.source, lsa);
+	}
+
+	/**
+	 * Sends every queued LSA, packing those for the same neighbor into
+	 * LinkStateUpdates no longer than goes over the link to it in one frame.
+	 * An LSA too big for that still goes, in an update of its own.  Nodes
+	 * from before WIRE_VERSION are sent each on its own instead.
+	 */
+	private void flushLSAs() {
+		for (Map.Entry<Node, LinkedHashMap<Node, LinkStateAdvertisement>> e : mOutbox.entrySet()) {
+			Node n = e.getKey();
+			if (!mBinaryNeighbors.contains(n)) {
+				for (LinkStateAdvertisement lsa : e.getValue().values()) {
+					RoutingMessage msg = new RoutingMessage();
+					msg.type = Type.LinkStateAdvertisement;
+					msg.obj = lsa;
+					send(n, msg);
+				}
+				continue;
+			}
+			int maxLength = mSender.getMaxRoutingMessageLength(n);
+			LinkStateUpdate lsu = null;
+			int length = 0;
+			for (LinkStateAdvertisement lsa : e.getValue().values()) {
+				// With its length, two bytes up to 16 KB
+				int size = RoutingMessage.serializeLsa(lsa).length + 2;
+				if (lsu != null && length + size > maxLength) {
+					sendUpdate(n, lsu);
+					lsu = null;
+				}
+				if (lsu == null) {
+					lsu = new LinkStateUpdate();
+					lsu.source = mNode;
+					length = UPDATE_HEADER_LENGTH;
+				}
+				lsu.lsas.add(lsa);
+				length += size;
+			}
+			if (lsu != null) {
+				sendUpdate(n, lsu);
+			}
+		}
+		mOutbox.clear();
+	}
+
+	/**
+	 * Sends a LinkStateUpdate, even one holding a single LSA: unlike a bare
+	 * LinkStateAdvertisement it names us as the sender, so the neighbor
+	 * leaves us out when it floods the LSAs on.
+	 */
+	private void sendUpdate(Node n, LinkStateUpdate lsu) {
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = Type.LinkStateUpdate;
+		msg.obj = lsu;
+		send(n, msg);
+	}
+
 	/**
 	 * Removes the node from the network  
 	 * @param n The node to be removed
@@ -221,17 +570,74 @@ public class RoutingProtocol {
 		RoutingMessage newMsg = new RoutingMessage();
 		newMsg.type = Type.Quit;
 		newMsg.obj = n;
-		mNetworkLayer.sendRoutingMessage(n, newMsg);
+		send(n, newMsg);
 		
 		//complete removal of node
 		thisLsa.others.remove(n);
+		thisLsa.costs.remove(n);
 		mGraph.remove(n);
 		mLinks.remove(n);
-		recomputeRoutingTable();
+		mBinaryNeighbors.remove(n);
+		mOutbox.remove(n);
+		mSyncs.remove(n);
+		mEarlyDescriptions.remove(n);
+		changed(n);
+		mChanged.add(mNode);
 		
-		sendLSA(thisLsa);
+		sendLSA(thisLsa, null);
+		flushLSAs();
+	}
+
+	/**
+	 * Called when the link to a node could not be brought up.  A node we only
+	 * sent a Hello to is forgotten; neighbors already connected are removed
+	 * through removeNode when their connection closes.
+	 * @param n The node we could not reach
+	 */
+	public void linkFailed(Node n) {
+		if (mLinks.get(n) == LinkState.HelloSent) {
+			Log.d(TAG, MessageFormat.format("Could not reach {0}.", n.getAddress()));
+			mLinks.remove(n);
+			mEarlyDescriptions.remove(n);
+			mBinaryNeighbors.remove(n);
+		}
 	}
 
+	/**
+	 * Takes a new measurement of the link to a neighbor.  If it is far enough
+	 * from what we advertise, we advertise it instead, and routes need
+	 * recomputing.
+	 * @param n The neighbor
+	 * @param cost Its measured cost, from LinkCost.fromMeasurements
+	 * @return whether the advertised cost changed
+	 */
+	public boolean updateLinkCost(Node n, int cost) {
+		LinkStateAdvertisement thisLsa = mGraph.get(mNode);
+		if (thisLsa == null || !thisLsa.others.contains(n) || !LinkCost.changed(thisLsa.costTo(n), cost)) {
+			return false;
+		}
+		Log.d(TAG, MessageFormat.format("Cost of the link to {0} is now {1}",
+				n.getAddress(), cost));
+		
+		thisLsa.costs.put(n, cost);
+		thisLsa.sequence++;
+		changed(mNode);
+		sendLSA(thisLsa, null);
+		flushLSAs();
+		return true;
+	}
+	
+	/**
+	 * Obtains the neighbors we have finished a handshake with
+	 */
+	public List<Node> getNeighbors() {
+		LinkStateAdvertisement thisLsa = mGraph.get(mNode);
+		if (thisLsa == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<Node>(thisLsa.others);
+	}
+	
 	/**
 	 * Connects this device to the specified node
 	 * @param n Node to which to connect. 
@@ -242,9 +648,92 @@ public class RoutingProtocol {
 		RoutingMessage newMsg = new RoutingMessage();
 		newMsg.type = Type.Hello;
 		newMsg.obj = mNode;
+		// Sent in the old encoding unless the node has shown it reads the new
+		newMsg.wireVersion = RoutingMessage.WIRE_VERSION;
 		
 		mLinks.put(n, LinkState.HelloSent);
-		mNetworkLayer.sendRoutingMessage(n, newMsg);
+		send(n, newMsg);
+	}
+	
+	/**
+	 * Finds the neighbors a broadcast from the given source should be passed
+	 * on to: our children in the shortest path tree rooted at the source.
+	 * Every node builds the same tree from the same link state, so each link
+	 * the broadcast needs carries it once.
+	 * @param sourceIp IP address of the node the broadcast came from
+	 * @return the neighbors to relay to; empty if we are a leaf of the tree
+	 * 		or don't know the source
+	 */
+	public List<Node> getBroadcastChildren(byte[] sourceIp) {
+		Node source = null;
+		for (Node n : mGraph.keySet()) {
+			if (Arrays.equals(n.getIPAddress(), sourceIp)) {
+				source = n;
+				break;
+			}
+		}
+		if (source == null) {
+			return Collections.emptyList();
+		}
+		
+		List<Node> children = mBroadcastChildren.get(source);
+		if (children == null) {
+			children = computeBroadcastChildren(source);
+			mBroadcastChildren.put(source, children);
+		}
+		return children;
+	}
+	
+	/**
+	 * Builds the shortest path tree from root with Dijkstra's algorithm, over
+	 * links both ends advertise, at the cost the nearer end gives them.  A
+	 * node's parent is the lowest addressed node with a shortest path to it
+	 * through the link between them, so every node picks the same one.
+	 */
+	private List<Node> computeBroadcastChildren(Node root) {
+		HashMap<Node, Integer> distances = new HashMap<Node, Integer>();
+		PriorityQueue<GraphNode> queue = new PriorityQueue<GraphNode>();
+		queue.add(new GraphNode(root, 0, root));
+		while (!queue.isEmpty()) {
+			GraphNode g = queue.poll();
+			if (distances.containsKey(g.node)) {
+				continue;
+			}
+			distances.put(g.node, g.distance);
+			for (Node v : mGraph.get(g.node).others) {
+				Integer cost = edgeCost(g.node, v);
+				if (cost != null && !distances.containsKey(v)) {
+					queue.add(new GraphNode(v, g.distance + cost, g.node));
+				}
+			}
+		}
+		
+		List<Node> children = new ArrayList<Node>();
+		if (!distances.containsKey(mNode)) {
+			return children;
+		}
+		int ours = distances.get(mNode);
+		for (Node v : mGraph.get(mNode).others) {
+			Integer cost = edgeCost(mNode, v);
+			if (v == root || cost == null || ours + cost != distances.get(v)) {
+				continue;
+			}
+			// Ours unless a lower address reaches it as cheaply
+			boolean child = true;
+			for (Node u : mGraph.get(v).others) {
+				Integer in = edgeCost(u, v);
+				if (in != null && ADDRESS_ORDER.compare(u, mNode) < 0
+						&& distances.containsKey(u) && distances.get(u) + in == distances.get(v)) {
+					child = false;
+					break;
+				}
+			}
+			if (child) {
+				children.add(v);
+			}
+		}
+		Collections.sort(children, ADDRESS_ORDER);
+		return children;
 	}
 	
 	/**
@@ -273,11 +762,28 @@ public class RoutingProtocol {
 		Log.d(TAG, "Quitting!");
 		for(Node n: thisLsa.others)
 		{
-			mNetworkLayer.sendRoutingMessage(n, newMsg);
+			send(n, newMsg);
 		}
 		return true;
 	}
 	
+	/**
+	 * Where swapping databases with a neighbor stands: whether it has
+	 * answered our summary, and which LSAs we asked it for that haven't come.
+	 */
+	static class Sync {
+		///When our summary was last sent, or 0 once the neighbor has answered it
+		long describedAt;
+		///Times our summary has been sent
+		int descriptions;
+		///Sequence number asked for, by origin, until an LSA at least that new arrives
+		HashMap<Node, Integer> requested = new HashMap<Node, Integer>();
+		///When the request was last sent
+		long requestedAt;
+		///Times the request has been sent
+		int requests;
+	}
+	
 	/**
 	 * Helper class for Dijkstra's algorithm.
 	 * @author mmullins, Ivan Hernandez
@@ -285,16 +791,21 @@ public class RoutingProtocol {
 	public class GraphNode implements Comparable<GraphNode> {
 		///Current node
 		public Node node;
-		///Distance Between nodes
+		///Distance Between nodes, the sum of the link costs
 		public int distance;
-		///The node we are connected to
+		///The node we are connected to; the first of nextHops
 		public Node nextHop;
+		///Every neighbor starting a path this short, in address order
+		public List<Node> nextHops = new ArrayList<Node>();
 	
 		///Initializes a Graph node with starting node and the node it is paired with as well as the distance between nodes.
 		public GraphNode(Node n, int d, Node p) {
 			node = n;
 			distance = d;
 			nextHop = p;
+			if (p != null) {
+				nextHops.add(p);
+			}
 		}
 		
 		/**
@@ -325,59 +836,328 @@ public class RoutingProtocol {
 	}
 	
 	/**
-	 * Implements Dijkstra's algorithm to calculate the routing table
+	 * Notes that a node's LSA changed.  Routes aren't recomputed until
+	 * recomputeRoutingTable is called, so a burst of changes costs one run.
+	 */
+	private void changed(Node n) {
+		mChanged.add(n);
+		mPendingChanges++;
+		mBroadcastChildren.clear();
+	}
+	
+	/**
+	 * Whether the link state has changed since routes were last computed
 	 */
-	void recomputeRoutingTable() {
-		//LinkStateAdvertisement thisLsa = mGraph.get(mNode);
+	public boolean isRecomputePending() {
+		return !mChanged.isEmpty();
+	}
+	
+	/**
+	 * Copies the counters on routing table computation into stats
+	 */
+	public void getStats(RoutingStats stats) {
+		stats.spfRuns = mSpfRuns;
+		stats.fullSpfRuns = mFullSpfRuns;
+		stats.changes = mChanges;
+		stats.maxChangesPerRun = mMaxChangesPerRun;
+		stats.pending = isRecomputePending();
+	}
+	
+	/**
+	 * Brings the routing table up to date with the LSAs that changed since it
+	 * was last computed.  Every neighbor that starts a shortest path to a
+	 * node is kept as a next hop, so traffic can be spread over equal cost
+	 * paths.
+	 */
+	public void recomputeRoutingTable() {
+		mBroadcastChildren.clear();
+		if (mRoutingTable == null || !updateRoutingTable()) {
+			computeRoutingTable();
+			mFullSpfRuns++;
+		}
+		mSpfRuns++;
+		mChanges += mPendingChanges;
+		mMaxChangesPerRun = Math.max(mMaxChangesPerRun, mPendingChanges);
+		mPendingChanges = 0;
+		mChanged.clear();
+		Log.d(TAG, "Routing table computation complete!");
+//		printRoutingTable(mRoutingTable);
+	}
+	
+	/**
+	 * Implements Dijkstra's algorithm to calculate the routing table from
+	 * scratch.
+	 */
+	private void computeRoutingTable() {
+		mEdges.clear();
+		for (Node n : mGraph.keySet()) {
+			HashMap<Node, Integer> edges = new HashMap<Node, Integer>();
+			for (Node other : mGraph.get(n).others) {
+				Integer cost = edgeCost(n, other);
+				if (cost != null) {
+					edges.put(other, cost);
+				}
+			}
+			mEdges.put(n, edges);
+		}
+		
 		Map<Node, GraphNode> finalGraph = new HashMap<Node, GraphNode>();
-		PriorityQueue<GraphNode> queue = new PriorityQueue<GraphNode>();
+		ShortestPaths spf = new ShortestPaths(finalGraph, null);
 		//our node added to the queue
-		queue.add(new GraphNode(mNode, 0, null));
+		spf.offer(mNode, 0, Collections.<Node>emptyList());
+		spf.run();
+		mRoutingTable = finalGraph;
+	}
+	
+	/**
+	 * Recomputes only the nodes whose shortest paths ran over a link that
+	 * changed, or can now run over one that appeared or got cheaper, along
+	 * with everything downstream of them.  The rest of the routing table
+	 * stands, and seeds Dijkstra's algorithm for the nodes being redone.
+	 * @return false, having left things half done, if so much changed that
+	 * 		computing the table from scratch is cheaper
+	 */
+	private boolean updateRoutingTable() {
+		Map<Node, GraphNode> finalGraph = mRoutingTable;
+		int limit = Math.max(1, mGraph.size() / INCREMENTAL_LIMIT_DIVISOR);
 		
-		while (!queue.isEmpty()) {
-			GraphNode gn = queue.remove();
-			
-			// Have we already found a path to this
-			if (finalGraph.containsKey(gn.node)) {
-				// Is that path shorter?  Then skip the rest!
-				if (finalGraph.get(gn.node).distance < gn.distance) {
+		// Every link from or to a node whose LSA changed, and what it costs now
+		List<Node[]> links = new ArrayList<Node[]>();
+		List<Integer> costs = new ArrayList<Integer>();
+		HashSet<Node> reset = new HashSet<Node>();
+		for (Node x : mChanged) {
+			HashSet<Node> neighbors = new HashSet<Node>();
+			if (mEdges.containsKey(x)) {
+				neighbors.addAll(mEdges.get(x).keySet());
+			}
+			if (mGraph.containsKey(x)) {
+				neighbors.addAll(mGraph.get(x).others);
+			}
+			for (Node v : neighbors) {
+				for (int direction = 0; direction < 2; ++direction) {
+					Node from = direction == 0 ? x : v;
+					Node to = direction == 0 ? v : x;
+					Integer before = mEdges.containsKey(from) ? mEdges.get(from).get(to) : null;
+					Integer after = edgeCost(from, to);
+					if (before == null ? after == null : before.equals(after)) {
+						continue;
+					}
+					links.add(new Node[] { from, to });
+					costs.add(after);
+					
+					/* The far end needs redoing if its shortest path ran over
+					 * the link, or can now */
+					GraphNode gFrom = finalGraph.get(from);
+					GraphNode gTo = finalGraph.get(to);
+					if (to == mNode || gFrom == null) {
+						continue;
+					}
+					if ((before != null && gTo != null && gFrom.distance + before == gTo.distance)
+							|| (after != null && (gTo == null || gFrom.distance + after <= gTo.distance))) {
+						reset.add(to);
+					}
+				}
+			}
+		}
+		
+		// Along with everything downstream, before the links change under us
+		if (!addDownstream(reset, finalGraph, limit)) {
+			return false;
+		}
+		
+		for (int i = 0; i < links.size(); ++i) {
+			Node from = links.get(i)[0];
+			Node to = links.get(i)[1];
+			HashMap<Node, Integer> edges = mEdges.get(from);
+			if (edges == null) {
+				edges = new HashMap<Node, Integer>();
+				mEdges.put(from, edges);
+			}
+			if (costs.get(i) == null) {
+				edges.remove(to);
+			} else {
+				edges.put(to, costs.get(i));
+			}
+		}
+		for (Node x : mChanged) {
+			if (!mGraph.containsKey(x)) {
+				mEdges.remove(x);
+			}
+		}
+		
+		ShortestPaths spf = new ShortestPaths(finalGraph, new HashMap<Node, GraphNode>());
+		spf.limit = limit;
+		spf.reset(reset);
+		return spf.run();
+	}
+	
+	/**
+	 * Adds to nodes every node whose shortest path runs through one of them.
+	 * @return false if that makes more than limit
+	 */
+	private boolean addDownstream(HashSet<Node> nodes, Map<Node, GraphNode> finalGraph, int limit) {
+		List<Node> stack = new ArrayList<Node>(nodes);
+		while (!stack.isEmpty()) {
+			if (nodes.size() > limit) {
+				return false;
+			}
+			Node w = stack.remove(stack.size() - 1);
+			GraphNode gw = finalGraph.get(w);
+			HashMap<Node, Integer> edges = mEdges.get(w);
+			if (gw == null || edges == null) {
+				continue;
+			}
+			for (Map.Entry<Node, Integer> e : edges.entrySet()) {
+				Node x = e.getKey();
+				GraphNode gx = finalGraph.get(x);
+				if (x != mNode && gx != null && gw.distance + e.getValue() == gx.distance && nodes.add(x)) {
+					stack.add(x);
+				}
+			}
+		}
+		return nodes.size() <= limit;
+	}
+	
+	/**
+	 * Cost of the link from one node to another, if both advertise it
+	 * @return the cost from's LSA gives it, or null if there is no such link
+	 */
+	private Integer edgeCost(Node from, Node to) {
+		LinkStateAdvertisement fromLsa = mGraph.get(from);
+		LinkStateAdvertisement toLsa = mGraph.get(to);
+		if (fromLsa == null || toLsa == null || !fromLsa.others.contains(to) || !toLsa.others.contains(from)) {
+			return null;
+		}
+		return Math.max(1, fromLsa.costTo(to));
+	}
+	
+	/**
+	 * One run of Dijkstra's algorithm over mEdges, adding to a routing table
+	 * that may already hold the nodes not being recomputed.
+	 */
+	private class ShortestPaths {
+		final Map<Node, GraphNode> finalGraph;
+		/** Shortest path found so far to each node not yet final */
+		final Map<Node, GraphNode> tentative = new HashMap<Node, GraphNode>();
+		final PriorityQueue<GraphNode> queue = new PriorityQueue<GraphNode>();
+		/** What the nodes being recomputed were before, or null on a full run */
+		final Map<Node, GraphNode> previous;
+		/** Most nodes that may be recomputed */
+		int limit = Integer.MAX_VALUE;
+		
+		ShortestPaths(Map<Node, GraphNode> finalGraph, Map<Node, GraphNode> previous) {
+			this.finalGraph = finalGraph;
+			this.previous = previous;
+		}
+		
+		/** Records a path to n of the given length, starting at the given next hops */
+		void offer(Node n, int distance, List<Node> nextHops) {
+			GraphNode known = tentative.get(n);
+			if (known == null || distance < known.distance) {
+				GraphNode ngn = new GraphNode(n, distance, nextHops.isEmpty() ? null : nextHops.get(0));
+				ngn.nextHops = new ArrayList<Node>(nextHops);
+				tentative.put(n, ngn);
+				queue.add(ngn);
+			} else if (distance == known.distance) {
+				// Another path just as short
+				for (Node hop : nextHops) {
+					if (!known.nextHops.contains(hop)) {
+						known.nextHops.add(hop);
+					}
+				}
+				Collections.sort(known.nextHops, ADDRESS_ORDER);
+			}
+		}
+		
+		/**
+		 * Takes nodes out of the routing table to be recomputed, and offers
+		 * each the paths through its neighbors that are staying.
+		 */
+		void reset(HashSet<Node> nodes) {
+			for (Node n : nodes) {
+				GraphNode old = finalGraph.remove(n);
+				if (old != null && !previous.containsKey(n)) {
+					previous.put(n, old);
+				}
+			}
+			for (Node n : nodes) {
+				HashMap<Node, Integer> edges = mEdges.get(n);
+				if (edges == null) {
 					continue;
 				}
+				// Links go both ways, so n's neighbors are the ones with links to it
+				for (Node u : edges.keySet()) {
+					GraphNode gu = finalGraph.get(u);
+					Integer cost = mEdges.get(u).get(n);
+					if (gu != null && cost != null) {
+						offer(n, gu.distance + cost, hopsVia(gu, n));
+					}
+				}
 			}
-
-			finalGraph.put(gn.node, gn);
-			
-			for (Node n: mGraph.get(gn.node).others) {
-				/* Only add the node to the queue if we've received an LSA from it
-				 * and is well connected. 
-				 */
-				if (mGraph.containsKey(n) && mGraph.get(n).others.contains(gn.node)) {
-					/* Find the next hop for the routing table */
-					Node nextHop;
-					if (gn.node == mNode) {
-						/* If the node that got us here is this node, then we
-						 * want to actually set the predecessor */
-						nextHop = n;
-					} else {
-						/* Otherwise, let's take the same predecessor from the node that got us here */
-						nextHop = gn.nextHop;
+		}
+		
+		/** Next hops of a path to n whose last link is from gu */
+		List<Node> hopsVia(GraphNode gu, Node n) {
+			return gu.node == mNode ? Collections.singletonList(n) : gu.nextHops;
+		}
+		
+		/**
+		 * Runs until the queue is empty.
+		 * @return false if that meant recomputing more than limit nodes
+		 */
+		boolean run() {
+			while (!queue.isEmpty()) {
+				GraphNode gn = queue.remove();
+				
+				// Skip entries superseded by a shorter path
+				if (finalGraph.containsKey(gn.node) || tentative.get(gn.node) != gn) {
+					continue;
+				}
+				tentative.remove(gn.node);
+				// Every path this short reached it before it came off the queue
+				if (!gn.nextHops.isEmpty()) {
+					gn.nextHop = gn.nextHops.get(0);
+				}
+				finalGraph.put(gn.node, gn);
+				
+				HashMap<Node, Integer> edges = mEdges.get(gn.node);
+				if (edges == null) {
+					continue;
+				}
+				for (Map.Entry<Node, Integer> e : edges.entrySet()) {
+					Node n = e.getKey();
+					if (n == mNode) {
+						continue;
+					}
+					int distance = gn.distance + e.getValue();
+					GraphNode known = finalGraph.get(n);
+					if (known == null) {
+						offer(n, distance, hopsVia(gn, n));
+					} else if (previous != null && (distance < known.distance
+							|| (distance == known.distance && !unchanged(gn)))) {
+						/* A node that was staying has a new shortest path
+						 * through this one, so it and everything downstream
+						 * of it are redone too */
+						HashSet<Node> downstream = new HashSet<Node>();
+						downstream.add(n);
+						if (!addDownstream(downstream, finalGraph, limit - previous.size())) {
+							return false;
+						}
+						reset(downstream);
+						if (previous.size() > limit) {
+							return false;
+						}
 					}
-					/**
-					 * TODO: possibly take into account current structure to
-					 * 		rearrange nodes so everyone will fit but other than that
-					 * 		we're good
-					 */
-					GraphNode ngn = new GraphNode(n, gn.distance + 1, nextHop);
-					queue.add(ngn);
-				} else {
-					Log.d(TAG, MessageFormat.format("Skipping node {0}", n.getAddress()));
 				}
 			}
+			return true;
 		}
 		
-		Log.d(TAG, "Routing table computation complete!");
-//		printRoutingTable(finalGraph);
-		mRoutingTable = finalGraph;
+		/** Whether a recomputed node came out as it was before */
+		boolean unchanged(GraphNode gn) {
+			GraphNode old = previous.get(gn.node);
+			return old != null && old.distance == gn.distance && old.nextHops.equals(gn.nextHops);
+		}
 	}
 	
 
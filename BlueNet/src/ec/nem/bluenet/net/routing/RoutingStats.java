@@ -0,0 +1,50 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.MessageFormat;
+
+/**
+ * A snapshot of the counters kept on routing table computation.  Changes to
+ * the link state are held for a short hold-down and then computed together,
+ * so a burst of LSAs costs one run.
+ */
+public class RoutingStats {
+	/** How long changes are held before routes are recomputed, in milliseconds */
+	public long holdDown;
+	/** Number of times routes were recomputed */
+	public long spfRuns;
+	/** Number of those that computed every route from scratch */
+	public long fullSpfRuns;
+	/** Number of changes, mostly new LSAs, folded into those runs */
+	public long changes;
+	/** Most changes folded into a single run */
+	public int maxChangesPerRun;
+	/** Number of routing tables built and swapped in */
+	public long tableBuilds;
+	/** Whether changes are waiting for the next run */
+	public boolean pending;
+	/** How long the last table took to catch up with the first change it took in, in microseconds */
+	public long lastStaleness;
+	/** Longest that took, in microseconds */
+	public long maxStaleness;
+	/** Sum over every table built, in microseconds */
+	public long totalStaleness;
+
+	/** Average number of changes folded into each run */
+	public double getChangesPerRun() {
+		return spfRuns == 0 ? 0 : (double) changes / spfRuns;
+	}
+
+	/** Average time a table took to catch up, in microseconds */
+	public double getMeanStaleness() {
+		return tableBuilds == 0 ? 0 : (double) totalStaleness / tableBuilds;
+	}
+
+	@Override
+	public String toString() {
+		return MessageFormat.format(
+				"RoutingStats:: hold-down:{0} ms spf:{1} (full {2}) changes:{3} per run:{4} max:{5}"
+				+ " tables:{6} pending:{7} stale:{8} us mean:{9} max:{10}",
+				holdDown, spfRuns, fullSpfRuns, changes, getChangesPerRun(), maxChangesPerRun,
+				tableBuilds, pending, lastStaleness, getMeanStaleness(), maxStaleness);
+	}
+}
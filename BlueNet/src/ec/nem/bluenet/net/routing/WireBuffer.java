@@ -0,0 +1,124 @@
+package ec.nem.bluenet.net.routing;
+
+import java.io.EOFException;
+
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.NodeFactory;
+
+/**
+ * The bytes of a routing message, as it is built up or read back.<br>
+ * <br>
+ *
+ * Numbers go as unsigned varints: seven bits to a byte, least significant
+ * first, with the top bit set on all but the last byte, so sequence
+ * numbers, counts and costs mostly take one or two bytes.  Nodes go as
+ * their 6 byte Bluetooth address.
+ */
+final class WireBuffer {
+	/** Length of a packed Bluetooth address */
+	static final int ADDRESS_LENGTH = 6;
+
+	private byte[] mBytes;
+	private int mPosition;
+	private final int mLimit;
+
+	/** An empty buffer to write into */
+	WireBuffer(int capacity) {
+		mBytes = new byte[Math.max(capacity, 16)];
+		mLimit = Integer.MAX_VALUE;
+	}
+
+	/** A buffer to read bytes[offset, offset + length) back from */
+	WireBuffer(byte[] bytes, int offset, int length) {
+		mBytes = bytes;
+		mPosition = offset;
+		mLimit = offset + length;
+	}
+
+	/** The bytes written so far */
+	byte[] toByteArray() {
+		byte[] out = new byte[mPosition];
+		System.arraycopy(mBytes, 0, out, 0, mPosition);
+		return out;
+	}
+
+	void writeByte(int b) {
+		ensure(1);
+		mBytes[mPosition++] = (byte) b;
+	}
+
+	/** Writes the int's 32 bits as an unsigned varint, 5 bytes at most */
+	void writeVarint(int value) {
+		ensure(5);
+		while ((value & ~0x7F) != 0) {
+			mBytes[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		mBytes[mPosition++] = (byte) value;
+	}
+
+	void writeNode(Node n) {
+		ensure(ADDRESS_LENGTH);
+		System.arraycopy(n.getAddressBytes(), 0, mBytes, mPosition, ADDRESS_LENGTH);
+		mPosition += ADDRESS_LENGTH;
+	}
+
+	void writeBytes(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, mBytes, mPosition, b.length);
+		mPosition += b.length;
+	}
+
+	private void ensure(int n) {
+		if (mPosition + n > mBytes.length) {
+			byte[] bigger = new byte[Math.max(mBytes.length * 2, mPosition + n)];
+			System.arraycopy(mBytes, 0, bigger, 0, mPosition);
+			mBytes = bigger;
+		}
+	}
+
+	/** How many bytes are left to read */
+	int remaining() {
+		return mLimit - mPosition;
+	}
+
+	int readByte() throws EOFException {
+		if (mPosition >= mLimit) {
+			throw new EOFException();
+		}
+		return mBytes[mPosition++] & 0xFF;
+	}
+
+	int readVarint() throws EOFException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new EOFException("Varint longer than 5 bytes");
+	}
+
+	/** Reads the next length bytes into an array of their own */
+	byte[] readBytes(int length) throws EOFException {
+		if (length < 0 || mLimit - mPosition < length) {
+			throw new EOFException();
+		}
+		byte[] out = new byte[length];
+		System.arraycopy(mBytes, mPosition, out, 0, length);
+		mPosition += length;
+		return out;
+	}
+
+	/** Reads an address, giving the one Node NodeFactory keeps for it */
+	Node readNode() throws EOFException {
+		if (mLimit - mPosition < ADDRESS_LENGTH) {
+			throw new EOFException();
+		}
+		Node n = NodeFactory.factory.fromMacAddress(mBytes, mPosition);
+		mPosition += ADDRESS_LENGTH;
+		return n;
+	}
+}
@@ -0,0 +1,192 @@
+package ec.nem.bluenet.net;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import android.os.Handler;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.CommunicationThread;
+import ec.nem.bluenet.Message;
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.NodeFactory;
+import ec.nem.bluenet.net.link.PipeTransport;
+
+/**
+ * Brings up a chain of six whole stacks over a PipeTransport, five hops
+ * from end to end, and sends UDP datagrams from the first to the last.<br>
+ * <br>
+ *
+ * The chain is run with transit datagrams going up every network layer,
+ * cut through in the link layer, and cut through with Deflate on, which
+ * hands them to the down thread while compression pays.  For each, the 50th
+ * and 99th percentile time for one of PINGS paced datagrams to cross, how
+ * many of FLOOD datagrams sent at once got across per second, and how many
+ * hops were cut through are logged under TAG.
+ */
+@LargeTest
+public class CutThroughBenchmark extends TestCase {
+	private static final String TAG = "CutThroughBenchmark";
+	private static final int NODES = 6;
+	private static final int PORT = 50997;
+	private static final int PAYLOAD_LENGTH = 200;
+	private static final int PINGS = 300;
+	private static final long PING_INTERVAL = 5;
+	private static final int FLOOD = 3000;
+	/** Longest to wait for routes or a datagram, in milliseconds */
+	private static final long TIMEOUT = 10000;
+
+	private CommunicationThread[] mNodes;
+	private String[] mAddresses;
+	private final BlockingQueue<Long> mLatencies = new LinkedBlockingQueue<Long>();
+
+	public void testChain() throws Exception {
+		Log.i(TAG, String.format("%-20s %9s %9s %10s %12s %12s", "path", "p50", "p99", "delivered", "datagrams/s",
+				"cut through"));
+		double stack = run("network layer", false, false);
+		double cutThrough = run("cut through", true, false);
+		run("cut through, deflate", true, true);
+		assertTrue(cutThrough < stack);
+	}
+
+	/** @return the 50th percentile latency, in milliseconds */
+	private double run(String name, boolean cutThrough, boolean deflate) throws Exception {
+		start(cutThrough, deflate);
+		try {
+			ArrayList<Long> latencies = new ArrayList<Long>(PINGS);
+			for (int i = 0; i < PINGS; ++i) {
+				send();
+				Long latency = mLatencies.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+				assertNotNull("Datagram didn't arrive", latency);
+				latencies.add(latency);
+				Thread.sleep(PING_INTERVAL);
+			}
+			Collections.sort(latencies);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < FLOOD; ++i) {
+				send();
+			}
+			int delivered = 0;
+			while (mLatencies.poll(500, TimeUnit.MILLISECONDS) != null) {
+				delivered++;
+			}
+			// Less the time spent noticing nothing else was coming
+			double seconds = (System.nanoTime() - start) / 1e9 - 0.5;
+
+			long cutThroughFrames = 0;
+			for (int i = 1; i < NODES - 1; ++i) {
+				cutThroughFrames += mNodes[i].getLinkStats(mAddresses[i + 1]).cutThroughFrames;
+			}
+			if (!cutThrough) {
+				assertEquals(0, cutThroughFrames);
+			} else if (!deflate) {
+				assertTrue(cutThroughFrames >= (NODES - 2) * PINGS);
+			}
+
+			double p50 = percentile(latencies, 0.50);
+			Log.i(TAG, String.format("%-20s %6.2f ms %6.2f ms %10d %12.0f %12d", name, p50,
+					percentile(latencies, 0.99), delivered, delivered / seconds, cutThroughFrames));
+			return p50;
+		} finally {
+			stop();
+		}
+	}
+
+	private static double percentile(ArrayList<Long> sorted, double p) {
+		return sorted.get((int) Math.min(sorted.size() - 1, Math.round(p * sorted.size()))) / 1e6;
+	}
+
+	/** Sends a datagram stamped with the time from the first node to the last */
+	private void send() throws ParseException {
+		Node via = NodeFactory.factory.fromMacAddress(mAddresses[1]);
+		Node to = NodeFactory.factory.fromMacAddress(mAddresses[NODES - 1]);
+		byte[] data = new byte[PAYLOAD_LENGTH];
+		ByteBuffer.wrap(data).putLong(System.nanoTime());
+
+		Segment s = new Segment(Segment.TYPE_UDP);
+		UDPHeader udp = (UDPHeader) s.transportSegment;
+		udp.setSourcePort(PORT);
+		udp.setDestinationPort(PORT);
+		udp.setData(Message.serialize(new Message("Benchmark", mAddresses[0], "", data, 0)));
+		s.IPHeader.sourceAddress = mNodes[0].getLocalNode().getIPAddress();
+		s.IPHeader.destinationAddress = to.getIPAddress();
+		s.IPHeader.setVersion(6);
+		s.IPHeader.setTrafficClass(IPv6Header.TC_INTERACTIVE);
+		s.IPHeader.setNextHeader(IPv6Header.NH_UDP);
+		s.IPHeader.setHopLimit(64);
+		s.nextHopMACAddress = via.getAddressBytes();
+		Handler link = mNodes[0].getLinkLayer().getAboveHandler();
+		link.sendMessage(link.obtainMessage(Layer.MESSAGE_SEND, s));
+	}
+
+	/**
+	 * Connects the chain, waits for every node to have a route to the last
+	 * and the last to the first, then starts timing what reaches the last.
+	 */
+	private void start(boolean cutThrough, boolean deflate) throws ParseException, InterruptedException {
+		PipeTransport.Hub hub = new PipeTransport.Hub();
+		mNodes = new CommunicationThread[NODES];
+		mAddresses = new String[NODES];
+		for (int i = 0; i < NODES; ++i) {
+			mAddresses[i] = String.format("00:1A:7D:DA:72:%02X", i);
+			if (i > 0) {
+				hub.pair(mAddresses[i - 1], mAddresses[i]);
+			}
+		}
+		for (int i = 0; i < NODES; ++i) {
+			mNodes[i] = new CommunicationThread(null, 0, new PipeTransport(hub, mAddresses[i]));
+			mNodes[i].getLinkLayer().setCutThrough(cutThrough);
+			mNodes[i].getLinkLayer().setPayloadCompression(deflate);
+			mNodes[i].getLinkLayer().run();
+		}
+		for (int i = 0; i < NODES - 1; ++i) {
+			mNodes[i].connectTo(NodeFactory.factory.fromMacAddress(mAddresses[i + 1]));
+		}
+
+		byte[] first = NodeFactory.factory.fromMacAddress(mAddresses[0]).getIPAddress();
+		byte[] last = NodeFactory.factory.fromMacAddress(mAddresses[NODES - 1]).getIPAddress();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		for (int i = 0; i < NODES; ++i) {
+			byte[] to = i == NODES - 1 ? first : last;
+			while (mNodes[i].getNetworkLayer().mRoutingTable == null
+					|| mNodes[i].getNetworkLayer().mRoutingTable.getNextHop(to) == null) {
+				assertTrue("Routes weren't found", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+
+		final Handler network = mNodes[NODES - 1].getNetworkLayer().getBelowHandler();
+		mNodes[NODES - 1].getLinkLayer().setAboveTargetHandler(new Handler(network.getLooper()) {
+			@Override
+			public void handleMessage(android.os.Message msg) {
+				if (msg.obj instanceof Segment) {
+					Segment s = (Segment) msg.obj;
+					if (s.transportSegment instanceof UDPHeader
+							&& ((UDPHeader) s.transportSegment).getDestinationPort() == PORT) {
+						Message m = Message.deserialize(((UDPHeader) s.transportSegment).getData());
+						mLatencies.add(System.nanoTime() - ByteBuffer.wrap((byte[]) m.getData()).getLong());
+						return;
+					}
+				}
+				network.sendMessage(network.obtainMessage(msg.what, msg.arg1, msg.arg2, msg.obj));
+			}
+		});
+	}
+
+	private void stop() {
+		for (CommunicationThread node : mNodes) {
+			node.getNetworkLayer().stopLayer();
+			node.getLinkLayer().stopLayer();
+		}
+		mLatencies.clear();
+	}
+}
@@ -0,0 +1,382 @@
+package ec.nem.bluenet.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+
+import ec.nem.bluenet.CommunicationThread;
+import ec.nem.bluenet.Message;
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.NodeFactory;
+import ec.nem.bluenet.net.link.FrameDecoder;
+import ec.nem.bluenet.net.link.IphcCodec;
+import ec.nem.bluenet.net.link.LinkConnection;
+import ec.nem.bluenet.net.link.LinkTransport;
+import ec.nem.bluenet.net.link.PipeTransport;
+
+/**
+ * Brings up a chain of three whole stacks, A - B - C, over a PipeTransport
+ * and checks how B passes datagrams from A on to C.
+ */
+public class ForwardingTest extends TestCase {
+	private static final String A = "00:1A:7D:DA:71:0A";
+	private static final String B = "00:1A:7D:DA:71:0B";
+	private static final String C = "00:1A:7D:DA:71:0C";
+	/** Where test datagrams go; nothing listens there */
+	private static final int PORT = 50998;
+	/** Longest to wait for routes or a datagram, in milliseconds */
+	private static final long TIMEOUT = 10000;
+
+	private CommunicationThread mA;
+	private CommunicationThread mB;
+	private CommunicationThread mC;
+	/** UDP datagrams B's link layer passed up to its network layer */
+	private final BlockingQueue<Segment> mAtB = new LinkedBlockingQueue<Segment>();
+	/** UDP datagrams that reached C */
+	private final BlockingQueue<Segment> mAtC = new LinkedBlockingQueue<Segment>();
+	/** C's transport, which sees the frames B sends */
+	private TappedTransport mCTransport;
+
+	@Override
+	protected void setUp() {
+		PipeTransport.Hub hub = new PipeTransport.Hub();
+		hub.pair(A, B);
+		hub.pair(B, C);
+		mA = new CommunicationThread(null, 0, new PipeTransport(hub, A));
+		mB = new CommunicationThread(null, 0, new PipeTransport(hub, B));
+		mCTransport = new TappedTransport(new PipeTransport(hub, C));
+		mC = new CommunicationThread(null, 0, mCTransport);
+		// Deflate would send everything through B's down thread
+		mB.getLinkLayer().setPayloadCompression(false);
+	}
+
+	@Override
+	protected void tearDown() {
+		for (CommunicationThread stack : new CommunicationThread[] { mA, mB, mC }) {
+			stack.getNetworkLayer().stopLayer();
+			stack.getLinkLayer().stopLayer();
+		}
+	}
+
+	public void testCutThrough() throws Exception {
+		connect();
+		byte[] payload = payload(200);
+		send(payload, 64, 5);
+		for (int i = 0; i < 5; ++i) {
+			assertArrived(payload, 63);
+		}
+		assertEquals(5, mB.getLinkStats(C).cutThroughFrames);
+		assertEquals(0, mB.getLinkStats(A).expiredFrames);
+		// Never passed up B's stack
+		assertTrue(mAtB.isEmpty());
+	}
+
+	public void testHopLimitOneIsDropped() throws Exception {
+		connect();
+		send(payload(10), 1, 3);
+		// Sent after them, so once it arrives the others are gone for good
+		byte[] last = payload(20);
+		send(last, 2, 1);
+		assertArrived(last, 1);
+		assertTrue(mAtC.isEmpty());
+		assertEquals(3, mB.getLinkStats(A).expiredFrames);
+		assertEquals(1, mB.getLinkStats(C).cutThroughFrames);
+	}
+
+	public void testHopLimitZeroIsLeftAlone() throws Exception {
+		connect();
+		byte[] payload = payload(30);
+		// As sent by nodes older than the hop limit
+		send(payload, 0, 1);
+		assertArrived(payload, 0);
+	}
+
+	public void testCompressedHeaderIsRecompressedForTheNextHop() throws Exception {
+		for (CommunicationThread stack : new CommunicationThread[] { mA, mB, mC }) {
+			stack.getLinkLayer().setHeaderCompression(true);
+		}
+		connect();
+		long compressed = mA.getLinkStats(B).compressedFrames;
+		byte[] payload = payload(100);
+		send(payload, 64, 3);
+		for (int i = 0; i < 3; ++i) {
+			assertArrived(payload, 63);
+		}
+		assertTrue(mA.getLinkStats(B).compressedFrames >= compressed + 3);
+		assertEquals(3, mB.getLinkStats(C).cutThroughFrames);
+
+		// As short as B can make it for the link to C, with C's address left out
+		IPv6Header header = new IPv6Header();
+		header.setVersion(6);
+		header.setTrafficClass(IPv6Header.TC_INTERACTIVE);
+		header.setNextHeader(IPv6Header.NH_UDP);
+		header.setHopLimit(63);
+		header.sourceAddress = NodeFactory.factory.fromMacAddress(A).getIPAddress();
+		header.destinationAddress = NodeFactory.factory.fromMacAddress(C).getIPAddress();
+		int expected = IphcCodec.compress(header.headerFields, header.sourceAddress, header.destinationAddress,
+				NodeFactory.factory.fromMacAddress(B).getAddressBytes(),
+				NodeFactory.factory.fromMacAddress(C).getAddressBytes(), 0).length;
+		for (int i = 0; i < 3; ++i) {
+			Integer length = mCTransport.mCompressedHeaders.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertEquals(Integer.valueOf(expected), length);
+		}
+	}
+
+	public void testFullHeaderFromCompressedOne() throws Exception {
+		// A compresses, but B sends full headers on
+		mA.getLinkLayer().setHeaderCompression(true);
+		connect();
+		byte[] payload = payload(100);
+		send(payload, 64, 1);
+		assertArrived(payload, 63);
+		assertEquals(1, mB.getLinkStats(C).cutThroughFrames);
+		assertTrue(mCTransport.mCompressedHeaders.isEmpty());
+	}
+
+	public void testDeflateGoesThroughDownThread() throws Exception {
+		mB.getLinkLayer().setPayloadCompression(true);
+		connect();
+		assertTrue(mB.getLinkStats(C).payloadCompression);
+		assertForwardedByDownThread(payload(500));
+	}
+
+	public void testArqGoesThroughDownThread() throws Exception {
+		mB.getLinkLayer().setLinkArq(true);
+		mC.getLinkLayer().setLinkArq(true);
+		connect();
+		assertTrue(mB.getLinkStats(C).arq);
+		assertForwardedByDownThread(payload(500));
+	}
+
+	public void testFragmentsGoThroughDownThread() throws Exception {
+		connect();
+		assertForwardedByDownThread(payload(3 * LinkLayer.DEFAULT_LINK_MTU));
+		assertTrue(mC.getLinkStats(B).reassembledDatagrams > 0);
+	}
+
+	public void testStackPath() throws Exception {
+		mB.getLinkLayer().setCutThrough(false);
+		connect();
+		byte[] payload = payload(200);
+		send(payload, 64, 2);
+		send(payload, 1, 1);
+		assertArrived(payload, 63);
+		assertArrived(payload, 63);
+		assertEquals(0, mB.getLinkStats(C).cutThroughFrames);
+		// The network layer saw all three and applied the same hop limit rule
+		assertNotNull(mAtB.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNotNull(mAtB.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNotNull(mAtB.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNull(mAtC.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Sends datagrams that B has to hand to its down thread, which must
+	 * still get there without being counted as cut through.
+	 */
+	private void assertForwardedByDownThread(byte[] payload) throws Exception {
+		send(payload, 64, 3);
+		for (int i = 0; i < 3; ++i) {
+			assertArrived(payload, 63);
+		}
+		assertEquals(0, mB.getLinkStats(C).cutThroughFrames);
+		assertTrue(mAtB.isEmpty());
+	}
+
+	private void assertArrived(byte[] payload, int hopLimit) throws InterruptedException, ParseException {
+		Segment s = mAtC.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("Datagram didn't arrive", s);
+		assertTrue(Arrays.equals(NodeFactory.factory.fromMacAddress(A).getIPAddress(), s.IPHeader.sourceAddress));
+		assertTrue(Arrays.equals(NodeFactory.factory.fromMacAddress(C).getIPAddress(), s.IPHeader.destinationAddress));
+		assertEquals(hopLimit, s.IPHeader.getHopLimit());
+		assertEquals(IPv6Header.TC_INTERACTIVE, s.IPHeader.getTrafficClass());
+		assertTrue(Arrays.equals(payload, ((UDPHeader) s.transportSegment).getData()));
+	}
+
+	/** Sends UDP datagrams from A to C by way of B */
+	private void send(byte[] payload, int hopLimit, int count) throws ParseException {
+		Node via = NodeFactory.factory.fromMacAddress(B);
+		Node to = NodeFactory.factory.fromMacAddress(C);
+		Handler link = mA.getLinkLayer().getAboveHandler();
+		for (int i = 0; i < count; ++i) {
+			Segment s = new Segment(Segment.TYPE_UDP);
+			UDPHeader udp = (UDPHeader) s.transportSegment;
+			udp.setSourcePort(PORT);
+			udp.setDestinationPort(PORT);
+			udp.setData(payload);
+			s.IPHeader.sourceAddress = mA.getLocalNode().getIPAddress();
+			s.IPHeader.destinationAddress = to.getIPAddress();
+			s.IPHeader.setVersion(6);
+			s.IPHeader.setTrafficClass(IPv6Header.TC_INTERACTIVE);
+			s.IPHeader.setNextHeader(IPv6Header.NH_UDP);
+			s.IPHeader.setHopLimit(hopLimit);
+			s.nextHopMACAddress = via.getAddressBytes();
+			link.sendMessage(link.obtainMessage(Layer.MESSAGE_SEND, s));
+		}
+	}
+
+	/** A Message of about the given length, so C's sockets can read it */
+	private static byte[] payload(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = (byte) (i * 13);
+		}
+		return Message.serialize(new Message("Test", A, "", data, 0));
+	}
+
+	/**
+	 * Connects the chain and waits for A and C to have routes to each other,
+	 * then starts watching what reaches B's network layer and C.
+	 */
+	private void connect() throws ParseException, InterruptedException {
+		for (CommunicationThread stack : new CommunicationThread[] { mA, mB, mC }) {
+			stack.getLinkLayer().run();
+		}
+		mA.connectTo(NodeFactory.factory.fromMacAddress(B));
+		mC.connectTo(NodeFactory.factory.fromMacAddress(B));
+
+		byte[] a = NodeFactory.factory.fromMacAddress(A).getIPAddress();
+		byte[] c = NodeFactory.factory.fromMacAddress(C).getIPAddress();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mA.getNetworkLayer().mRoutingTable.getNextHop(c) == null
+				|| mB.getNetworkLayer().mRoutingTable.getNextHop(c) == null
+				|| mC.getNetworkLayer().mRoutingTable.getNextHop(a) == null) {
+			assertTrue("Routes weren't found", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		watch(mB, mAtB);
+		watch(mC, mAtC);
+	}
+
+	/**
+	 * Records the test datagrams a stack's link layer passes up, still
+	 * handing everything on to its network layer.
+	 */
+	private static void watch(CommunicationThread stack, final BlockingQueue<Segment> seen) {
+		final Handler network = stack.getNetworkLayer().getBelowHandler();
+		stack.getLinkLayer().setAboveTargetHandler(new Handler(network.getLooper()) {
+			@Override
+			public void handleMessage(android.os.Message msg) {
+				// Urgent messages carry a queue the network layer takes them from
+				if (msg.obj instanceof Segment) {
+					Segment s = (Segment) msg.obj;
+					if (s.transportSegment instanceof UDPHeader
+							&& ((UDPHeader) s.transportSegment).getDestinationPort() == PORT) {
+						seen.add(s);
+					}
+				}
+				network.sendMessage(network.obtainMessage(msg.what, msg.arg1, msg.arg2, msg.obj));
+			}
+		});
+	}
+
+	/**
+	 * Wraps a transport, decoding what arrives on it alongside the link
+	 * layer to note how long the compressed header of each UDP datagram is.
+	 */
+	private static class TappedTransport implements LinkTransport {
+		private final LinkTransport mTransport;
+		private final FrameDecoder mDecoder = new FrameDecoder();
+		final BlockingQueue<Integer> mCompressedHeaders = new LinkedBlockingQueue<Integer>();
+
+		TappedTransport(LinkTransport transport) {
+			mTransport = transport;
+		}
+
+		public String getLocalAddress() {
+			return mTransport.getLocalAddress();
+		}
+
+		public List<String> getPairedAddresses() {
+			return mTransport.getPairedAddresses();
+		}
+
+		public LinkConnection connect(String address) throws IOException {
+			return wrap(mTransport.connect(address));
+		}
+
+		public void listen() throws IOException {
+			mTransport.listen();
+		}
+
+		public LinkConnection accept() throws IOException {
+			return wrap(mTransport.accept());
+		}
+
+		public void close() {
+			mTransport.close();
+		}
+
+		private synchronized void tap(byte[] b, int off, int len, byte[] linkSource, byte[] linkDestination) {
+			int end = off + len;
+			while (off < end) {
+				off += mDecoder.feed(b, off, end - off);
+				if (mDecoder.hasFrame() && mDecoder.getProtocol() == LinkLayer.LinkFrame.PROTOCOL_IPHC) {
+					IPv6Header header = new IPv6Header();
+					int length = IphcCodec.decompress(mDecoder.getBuffer(), FrameDecoder.DATA_OFFSET,
+							mDecoder.getDataLength(), linkSource, linkDestination, header);
+					if (header.getNextHeader() == IPv6Header.NH_UDP) {
+						mCompressedHeaders.add(length);
+					}
+				}
+			}
+		}
+
+		private LinkConnection wrap(final LinkConnection c) throws IOException {
+			final byte[] remote;
+			final byte[] local;
+			try {
+				remote = NodeFactory.factory.fromMacAddress(c.getRemoteAddress()).getAddressBytes();
+				local = NodeFactory.factory.fromMacAddress(getLocalAddress()).getAddressBytes();
+			} catch (ParseException e) {
+				throw new IOException(e.getMessage());
+			}
+			final InputStream in = new FilterInputStream(c.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						tap(new byte[] { (byte) b }, 0, 1, remote, local);
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						tap(b, off, n, remote, local);
+					}
+					return n;
+				}
+			};
+			return new LinkConnection() {
+				public String getRemoteAddress() {
+					return c.getRemoteAddress();
+				}
+
+				public InputStream getInputStream() {
+					return in;
+				}
+
+				public OutputStream getOutputStream() throws IOException {
+					return c.getOutputStream();
+				}
+
+				public void close() throws IOException {
+					c.close();
+				}
+			};
+		}
+	}
+}
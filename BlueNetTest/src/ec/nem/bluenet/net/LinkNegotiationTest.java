@@ -0,0 +1,413 @@
+package ec.nem.bluenet.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+
+import ec.nem.bluenet.CommunicationThread;
+import ec.nem.bluenet.Message;
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.NodeFactory;
+import ec.nem.bluenet.net.link.DeflateCodec;
+import ec.nem.bluenet.net.link.Framing;
+import ec.nem.bluenet.net.link.LinkConnection;
+import ec.nem.bluenet.net.link.LinkStats;
+import ec.nem.bluenet.net.link.LinkTransport;
+import ec.nem.bluenet.net.link.PipeTransport;
+
+/**
+ * Brings up two whole stacks over a PipeTransport and checks what each ends
+ * up using on the link once their Hellos have been exchanged.
+ */
+public class LinkNegotiationTest extends TestCase {
+	private static final String A = "00:1A:7D:DA:71:0A";
+	private static final String B = "00:1A:7D:DA:71:0B";
+	/** Where test datagrams go; nothing listens there */
+	private static final int PORT = 50999;
+	/** Longest to wait for the handshake, in milliseconds */
+	private static final long TIMEOUT = 10000;
+
+	private CommunicationThread mA;
+	private CommunicationThread mB;
+	/** A's transport, which can stop A hearing from B */
+	private DeafTransport mATransport;
+
+	@Override
+	protected void setUp() {
+		PipeTransport.Hub hub = new PipeTransport.Hub();
+		hub.pair(A, B);
+		mATransport = new DeafTransport(new PipeTransport(hub, A));
+		mA = new CommunicationThread(null, 0, mATransport);
+		mB = new CommunicationThread(null, 0, new PipeTransport(hub, B));
+	}
+
+	@Override
+	protected void tearDown() {
+		for (CommunicationThread stack : new CommunicationThread[] { mA, mB }) {
+			stack.getNetworkLayer().stopLayer();
+			stack.getLinkLayer().stopLayer();
+		}
+	}
+
+	public void testPayloadCompression() throws Exception {
+		connect();
+		assertTrue(mA.getLinkStats(B).payloadCompression);
+		assertTrue(mB.getLinkStats(A).payloadCompression);
+	}
+
+	public void testPayloadCompressionOff() throws Exception {
+		mA.getLinkLayer().setPayloadCompression(false);
+		connect();
+		assertFalse(mA.getLinkStats(B).payloadCompression);
+		assertTrue(mB.getLinkStats(A).payloadCompression);
+	}
+
+	public void testDictionaryMismatch() throws Exception {
+		connect();
+		// As if B had come up with another build's dictionary, or none at all
+		mA.getLinkLayer().setPeerCapabilities(B, LinkLayer.FEATURES, DeflateCodec.DICTIONARY_ID + 1);
+		assertFalse(mA.getLinkStats(B).payloadCompression);
+		mA.getLinkLayer().setPeerCapabilities(B, LinkLayer.FEATURES, 0);
+		assertFalse(mA.getLinkStats(B).payloadCompression);
+		mA.getLinkLayer().setPeerCapabilities(B, LinkLayer.FEATURES, DeflateCodec.DICTIONARY_ID);
+		assertTrue(mA.getLinkStats(B).payloadCompression);
+	}
+
+	public void testCompressibleTrafficKeepsCompressionOn() throws Exception {
+		connect();
+		byte[] text = new byte[1000];
+		Arrays.fill(text, (byte) 'x');
+		LinkStats stats = send(mA, B, message(text), 2 * LinkLayer.COMPRESSION_WINDOW);
+		assertTrue(stats.payloadCompression);
+		assertTrue(stats.getCompressionRatio() < 0.5);
+	}
+
+	public void testIncompressibleTrafficTurnsCompressionOff() throws Exception {
+		connect();
+		// Not even a Message, which the dictionary would shrink; B drops these
+		byte[] noise = new byte[1000];
+		new Random(1).nextBytes(noise);
+		LinkStats stats = send(mA, B, noise, LinkLayer.COMPRESSION_WINDOW);
+		assertFalse(stats.payloadCompression);
+		// Only toward B, and only until the backoff is over
+		assertTrue(mB.getLinkStats(A).payloadCompression);
+	}
+
+	public void testCompressionComesBackAfterBackoff() throws Exception {
+		mA.getLinkLayer().setCompressionBackoff(200);
+		connect();
+		byte[] noise = new byte[1000];
+		new Random(1).nextBytes(noise);
+		assertFalse(send(mA, B, noise, LinkLayer.COMPRESSION_WINDOW).payloadCompression);
+		Thread.sleep(300);
+		assertTrue(mA.getLinkStats(B).payloadCompression);
+	}
+
+	public void testArqIsOffByDefault() throws Exception {
+		connect();
+		assertFalse(mA.getLinkStats(B).arq);
+		assertFalse(mB.getLinkStats(A).arq);
+	}
+
+	public void testArq() throws Exception {
+		mA.getLinkLayer().setLinkArq(true);
+		mB.getLinkLayer().setLinkArq(true);
+		connect();
+		assertTrue(mA.getLinkStats(B).arq);
+		assertTrue(mB.getLinkStats(A).arq);
+
+		send(mA, B, message(new byte[200]), 10);
+		LinkStats stats = waitForAcks(mA, B);
+		assertTrue(stats.arqSrtt > 0);
+		assertEquals(0, stats.arqRetransmits);
+	}
+
+	public void testArqOnOneSide() throws Exception {
+		mA.getLinkLayer().setLinkArq(true);
+		connect();
+		assertTrue(mA.getLinkStats(B).arq);
+		assertFalse(mB.getLinkStats(A).arq);
+
+		// B still acknowledges what A sends through ARQ
+		send(mA, B, message(new byte[200]), 10);
+		assertTrue(waitForAcks(mA, B).arqSrtt > 0);
+	}
+
+	public void testLengthFraming() throws Exception {
+		assertFraming(Framing.LENGTH, Framing.LENGTH, Framing.LENGTH, Framing.LENGTH);
+	}
+
+	public void testCobsFraming() throws Exception {
+		assertFraming(Framing.COBS, Framing.COBS, Framing.COBS, Framing.COBS);
+	}
+
+	public void testPppFraming() throws Exception {
+		assertFraming(Framing.PPP, Framing.PPP, Framing.PPP, Framing.PPP);
+	}
+
+	public void testEachSideSendsWhatItPrefers() throws Exception {
+		// Both read everything, so neither has to give in
+		assertFraming(Framing.COBS, Framing.LENGTH, Framing.COBS, Framing.LENGTH);
+		assertFraming(Framing.PPP, Framing.LENGTH, Framing.PPP, Framing.LENGTH);
+	}
+
+	public void testOlderNeighborGetsPpp() throws Exception {
+		connect();
+		assertEquals(Framing.LENGTH, mA.getLinkStats(B).framing);
+		// What a Hello from before framing was negotiated says
+		mA.getLinkLayer().setPeerCapabilities(B, 0, DeflateCodec.DICTIONARY_ID);
+		assertEquals(Framing.PPP, mA.getLinkStats(B).framing);
+		mA.getLinkLayer().setPeerCapabilities(B, LinkLayer.FEATURE_COBS_FRAMING, DeflateCodec.DICTIONARY_ID);
+		assertEquals(Framing.PPP, mA.getLinkStats(B).framing);
+		mA.getLinkLayer().setFraming(Framing.COBS);
+		assertEquals(Framing.COBS, mA.getLinkStats(B).framing);
+	}
+
+	public void testKeepalive() throws Exception {
+		mA.getLinkLayer().setKeepalive(20, 1000);
+		mB.getLinkLayer().setKeepalive(20, 1000);
+		connect();
+		assertTrue(mA.getLinkStats(B).keepalive);
+		assertTrue(mB.getLinkStats(A).keepalive);
+
+		LinkStats stats = waitForProbes(mA, B, 5);
+		assertTrue(stats.rtt > 0);
+		assertTrue(stats.silence < 1000);
+		assertEquals(0, stats.probesLost);
+		assertTrue(waitForProbes(mB, A, 5).rtt > 0);
+	}
+
+	public void testKeepaliveOff() throws Exception {
+		mA.getLinkLayer().setKeepalive(0, 0);
+		mB.getLinkLayer().setKeepalive(20, 1000);
+		connect();
+		assertFalse(mA.getLinkStats(B).keepalive);
+		// B still probes A, and A still answers
+		assertTrue(waitForProbes(mB, A, 5).rtt > 0);
+		assertEquals(0, mA.getLinkStats(B).probesSent);
+	}
+
+	public void testKeepaliveNeedsTheNeighbor() throws Exception {
+		mA.getLinkLayer().setKeepalive(20, 1000);
+		connect();
+		// As if B were older and would never answer
+		mA.getLinkLayer().setPeerCapabilities(B, LinkLayer.FEATURE_LENGTH_FRAMING, DeflateCodec.DICTIONARY_ID);
+		assertFalse(mA.getLinkStats(B).keepalive);
+	}
+
+	public void testSilentNeighborIsDropped() throws Exception {
+		mA.getLinkLayer().setKeepalive(20, 300);
+		mB.getLinkLayer().setKeepalive(20, 300);
+		connect();
+		waitForProbes(mA, B, 3);
+
+		mATransport.mDeaf = true;
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mA.getLinkStats(B) != null) {
+			assertTrue("Link to a silent neighbor stayed up", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	public void testQuietButAliveNeighborIsKept() throws Exception {
+		// Nothing but probes goes over the link, and they are enough
+		mA.getLinkLayer().setKeepalive(20, 300);
+		mB.getLinkLayer().setKeepalive(20, 300);
+		connect();
+		Thread.sleep(1000);
+		assertNotNull(mA.getLinkStats(B));
+		assertNotNull(mB.getLinkStats(A));
+	}
+
+	/** Waits until a stack has had replies to a number of probes of a neighbor */
+	private LinkStats waitForProbes(CommunicationThread from, String to, int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		LinkStats stats;
+		while ((stats = from.getLinkStats(to)).probesSent - stats.probesLost < count || stats.rtt == 0) {
+			assertTrue("Probes weren't answered", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		return stats;
+	}
+
+	/**
+	 * Connects A and B set to the given framings, checks what each sends
+	 * in, and that the other end reads it: with ARQ on, a frame is only
+	 * acknowledged once it has been decoded.
+	 */
+	private void assertFraming(Framing a, Framing b, Framing aToB, Framing bToA) throws Exception {
+		tearDown();
+		setUp();
+		mA.getLinkLayer().setFraming(a);
+		mB.getLinkLayer().setFraming(b);
+		mA.getLinkLayer().setLinkArq(true);
+		mB.getLinkLayer().setLinkArq(true);
+		// Flags and escapes have to reach the framing uncompressed
+		mA.getLinkLayer().setPayloadCompression(false);
+		mB.getLinkLayer().setPayloadCompression(false);
+		connect();
+		assertEquals(aToB, mA.getLinkStats(B).framing);
+		assertEquals(bToA, mB.getLinkStats(A).framing);
+
+		byte[] text = new byte[3000];
+		Arrays.fill(text, (byte) 0x7e);
+		send(mA, B, message(text), 10);
+		send(mB, A, message(text), 10);
+		// The writer only queues a few datagrams at once, so ARQ may resend some
+		assertEquals(0, waitForAcks(mA, B).arqAbandoned);
+		assertEquals(0, waitForAcks(mB, A).arqAbandoned);
+		assertEquals(0, mA.getLinkStats(B).badFrames);
+		assertEquals(0, mB.getLinkStats(A).badFrames);
+	}
+
+	/**
+	 * Waits until everything ARQ has sent to a neighbor has been
+	 * acknowledged.  There may be no RTT sample even then, if every frame
+	 * had to be resent.
+	 */
+	private LinkStats waitForAcks(CommunicationThread from, String to) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		LinkStats stats;
+		while ((stats = from.getLinkStats(to)).arqUnacked > 0) {
+			assertTrue("Frames weren't acknowledged", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		return stats;
+	}
+
+	/**
+	 * Hands the link layer of one stack UDP datagrams for a neighbor, and
+	 * waits until it has dealt with all of them.
+	 * @return the stats for the neighbor once it has
+	 */
+	private LinkStats send(CommunicationThread from, String to, byte[] payload, int count)
+			throws ParseException, InterruptedException {
+		Node remote = NodeFactory.factory.fromMacAddress(to);
+		Handler link = from.getLinkLayer().getAboveHandler();
+		for (int i = 0; i < count; ++i) {
+			Segment s = new Segment(Segment.TYPE_UDP);
+			UDPHeader udp = (UDPHeader) s.transportSegment;
+			udp.setSourcePort(PORT);
+			udp.setDestinationPort(PORT);
+			udp.setData(payload);
+			s.IPHeader.sourceAddress = from.getLocalNode().getIPAddress();
+			s.IPHeader.destinationAddress = remote.getIPAddress();
+			s.IPHeader.setVersion(6);
+			s.IPHeader.setNextHeader(IPv6Header.NH_UDP);
+			s.nextHopMACAddress = remote.getAddressBytes();
+			link.sendMessage(link.obtainMessage(Layer.MESSAGE_SEND, s));
+		}
+
+		// The down thread handles messages in order, so this runs after them
+		final CountDownLatch done = new CountDownLatch(1);
+		link.post(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue("Link layer didn't take the datagrams", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		return from.getLinkStats(to);
+	}
+
+	/**
+	 * A transport whose connections can be made to throw away everything
+	 * they read, so the link looks up but the neighbor has gone quiet.
+	 */
+	private static class DeafTransport implements LinkTransport {
+		private final LinkTransport mTransport;
+		volatile boolean mDeaf;
+
+		DeafTransport(LinkTransport transport) {
+			mTransport = transport;
+		}
+
+		public String getLocalAddress() {
+			return mTransport.getLocalAddress();
+		}
+
+		public List<String> getPairedAddresses() {
+			return mTransport.getPairedAddresses();
+		}
+
+		public LinkConnection connect(String address) throws IOException {
+			return wrap(mTransport.connect(address));
+		}
+
+		public void listen() throws IOException {
+			mTransport.listen();
+		}
+
+		public LinkConnection accept() throws IOException {
+			return wrap(mTransport.accept());
+		}
+
+		public void close() {
+			mTransport.close();
+		}
+
+		private LinkConnection wrap(final LinkConnection c) throws IOException {
+			final InputStream in = new FilterInputStream(c.getInputStream()) {
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					while (true) {
+						int n = super.read(b, off, len);
+						if (n < 0 || !mDeaf) {
+							return n;
+						}
+					}
+				}
+			};
+			return new LinkConnection() {
+				public String getRemoteAddress() {
+					return c.getRemoteAddress();
+				}
+
+				public InputStream getInputStream() {
+					return in;
+				}
+
+				public OutputStream getOutputStream() throws IOException {
+					return c.getOutputStream();
+				}
+
+				public void close() throws IOException {
+					c.close();
+				}
+			};
+		}
+	}
+
+	/** Wraps data in an application Message, as BluetoothNodeService sends it */
+	private byte[] message(byte[] data) {
+		return Message.serialize(new Message("Test", A, "", data, 0));
+	}
+
+	/**
+	 * Starts both link layers, has A say Hello to B, and waits until each
+	 * has built a routing table, which it only does after the handshake.
+	 */
+	private void connect() throws ParseException, InterruptedException {
+		mA.getLinkLayer().run();
+		mB.getLinkLayer().run();
+		mA.connectTo(NodeFactory.factory.fromMacAddress(B));
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mA.getRoutingStats().tableBuilds == 0 || mB.getRoutingStats().tableBuilds == 0) {
+			assertTrue("Handshake didn't finish", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertNotNull(mA.getLinkStats(B));
+		assertNotNull(mB.getLinkStats(A));
+	}
+}
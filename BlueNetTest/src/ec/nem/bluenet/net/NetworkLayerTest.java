@@ -0,0 +1,169 @@
+package ec.nem.bluenet.net;
+
+import java.text.ParseException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import ec.nem.bluenet.CommunicationThread;
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.NodeFactory;
+import ec.nem.bluenet.net.link.DeflateCodec;
+import ec.nem.bluenet.net.link.PipeTransport;
+import ec.nem.bluenet.net.routing.LinkStateAdvertisement;
+import ec.nem.bluenet.net.routing.LinkStateUpdate;
+import ec.nem.bluenet.net.routing.RoutingMessage;
+import ec.nem.bluenet.net.routing.RoutingStats;
+
+public class NetworkLayerTest extends TestCase {
+	private static final String LOCAL = "00:1A:7D:DA:71:01";
+	private static final String REMOTE = "00:1A:7D:DA:71:02";
+	/** LSAs in a burst, as a new neighbor's database arrives */
+	private static final int BURST = 20;
+
+	private CommunicationThread mStack;
+	private HandlerThread mLinkThread;
+	/** What the network layer handed to the link layer, in order */
+	private final BlockingQueue<Segment> mSent = new LinkedBlockingQueue<Segment>();
+
+	@Override
+	protected void setUp() {
+		mStack = new CommunicationThread(null, 0, new PipeTransport(new PipeTransport.Hub(), LOCAL));
+
+		// Stand in for the link layer, unwrapping urgent messages as Layer does
+		mLinkThread = new HandlerThread("LinkLayerTest");
+		mLinkThread.start();
+		mStack.getNetworkLayer().setBelowTargetHandler(new Handler(mLinkThread.getLooper()) {
+			@Override
+			public void handleMessage(Message msg) {
+				Object o = msg.obj instanceof Queue ? ((Queue<?>) msg.obj).poll() : msg.obj;
+				mSent.add((Segment) o);
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() {
+		mStack.getNetworkLayer().stopLayer();
+		mStack.getLinkLayer().stopLayer();
+		mLinkThread.quit();
+	}
+
+	public void testHelloCarriesCapabilities() throws Exception {
+		Node remote = NodeFactory.factory.fromMacAddress(REMOTE);
+		for (RoutingMessage.Type type : new RoutingMessage.Type[] {
+				RoutingMessage.Type.Hello, RoutingMessage.Type.HelloAck }) {
+			RoutingMessage back = sendAndCapture(remote, message(type, mStack.getLocalNode()));
+			assertEquals(type, back.type);
+			assertEquals(DeflateCodec.DICTIONARY_ID, back.deflateDictionary);
+			assertEquals(LinkLayer.FEATURES, back.linkFeatures);
+		}
+	}
+
+	public void testOtherMessagesCarryNoCapabilities() throws Exception {
+		Node remote = NodeFactory.factory.fromMacAddress(REMOTE);
+		RoutingMessage back = sendAndCapture(remote, message(RoutingMessage.Type.Quit, mStack.getLocalNode()));
+		assertEquals(0, back.deflateDictionary);
+		assertEquals(0, back.linkFeatures);
+	}
+
+	public void testRoutingMessagesAreControlTraffic() throws ParseException, InterruptedException {
+		Node remote = NodeFactory.factory.fromMacAddress(REMOTE);
+		mStack.getNetworkLayer().sendRoutingMessage(remote, message(RoutingMessage.Type.Hello, mStack.getLocalNode()));
+		Segment s = mSent.poll(5, TimeUnit.SECONDS);
+		assertNotNull(s);
+		assertEquals(IPv6Header.NH_ROUTING, s.IPHeader.getNextHeader());
+		assertEquals(IPv6Header.TC_CONTROL, s.IPHeader.getTrafficClass());
+	}
+
+	public void testLsaBurstIsOneSpfRun() throws Exception {
+		receiveBurst();
+		RoutingStats held = statsOnUpThread();
+		assertEquals(0, held.spfRuns);
+		assertTrue(held.pending);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mStack.getNetworkLayer().getRoutingStats().tableBuilds == 0) {
+			assertTrue("Routes weren't recomputed", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+		// Nothing else comes along later
+		Thread.sleep(NetworkLayer.DEFAULT_SPF_HOLD_DOWN * 3);
+		RoutingStats stats = statsOnUpThread();
+		assertEquals(1, stats.spfRuns);
+		assertEquals(1, stats.tableBuilds);
+		assertEquals(BURST, stats.changes);
+		assertEquals(BURST, stats.maxChangesPerRun);
+		assertFalse(stats.pending);
+		assertTrue(stats.lastStaleness >= NetworkLayer.DEFAULT_SPF_HOLD_DOWN * 1000);
+	}
+
+	public void testNoHoldDownRunsOnEveryChange() throws Exception {
+		mStack.getNetworkLayer().setSpfHoldDown(0);
+		receiveBurst();
+		RoutingStats stats = statsOnUpThread();
+		assertEquals(BURST, stats.spfRuns);
+		assertEquals(1, stats.maxChangesPerRun);
+		assertFalse(stats.pending);
+	}
+
+	/** Hands the network layer BURST updates, each with an LSA from a different node */
+	private void receiveBurst() throws ParseException {
+		Node remote = NodeFactory.factory.fromMacAddress(REMOTE);
+		Handler below = mStack.getNetworkLayer().getBelowHandler();
+		for (int i = 0; i < BURST; ++i) {
+			LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+			lsa.source = NodeFactory.factory.fromMacAddress(String.format("00:1A:7D:DA:73:%02X", i));
+			lsa.others.add(remote);
+			LinkStateUpdate lsu = new LinkStateUpdate();
+			lsu.source = remote;
+			lsu.lsas.add(lsa);
+
+			Segment s = new Segment(Segment.TYPE_ROUTING);
+			((DataSegment) s.transportSegment).setRawBytes(
+					RoutingMessage.serializeMessage(message(RoutingMessage.Type.LinkStateUpdate, lsu)));
+			s.IPHeader.sourceAddress = remote.getIPAddress();
+			s.IPHeader.destinationAddress = mStack.getLocalNode().getIPAddress();
+			s.IPHeader.setNextHeader(IPv6Header.NH_ROUTING);
+			below.sendMessage(below.obtainMessage(Layer.MESSAGE_RECV, s));
+		}
+	}
+
+	/** Reads the routing counters once the up thread has handled everything sent to it so far */
+	private RoutingStats statsOnUpThread() throws InterruptedException {
+		final RoutingStats[] stats = new RoutingStats[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		mStack.getNetworkLayer().getBelowHandler().post(new Runnable() {
+			public void run() {
+				stats[0] = mStack.getNetworkLayer().getRoutingStats();
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		return stats[0];
+	}
+
+	/** Sends a message the way RoutingProtocol does, and reads back what would go on the air */
+	private RoutingMessage sendAndCapture(Node to, RoutingMessage msg) throws InterruptedException {
+		mStack.getNetworkLayer().sendRoutingMessage(to, msg);
+		Segment s = mSent.poll(5, TimeUnit.SECONDS);
+		assertNotNull("Nothing reached the link layer", s);
+		RoutingMessage back = RoutingMessage.deserializeMessage(s.transportSegment.getRawBytes());
+		assertNotNull(back);
+		return back;
+	}
+
+	private static RoutingMessage message(RoutingMessage.Type type, Object obj) {
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = type;
+		msg.obj = obj;
+		return msg;
+	}
+}
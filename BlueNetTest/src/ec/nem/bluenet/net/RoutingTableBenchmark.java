@@ -0,0 +1,135 @@
+package ec.nem.bluenet.net;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Looks up next hops in tables of 10, 1,000 and 100,000 host routes, and of
+ * 100,000 prefixes from /64 to /127, which all land in the trie.<br>
+ * <br>
+ *
+ * The time to build each table and the best of several runs of LOOKUPS
+ * lookups are logged under TAG, beside a scan of every route for the
+ * longest match, as the table did before it was indexed.
+ */
+@LargeTest
+public class RoutingTableBenchmark extends TestCase {
+	private static final String TAG = "RoutingTableBenchmark";
+	private static final int LOOKUPS = 200000;
+	private static final int RUNS = 20;
+	/** Scanning 100,000 routes is slow, so it gets fewer lookups */
+	private static final long SCANNED_ROUTES = 4000000;
+
+	private Node[] mHops;
+	private Random mRandom;
+
+	@Override
+	protected void setUp() throws ParseException {
+		mHops = new Node[8];
+		for (int i = 0; i < mHops.length; ++i) {
+			mHops[i] = new Node("00:11:22:33:44:0" + i);
+		}
+		mRandom = new Random(5);
+	}
+
+	public void testTenHostRoutes() {
+		run(10, 128);
+	}
+
+	public void testThousandHostRoutes() {
+		run(1000, 128);
+	}
+
+	public void testHundredThousandHostRoutes() {
+		run(100000, 128);
+	}
+
+	public void testHundredThousandPrefixes() {
+		run(100000, 64);
+	}
+
+	/**
+	 * Times a table of count routes with random prefix lengths from
+	 * minLength to 128, or 127 when that is less than 128.
+	 */
+	private void run(int count, int minLength) {
+		List<Route> routes = new ArrayList<Route>(count);
+		for (int k = 0; k < count; ++k) {
+			int length = minLength == 128 ? 128 : minLength + mRandom.nextInt(128 - minLength);
+			routes.add(new Route(randomAddress(), (short) length, mHops[k & 7]));
+		}
+
+		long start = System.nanoTime();
+		RoutingTable table = new RoutingTable(routes);
+		long build = System.nanoTime() - start;
+
+		byte[][] queries = new byte[1024][];
+		for (int i = 0; i < queries.length; ++i) {
+			queries[i] = routes.get(mRandom.nextInt(count)).getAddress();
+		}
+		for (int i = 0; i < 100; ++i) {
+			assertSame(scan(routes, queries[i]), table.getNextHop(queries[i]));
+		}
+
+		long best = Long.MAX_VALUE;
+		int found = 0;
+		for (int run = 0; run < RUNS; ++run) {
+			start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; ++i) {
+				if (table.getNextHop(queries[i & 1023]) != null) {
+					found++;
+				}
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		assertEquals(RUNS * LOOKUPS, found);
+
+		int scans = (int) Math.min(LOOKUPS, SCANNED_ROUTES / count);
+		long bestScan = Long.MAX_VALUE;
+		for (int run = 0; run < 3; ++run) {
+			start = System.nanoTime();
+			for (int i = 0; i < scans; ++i) {
+				if (scan(routes, queries[i & 1023]) != null) {
+					found++;
+				}
+			}
+			bestScan = Math.min(bestScan, System.nanoTime() - start);
+		}
+
+		double perLookup = (double) best / LOOKUPS;
+		double perScan = (double) bestScan / scans;
+		String lengths = minLength == 128 ? "/128" : "/" + minLength + "-/127";
+		Log.i(TAG, String.format("%d routes %s: build %.2f ms, lookup %.1f ns, scan %.1f ns (%.0fx)",
+				count, lengths, build / 1e6, perLookup, perScan, perScan / perLookup));
+	}
+
+	private static Node scan(List<Route> routes, byte[] destination) {
+		int longest = -1;
+		Node hop = null;
+		for (Route r : routes) {
+			if (r.matchesAddress(destination) && r.getPrefixLength() > longest) {
+				longest = r.getPrefixLength();
+				hop = r.getNextHop();
+			}
+		}
+		return hop;
+	}
+
+	/** fe80:: with a random interface identifier */
+	private byte[] randomAddress() {
+		byte[] a = new byte[16];
+		a[0] = (byte) 0xfe;
+		a[1] = (byte) 0x80;
+		for (int i = 8; i < 16; ++i) {
+			a[i] = (byte) mRandom.nextInt();
+		}
+		return a;
+	}
+}
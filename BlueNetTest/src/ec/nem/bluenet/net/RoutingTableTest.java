@@ -0,0 +1,174 @@
+package ec.nem.bluenet.net;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+public class RoutingTableTest extends TestCase {
+	private Node[] mHops;
+	private Random mRandom;
+
+	@Override
+	protected void setUp() throws ParseException {
+		mHops = new Node[8];
+		for (int i = 0; i < mHops.length; ++i) {
+			mHops[i] = new Node("00:11:22:33:44:0" + i);
+		}
+		mRandom = new Random(5);
+	}
+
+	public void testEmptyTableHasNoRoute() {
+		RoutingTable table = new RoutingTable();
+		assertNull(table.getNextHop(address(1)));
+		assertEquals(0, table.size());
+	}
+
+	public void testHostRoute() {
+		RoutingTable table = new RoutingTable(Arrays.asList(
+				new Route(address(1), (short) 128, mHops[1]),
+				new Route(address(2), (short) 128, mHops[2])));
+		assertSame(mHops[1], table.getNextHop(address(1)));
+		assertSame(mHops[2], table.getNextHop(address(2)));
+		assertNull(table.getNextHop(address(3)));
+	}
+
+	public void testLookupAtOffset() {
+		RoutingTable table = new RoutingTable(Arrays.asList(
+				new Route(address(1), (short) 128, mHops[1])));
+		byte[] buffer = new byte[40];
+		System.arraycopy(address(1), 0, buffer, 24, 16);
+		assertSame(mHops[1], table.getNextHop(buffer, 24));
+	}
+
+	public void testLongestPrefixWins() {
+		byte[] host = address(0x1234);
+		RoutingTable table = new RoutingTable(Arrays.asList(
+				new Route(new byte[16], (short) 0, mHops[0]),
+				new Route(host.clone(), (short) 64, mHops[1]),
+				new Route(host.clone(), (short) 113, mHops[2]),
+				new Route(host.clone(), (short) 128, mHops[3])));
+
+		assertSame(mHops[3], table.getNextHop(host));
+
+		// Differs in the last bit the /113 covers
+		byte[] d = host.clone();
+		d[14] ^= 0x80;
+		assertSame(mHops[1], table.getNextHop(d));
+
+		// Differs only past the /113
+		d = host.clone();
+		d[14] ^= 0x40;
+		assertSame(mHops[2], table.getNextHop(d));
+
+		// Differs in the first 64 bits
+		d = host.clone();
+		d[7] ^= 1;
+		assertSame(mHops[0], table.getNextHop(d));
+	}
+
+	public void testFirstOfDuplicatePrefixesWins() {
+		byte[] a = address(7);
+		RoutingTable table = new RoutingTable(Arrays.asList(
+				new Route(a, (short) 128, mHops[1]),
+				new Route(a, (short) 128, mHops[2]),
+				new Route(a, (short) 96, mHops[3]),
+				new Route(a, (short) 96, mHops[4])));
+		assertSame(mHops[1], table.getNextHop(a));
+
+		byte[] d = a.clone();
+		d[15] ^= 1;
+		assertSame(mHops[3], table.getNextHop(d));
+	}
+
+	public void testRouteWithoutNextHopIsSkipped() {
+		byte[] a = address(9);
+		RoutingTable table = new RoutingTable(Arrays.asList(
+				new Route(a, (short) 128, (Node) null),
+				new Route(a, (short) 64, mHops[1])));
+		assertSame(mHops[1], table.getNextHop(a));
+	}
+
+	/** Random mixes of prefixes, checked against a scan of every route */
+	public void testAgreesWithLinearScan() {
+		for (int iteration = 0; iteration < 300; ++iteration) {
+			List<Route> routes = new ArrayList<Route>();
+			for (int k = 0; k < 50; ++k) {
+				byte[] a = randomAddress();
+				int length = mRandom.nextInt(3) == 0 ? 128 : mRandom.nextInt(129);
+				if (mRandom.nextInt(5) == 0 && !routes.isEmpty()) {
+					// Near an existing route, so prefixes nest
+					a = routes.get(mRandom.nextInt(routes.size())).getAddress().clone();
+					a[mRandom.nextInt(16)] ^= 1 << mRandom.nextInt(8);
+				}
+				routes.add(new Route(a, (short) length, mHops[mRandom.nextInt(mHops.length)]));
+			}
+			RoutingTable table = new RoutingTable(routes);
+
+			for (int q = 0; q < 200; ++q) {
+				byte[] d = mRandom.nextBoolean()
+						? routes.get(mRandom.nextInt(routes.size())).getAddress().clone()
+						: randomAddress();
+				if (mRandom.nextBoolean()) {
+					d[mRandom.nextInt(16)] ^= 1 << mRandom.nextInt(8);
+				}
+				assertSame(scan(routes, d), table.getNextHop(d));
+			}
+		}
+	}
+
+	public void testFlowKeepsToOneOfEqualCostHops() {
+		List<Node> hops = Arrays.asList(mHops[0], mHops[1], mHops[2], mHops[3]);
+		byte[] destination = address(5);
+		RoutingTable table = new RoutingTable(Arrays.asList(
+				new Route(destination, (short) 128, hops)));
+
+		Set<Node> used = new HashSet<Node>();
+		for (int flow = 0; flow < 200; ++flow) {
+			byte[] source = randomAddress();
+			Node hop = table.getNextHop(source, destination, flow);
+			assertTrue(hops.contains(hop));
+			assertSame(hop, table.getNextHop(source, destination, flow));
+			used.add(hop);
+		}
+		assertEquals(hops.size(), used.size());
+
+		// Lookups that don't give the flow take the first hop
+		assertSame(mHops[0], table.getNextHop(destination));
+	}
+
+	private static Node scan(List<Route> routes, byte[] destination) {
+		int longest = -1;
+		Node hop = null;
+		for (Route r : routes) {
+			if (r.matchesAddress(destination) && r.getPrefixLength() > longest) {
+				longest = r.getPrefixLength();
+				hop = r.getNextHop();
+			}
+		}
+		return hop;
+	}
+
+	/** fe80::n */
+	private static byte[] address(int n) {
+		byte[] a = new byte[16];
+		a[0] = (byte) 0xfe;
+		a[1] = (byte) 0x80;
+		a[12] = (byte) (n >>> 24);
+		a[13] = (byte) (n >>> 16);
+		a[14] = (byte) (n >>> 8);
+		a[15] = (byte) n;
+		return a;
+	}
+
+	/** fe80:: with a random interface identifier */
+	private byte[] randomAddress() {
+		byte[] a = address(0);
+		for (int i = 8; i < 16; ++i) {
+			a[i] = (byte) mRandom.nextInt();
+		}
+		return a;
+	}
+}
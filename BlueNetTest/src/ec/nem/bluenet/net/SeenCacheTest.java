@@ -0,0 +1,74 @@
+package ec.nem.bluenet.net;
+
+import junit.framework.TestCase;
+
+public class SeenCacheTest extends TestCase {
+	private static final byte[] A = address(0x0A);
+	private static final byte[] B = address(0x0B);
+
+	public void testDuplicatesAreSuppressed() {
+		SeenCache cache = new SeenCache(SeenCache.DEFAULT_CAPACITY);
+		assertTrue(cache.add(A, 1));
+		assertFalse(cache.add(A, 1));
+		// A copy of the address is the same source
+		assertFalse(cache.add(A.clone(), 1));
+		assertEquals(1, cache.size());
+	}
+
+	public void testSourceAndSequenceBothCount() {
+		SeenCache cache = new SeenCache(SeenCache.DEFAULT_CAPACITY);
+		assertTrue(cache.add(A, 1));
+		assertTrue(cache.add(A, 2));
+		assertTrue(cache.add(B, 1));
+		assertTrue(cache.add(A, -1));
+		assertEquals(4, cache.size());
+	}
+
+	/** Sources differing only in the half of the address the other key part doesn't hold */
+	public void testWholeAddressCounts() {
+		SeenCache cache = new SeenCache(SeenCache.DEFAULT_CAPACITY);
+		byte[] high = new byte[16];
+		byte[] low = new byte[16];
+		high[0] = 1;
+		low[8] = 1;
+		assertTrue(cache.add(high, 1));
+		assertTrue(cache.add(low, 1));
+		assertFalse(cache.add(high, 1));
+		assertFalse(cache.add(low, 1));
+	}
+
+	public void testOldestIsForgotten() {
+		SeenCache cache = new SeenCache(3);
+		assertTrue(cache.add(A, 1));
+		assertTrue(cache.add(A, 2));
+		assertTrue(cache.add(A, 3));
+		// Seeing it again doesn't make it any newer
+		assertFalse(cache.add(A, 1));
+		assertTrue(cache.add(A, 4));
+		assertEquals(3, cache.size());
+
+		assertTrue(cache.add(A, 1));
+		assertFalse(cache.add(A, 4));
+		assertFalse(cache.add(A, 3));
+		assertEquals(3, cache.size());
+	}
+
+	public void testSizeIsBounded() {
+		SeenCache cache = new SeenCache(SeenCache.DEFAULT_CAPACITY);
+		for (int i = 0; i < SeenCache.DEFAULT_CAPACITY * 3; ++i) {
+			assertTrue(cache.add(i % 2 == 0 ? A : B, i));
+		}
+		assertEquals(SeenCache.DEFAULT_CAPACITY, cache.size());
+		// The newest are still there
+		assertFalse(cache.add(B, SeenCache.DEFAULT_CAPACITY * 3 - 1));
+		assertTrue(cache.add(A, 0));
+	}
+
+	private static byte[] address(int last) {
+		byte[] address = new byte[16];
+		address[0] = (byte) 0xFE;
+		address[1] = (byte) 0x80;
+		address[15] = (byte) last;
+		return address;
+	}
+}
@@ -0,0 +1,139 @@
+package ec.nem.bluenet.net.link;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives two ArqSessions against each other by hand, losing and reordering
+ * frames between them, with made up times.
+ */
+public class ArqSessionTest extends TestCase {
+	private static final short PROTOCOL = 0x0057;
+
+	private ArqSession mSender;
+	private ArqSession mReceiver;
+
+	@Override
+	protected void setUp() {
+		mSender = new ArqSession();
+		mReceiver = new ArqSession();
+	}
+
+	public void testDeliversDatagram() {
+		byte[] frame = send(7, 0);
+		assertTrue(mReceiver.receive(frame, 0, frame.length, 0));
+		assertDelivered(frame, 7);
+	}
+
+	public void testDeliversOutOfOrderAsTheyArrive() {
+		byte[][] frames = { send(0, 0), send(1, 0), send(2, 0) };
+		for (int i : new int[] { 0, 2, 1 }) {
+			assertTrue("frame " + i, mReceiver.receive(frames[i], 0, frames[i].length, 1));
+			assertDelivered(frames[i], i);
+		}
+	}
+
+	public void testDropsDuplicates() {
+		byte[] frame = send(0, 0);
+		assertTrue(mReceiver.receive(frame, 0, frame.length, 1));
+		assertFalse(mReceiver.receive(frame, 0, frame.length, 2));
+		assertEquals(1, mReceiver.getDuplicates());
+	}
+
+	public void testAcknowledgementClearsWindow() {
+		byte[] frame = send(0, 0);
+		mReceiver.receive(frame, 0, frame.length, 5);
+		assertEquals(5 + ArqSession.ACK_DELAY, mReceiver.getDeadline());
+
+		List<ArqSession.Outgoing> out = mReceiver.poll(5 + ArqSession.ACK_DELAY);
+		assertEquals(1, out.size());
+		assertEquals(FrameWriter.BAND_CONTROL, out.get(0).band);
+		byte[] ack = out.get(0).data;
+		assertFalse("an acknowledgement carries no datagram", mSender.receive(ack, 0, ack.length, 20));
+		assertEquals(0, mSender.getUnacked());
+		assertEquals(Long.MAX_VALUE, mSender.getDeadline());
+	}
+
+	public void testResendsAfterTimeout() {
+		send(3, 0);
+		assertEquals(ArqSession.INITIAL_RTO, mSender.getDeadline());
+		assertTrue(mSender.poll(ArqSession.INITIAL_RTO - 1).isEmpty());
+
+		List<ArqSession.Outgoing> out = mSender.poll(ArqSession.INITIAL_RTO);
+		assertEquals(1, out.size());
+		byte[] resent = out.get(0).data;
+		assertTrue(mReceiver.receive(resent, 0, resent.length, ArqSession.INITIAL_RTO + 1));
+		assertDelivered(resent, 3);
+		assertEquals(1, mSender.getRetransmits());
+		assertEquals("backs off", 2 * ArqSession.INITIAL_RTO, mSender.getRto());
+	}
+
+	public void testFastRetransmitOnGap() {
+		// The receiver takes up the session from the first frame it sees
+		byte[] first = send(0, 0);
+		mReceiver.receive(first, 0, first.length, 1);
+		send(1, 0);
+		for (int i = 2; i <= ArqSession.DUPLICATE_THRESHOLD + 1; ++i) {
+			byte[] frame = send(i, 0);
+			assertTrue(mReceiver.receive(frame, 0, frame.length, 1));
+		}
+		// A gap is acknowledged straight away
+		assertEquals(1, mReceiver.getDeadline());
+		byte[] ack = mReceiver.poll(1).get(0).data;
+		mSender.receive(ack, 0, ack.length, 2);
+
+		assertEquals(1, mSender.getUnacked());
+		assertEquals(0, mSender.getDeadline());
+		List<ArqSession.Outgoing> out = mSender.poll(2);
+		assertEquals(1, out.size());
+		assertEquals(1, mSender.getFastRetransmits());
+		byte[] resent = out.get(0).data;
+		assertTrue(mReceiver.receive(resent, 0, resent.length, 3));
+		assertDelivered(resent, 1);
+	}
+
+	public void testGivesUpAfterMaxRetransmits() {
+		send(0, 0);
+		int resent = 0;
+		for (int i = 0; i < 100 && mSender.getUnacked() > 0; ++i) {
+			resent += mSender.poll(mSender.getDeadline()).size();
+		}
+		assertEquals(ArqSession.MAX_RETRANSMITS, resent);
+		assertEquals(0, mSender.getUnacked());
+		assertEquals(1, mSender.getAbandoned());
+	}
+
+	public void testNewSessionIsNotTakenForDuplicates() {
+		byte[] first = send(0, 0);
+		assertTrue(mReceiver.receive(first, 0, first.length, 1));
+
+		// The neighbor restarts; its new session numbers from 0 again
+		ArqSession restarted;
+		byte[] frame;
+		do {
+			restarted = new ArqSession();
+			frame = restarted.send(PROTOCOL, new byte[][] { payload(1) }, FrameWriter.BAND_NORMAL, 2);
+		} while (epoch(frame) == epoch(first));
+		assertTrue(mReceiver.receive(frame, 0, frame.length, 3));
+		assertDelivered(frame, 1);
+	}
+
+	private byte[] send(int id, long now) {
+		return mSender.send(PROTOCOL, new byte[][] { payload(id) }, FrameWriter.BAND_NORMAL, now);
+	}
+
+	private static byte[] payload(int id) {
+		return new byte[] { (byte) id, 1, 2, 3 };
+	}
+
+	private static int epoch(byte[] frame) {
+		return (frame[1] & 0xFF) >>> 4;
+	}
+
+	private void assertDelivered(byte[] frame, int id) {
+		assertEquals(PROTOCOL, mReceiver.getProtocol());
+		assertEquals(4, mReceiver.getLength());
+		assertEquals(id, frame[mReceiver.getOffset()]);
+	}
+}
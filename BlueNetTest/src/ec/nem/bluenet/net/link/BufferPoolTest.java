@@ -0,0 +1,120 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+	/** The largest bucket's capacity */
+	private static final int MAX_POOLED = 1 << 18;
+
+	public void testCapacityIsRoundedToBucket() {
+		BufferPool pool = new BufferPool(4);
+		assertEquals(64, pool.acquire(0).capacity());
+		assertEquals(64, pool.acquire(64).capacity());
+		assertEquals(128, pool.acquire(65).capacity());
+		assertEquals(1024, pool.acquire(1000).capacity());
+		assertEquals(MAX_POOLED, pool.acquire(MAX_POOLED).capacity());
+		// Too big to pool, so exactly as asked
+		assertEquals(MAX_POOLED + 1, pool.acquire(MAX_POOLED + 1).capacity());
+	}
+
+	/** Any size in a bucket gets what was handed back to it */
+	public void testReusedWithinBucket() {
+		BufferPool pool = new BufferPool(4);
+		ByteBuffer b = pool.acquire(65);
+		b.position(10);
+		b.limit(20);
+		pool.release(b);
+
+		ByteBuffer again = pool.acquire(128);
+		assertSame(b, again);
+		assertEquals(0, again.position());
+		assertEquals(again.capacity(), again.limit());
+	}
+
+	public void testBucketsAreKeptApart() {
+		BufferPool pool = new BufferPool(4);
+		ByteBuffer small = pool.acquire(100);
+		ByteBuffer large = pool.acquire(3000);
+		pool.release(small);
+		pool.release(large);
+
+		// Neither is handed out for a size from another bucket
+		ByteBuffer b = pool.acquire(64);
+		assertNotSame(small, b);
+		assertNotSame(large, b);
+		b = pool.acquire(300);
+		assertNotSame(small, b);
+		assertNotSame(large, b);
+		assertSame(large, pool.acquire(2049));
+		assertSame(small, pool.acquire(127));
+	}
+
+	public void testOnlyBucketSizesArePooled() {
+		BufferPool pool = new BufferPool(4);
+		ByteBuffer odd = ByteBuffer.allocate(100);
+		pool.release(odd);
+		assertNotSame(odd, pool.acquire(100));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(128);
+		pool.release(direct);
+		assertNotSame(direct, pool.acquire(128));
+
+		ByteBuffer huge = pool.acquire(MAX_POOLED * 2);
+		pool.release(huge);
+		assertNotSame(huge, pool.acquire(MAX_POOLED * 2));
+
+		pool.release(null);
+	}
+
+	public void testIdleBuffersAreCapped() {
+		BufferPool pool = new BufferPool(2);
+		ByteBuffer[] b = { pool.acquire(64), pool.acquire(64), pool.acquire(64) };
+		for (ByteBuffer buffer : b) {
+			pool.release(buffer);
+		}
+		assertSame(b[0], pool.acquire(64));
+		assertSame(b[1], pool.acquire(64));
+		assertNotSame(b[2], pool.acquire(64));
+
+		// Taking one out leaves room for another
+		pool.release(b[2]);
+		assertSame(b[2], pool.acquire(64));
+	}
+
+	/** Threads sharing a pool never hold the same buffer at once */
+	public void testNeverHandedOutTwice() throws InterruptedException {
+		final BufferPool pool = new BufferPool(8);
+		final Set<ByteBuffer> held = Collections.synchronizedSet(
+				Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; ++t) {
+			final Random r = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int k = 0; k < 20000; ++k) {
+						ByteBuffer b = pool.acquire(1 + r.nextInt(600));
+						if (!held.add(b)) {
+							failure.set("buffer handed out twice");
+						}
+						held.remove(b);
+						pool.release(b);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(failure.get());
+	}
+}
@@ -0,0 +1,122 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Sends FRAMES small frames through a FrameWriter into a stream that takes
+ * 0.2 ms over every write, as an RFCOMM socket takes at least one radio
+ * packet per write.<br>
+ * <br>
+ *
+ * Frames are offered as fast as the queue takes them, and then one every
+ * 0.1 ms.  For each, the writer is run one frame per write, coalescing
+ * what is queued, and coalescing with a 1 ms linger.  The number of writes,
+ * frames per write and the time to get everything out are logged under TAG.
+ */
+@LargeTest
+public class CoalescingBenchmark extends TestCase {
+	private static final String TAG = "CoalescingBenchmark";
+	private static final int FRAMES = 5000;
+	private static final int FRAME_LENGTH = 64;
+	private static final long WRITE_NANOS = 200000;
+	private static final long PACE_NANOS = 100000;
+	private static final short PROTOCOL = 0x0057;
+
+	public void testWrites() throws Exception {
+		Log.i(TAG, String.format("%-6s %-22s %6s %12s %8s", "offer", "writer", "writes", "frames/write", "time"));
+		for (boolean paced : new boolean[] { false, true }) {
+			long single = run(paced, "one frame per write", 1, 0);
+			long coalesced = run(paced, "coalesced", FrameWriter.DEFAULT_MAX_BATCH_BYTES, 0);
+			long lingering = run(paced, "coalesced, 1 ms linger", FrameWriter.DEFAULT_MAX_BATCH_BYTES, 1000);
+			assertEquals(FRAMES, single);
+			if (paced) {
+				// Frames trickling in only share a write if the writer waits for them
+				assertTrue(lingering < coalesced);
+			} else {
+				assertTrue(coalesced < single / 10);
+			}
+		}
+	}
+
+	/** @return the number of writes it took */
+	private long run(boolean paced, String name, int maxBatchBytes, long lingerMicros) throws Exception {
+		BufferPool pool = new BufferPool(64);
+		LengthCodec codec = new LengthCodec(pool);
+		final FrameWriter writer = new FrameWriter(pool, maxBatchBytes, lingerMicros);
+		writer.setQueueLimits(FrameWriter.DEFAULT_MAX_QUEUED_FRAMES, FrameWriter.DEFAULT_MAX_QUEUED_BYTES,
+				QueuePolicy.BLOCK);
+		final CheckingStream out = new CheckingStream();
+
+		Thread writerThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.writeLoop(out);
+				} catch (IOException e) {
+					// Not from this stream
+				}
+			}
+		};
+		writerThread.start();
+
+		byte[] data = new byte[FRAME_LENGTH];
+		long start = System.nanoTime();
+		for (int k = 0; k < FRAMES; ++k) {
+			data[0] = (byte) k;
+			assertTrue(writer.enqueue(codec.encode(PROTOCOL, data)));
+			if (paced) {
+				LockSupport.parkNanos(PACE_NANOS);
+			}
+		}
+		while (writer.getFramesWritten() < FRAMES) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		writer.close();
+		writerThread.join();
+
+		assertEquals(FRAMES, out.getFrames());
+		Log.i(TAG, String.format("%-6s %-22s %6d %12.1f %5.0f ms", paced ? "paced" : "burst", name,
+				writer.getWrites(), (double) FRAMES / writer.getWrites(), elapsed / 1e6));
+		return writer.getWrites();
+	}
+
+	/**
+	 * Takes WRITE_NANOS over every write, and checks the frames arrive whole
+	 * and in order.
+	 */
+	private static class CheckingStream extends OutputStream {
+		private final FrameDecoder mDecoder = new FrameDecoder();
+		private volatile int mFrames;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			LockSupport.parkNanos(WRITE_NANOS);
+			int end = off + len;
+			while (off < end) {
+				off += mDecoder.feed(b, off, end - off);
+				if (mDecoder.hasFrame()) {
+					assertEquals(FRAME_LENGTH, mDecoder.getDataLength());
+					assertEquals((byte) mFrames, mDecoder.getBuffer()[FrameDecoder.DATA_OFFSET]);
+					mFrames++;
+				}
+			}
+		}
+
+		int getFrames() {
+			return mFrames;
+		}
+	}
+}
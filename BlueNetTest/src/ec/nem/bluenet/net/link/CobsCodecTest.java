@@ -0,0 +1,78 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class CobsCodecTest extends TestCase {
+	private static final short PROTOCOL = 0x0057;
+
+	private final CobsCodec mCodec = new CobsCodec();
+
+	public void testNoZeroInsideFrame() {
+		byte[] data = new byte[600];
+		for (int i = 0; i < data.length; i += 3) {
+			data[i] = 0;
+		}
+		byte[] frame = encode(data);
+		assertEquals(CobsCodec.DELIMITER, frame[0]);
+		assertEquals(CobsCodec.DELIMITER, frame[frame.length - 1]);
+		for (int i = 1; i < frame.length - 1; ++i) {
+			assertTrue("zero at " + i, frame[i] != 0);
+		}
+	}
+
+	/** Block boundaries fall at 254 bytes, with and without a zero to end them */
+	public void testRoundTripAroundBlockBoundaries() {
+		for (int n : new int[] { 0, 1, 251, 252, 253, 254, 255, 506, 507, 508, 1000 }) {
+			byte[] zeros = new byte[n];
+			byte[] ones = new byte[n];
+			Arrays.fill(ones, (byte) 1);
+			byte[] mixed = new byte[n];
+			for (int i = 0; i < n; ++i) {
+				mixed[i] = (byte) (i % 254 == 253 ? 0 : i);
+			}
+			for (byte[] data : new byte[][] { zeros, ones, mixed }) {
+				byte[] frame = encode(data);
+				assertTrue("longer than maxEncodedLength for " + n,
+						frame.length <= CobsCodec.maxEncodedLength(n));
+				assertDecodesTo(frame, data);
+			}
+		}
+	}
+
+	public void testOverheadIsBounded() {
+		byte[] data = new byte[10000];
+		Arrays.fill(data, (byte) 0x7e);
+		// Two delimiters, and a code byte per 254 bytes of protocol and data
+		int blocks = (2 + data.length) / 254 + 1;
+		assertEquals(2 + blocks + 2 + data.length, encode(data).length);
+	}
+
+	public void testPartsAreJoined() {
+		byte[] a = { 1, 0, 2 };
+		byte[] b = { 0, 0, 3 };
+		ByteBuffer frame = mCodec.encode(PROTOCOL, a, b);
+		byte[] bytes = Arrays.copyOf(frame.array(), frame.limit());
+		mCodec.release(frame);
+		assertDecodesTo(bytes, new byte[] { 1, 0, 2, 0, 0, 3 });
+	}
+
+	private byte[] encode(byte[] data) {
+		ByteBuffer frame = mCodec.encode(PROTOCOL, data, 0, data.length);
+		byte[] bytes = Arrays.copyOf(frame.array(), frame.limit());
+		mCodec.release(frame);
+		return bytes;
+	}
+
+	private static void assertDecodesTo(byte[] frame, byte[] data) {
+		FrameDecoder decoder = new FrameDecoder();
+		assertEquals(frame.length, decoder.feed(frame, 0, frame.length));
+		assertTrue(decoder.hasFrame());
+		assertEquals(PROTOCOL, decoder.getProtocol());
+		assertEquals(data.length, decoder.getDataLength());
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(decoder.getBuffer(),
+				FrameDecoder.DATA_OFFSET, FrameDecoder.DATA_OFFSET + data.length)));
+	}
+}
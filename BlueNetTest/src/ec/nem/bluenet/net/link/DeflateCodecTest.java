@@ -0,0 +1,165 @@
+package ec.nem.bluenet.net.link;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.NodeFactory;
+import ec.nem.bluenet.net.IPv6Header;
+import ec.nem.bluenet.net.routing.LinkStateAdvertisement;
+import ec.nem.bluenet.net.routing.RoutingMessage;
+
+public class DeflateCodecTest extends TestCase {
+	private static final short PROTOCOL = 0x0057;
+
+	private final DeflateCodec mCodec = new DeflateCodec();
+	/** A routing message with its IPv6 header, like those the dictionary was built from */
+	private byte[] mLsa;
+
+	@Override
+	protected void setUp() throws ParseException {
+		LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+		lsa.source = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:00");
+		for (int i = 1; i <= 4; ++i) {
+			lsa.others.add(NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:0" + i));
+		}
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = RoutingMessage.Type.LinkStateAdvertisement;
+		msg.obj = lsa;
+
+		IPv6Header header = new IPv6Header();
+		header.setVersion(6);
+		header.setNextHeader(IPv6Header.NH_ROUTING);
+		header.sourceAddress = lsa.source.getIPAddress();
+		header.destinationAddress = lsa.others.get(0).getIPAddress();
+		mLsa = concat(concat(header.headerFields, header.sourceAddress),
+				concat(header.destinationAddress, RoutingMessage.serializeMessage(msg)));
+	}
+
+	@Override
+	protected void tearDown() {
+		mCodec.end();
+	}
+
+	public void testRoundTrip() {
+		byte[] deflated = mCodec.compress(PROTOCOL, new byte[][] { mLsa });
+		assertNotNull(deflated);
+		assertTrue(deflated.length < mLsa.length);
+
+		assertTrue(mCodec.decompress(deflated, 0, deflated.length));
+		assertEquals(PROTOCOL, mCodec.getProtocol());
+		assertTrue(Arrays.equals(mLsa, Arrays.copyOf(mCodec.getBuffer(), mCodec.getLength())));
+	}
+
+	public void testPartsAreOneStream() {
+		byte[][] parts = new byte[][] { Arrays.copyOf(mLsa, 8), Arrays.copyOfRange(mLsa, 8, 40),
+				Arrays.copyOfRange(mLsa, 40, mLsa.length) };
+		byte[] deflated = mCodec.compress(PROTOCOL, parts);
+		assertTrue(Arrays.equals(mCodec.compress(PROTOCOL, new byte[][] { mLsa }), deflated));
+		assertTrue(mCodec.decompress(deflated, 0, deflated.length));
+		assertTrue(Arrays.equals(mLsa, Arrays.copyOf(mCodec.getBuffer(), mCodec.getLength())));
+	}
+
+	public void testRoundTripGrowsBuffer() {
+		byte[] text = new byte[20000];
+		for (int i = 0; i < text.length; ++i) {
+			text[i] = (byte) ('a' + (i * 7) % 13);
+		}
+		byte[] deflated = mCodec.compress(PROTOCOL, new byte[][] { text });
+		assertNotNull(deflated);
+		assertTrue(mCodec.decompress(deflated, 0, deflated.length));
+		assertTrue(Arrays.equals(text, Arrays.copyOf(mCodec.getBuffer(), mCodec.getLength())));
+	}
+
+	public void testDictionaryShrinksRoutingMessages() {
+		byte[] withDictionary = mCodec.compress(PROTOCOL, new byte[][] { mLsa });
+		assertNotNull(withDictionary);
+
+		Deflater plain = new Deflater(Deflater.BEST_SPEED, true);
+		plain.setInput(mLsa);
+		plain.finish();
+		byte[] out = new byte[mLsa.length * 2];
+		int withoutDictionary = plain.deflate(out);
+		plain.end();
+
+		assertTrue(withDictionary.length - 2 < withoutDictionary);
+	}
+
+	public void testInflatingNeedsTheDictionary() {
+		byte[] deflated = mCodec.compress(PROTOCOL, new byte[][] { mLsa });
+		Inflater plain = new Inflater(true);
+		plain.setInput(deflated, 2, deflated.length - 2);
+		byte[] out = new byte[mLsa.length];
+		try {
+			int n = plain.inflate(out);
+			assertFalse(Arrays.equals(mLsa, Arrays.copyOf(out, n)));
+		} catch (DataFormatException e) {
+			// Also what a node with another dictionary would see
+		} finally {
+			plain.end();
+		}
+	}
+
+	public void testInflatesDataCompressedWithoutDictionary() {
+		byte[] text = new byte[1000];
+		Arrays.fill(text, (byte) 'x');
+		Deflater plain = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		plain.setInput(text);
+		plain.finish();
+		byte[] out = new byte[2 + text.length];
+		out[0] = (byte) (PROTOCOL >> 8);
+		out[1] = (byte) PROTOCOL;
+		int n = plain.deflate(out, 2, text.length);
+		plain.end();
+
+		assertTrue(mCodec.decompress(out, 0, 2 + n));
+		assertTrue(Arrays.equals(text, Arrays.copyOf(mCodec.getBuffer(), mCodec.getLength())));
+	}
+
+	public void testShortDatagramsAreLeftAlone() {
+		assertNull(mCodec.compress(PROTOCOL, new byte[][] { new byte[DeflateCodec.MIN_LENGTH - 1] }));
+		assertNotNull(mCodec.compress(PROTOCOL, new byte[][] { new byte[DeflateCodec.MIN_LENGTH] }));
+	}
+
+	public void testIncompressibleDatagramsAreLeftAlone() {
+		byte[] noise = new byte[1000];
+		new Random(1).nextBytes(noise);
+		assertNull(mCodec.compress(PROTOCOL, new byte[][] { noise }));
+		// And the codec is still good afterwards
+		byte[] deflated = mCodec.compress(PROTOCOL, new byte[][] { mLsa });
+		assertTrue(mCodec.decompress(deflated, 0, deflated.length));
+	}
+
+	public void testTruncatedDataIsRejected() {
+		byte[] text = new byte[4000];
+		for (int i = 0; i < text.length; ++i) {
+			text[i] = (byte) (i * i);
+		}
+		byte[] deflated = mCodec.compress(PROTOCOL, new byte[][] { text });
+		assertNotNull(deflated);
+		assertFalse(mCodec.decompress(deflated, 0, deflated.length / 2));
+		assertFalse(mCodec.decompress(deflated, 0, 1));
+	}
+
+	public void testMaxLength() {
+		byte[] zeros = new byte[8192];
+		byte[] deflated = mCodec.compress(PROTOCOL, new byte[][] { zeros });
+		DeflateCodec small = new DeflateCodec(4096);
+		try {
+			assertFalse(small.decompress(deflated, 0, deflated.length));
+		} finally {
+			small.end();
+		}
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] out = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, out, a.length, b.length);
+		return out;
+	}
+}
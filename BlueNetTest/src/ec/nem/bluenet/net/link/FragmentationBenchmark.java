@@ -0,0 +1,177 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Sends an 8 byte frame every 10 ms through a FrameWriter while a 2 MB
+ * datagram goes out on the same band, over an emulated 1 MB/s link taking
+ * writes of up to 4 KB.<br>
+ * <br>
+ *
+ * The datagram is sent whole, then fragmented at each link MTU.  How long
+ * the small frames took to arrive at the 50th and 99th percentiles and at
+ * worst is logged under TAG for each.
+ */
+@LargeTest
+public class FragmentationBenchmark extends TestCase {
+	private static final String TAG = "FragmentationBenchmark";
+	private static final int TRANSFER_BYTES = 2 * 1024 * 1024;
+	private static final int BYTES_PER_SECOND = 1024 * 1024;
+	private static final int WRITE_BYTES = 4096;
+	private static final long INTERVAL = 10;
+	private static final short PROTOCOL_BULK = 0x0057;
+	private static final short PROTOCOL_SMALL = 0x0061;
+
+	public void testSmallFrameLatency() throws Exception {
+		Log.i(TAG, String.format("%-6s %10s %10s %10s %7s", "mtu", "p50", "p99", "max", "frames"));
+		double whole = run(0);
+		double fragmented = run(4096);
+		assertTrue(run(1024) < whole);
+		assertTrue(fragmented < whole);
+	}
+
+	/**
+	 * Runs one transfer.
+	 * @param mtu the fragment size, or 0 to send the datagram whole
+	 * @return the 99th percentile latency, in milliseconds
+	 */
+	private double run(int mtu) throws Exception {
+		BufferPool pool = new BufferPool(64);
+		LengthCodec codec = new LengthCodec(pool);
+		final FrameWriter writer = new FrameWriter(pool, WRITE_BYTES, 0);
+		final EmulatedLink link = new EmulatedLink(TRANSFER_BYTES + 64);
+
+		Thread writerThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.writeLoop(link);
+				} catch (IOException e) {
+					// Not from this stream
+				}
+			}
+		};
+		writerThread.start();
+
+		byte[] bulk = new byte[TRANSFER_BYTES];
+		for (int i = 0; i < bulk.length; ++i) {
+			bulk[i] = (byte) (i * 7);
+		}
+		if (mtu == 0) {
+			assertTrue(writer.enqueue(codec.encode(PROTOCOL_BULK, bulk)));
+		} else {
+			assertTrue(writer.enqueue(new Fragmenter(codec, PROTOCOL_BULK, 1, mtu, bulk)));
+		}
+
+		while (!link.isBulkDone()) {
+			ByteBuffer stamp = ByteBuffer.allocate(8);
+			stamp.putLong(System.nanoTime());
+			writer.enqueue(codec.encode(PROTOCOL_SMALL, stamp.array()));
+			Thread.sleep(INTERVAL);
+		}
+		// Let the small frames stuck behind a whole datagram through
+		while (writer.getQueuedFrames() > 0) {
+			Thread.sleep(INTERVAL);
+		}
+		writer.close();
+		writerThread.join();
+
+		assertTrue(Arrays.equals(bulk, link.getBulk()));
+		ArrayList<Long> latencies = link.getLatencies();
+		assertTrue(latencies.size() > 100);
+		Collections.sort(latencies);
+		double p99 = percentile(latencies, 0.99);
+		Log.i(TAG, String.format("%-6s %7.1f ms %7.1f ms %7.1f ms %7d", mtu == 0 ? "off" : String.valueOf(mtu),
+				percentile(latencies, 0.50), p99, latencies.get(latencies.size() - 1) / 1e6, latencies.size()));
+		return p99;
+	}
+
+	private static double percentile(ArrayList<Long> sorted, double p) {
+		return sorted.get((int) Math.min(sorted.size() - 1, Math.round(p * sorted.size()))) / 1e6;
+	}
+
+	/**
+	 * Takes as long to write as the link would to send, then decodes what
+	 * arrived: small frames are timed, and the bulk datagram is put back
+	 * together.
+	 */
+	private static class EmulatedLink extends OutputStream {
+		private final FrameDecoder mDecoder;
+		private final Reassembler mReassembler = new Reassembler();
+		private final ArrayList<Long> mLatencies = new ArrayList<Long>();
+		private volatile byte[] mBulk;
+
+		EmulatedLink(int maxFrameLength) {
+			mDecoder = new FrameDecoder(maxFrameLength);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				long nanos = len * 1000000000L / BYTES_PER_SECOND;
+				Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+
+			long now = System.nanoTime();
+			int end = off + len;
+			while (off < end) {
+				off += mDecoder.feed(b, off, end - off);
+				if (mDecoder.hasFrame()) {
+					received(mDecoder.getProtocol(), mDecoder.getBuffer(), FrameDecoder.DATA_OFFSET,
+							mDecoder.getDataLength(), now);
+				}
+			}
+		}
+
+		private void received(short protocol, byte[] data, int offset, int length, long now) {
+			switch (protocol) {
+			case PROTOCOL_SMALL:
+				synchronized (mLatencies) {
+					mLatencies.add(now - ByteBuffer.wrap(data, offset, length).getLong());
+				}
+				break;
+			case PROTOCOL_BULK:
+				mBulk = Arrays.copyOfRange(data, offset, offset + length);
+				break;
+			case Fragmenter.PROTOCOL_FRAGMENT:
+				if (mReassembler.add(data, offset, length)) {
+					mBulk = Arrays.copyOf(mReassembler.getBuffer(), mReassembler.getLength());
+				}
+				break;
+			default:
+				fail("unexpected protocol " + protocol);
+			}
+		}
+
+		boolean isBulkDone() {
+			return mBulk != null;
+		}
+
+		byte[] getBulk() {
+			return mBulk;
+		}
+
+		ArrayList<Long> getLatencies() {
+			synchronized (mLatencies) {
+				return new ArrayList<Long>(mLatencies);
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FragmenterTest extends TestCase {
+	private static final short PROTOCOL = 0x0057;
+	private static final short OTHER_PROTOCOL = 0x0061;
+
+	private final LengthCodec mCodec = new LengthCodec();
+	private final Reassembler mReassembler = new Reassembler();
+
+	public void testHeaders() {
+		byte[] data = datagram(250, 1);
+		Fragmenter fragmenter = new Fragmenter(mCodec, PROTOCOL, 0x1234, 100, data);
+
+		assertEquals(4 + Fragmenter.HEADER_LENGTH + Fragmenter.BEGIN_HEADER_LENGTH + 100,
+				fragmenter.getNextLength());
+		byte[] first = next(fragmenter);
+		assertEquals(Fragmenter.HEADER_LENGTH + Fragmenter.BEGIN_HEADER_LENGTH + 100, first.length);
+		assertEquals(Fragmenter.FLAG_BEGIN, first[0] & 0xFF);
+		assertEquals(0x12, first[1]);
+		assertEquals(0x34, first[2]);
+		assertEquals(0x00, first[3]);
+		assertEquals(0x57, first[4]);
+		assertEquals(250, ((first[5] & 0xFF) << 24) | ((first[6] & 0xFF) << 16)
+				| ((first[7] & 0xFF) << 8) | (first[8] & 0xFF));
+		assertEquals(150, fragmenter.getRemaining());
+
+		assertEquals(4 + Fragmenter.HEADER_LENGTH + 100, fragmenter.getNextLength());
+		byte[] middle = next(fragmenter);
+		assertEquals(Fragmenter.HEADER_LENGTH + 100, middle.length);
+		assertEquals(0, middle[0]);
+
+		assertEquals(4 + Fragmenter.HEADER_LENGTH + 50, fragmenter.getNextLength());
+		byte[] last = next(fragmenter);
+		assertEquals(Fragmenter.HEADER_LENGTH + 50, last.length);
+		assertEquals(Fragmenter.FLAG_END, last[0] & 0xFF);
+		assertFalse(fragmenter.hasNext());
+		assertEquals(0, fragmenter.getRemaining());
+	}
+
+	public void testOneFragment() {
+		byte[] data = datagram(100, 2);
+		Fragmenter fragmenter = new Fragmenter(mCodec, PROTOCOL, 1, 100, data);
+		byte[] only = next(fragmenter);
+		assertEquals(Fragmenter.FLAG_BEGIN | Fragmenter.FLAG_END, only[0] & 0xFF);
+		assertFalse(fragmenter.hasNext());
+		assertTrue(mReassembler.add(only, 0, only.length));
+		assertDatagram(PROTOCOL, data);
+	}
+
+	public void testEmptyDatagram() {
+		Fragmenter fragmenter = new Fragmenter(mCodec, PROTOCOL, 1, 100, new byte[0]);
+		assertTrue(fragmenter.hasNext());
+		byte[] only = next(fragmenter);
+		assertEquals(Fragmenter.FLAG_BEGIN | Fragmenter.FLAG_END, only[0] & 0xFF);
+		assertFalse(fragmenter.hasNext());
+		assertTrue(mReassembler.add(only, 0, only.length));
+		assertEquals(0, mReassembler.getLength());
+	}
+
+	public void testPartsSpanFragments() {
+		byte[] data = datagram(1000, 3);
+		// Parts that start and end in the middle of fragments, and fragments
+		// that take in several whole parts
+		int[] cuts = { 0, 3, 5, 64, 65, 300, 301, 302, 700, 999, 1000 };
+		byte[][] parts = new byte[cuts.length - 1][];
+		for (int i = 0; i < parts.length; ++i) {
+			parts[i] = Arrays.copyOfRange(data, cuts[i], cuts[i + 1]);
+		}
+
+		for (int size : new int[] { 1, 7, 64, 100, 999, 1000, 4096 }) {
+			Fragmenter fragmenter = new Fragmenter(mCodec, PROTOCOL, size, size, parts);
+			int fragments = 0;
+			boolean done = false;
+			while (fragmenter.hasNext()) {
+				assertFalse("size " + size, done);
+				byte[] fragment = next(fragmenter);
+				done = mReassembler.add(fragment, 0, fragment.length);
+				fragments++;
+			}
+			assertTrue("size " + size, done);
+			assertEquals("size " + size, (1000 + size - 1) / size, fragments);
+			assertDatagram(PROTOCOL, data);
+		}
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	public void testInterleavedDatagrams() {
+		byte[][] data = { datagram(5000, 4), datagram(1234, 5), datagram(3000, 6) };
+		short[] protocols = { PROTOCOL, OTHER_PROTOCOL, PROTOCOL };
+		Fragmenter[] fragmenters = new Fragmenter[data.length];
+		for (int i = 0; i < data.length; ++i) {
+			fragmenters[i] = new Fragmenter(mCodec, protocols[i], i, 256, data[i]);
+		}
+
+		// Round robin, the way FrameWriter sends them
+		int completed = 0;
+		boolean more = true;
+		while (more) {
+			more = false;
+			for (int i = 0; i < fragmenters.length; ++i) {
+				if (!fragmenters[i].hasNext()) {
+					continue;
+				}
+				byte[] fragment = next(fragmenters[i]);
+				if (mReassembler.add(fragment, 0, fragment.length)) {
+					assertDatagram(protocols[i], data[i]);
+					completed++;
+				}
+				more = true;
+			}
+		}
+		assertEquals(3, completed);
+		assertEquals(3, mReassembler.getDatagrams());
+		assertEquals(0, mReassembler.getDropped());
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	/** Takes the next fragment's data, after the protocol field, checking it is a fragment frame */
+	private static byte[] next(Fragmenter fragmenter) {
+		ByteBuffer frame = fragmenter.next();
+		byte[] bytes = Arrays.copyOf(frame.array(), frame.limit());
+		int start = LengthCodec.HEADER_LENGTH;
+		assertEquals(Fragmenter.PROTOCOL_FRAGMENT,
+				(short) (((bytes[start] & 0xFF) << 8) | (bytes[start + 1] & 0xFF)));
+		return Arrays.copyOfRange(bytes, start + 2, bytes.length);
+	}
+
+	private void assertDatagram(short protocol, byte[] data) {
+		assertEquals(protocol, mReassembler.getProtocol());
+		assertEquals(data.length, mReassembler.getLength());
+		assertTrue(Arrays.equals(data, Arrays.copyOf(mReassembler.getBuffer(), mReassembler.getLength())));
+	}
+
+	private static byte[] datagram(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = (byte) (i * 31 + seed);
+		}
+		return data;
+	}
+}
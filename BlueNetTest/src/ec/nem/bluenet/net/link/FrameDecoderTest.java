@@ -0,0 +1,143 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds FrameDecoder streams mixing all three framings, cut into chunks at
+ * random, the way a socket hands them over.
+ */
+public class FrameDecoderTest extends TestCase {
+	private static final FrameCodec[] CODECS = { new PppCodec(), new LengthCodec(), new CobsCodec() };
+
+	private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+	private final List<Short> mProtocols = new ArrayList<Short>();
+	private final List<byte[]> mData = new ArrayList<byte[]>();
+
+	public void testMixedFramingsInRandomChunks() {
+		Random r = new Random(1);
+		for (int k = 0; k < 300; ++k) {
+			byte[] data = new byte[r.nextInt(4) == 0 ? r.nextInt(3000) : r.nextInt(300)];
+			int kind = r.nextInt(4);
+			for (int i = 0; i < data.length; ++i) {
+				switch (kind) {
+				case 0:
+					data[i] = (byte) r.nextInt();
+					break;
+				case 1:
+					// Every framing's special bytes
+					data[i] = new byte[] { PppCodec.FLAG, PppCodec.ESCAPE, CobsCodec.DELIMITER, LengthCodec.MARKER }[r.nextInt(4)];
+					break;
+				default:
+					data[i] = (byte) ('a' + r.nextInt(26));
+				}
+			}
+			write(CODECS[r.nextInt(CODECS.length)], (short) r.nextInt(), data);
+		}
+		byte[] stream = mStream.toByteArray();
+
+		FrameDecoder decoder = new FrameDecoder();
+		int got = 0;
+		int offset = 0;
+		while (offset < stream.length) {
+			int end = Math.min(stream.length, offset + 1 + r.nextInt(500));
+			while (offset < end) {
+				offset += decoder.feed(stream, offset, end - offset);
+				if (decoder.hasFrame()) {
+					assertFrame(decoder, got++);
+				}
+			}
+		}
+		assertEquals(mData.size(), got);
+		assertEquals(got, decoder.getFramesDecoded());
+		assertEquals(0, decoder.getFramesDropped());
+	}
+
+	public void testOneByteAtATime() {
+		for (FrameCodec codec : CODECS) {
+			write(codec, (short) 0x0057, new byte[] { PppCodec.FLAG, 0, LengthCodec.MARKER, PppCodec.ESCAPE });
+		}
+		byte[] stream = mStream.toByteArray();
+		FrameDecoder decoder = new FrameDecoder();
+		int got = 0;
+		for (int i = 0; i < stream.length; ++i) {
+			assertEquals(1, decoder.feed(stream, i, 1));
+			if (decoder.hasFrame()) {
+				assertFrame(decoder, got++);
+			}
+		}
+		assertEquals(CODECS.length, got);
+	}
+
+	public void testSkipsGarbageBetweenFrames() {
+		byte[] junk = { 1, 2, 3, (byte) 0x80 };
+		for (FrameCodec codec : CODECS) {
+			mStream.write(junk, 0, junk.length);
+			write(codec, (short) 0x0021, new byte[] { 4, 5, 6 });
+		}
+		assertAllDecoded(new FrameDecoder());
+	}
+
+	public void testDropsOversizedFramesAndRecovers() {
+		List<Short> protocols = new ArrayList<Short>();
+		List<byte[]> data = new ArrayList<byte[]>();
+		for (FrameCodec codec : CODECS) {
+			write(codec, (short) 0x0001, new byte[500]);
+			write(codec, (short) 0x0002, new byte[] { 5, 6 });
+			protocols.add((short) 0x0002);
+			data.add(new byte[] { 5, 6 });
+		}
+		mProtocols.clear();
+		mProtocols.addAll(protocols);
+		mData.clear();
+		mData.addAll(data);
+
+		FrameDecoder decoder = assertAllDecoded(new FrameDecoder(100));
+		assertEquals(CODECS.length, decoder.getFramesDropped());
+	}
+
+	public void testSkipsRunts() {
+		// Empty and one byte frames, too short to hold a protocol field
+		byte[] runts = { PppCodec.FLAG, PppCodec.FLAG, PppCodec.FLAG, 0x21, PppCodec.FLAG,
+				CobsCodec.DELIMITER, CobsCodec.DELIMITER, CobsCodec.DELIMITER, 2, 0x21, CobsCodec.DELIMITER };
+		mStream.write(runts, 0, runts.length);
+		write(CODECS[0], (short) 0x0021, new byte[] { 7 });
+		assertAllDecoded(new FrameDecoder());
+	}
+
+	private void write(FrameCodec codec, short protocol, byte[] data) {
+		ByteBuffer frame = codec.encode(protocol, data);
+		mStream.write(frame.array(), 0, frame.limit());
+		codec.release(frame);
+		mProtocols.add(protocol);
+		mData.add(data);
+	}
+
+	private FrameDecoder assertAllDecoded(FrameDecoder decoder) {
+		byte[] stream = mStream.toByteArray();
+		int got = 0;
+		int offset = 0;
+		while (offset < stream.length) {
+			offset += decoder.feed(stream, offset, stream.length - offset);
+			if (decoder.hasFrame()) {
+				assertFrame(decoder, got++);
+			}
+		}
+		assertEquals(mData.size(), got);
+		return decoder;
+	}
+
+	private void assertFrame(FrameDecoder decoder, int i) {
+		byte[] want = mData.get(i);
+		assertEquals("protocol of frame " + i, (short) mProtocols.get(i), decoder.getProtocol());
+		assertEquals("length of frame " + i, want.length, decoder.getDataLength());
+		assertTrue("data of frame " + i, Arrays.equals(want, Arrays.copyOfRange(decoder.getBuffer(),
+				FrameDecoder.DATA_OFFSET, FrameDecoder.DATA_OFFSET + want.length)));
+	}
+}
@@ -0,0 +1,540 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class FrameWriterTest extends TestCase {
+	private static final int LENGTH = 40;
+
+	private final BufferPool mPool = new BufferPool(16);
+	private final FrameWriter mWriter = new FrameWriter(mPool);
+	private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+	@Override
+	protected void tearDown() {
+		mWriter.close();
+	}
+
+	public void testDropTail() throws IOException {
+		mWriter.setQueueLimits(3, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.DROP_TAIL);
+		assertEquals(QueuePolicy.DROP_TAIL, mWriter.getQueuePolicy());
+		for (int id = 1; id <= 3; ++id) {
+			assertTrue(mWriter.enqueue(frame(id)));
+		}
+		assertFalse(mWriter.enqueue(frame(4)));
+		assertFalse(mWriter.enqueue(frame(5)));
+		assertEquals(3, mWriter.getQueuedFrames());
+		assertEquals(2, mWriter.getDroppedFrames());
+		assertEquals(2 * LENGTH, mWriter.getDroppedBytes());
+
+		assertEquals(3, mWriter.drain(mOut));
+		assertEquals(Arrays.asList(1, 2, 3), written());
+	}
+
+	public void testDropOldest() throws IOException {
+		mWriter.setQueueLimits(3, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.DROP_OLDEST);
+		for (int id = 1; id <= 5; ++id) {
+			assertTrue(mWriter.enqueue(frame(id)));
+		}
+		assertEquals(3, mWriter.getQueuedFrames());
+		assertEquals(2, mWriter.getDroppedFrames());
+		assertEquals(2 * LENGTH, mWriter.getDroppedBytes());
+
+		assertEquals(3, mWriter.drain(mOut));
+		assertEquals(Arrays.asList(3, 4, 5), written());
+	}
+
+	public void testDropOldestMakesRoomForBytes() throws IOException {
+		mWriter.setQueueLimits(10, 3 * LENGTH, QueuePolicy.DROP_OLDEST);
+		for (int id = 1; id <= 3; ++id) {
+			assertTrue(mWriter.enqueue(frame(id)));
+		}
+		// Twice the length needs two frames out of the way
+		assertTrue(mWriter.enqueue(frame(4, 2 * LENGTH)));
+		assertEquals(2, mWriter.getDroppedFrames());
+		assertEquals(3 * LENGTH, mWriter.getQueuedBytes());
+
+		mWriter.drain(mOut);
+		assertEquals(Arrays.asList(3, 4), written());
+	}
+
+	public void testReject() throws IOException {
+		mWriter.setQueueLimits(2, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.REJECT);
+		// The writer drops it like DROP_TAIL; the link layer tells the sender
+		assertEquals(QueuePolicy.REJECT, mWriter.getQueuePolicy());
+		assertTrue(mWriter.enqueue(frame(1)));
+		assertTrue(mWriter.enqueue(frame(2)));
+		assertFalse(mWriter.enqueue(frame(3)));
+		assertEquals(1, mWriter.getDroppedFrames());
+		assertEquals(LENGTH, mWriter.getDroppedBytes());
+
+		mWriter.drain(mOut);
+		assertEquals(Arrays.asList(1, 2), written());
+		// And once there is room again it is taken
+		assertTrue(mWriter.enqueue(frame(4)));
+	}
+
+	public void testBlockTimesOut() {
+		mWriter.setQueueLimits(2, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.BLOCK);
+		mWriter.setBlockTimeout(100);
+		assertTrue(mWriter.enqueue(frame(1)));
+		assertTrue(mWriter.enqueue(frame(2)));
+
+		// Nothing is writing, so the caller gives up after the timeout
+		long start = System.currentTimeMillis();
+		assertFalse(mWriter.enqueue(frame(3)));
+		long waited = System.currentTimeMillis() - start;
+		assertTrue("waited " + waited, waited >= 90);
+		assertTrue("waited " + waited, waited < 1000);
+		assertEquals(1, mWriter.getDroppedFrames());
+		assertEquals(2, mWriter.getQueuedFrames());
+	}
+
+	public void testBlockWaitsForWriter() throws Exception {
+		mWriter.setQueueLimits(2, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.BLOCK);
+		mWriter.setBlockTimeout(10000);
+		Thread writer = startWriter(new SlowStream(1));
+
+		for (int id = 1; id <= 100; ++id) {
+			assertTrue(mWriter.enqueue(frame(id)));
+			assertTrue(mWriter.getQueuedFrames() <= 2);
+		}
+		awaitWritten(100);
+		mWriter.close();
+		writer.join();
+
+		assertEquals(0, mWriter.getDroppedFrames());
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int id = 1; id <= 100; ++id) {
+			expected.add(id);
+		}
+		assertEquals(expected, written());
+	}
+
+	public void testCloseWakesBlockedSender() throws Exception {
+		mWriter.setQueueLimits(1, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.BLOCK);
+		mWriter.setBlockTimeout(10000);
+		assertTrue(mWriter.enqueue(frame(1)));
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Close anyway
+				}
+				mWriter.close();
+			}
+		}.start();
+
+		long start = System.currentTimeMillis();
+		assertFalse(mWriter.enqueue(frame(2)));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		// Lost to the close, not to the queue policy
+		assertEquals(0, mWriter.getDroppedFrames());
+	}
+
+	public void testByteLimit() throws IOException {
+		mWriter.setQueueLimits(100, 2 * LENGTH + 10, QueuePolicy.DROP_TAIL);
+		assertTrue(mWriter.enqueue(frame(1)));
+		assertTrue(mWriter.enqueue(frame(2)));
+		assertFalse(mWriter.enqueue(frame(3)));
+		assertTrue(mWriter.enqueue(frame(4, 10)));
+		assertEquals(2 * LENGTH + 10, mWriter.getQueuedBytes());
+		assertEquals(1, mWriter.getDroppedFrames());
+		assertEquals(LENGTH, mWriter.getDroppedBytes());
+	}
+
+	public void testOversizedFrameFitsEmptyQueue() throws IOException {
+		mWriter.setQueueLimits(100, LENGTH, QueuePolicy.DROP_TAIL);
+		assertTrue(mWriter.enqueue(frame(1, 10 * LENGTH)));
+		assertFalse(mWriter.enqueue(frame(2)));
+		mWriter.drain(mOut);
+		assertTrue(mWriter.enqueue(frame(3)));
+	}
+
+	public void testLimitsArePerBand() {
+		mWriter.setQueueLimits(2, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.DROP_TAIL);
+		assertTrue(mWriter.enqueue(frame(1), FrameWriter.BAND_LOW));
+		assertTrue(mWriter.enqueue(frame(2), FrameWriter.BAND_LOW));
+		assertFalse(mWriter.enqueue(frame(3), FrameWriter.BAND_LOW));
+		// A full bulk band leaves room for everything else
+		for (int band = FrameWriter.BAND_CONTROL; band < FrameWriter.BAND_LOW; ++band) {
+			assertTrue(mWriter.enqueue(frame(4), band));
+			assertTrue(mWriter.enqueue(frame(5), band));
+		}
+		assertEquals(8, mWriter.getQueuedFrames());
+		assertTrue(Arrays.equals(new int[] { 2, 2, 2, 2 }, mWriter.getQueuedFramesPerBand()));
+		assertEquals(1, mWriter.getDroppedFrames());
+	}
+
+	public void testDatagramLimit() {
+		mWriter.setMaxQueuedDatagrams(2);
+		assertTrue(mWriter.enqueue(datagram(1, 5000)));
+		assertTrue(mWriter.enqueue(datagram(2, 5000)));
+		assertFalse(mWriter.enqueue(datagram(3, 3000)));
+		assertEquals(2, mWriter.getQueuedDatagrams());
+		assertEquals(1, mWriter.getDroppedFrames());
+		assertEquals(3000, mWriter.getDroppedBytes());
+		// Datagrams don't count against the frame limits
+		mWriter.setQueueLimits(1, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.DROP_TAIL);
+		assertTrue(mWriter.enqueue(frame(4)));
+	}
+
+	public void testDropOldestDatagram() throws IOException {
+		mWriter.setQueueLimits(1, FrameWriter.DEFAULT_MAX_QUEUED_BYTES, QueuePolicy.DROP_OLDEST);
+		mWriter.setMaxQueuedDatagrams(1);
+		assertTrue(mWriter.enqueue(datagram(1, 5000)));
+		assertTrue(mWriter.enqueue(datagram(2, 3000)));
+		assertEquals(1, mWriter.getQueuedDatagrams());
+		assertEquals(1, mWriter.getDroppedFrames());
+		assertEquals(5000, mWriter.getDroppedBytes());
+
+		mWriter.drain(mOut);
+		Reassembler reassembler = new Reassembler();
+		FrameDecoder decoder = new FrameDecoder();
+		byte[] out = mOut.toByteArray();
+		int datagrams = 0;
+		int offset = 0;
+		while (offset < out.length) {
+			offset += decoder.feed(out, offset, out.length - offset);
+			if (decoder.hasFrame() && reassembler.add(decoder.getBuffer(), FrameDecoder.DATA_OFFSET,
+					decoder.getDataLength())) {
+				assertEquals(3000, reassembler.getLength());
+				datagrams++;
+			}
+		}
+		assertEquals(1, datagrams);
+	}
+
+	public void testEnqueueAfterClose() {
+		mWriter.close();
+		assertFalse(mWriter.enqueue(frame(1)));
+		assertFalse(mWriter.enqueue(datagram(2, 5000)));
+		assertEquals(0, mWriter.getDroppedFrames());
+	}
+
+	public void testCloseDropsQueued() {
+		mWriter.enqueue(frame(1));
+		mWriter.enqueue(frame(2), FrameWriter.BAND_CONTROL);
+		mWriter.enqueue(datagram(3, 5000));
+		assertEquals(3, mWriter.close());
+		assertEquals(0, mWriter.getQueuedFrames());
+		assertEquals(0, mWriter.getQueuedBytes());
+		assertEquals(0, mWriter.getQueuedDatagrams());
+	}
+
+	public void testPeakQueuedFrames() throws IOException {
+		for (int id = 1; id <= 7; ++id) {
+			mWriter.enqueue(frame(id));
+		}
+		mWriter.drain(mOut);
+		mWriter.enqueue(frame(8));
+		assertEquals(7, mWriter.getPeakQueuedFrames());
+	}
+
+	public void testQueuedFramesShareOneWrite() throws Exception {
+		SlowStream out = new SlowStream(0, true);
+		Thread writer = startWriter(out);
+		assertTrue(mWriter.enqueue(frame(1)));
+		// The writer has frame 1 and is stuck writing it
+		out.awaitEntered();
+		for (int id = 2; id <= 21; ++id) {
+			assertTrue(mWriter.enqueue(frame(id)));
+		}
+		out.open();
+		awaitWritten(21);
+		mWriter.close();
+		writer.join();
+
+		assertEquals(Arrays.asList(LENGTH, 20 * LENGTH), out.getLengths());
+		assertEquals(2, mWriter.getWrites());
+		assertEquals(21 * LENGTH, mWriter.getBytesWritten());
+		assertEquals(20, mWriter.getMaxFramesPerWrite());
+		assertTrue(Arrays.equals(new long[] { 1, 0, 0, 0, 1, 0 }, mWriter.getFramesPerWriteHistogram()));
+		assertEquals(21, written().size());
+		assertEquals(Integer.valueOf(21), written().get(20));
+	}
+
+	public void testBatchBytes() throws Exception {
+		FrameWriter writer = new FrameWriter(mPool, 3 * LENGTH, 0);
+		// Queued before there is a stream, like sends to a neighbor still connecting
+		for (int id = 1; id <= 10; ++id) {
+			assertTrue(writer.enqueue(frame(id)));
+		}
+		SlowStream out = new SlowStream(0);
+		Thread thread = startWriter(writer, out);
+		awaitWritten(writer, 10);
+		writer.close();
+		thread.join();
+
+		assertEquals(Arrays.asList(3 * LENGTH, 3 * LENGTH, 3 * LENGTH, LENGTH), out.getLengths());
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), written());
+	}
+
+	public void testDrainBatches() throws IOException {
+		FrameWriter writer = new FrameWriter(mPool, 4 * LENGTH, 0);
+		for (int id = 1; id <= 10; ++id) {
+			assertTrue(writer.enqueue(frame(id)));
+		}
+		SlowStream out = new SlowStream(0);
+		assertEquals(10, writer.drain(out));
+		assertEquals(Arrays.asList(4 * LENGTH, 4 * LENGTH, 2 * LENGTH), out.getLengths());
+		assertEquals(0, writer.drain(out));
+		assertEquals(3, writer.getWrites());
+	}
+
+	public void testLingerWaitsForMore() throws Exception {
+		FrameWriter writer = new FrameWriter(mPool, FrameWriter.DEFAULT_MAX_BATCH_BYTES, 200000);
+		SlowStream out = new SlowStream(0);
+		Thread thread = startWriter(writer, out);
+		for (int id = 1; id <= 3; ++id) {
+			assertTrue(writer.enqueue(frame(id)));
+			Thread.sleep(10);
+		}
+		awaitWritten(writer, 3);
+		writer.close();
+		thread.join();
+
+		assertEquals(Arrays.asList(3 * LENGTH), out.getLengths());
+	}
+
+	public void testNoLingerDoesNotWait() throws Exception {
+		SlowStream out = new SlowStream(0);
+		Thread writer = startWriter(out);
+		for (int id = 1; id <= 3; ++id) {
+			assertTrue(mWriter.enqueue(frame(id)));
+			awaitWritten(id);
+		}
+		mWriter.close();
+		writer.join();
+
+		assertEquals(Arrays.asList(LENGTH, LENGTH, LENGTH), out.getLengths());
+	}
+
+	public void testBandFor() {
+		assertEquals(FrameWriter.BAND_CONTROL, FrameWriter.bandFor(0xC0));
+		assertEquals(FrameWriter.BAND_CONTROL, FrameWriter.bandFor(0xE0));
+		assertEquals(FrameWriter.BAND_HIGH, FrameWriter.bandFor(0x80));
+		assertEquals(FrameWriter.BAND_HIGH, FrameWriter.bandFor(0xB8));
+		assertEquals(FrameWriter.BAND_NORMAL, FrameWriter.bandFor(0x00));
+		assertEquals(FrameWriter.BAND_NORMAL, FrameWriter.bandFor(0x40));
+		assertEquals(FrameWriter.BAND_LOW, FrameWriter.bandFor(0x20));
+	}
+
+	public void testControlGoesFirst() throws IOException {
+		for (int band = FrameWriter.BAND_LOW; band > FrameWriter.BAND_CONTROL; --band) {
+			for (int k = 0; k < 10; ++k) {
+				assertTrue(mWriter.enqueue(frame(band, 256), band));
+			}
+		}
+		// Queued last, behind 30 data frames
+		for (int k = 0; k < 3; ++k) {
+			assertTrue(mWriter.enqueue(frame(FrameWriter.BAND_CONTROL, 300), FrameWriter.BAND_CONTROL));
+		}
+
+		mWriter.drain(mOut);
+		byte[] out = mOut.toByteArray();
+		for (int i = 0; i < 3 * 300; ++i) {
+			assertEquals(FrameWriter.BAND_CONTROL, out[i]);
+		}
+		assertEquals(3 * 300, count(out, 0, out.length, FrameWriter.BAND_CONTROL));
+	}
+
+	public void testWeightsShareBytes() throws IOException {
+		// Five rounds of each band's quantum, in 256 byte frames
+		int rounds = 5;
+		int[] weights = { 4, 2, 1 };
+		for (int band = FrameWriter.BAND_HIGH; band <= FrameWriter.BAND_LOW; ++band) {
+			int frames = rounds * weights[band - 1] * FrameWriter.QUANTUM_BYTES / 256;
+			for (int k = 0; k < frames; ++k) {
+				assertTrue(mWriter.enqueue(frame(band, 256), band));
+			}
+		}
+		// And more bulk, which must wait until the others run out
+		for (int k = 0; k < 20; ++k) {
+			assertTrue(mWriter.enqueue(frame(FrameWriter.BAND_LOW, 256), FrameWriter.BAND_LOW));
+		}
+
+		mWriter.drain(mOut);
+		byte[] out = mOut.toByteArray();
+		int round = 7 * FrameWriter.QUANTUM_BYTES;
+		for (int r = 1; r <= rounds; ++r) {
+			int end = r * round;
+			assertEquals(r * 4 * FrameWriter.QUANTUM_BYTES, count(out, 0, end, FrameWriter.BAND_HIGH));
+			assertEquals(r * 2 * FrameWriter.QUANTUM_BYTES, count(out, 0, end, FrameWriter.BAND_NORMAL));
+			assertEquals(r * 1 * FrameWriter.QUANTUM_BYTES, count(out, 0, end, FrameWriter.BAND_LOW));
+		}
+		assertEquals(20 * 256, count(out, rounds * round, out.length, FrameWriter.BAND_LOW));
+	}
+
+	public void testIdleBandsShareIsTaken() throws IOException {
+		mWriter.setWeights(3, 5, 1);
+		for (int k = 0; k < 60; ++k) {
+			assertTrue(mWriter.enqueue(frame(FrameWriter.BAND_HIGH, 256), FrameWriter.BAND_HIGH));
+			assertTrue(mWriter.enqueue(frame(FrameWriter.BAND_LOW, 256), FrameWriter.BAND_LOW));
+		}
+
+		mWriter.drain(mOut);
+		byte[] out = mOut.toByteArray();
+		// Normal has nothing, so high and low split the link 3:1
+		int end = 4 * 4 * FrameWriter.QUANTUM_BYTES;
+		assertEquals(3 * end / 4, count(out, 0, end, FrameWriter.BAND_HIGH));
+		assertEquals(end / 4, count(out, 0, end, FrameWriter.BAND_LOW));
+	}
+
+	public void testLargeFrameWaitsForDeficit() throws IOException {
+		mWriter.setWeights(1, 1, 1);
+		// A frame of three quanta takes three rounds to be owed
+		assertTrue(mWriter.enqueue(frame(FrameWriter.BAND_LOW, 3 * FrameWriter.QUANTUM_BYTES), FrameWriter.BAND_LOW));
+		for (int k = 0; k < 20; ++k) {
+			assertTrue(mWriter.enqueue(frame(FrameWriter.BAND_HIGH, FrameWriter.QUANTUM_BYTES),
+					FrameWriter.BAND_HIGH));
+		}
+
+		mWriter.drain(mOut);
+		byte[] out = mOut.toByteArray();
+		int start = 0;
+		while (out[start] != FrameWriter.BAND_LOW) {
+			start++;
+		}
+		assertEquals(3 * FrameWriter.QUANTUM_BYTES, start);
+	}
+
+	private Thread startWriter(SlowStream out) {
+		return startWriter(mWriter, out);
+	}
+
+	private static Thread startWriter(final FrameWriter frameWriter, final SlowStream out) {
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					frameWriter.writeLoop(out);
+				} catch (IOException e) {
+					// Not from these streams
+				}
+			}
+		};
+		writer.start();
+		return writer;
+	}
+
+	private void awaitWritten(int frames) throws InterruptedException {
+		awaitWritten(mWriter, frames);
+	}
+
+	private static void awaitWritten(FrameWriter writer, int frames) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (writer.getFramesWritten() < frames && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(frames, writer.getFramesWritten());
+	}
+
+	/** The ids of the frames written, in order */
+	private List<Integer> written() {
+		byte[] out;
+		synchronized (mOut) {
+			out = mOut.toByteArray();
+		}
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < out.length; ++i) {
+			if (i == 0 || out[i] != out[i - 1]) {
+				ids.add(out[i] & 0xFF);
+			}
+		}
+		return ids;
+	}
+
+	/** Number of bytes in out[from, to) equal to value */
+	private static int count(byte[] out, int from, int to, int value) {
+		int n = 0;
+		for (int i = from; i < to; ++i) {
+			if (out[i] == value) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/** A frame of the default length whose every byte is its id */
+	private static ByteBuffer frame(int id) {
+		return frame(id, LENGTH);
+	}
+
+	private static ByteBuffer frame(int id, int length) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) id);
+		return ByteBuffer.wrap(data);
+	}
+
+	private static Fragmenter datagram(int tag, int length) {
+		return new Fragmenter(new LengthCodec(), (short) 0x0057, tag, 1024, new byte[length]);
+	}
+
+	/**
+	 * Writes to mOut, taking a while over each write like a radio link, and
+	 * keeps the length of every write.  Writes can be held up with a gate.
+	 */
+	private class SlowStream extends OutputStream {
+		private final long mDelay;
+		private final List<Integer> mLengths = new ArrayList<Integer>();
+		private final CountDownLatch mEntered = new CountDownLatch(1);
+		private final CountDownLatch mGate;
+
+		SlowStream(long delay) {
+			this(delay, false);
+		}
+
+		SlowStream(long delay, boolean gated) {
+			mDelay = delay;
+			mGate = new CountDownLatch(gated ? 1 : 0);
+		}
+
+		/** Waits for the first write to start */
+		void awaitEntered() throws InterruptedException {
+			assertTrue(mEntered.await(5, TimeUnit.SECONDS));
+		}
+
+		/** Lets writes through */
+		void open() {
+			mGate.countDown();
+		}
+
+		List<Integer> getLengths() {
+			synchronized (mOut) {
+				return new ArrayList<Integer>(mLengths);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mEntered.countDown();
+			try {
+				mGate.await();
+				Thread.sleep(mDelay);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+			synchronized (mOut) {
+				mOut.write(b, off, len);
+				mLengths.add(len);
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Encodes and decodes 1 KB frames with each framing, for random bytes,
+ * text, and data made entirely of PPP flags, PPP's worst case.<br>
+ * <br>
+ *
+ * Frame size and overhead, and the best of several runs of encoding FRAMES
+ * frames and of decoding them from a stream fed in 990 byte reads, are
+ * logged under TAG.
+ */
+@LargeTest
+public class FramingBenchmark extends TestCase {
+	private static final String TAG = "FramingBenchmark";
+	private static final int DATA_LENGTH = 1024;
+	private static final int FRAMES = 2000;
+	private static final int RUNS = 30;
+	private static final int READ_LENGTH = 990;
+	private static final short PROTOCOL = 0x0057;
+
+	public void testRandom() {
+		byte[] data = new byte[DATA_LENGTH];
+		new Random(7).nextBytes(data);
+		runAll("random", data);
+	}
+
+	public void testText() {
+		String text = "The quick brown fox jumps over the lazy dog; BlueNet routes chat messages hop by hop. ";
+		byte[] data = new byte[DATA_LENGTH];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) text.charAt(i % text.length());
+		}
+		runAll("text", data);
+	}
+
+	public void testAllFlags() {
+		byte[] data = new byte[DATA_LENGTH];
+		Arrays.fill(data, PppCodec.FLAG);
+		runAll("all-0x7e", data);
+	}
+
+	private void runAll(String name, byte[] data) {
+		run(name, "PPP", new PppCodec(), data);
+		run(name, "LENGTH", new LengthCodec(), data);
+		run(name, "COBS", new CobsCodec(), data);
+	}
+
+	private void run(String name, String framing, FrameCodec codec, byte[] data) {
+		ByteBuffer one = codec.encode(PROTOCOL, data);
+		int size = one.limit();
+		byte[] stream = new byte[size * FRAMES];
+		for (int k = 0; k < FRAMES; ++k) {
+			System.arraycopy(one.array(), 0, stream, k * size, size);
+		}
+		codec.release(one);
+
+		FrameDecoder decoder = new FrameDecoder();
+		long bestEncode = Long.MAX_VALUE;
+		long bestDecode = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; ++run) {
+			long start = System.nanoTime();
+			for (int k = 0; k < FRAMES; ++k) {
+				codec.release(codec.encode(PROTOCOL, data));
+			}
+			bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			int got = 0;
+			int offset = 0;
+			while (offset < stream.length) {
+				int end = Math.min(stream.length, offset + READ_LENGTH);
+				while (offset < end) {
+					offset += decoder.feed(stream, offset, end - offset);
+					if (decoder.hasFrame()) {
+						got++;
+					}
+				}
+			}
+			bestDecode = Math.min(bestDecode, System.nanoTime() - start);
+			assertEquals(framing + " frames decoded", FRAMES, got);
+		}
+		assertEquals(DATA_LENGTH, decoder.getDataLength());
+
+		Log.i(TAG, String.format("%-8s %-6s size %5d (+%5.1f%%) encode %6.0f ns/frame decode %6.0f ns/frame",
+				name, framing, size, 100.0 * (size - DATA_LENGTH - 2) / (DATA_LENGTH + 2),
+				(double) bestEncode / FRAMES, (double) bestDecode / FRAMES));
+	}
+}
@@ -0,0 +1,230 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Ping-pong over loopback TCP links, serviced by ThreadIoEngine and by
+ * PollingIoEngine, at 1, 7 and 50 connections.<br>
+ * <br>
+ *
+ * Every client keeps one 64 byte frame in flight and its server end echoes
+ * it straight back.  Round trips per second, round trip time percentiles,
+ * threads added and context switches per round trip are logged under TAG.
+ * Context switches are read from /proc, so they are only counted on Linux.
+ */
+@LargeTest
+public class IoEngineBenchmark extends TestCase {
+	private static final String TAG = "IoEngineBenchmark";
+	private static final int[] CONNECTIONS = { 1, 7, 50 };
+	private static final long WARMUP = 500;
+	private static final long DURATION = 2000;
+	private static final short PROTOCOL = 0x0057;
+	/** Each run gets its own range of localhost ports */
+	private static final int BASE_PORT = 40000;
+
+	public void testThreadIoEngine() throws Exception {
+		int port = BASE_PORT;
+		for (int n : CONNECTIONS) {
+			run(false, n, port);
+			port += 100;
+		}
+	}
+
+	public void testPollingIoEngine() throws Exception {
+		int port = BASE_PORT + 1000;
+		for (int n : CONNECTIONS) {
+			run(true, n, port);
+			port += 100;
+		}
+	}
+
+	private void run(boolean polling, int n, int port) throws Exception {
+		String name = polling ? "polling" : "thread";
+		int threadsBefore = Thread.activeCount();
+		IoEngine engine = polling ? new PollingIoEngine() : new ThreadIoEngine();
+
+		Map<String, Integer> directory = new HashMap<String, Integer>();
+		directory.put("S", port);
+		for (int i = 0; i < n; ++i) {
+			directory.put("C" + i, port + 1 + i);
+		}
+		TcpTransport server = new TcpTransport("S", directory);
+		server.listen();
+
+		List<Endpoint> clients = new ArrayList<Endpoint>();
+		List<Endpoint> servers = new ArrayList<Endpoint>();
+		try {
+			for (int i = 0; i < n; ++i) {
+				Endpoint client = new Endpoint(new TcpTransport("C" + i, directory).connect("S"), false);
+				Endpoint echo = new Endpoint(server.accept(), true);
+				clients.add(client);
+				servers.add(echo);
+				engine.register(client);
+				engine.register(echo);
+			}
+
+			for (Endpoint c : clients) {
+				c.ping();
+			}
+			Thread.sleep(WARMUP);
+			for (Endpoint c : clients) {
+				c.clear();
+			}
+
+			long switchesBefore = contextSwitches();
+			long start = System.nanoTime();
+			Thread.sleep(DURATION);
+			for (Endpoint c : clients) {
+				c.stop();
+			}
+			long elapsed = System.nanoTime() - start;
+			long switches = contextSwitches() - switchesBefore;
+			int threads = Thread.activeCount() - threadsBefore;
+
+			List<Long> rtts = new ArrayList<Long>();
+			for (Endpoint c : clients) {
+				rtts.addAll(c.getRtts());
+			}
+			assertFalse(name + " made no round trips on " + n + " connections", rtts.isEmpty());
+			Collections.sort(rtts);
+
+			double seconds = elapsed / 1e9;
+			Log.i(TAG, String.format("%-8s conns %3d threads %+4d rt/s %8.0f p50 %7.1fus p99 %8.1fus ctxsw/rt %.2f",
+					name, n, threads, rtts.size() / seconds,
+					rtts.get(rtts.size() / 2) / 1e3, rtts.get((int) (rtts.size() * 0.99)) / 1e3,
+					(double) switches / rtts.size()));
+		} finally {
+			for (Endpoint e : clients) {
+				e.close();
+			}
+			for (Endpoint e : servers) {
+				e.close();
+			}
+			engine.shutdown();
+			server.close();
+			// Let the threads of this run exit before the next one counts
+			Thread.sleep(300);
+		}
+	}
+
+	/** Voluntary and involuntary context switches of every thread in the process so far */
+	private static long contextSwitches() {
+		File[] tasks = new File("/proc/self/task").listFiles();
+		if (tasks == null) {
+			return 0;
+		}
+		long total = 0;
+		for (File task : tasks) {
+			try {
+				BufferedReader in = new BufferedReader(new FileReader(new File(task, "status")));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						if (line.contains("ctxt_switches")) {
+							total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				// The thread went away
+			}
+		}
+		return total;
+	}
+
+	/** One end of a link: a client timing round trips, or a server echoing frames back */
+	private static class Endpoint implements IoEngine.Channel {
+		private final LinkConnection mConnection;
+		private final boolean mEcho;
+		private final InputStream mIn;
+		private final OutputStream mOut;
+		private final FrameWriter mWriter = new FrameWriter(BufferPool.shared);
+		private final FrameDecoder mDecoder = new FrameDecoder();
+		private final PppCodec mCodec = new PppCodec();
+		private final byte[] mPayload = new byte[64];
+		private final List<Long> mRtts = new ArrayList<Long>();
+		private volatile boolean mRunning = true;
+		private long mSentAt;
+
+		Endpoint(LinkConnection connection, boolean echo) throws IOException {
+			mConnection = connection;
+			mEcho = echo;
+			mIn = connection.getInputStream();
+			mOut = connection.getOutputStream();
+		}
+
+		public InputStream getInputStream() {
+			return mIn;
+		}
+
+		public OutputStream getOutputStream() {
+			return mOut;
+		}
+
+		public FrameWriter getWriter() {
+			return mWriter;
+		}
+
+		void ping() {
+			mSentAt = System.nanoTime();
+			mWriter.enqueue(mCodec.encode(PROTOCOL, mPayload));
+		}
+
+		public void onReceive(byte[] data, int offset, int length) {
+			int end = offset + length;
+			while (offset < end) {
+				offset += mDecoder.feed(data, offset, end - offset);
+				if (!mDecoder.hasFrame()) {
+					continue;
+				}
+				if (mEcho) {
+					mWriter.enqueue(mCodec.encode(PROTOCOL, mDecoder.getBuffer(), FrameDecoder.DATA_OFFSET, mDecoder.getDataLength()));
+				} else {
+					synchronized (this) {
+						mRtts.add(System.nanoTime() - mSentAt);
+					}
+					if (mRunning) {
+						ping();
+					}
+				}
+			}
+		}
+
+		public void onClosed(IOException e) {
+		}
+
+		synchronized void clear() {
+			mRtts.clear();
+		}
+
+		void stop() {
+			mRunning = false;
+		}
+
+		synchronized List<Long> getRtts() {
+			return new ArrayList<Long>(mRtts);
+		}
+
+		void close() throws IOException {
+			mWriter.close();
+			mConnection.close();
+		}
+	}
+}
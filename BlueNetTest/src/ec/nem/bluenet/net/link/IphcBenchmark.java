@@ -0,0 +1,223 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.Message;
+import ec.nem.bluenet.Node;
+import ec.nem.bluenet.NodeFactory;
+import ec.nem.bluenet.net.IPv6Header;
+import ec.nem.bluenet.net.LinkLayer.LinkFrame;
+import ec.nem.bluenet.net.UDPHeader;
+import ec.nem.bluenet.net.routing.DatabaseDescription;
+import ec.nem.bluenet.net.routing.LinkStateAdvertisement;
+import ec.nem.bluenet.net.routing.LinkStateUpdate;
+import ec.nem.bluenet.net.routing.RoutingMessage;
+
+/**
+ * Measures the bytes on air IphcCodec saves for each kind of datagram
+ * BlueNet sends, with headers filled in as NetworkLayer and Socket fill
+ * them in.<br>
+ * <br>
+ *
+ * For each kind, the payload, the header with and without compression, the
+ * whole frame in PPP and LENGTH framing with and without compression, and
+ * the share of the LENGTH frame saved are logged under TAG, followed by the best
+ * of several runs of compressing and decompressing every header.
+ */
+@LargeTest
+public class IphcBenchmark extends TestCase {
+	private static final String TAG = "IphcBenchmark";
+	private static final int RUNS = 30;
+	private static final int HEADERS = 100000;
+
+	private Node mSender;
+	private Node mReceiver;
+	private Node mFar;
+	private Node mFarther;
+
+	@Override
+	protected void setUp() throws ParseException {
+		mSender = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:01");
+		mReceiver = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:02");
+		mFar = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:03");
+		mFarther = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:04");
+	}
+
+	public void testBytesOnAir() {
+		Log.i(TAG, String.format("%-24s %7s %8s %8s %12s %12s %6s",
+				"datagram", "payload", "header", "saved", "PPP frame", "LENGTH frame", "saved"));
+
+		RoutingMessage hello = new RoutingMessage();
+		hello.type = RoutingMessage.Type.Hello;
+		hello.obj = mSender;
+		run("Hello", routingHeader(), RoutingMessage.serializeMessage(hello), 3);
+
+		LinkStateUpdate lsu = new LinkStateUpdate();
+		lsu.source = mSender;
+		lsu.lsas.add(lsa(mSender, 4));
+		run("LSU, 1 LSA of 4 links", routingHeader(), routing(RoutingMessage.Type.LinkStateUpdate, lsu), 3);
+
+		lsu.lsas.add(lsa(mReceiver, 4));
+		lsu.lsas.add(lsa(mFar, 4));
+		lsu.lsas.add(lsa(mFarther, 4));
+		run("LSU, 4 LSAs of 4 links", routingHeader(), routing(RoutingMessage.Type.LinkStateUpdate, lsu), 3);
+
+		DatabaseDescription dd = new DatabaseDescription();
+		dd.source = mSender;
+		for (Node n : lsa(mSender, 20).others) {
+			dd.sequences.put(n, 7);
+		}
+		run("DD of 20 nodes", routingHeader(), routing(RoutingMessage.Type.DatabaseDescription, dd), 3);
+
+		byte[] move = udp(Message.serialize(new Message("player1", mSender.getAddress(), "e2e4", null, 0)));
+		run("UDP game move, 1 hop", udpHeader(mSender, mReceiver, move.length), move, 3);
+		run("UDP game move, relayed", udpHeader(mFar, mFarther, move.length), move, 15);
+
+		byte[] small = udp(new byte[16]);
+		run("UDP 16 bytes, 1 hop", udpHeader(mSender, mReceiver, small.length), small, 3);
+		run("UDP 16 bytes, relayed", udpHeader(mFar, mFarther, small.length), small, 15);
+
+		IPv6Header broadcast = udpHeader(mFar, mReceiver, small.length);
+		broadcast.destinationAddress = IPv6Header.BROADCAST_ADDRESS.clone();
+		broadcast.setFlowLabel(1234);
+		run("UDP 16 bytes, broadcast", broadcast, small, 28);
+	}
+
+	public void testSpeed() {
+		IPv6Header[] headers = {
+			routingHeader(),
+			udpHeader(mSender, mReceiver, 100),
+			udpHeader(mFar, mFarther, 100),
+		};
+		byte[][] compressed = new byte[headers.length][];
+		for (int i = 0; i < headers.length; ++i) {
+			compressed[i] = Arrays.copyOf(compress(headers[i]), IphcCodec.MAX_COMPRESSED_LENGTH + 100);
+		}
+
+		IPv6Header back = new IPv6Header();
+		long bestCompress = Long.MAX_VALUE;
+		long bestDecompress = Long.MAX_VALUE;
+		long sink = 0;
+		for (int run = 0; run < RUNS; ++run) {
+			long start = System.nanoTime();
+			for (int k = 0; k < HEADERS; ++k) {
+				sink += compress(headers[k % headers.length]).length;
+			}
+			bestCompress = Math.min(bestCompress, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int k = 0; k < HEADERS; ++k) {
+				byte[] in = compressed[k % headers.length];
+				sink += IphcCodec.decompress(in, 0, in.length, mSender.getAddressBytes(),
+						mReceiver.getAddressBytes(), back);
+			}
+			bestDecompress = Math.min(bestDecompress, System.nanoTime() - start);
+		}
+		assertTrue(sink > 0);
+
+		Log.i(TAG, String.format("compress %5.0f ns/header decompress %5.0f ns/header",
+				(double) bestCompress / HEADERS, (double) bestDecompress / HEADERS));
+	}
+
+	/**
+	 * Logs the bytes one datagram takes on air, checking the header
+	 * compresses to the expected length and comes back intact.
+	 */
+	private void run(String name, IPv6Header header, byte[] payload, int expected) {
+		header.setPayloadLength(payload.length);
+		byte[] compressed = compress(header);
+		assertEquals(name, expected, compressed.length);
+
+		byte[] in = new byte[compressed.length + payload.length];
+		System.arraycopy(compressed, 0, in, 0, compressed.length);
+		IPv6Header back = new IPv6Header();
+		assertEquals(compressed.length, IphcCodec.decompress(in, 0, in.length,
+				mSender.getAddressBytes(), mReceiver.getAddressBytes(), back));
+		assertTrue(Arrays.equals(header.headerFields, back.headerFields));
+		assertTrue(Arrays.equals(header.sourceAddress, back.sourceAddress));
+		assertTrue(Arrays.equals(header.destinationAddress, back.destinationAddress));
+
+		byte[][] full = { header.headerFields, header.sourceAddress, header.destinationAddress, payload };
+		byte[][] iphc = { compressed, payload };
+		int pppFull = frameLength(new PppCodec(), LinkFrame.PROTOCOL_IP6, full);
+		int pppIphc = frameLength(new PppCodec(), LinkFrame.PROTOCOL_IPHC, iphc);
+		int lengthFull = frameLength(new LengthCodec(), LinkFrame.PROTOCOL_IP6, full);
+		int lengthIphc = frameLength(new LengthCodec(), LinkFrame.PROTOCOL_IPHC, iphc);
+
+		Log.i(TAG, String.format("%-24s %7d %3d -> %2d %8d %5d -> %4d %5d -> %4d %5.1f%%",
+				name, payload.length, IphcCodec.HEADER_LENGTH, compressed.length,
+				IphcCodec.HEADER_LENGTH - compressed.length, pppFull, pppIphc, lengthFull, lengthIphc,
+				100.0 * (lengthFull - lengthIphc) / lengthFull));
+	}
+
+	private byte[] compress(IPv6Header header) {
+		return IphcCodec.compress(header.headerFields, header.sourceAddress, header.destinationAddress,
+				mSender.getAddressBytes(), mReceiver.getAddressBytes(), header.getPayloadLength());
+	}
+
+	private static int frameLength(FrameCodec codec, short protocol, byte[][] parts) {
+		ByteBuffer frame = codec.encode(protocol, parts);
+		int length = frame.limit();
+		codec.release(frame);
+		return length;
+	}
+
+	/** A routing message header, as NetworkLayer.sendRoutingMessage fills it in */
+	private IPv6Header routingHeader() {
+		IPv6Header header = new IPv6Header();
+		header.sourceAddress = mSender.getIPAddress();
+		header.destinationAddress = mReceiver.getIPAddress();
+		header.setNextHeader(IPv6Header.NH_ROUTING);
+		header.setVersion(6);
+		header.setTrafficClass(IPv6Header.TC_CONTROL);
+		return header;
+	}
+
+	/** An application datagram's header, as Socket and NetworkLayer fill it in */
+	private static IPv6Header udpHeader(Node source, Node destination, int length) {
+		IPv6Header header = new IPv6Header();
+		header.sourceAddress = source.getIPAddress();
+		header.destinationAddress = destination.getIPAddress();
+		header.setNextHeader(IPv6Header.NH_UDP);
+		header.setVersion(6);
+		header.setTrafficClass(IPv6Header.TC_INTERACTIVE);
+		header.setHopLimit(IPv6Header.DEFAULT_HOP_LIMIT);
+		header.setPayloadLength(length);
+		return header;
+	}
+
+	private static byte[] routing(RoutingMessage.Type type, Object obj) {
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = type;
+		msg.obj = obj;
+		return RoutingMessage.serializeMessage(msg);
+	}
+
+	private static byte[] udp(byte[] data) {
+		UDPHeader udp = new UDPHeader();
+		udp.setSourcePort(50000);
+		udp.setDestinationPort(50000);
+		udp.setData(data);
+		return udp.getRawBytes();
+	}
+
+	private static LinkStateAdvertisement lsa(Node source, int links) {
+		LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+		lsa.source = source;
+		for (int i = 0; i < links; ++i) {
+			try {
+				lsa.others.add(NodeFactory.factory.fromMacAddress(String.format("00:1A:7D:DA:72:%02X", i)));
+			} catch (ParseException e) {
+				throw new AssertionError(e);
+			}
+		}
+		return lsa;
+	}
+}
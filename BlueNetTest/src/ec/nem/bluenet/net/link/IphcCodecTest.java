@@ -0,0 +1,198 @@
+package ec.nem.bluenet.net.link;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.net.IPv6Header;
+
+public class IphcCodecTest extends TestCase {
+	private static final byte[] SENDER = { 0x00, 0x1A, 0x7D, (byte) 0xDA, 0x71, 0x01 };
+	private static final byte[] RECEIVER = { 0x00, 0x1A, 0x7D, (byte) 0xDA, 0x71, 0x02 };
+	private static final byte[] OTHER = { 0x00, 0x1A, 0x7D, (byte) 0xDA, 0x71, 0x03 };
+	private static final int PAYLOAD_LENGTH = 100;
+
+	/** The first 4 bytes of the header for each HF mode, and how many bytes each leaves inline */
+	private static final byte[][] FLOW = {
+		{ 0x00, 0x00, 0x00, 0x00 },
+		{ 0x60, 0x00, 0x00, 0x00 },
+		{ 0x62, 0x00, 0x00, 0x00 },
+		{ 0x62, 0x01, 0x23, 0x45 },
+	};
+	private static final int[] FLOW_INLINE = { 0, 0, 1, 4 };
+	/** Payload lengths for each PL mode */
+	private static final int[] LENGTHS = { 0, PAYLOAD_LENGTH, 1234 };
+	private static final int[] LENGTH_INLINE = { 0, 0, 2 };
+	/** Next headers for each NH mode */
+	private static final int[] NEXT = { IPv6Header.NH_UDP, IPv6Header.NH_ROUTING, 58 };
+	private static final int[] NEXT_INLINE = { 0, 0, 1 };
+	/** Hop limits for each HL mode */
+	private static final int[] HOPS = { 0, 64, 255, 17 };
+	private static final int[] HOPS_INLINE = { 0, 0, 0, 1 };
+	/** Addresses elided to the link end, sent as a MAC, unspecified and sent whole */
+	private static final byte[][] SOURCES = { linkLocal(SENDER), linkLocal(OTHER), new byte[16], global() };
+	private static final byte[][] DESTINATIONS = { linkLocal(RECEIVER), linkLocal(OTHER), new byte[16], global() };
+	private static final int[] ADDRESS_INLINE = { 0, 6, 0, 16 };
+
+	public void testEveryMode() {
+		int compressed = 0;
+		for (int hf = 0; hf < FLOW.length; ++hf) {
+			for (int pl = 0; pl < LENGTHS.length; ++pl) {
+				for (int nh = 0; nh < NEXT.length; ++nh) {
+					for (int hl = 0; hl < HOPS.length; ++hl) {
+						for (int sam = 0; sam < SOURCES.length; ++sam) {
+							for (int dam = 0; dam < DESTINATIONS.length; ++dam) {
+								IPv6Header header = header(FLOW[hf], LENGTHS[pl], NEXT[nh], HOPS[hl],
+										SOURCES[sam], DESTINATIONS[dam]);
+								int expected = 2 + FLOW_INLINE[hf] + LENGTH_INLINE[pl] + NEXT_INLINE[nh]
+										+ HOPS_INLINE[hl] + ADDRESS_INLINE[sam] + ADDRESS_INLINE[dam];
+								String what = "hf " + hf + " pl " + pl + " nh " + nh + " hl " + hl
+										+ " sam " + sam + " dam " + dam;
+								if (roundTrip(header, expected, what)) {
+									compressed++;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		// Only the headers with nearly everything inline aren't worth it
+		assertTrue(compressed > 2000);
+	}
+
+	public void testCommonHeadersAreTwoBytes() {
+		for (int next : new int[] { IPv6Header.NH_UDP, IPv6Header.NH_ROUTING }) {
+			IPv6Header header = header(FLOW[1], PAYLOAD_LENGTH, next, 64, linkLocal(SENDER), linkLocal(RECEIVER));
+			assertEquals(2, compress(header).length);
+		}
+	}
+
+	public void testNoSaving() {
+		IPv6Header header = header(FLOW[3], 1234, 58, 17, global(), global());
+		assertNull(compress(header));
+		// 40 bytes exactly is no saving either
+		header = header(FLOW[3], 1234, IPv6Header.NH_UDP, 64, global(), global());
+		assertNull(compress(header));
+		// But three bytes fewer inline is worth it
+		header = header(FLOW[2], 1234, IPv6Header.NH_UDP, 64, global(), global());
+		assertEquals(37, compress(header).length);
+	}
+
+	public void testUnknownLinkAddresses() {
+		IPv6Header header = header(FLOW[1], PAYLOAD_LENGTH, IPv6Header.NH_UDP, 64,
+				linkLocal(SENDER), linkLocal(RECEIVER));
+		byte[] compressed = IphcCodec.compress(header.headerFields, header.sourceAddress,
+				header.destinationAddress, null, null, PAYLOAD_LENGTH);
+		// Without the link ends the MACs have to be sent
+		assertEquals(2 + 6 + 6, compressed.length);
+		byte[] in = withPayload(compressed);
+		IPv6Header back = new IPv6Header();
+		assertEquals(compressed.length, IphcCodec.decompress(in, 0, in.length, null, null, back));
+		assertHeaderEquals(header, back);
+	}
+
+	public void testTruncated() {
+		IPv6Header header = header(FLOW[3], 1234, 58, 17, linkLocal(OTHER), global());
+		byte[] compressed = compress(header);
+		for (int length = 0; length < compressed.length; ++length) {
+			assertEquals("length " + length, -1,
+					IphcCodec.decompress(compressed, 0, length, SENDER, RECEIVER, new IPv6Header()));
+		}
+		assertEquals(compressed.length,
+				IphcCodec.decompress(compressed, 0, compressed.length, SENDER, RECEIVER, new IPv6Header()));
+	}
+
+	public void testReservedModes() {
+		byte[] in = new byte[64];
+		in[0] = (byte) 0x30;
+		assertEquals(-1, IphcCodec.decompress(in, 0, in.length, SENDER, RECEIVER, new IPv6Header()));
+		in[0] = (byte) 0x0C;
+		assertEquals(-1, IphcCodec.decompress(in, 0, in.length, SENDER, RECEIVER, new IPv6Header()));
+	}
+
+	public void testElidedAddressNeedsLinkEnd() {
+		IPv6Header header = header(FLOW[1], PAYLOAD_LENGTH, IPv6Header.NH_UDP, 64,
+				linkLocal(SENDER), linkLocal(RECEIVER));
+		byte[] in = withPayload(compress(header));
+		assertEquals(-1, IphcCodec.decompress(in, 0, in.length, null, RECEIVER, new IPv6Header()));
+		assertEquals(-1, IphcCodec.decompress(in, 0, in.length, SENDER, null, new IPv6Header()));
+	}
+
+	public void testOffset() {
+		IPv6Header header = header(FLOW[2], PAYLOAD_LENGTH, IPv6Header.NH_ROUTING, 3,
+				linkLocal(OTHER), linkLocal(RECEIVER));
+		byte[] compressed = compress(header);
+		byte[] in = new byte[5 + compressed.length + PAYLOAD_LENGTH];
+		System.arraycopy(compressed, 0, in, 5, compressed.length);
+		IPv6Header back = new IPv6Header();
+		assertEquals(compressed.length, IphcCodec.decompress(in, 5, in.length - 5, SENDER, RECEIVER, back));
+		assertHeaderEquals(header, back);
+	}
+
+	/**
+	 * Compresses a header, checks it came out the expected length, and
+	 * that it decompresses to the same header.
+	 * @return whether it was compressed at all
+	 */
+	private static boolean roundTrip(IPv6Header header, int expected, String what) {
+		byte[] compressed = compress(header);
+		if (expected >= IphcCodec.HEADER_LENGTH) {
+			assertNull(what, compressed);
+			return false;
+		}
+		assertNotNull(what, compressed);
+		assertEquals(what, expected, compressed.length);
+
+		byte[] in = withPayload(compressed);
+		IPv6Header back = new IPv6Header();
+		assertEquals(what, compressed.length, IphcCodec.decompress(in, 0, in.length, SENDER, RECEIVER, back));
+		assertHeaderEquals(header, back);
+		return true;
+	}
+
+	private static byte[] compress(IPv6Header header) {
+		return IphcCodec.compress(header.headerFields, header.sourceAddress,
+				header.destinationAddress, SENDER, RECEIVER, PAYLOAD_LENGTH);
+	}
+
+	private static byte[] withPayload(byte[] compressed) {
+		return Arrays.copyOf(compressed, compressed.length + PAYLOAD_LENGTH);
+	}
+
+	private static IPv6Header header(byte[] flow, int length, int next, int hops, byte[] source, byte[] destination) {
+		IPv6Header header = new IPv6Header();
+		System.arraycopy(flow, 0, header.headerFields, 0, 4);
+		header.headerFields[4] = (byte) (length >> 8);
+		header.headerFields[5] = (byte) length;
+		header.headerFields[6] = (byte) next;
+		header.headerFields[7] = (byte) hops;
+		header.sourceAddress = source.clone();
+		header.destinationAddress = destination.clone();
+		return header;
+	}
+
+	private static void assertHeaderEquals(IPv6Header expected, IPv6Header actual) {
+		assertTrue(Arrays.equals(expected.headerFields, actual.headerFields));
+		assertTrue(Arrays.equals(expected.sourceAddress, actual.sourceAddress));
+		assertTrue(Arrays.equals(expected.destinationAddress, actual.destinationAddress));
+	}
+
+	private static byte[] linkLocal(byte[] mac) {
+		byte[] address = new byte[16];
+		address[0] = (byte) 0xFE;
+		address[1] = (byte) 0x80;
+		System.arraycopy(mac, 0, address, 10, 6);
+		return address;
+	}
+
+	private static byte[] global() {
+		byte[] address = new byte[16];
+		address[0] = 0x20;
+		address[1] = 0x01;
+		address[2] = 0x0D;
+		address[3] = (byte) 0xB8;
+		address[15] = 1;
+		return address;
+	}
+}
@@ -0,0 +1,66 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class LengthCodecTest extends TestCase {
+	private static final short PROTOCOL = 0x0057;
+
+	private final LengthCodec mCodec = new LengthCodec();
+
+	public void testHeader() {
+		byte[] data = new byte[300];
+		byte[] frame = encode(data);
+		assertEquals(LengthCodec.encodedLength(data.length), frame.length);
+		assertEquals(LengthCodec.MARKER, frame[0]);
+		int length = ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+		assertEquals(2 + data.length, length);
+		assertEquals(0x00, frame[4]);
+		assertEquals(0x57, frame[5]);
+	}
+
+	public void testNothingIsEscaped() {
+		byte[] data = new byte[256];
+		for (int i = 0; i < data.length; ++i) {
+			data[i] = (byte) i;
+		}
+		byte[] frame = encode(data);
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(frame, LengthCodec.HEADER_LENGTH + 2, frame.length)));
+	}
+
+	public void testRoundTrip() {
+		for (int n : new int[] { 0, 1, 255, 256, 65535, 65536, 200000 }) {
+			byte[] data = new byte[n];
+			for (int i = 0; i < n; ++i) {
+				data[i] = (byte) (i * 31);
+			}
+			byte[] frame = encode(data);
+			FrameDecoder decoder = new FrameDecoder(1 << 18);
+			assertEquals(frame.length, decoder.feed(frame, 0, frame.length));
+			assertTrue("length " + n, decoder.hasFrame());
+			assertEquals(PROTOCOL, decoder.getProtocol());
+			assertEquals(n, decoder.getDataLength());
+			assertTrue(Arrays.equals(data, Arrays.copyOfRange(decoder.getBuffer(),
+					FrameDecoder.DATA_OFFSET, FrameDecoder.DATA_OFFSET + n)));
+		}
+	}
+
+	public void testHeadAndSlice() {
+		byte[] head = { 9, 8 };
+		byte[] data = { 0, 1, 2, 3, 4, 5 };
+		ByteBuffer frame = mCodec.encode(PROTOCOL, head, data, 2, 3);
+		byte[] bytes = Arrays.copyOf(frame.array(), frame.limit());
+		mCodec.release(frame);
+		assertTrue(Arrays.equals(new byte[] { 9, 8, 2, 3, 4 },
+				Arrays.copyOfRange(bytes, LengthCodec.HEADER_LENGTH + 2, bytes.length)));
+	}
+
+	private byte[] encode(byte[] data) {
+		ByteBuffer frame = mCodec.encode(PROTOCOL, data);
+		byte[] bytes = Arrays.copyOf(frame.array(), frame.limit());
+		mCodec.release(frame);
+		return bytes;
+	}
+}
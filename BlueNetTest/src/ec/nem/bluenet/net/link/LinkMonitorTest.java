@@ -0,0 +1,141 @@
+package ec.nem.bluenet.net.link;
+
+import junit.framework.TestCase;
+
+public class LinkMonitorTest extends TestCase {
+	private static final long MS = 1000000L;
+
+	private final LinkMonitor mMonitor = new LinkMonitor(0);
+
+	public void testProbe() {
+		byte[] first = mMonitor.probe(0);
+		byte[] second = mMonitor.probe(1);
+		assertEquals(LinkMonitor.ECHO_LENGTH, first.length);
+		assertEquals(LinkMonitor.ECHO_REQUEST, first[0]);
+		assertEquals(LinkMonitor.ECHO_LENGTH, ((first[2] & 0xFF) << 8) | (first[3] & 0xFF));
+		assertEquals(first[1] + 1, second[1]);
+		assertEquals(2, mMonitor.getProbesSent());
+	}
+
+	public void testReply() {
+		byte[] probe = mMonitor.probe(0);
+		byte[] frame = new byte[3 + probe.length];
+		System.arraycopy(probe, 0, frame, 3, probe.length);
+
+		byte[] reply = LinkMonitor.reply(frame, 3, probe.length);
+		assertEquals(LinkMonitor.ECHO_REPLY, reply[0]);
+		assertEquals(probe[1], reply[1]);
+		assertEquals(probe.length, reply.length);
+
+		// Only requests are answered, and only whole ones
+		assertNull(LinkMonitor.reply(reply, 0, reply.length));
+		assertNull(LinkMonitor.reply(probe, 0, probe.length - 1));
+	}
+
+	public void testFirstRtt() {
+		echo(mMonitor.probe(0), 10 * MS);
+		assertEquals(10 * MS, mMonitor.getRtt());
+		assertEquals(5 * MS, mMonitor.getJitter());
+		assertEquals(0.0, mMonitor.getLoss());
+	}
+
+	public void testRttIsSmoothed() {
+		echo(mMonitor.probe(0), 10 * MS);
+		echo(mMonitor.probe(100 * MS), 118 * MS);
+		// rtt += (18 - 10) / 8, jitter += (|18 - 10| - 5) / 4
+		assertEquals(11 * MS, mMonitor.getRtt());
+		assertEquals(5750000, mMonitor.getJitter());
+	}
+
+	public void testRepliesMatchTheirProbe() {
+		byte[] first = mMonitor.probe(0);
+		byte[] second = mMonitor.probe(5 * MS);
+		echo(second, 6 * MS);
+		assertEquals(1 * MS, mMonitor.getRtt());
+		echo(first, 7 * MS);
+		assertEquals(1 * MS + (7 * MS - 1 * MS) / 8, mMonitor.getRtt());
+	}
+
+	public void testDuplicateAndStrayRepliesAreIgnored() {
+		byte[] probe = mMonitor.probe(0);
+		echo(probe, 10 * MS);
+		echo(probe, 50 * MS);
+		assertEquals(10 * MS, mMonitor.getRtt());
+
+		byte[] stray = probe.clone();
+		stray[1] = 42;
+		echo(stray, 60 * MS);
+		assertEquals(10 * MS, mMonitor.getRtt());
+
+		// An echo request is not a reply
+		mMonitor.receive(probe, 0, probe.length, 70 * MS);
+		assertEquals(10 * MS, mMonitor.getRtt());
+	}
+
+	public void testProbeTimeout() {
+		assertEquals(LinkMonitor.INITIAL_PROBE_TIMEOUT, mMonitor.getProbeTimeout());
+		echo(mMonitor.probe(0), 1 * MS);
+		assertEquals(LinkMonitor.MIN_PROBE_TIMEOUT, mMonitor.getProbeTimeout());
+
+		LinkMonitor slow = new LinkMonitor(0);
+		slow.receive(LinkMonitor.reply(slow.probe(0), 0, LinkMonitor.ECHO_LENGTH), 0,
+				LinkMonitor.ECHO_LENGTH, 400 * MS);
+		assertEquals(400 * MS + 4 * 200 * MS, slow.getProbeTimeout());
+	}
+
+	public void testLoss() {
+		byte[] lost = mMonitor.probe(0);
+		// Nothing is lost until the next probe finds it has timed out
+		mMonitor.probe(LinkMonitor.INITIAL_PROBE_TIMEOUT);
+		assertEquals(0, mMonitor.getProbesLost());
+		mMonitor.probe(LinkMonitor.INITIAL_PROBE_TIMEOUT + 1);
+		assertEquals(1, mMonitor.getProbesLost());
+		assertEquals(1.0 / 8, mMonitor.getLoss(), 1e-9);
+
+		// A reply too late counts for nothing
+		echo(lost, LinkMonitor.INITIAL_PROBE_TIMEOUT + 2);
+		assertEquals(0L, mMonitor.getRtt());
+		assertEquals(1.0 / 8, mMonitor.getLoss(), 1e-9);
+	}
+
+	public void testLossDecays() {
+		mMonitor.probe(0);
+		byte[] answered = mMonitor.probe(LinkMonitor.INITIAL_PROBE_TIMEOUT + 1);
+		assertEquals(1, mMonitor.getProbesLost());
+		echo(answered, LinkMonitor.INITIAL_PROBE_TIMEOUT + 1 + MS);
+		assertEquals(1.0 / 8 * 7 / 8, mMonitor.getLoss(), 1e-9);
+		assertEquals(2, mMonitor.getProbesSent());
+	}
+
+	public void testAllLost() {
+		long now = 0;
+		for (int i = 0; i < 100; ++i) {
+			mMonitor.probe(now);
+			now += LinkMonitor.INITIAL_PROBE_TIMEOUT + 1;
+		}
+		assertEquals(99, mMonitor.getProbesLost());
+		assertTrue(mMonitor.getLoss() > 0.99);
+	}
+
+	public void testIdentifiersWrap() {
+		// 256 probes out at once, all in the same instant
+		for (int i = 0; i < 256; ++i) {
+			mMonitor.probe(0);
+		}
+		assertEquals(0, mMonitor.getProbesLost());
+		mMonitor.probe(0);
+		assertEquals(1, mMonitor.getProbesLost());
+	}
+
+	public void testHeard() {
+		assertEquals(0, mMonitor.getLastHeard());
+		mMonitor.heard(123 * MS);
+		assertEquals(123 * MS, mMonitor.getLastHeard());
+	}
+
+	/** Has the neighbor answer a probe, with the reply arriving at the given time */
+	private void echo(byte[] probe, long now) {
+		byte[] reply = LinkMonitor.reply(probe, 0, probe.length);
+		mMonitor.receive(reply, 0, reply.length, now);
+	}
+}
@@ -0,0 +1,161 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class PipeTransportTest extends TestCase {
+	private static final String A = "00:00:09:00:01:01";
+	private static final String B = "00:00:09:00:01:02";
+	private static final String C = "00:00:09:00:01:03";
+	/** Small enough that the streams below wrap around it many times */
+	private static final int CAPACITY = 100;
+
+	private PipeTransport.Hub mHub;
+	private PipeTransport mA;
+	private PipeTransport mB;
+
+	@Override
+	protected void setUp() throws IOException {
+		mHub = new PipeTransport.Hub(CAPACITY);
+		mA = new PipeTransport(mHub, A);
+		mB = new PipeTransport(mHub, B);
+		mA.listen();
+	}
+
+	public void testConnectAndAccept() throws IOException {
+		LinkConnection client = mB.connect(A);
+		LinkConnection server = mA.accept();
+		assertEquals(B, server.getRemoteAddress());
+		assertEquals(A, client.getRemoteAddress());
+
+		client.getOutputStream().write(new byte[] { 1, 2, 3 });
+		assertEquals(3, server.getInputStream().available());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, read(server, 3)));
+		server.getOutputStream().write(0xff);
+		assertEquals(0xff, client.getInputStream().read());
+	}
+
+	public void testPairing() {
+		new PipeTransport(mHub, C);
+		mHub.pair(A, B);
+		mHub.pair(A, C);
+		assertEquals(2, mA.getPairedAddresses().size());
+		assertTrue(mA.getPairedAddresses().containsAll(Arrays.asList(B, C)));
+		assertEquals(Arrays.asList(A), mB.getPairedAddresses());
+	}
+
+	public void testNobodyListeningThrows() {
+		try {
+			mA.connect(B);
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			mA.connect(C);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	/** Many times the pipe's capacity, so the writer blocks and the ring wraps */
+	public void testStreamThroughSmallPipe() throws Exception {
+		LinkConnection client = mB.connect(A);
+		LinkConnection server = mA.accept();
+		final byte[] data = new byte[CAPACITY * 50 + 7];
+		new Random(9).nextBytes(data);
+		final OutputStream out = client.getOutputStream();
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Random r = new Random(10);
+					int offset = 0;
+					while (offset < data.length) {
+						int n = Math.min(data.length - offset, 1 + r.nextInt(CAPACITY * 3));
+						out.write(data, offset, n);
+						offset += n;
+					}
+				} catch (IOException e) {
+					failure.set(e);
+				}
+			}
+		};
+		writer.start();
+
+		byte[] got = read(server, data.length);
+		writer.join(5000);
+		assertNull(failure.get());
+		assertTrue(Arrays.equals(data, got));
+	}
+
+	public void testCloseEndsStreams() throws IOException {
+		LinkConnection client = mB.connect(A);
+		LinkConnection server = mA.accept();
+		client.getOutputStream().write(5);
+		client.close();
+
+		// What was written before still arrives
+		assertEquals(5, server.getInputStream().read());
+		assertEquals(-1, server.getInputStream().read());
+		try {
+			server.getOutputStream().write(1);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	public void testCloseWakesAccept() throws InterruptedException {
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread acceptor = acceptInBackground(result);
+		Thread.sleep(50);
+		mA.close();
+		acceptor.join(5000);
+		assertFalse(acceptor.isAlive());
+		assertTrue(result.get() instanceof IOException);
+
+		// Nor can anyone connect any more
+		try {
+			mB.connect(A);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	public void testInterruptedAccept() throws InterruptedException {
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread acceptor = acceptInBackground(result);
+		Thread.sleep(50);
+		acceptor.interrupt();
+		acceptor.join(5000);
+		assertTrue(result.get() instanceof InterruptedIOException);
+	}
+
+	private Thread acceptInBackground(final AtomicReference<Object> result) {
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result.set(mA.accept());
+				} catch (IOException e) {
+					result.set(e);
+				}
+			}
+		};
+		acceptor.start();
+		return acceptor;
+	}
+
+	private static byte[] read(LinkConnection c, int length) throws IOException {
+		byte[] b = new byte[length];
+		new DataInputStream(c.getInputStream()).readFully(b);
+		return b;
+	}
+}
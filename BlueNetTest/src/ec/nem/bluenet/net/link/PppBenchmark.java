@@ -0,0 +1,129 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Encodes and decodes PPP frames of random bytes from 64 bytes to 64 KB,
+ * about BYTES_PER_RUN a run, with PppCodec into pooled buffers and with the
+ * ByteArrayOutputStreams and byte at a time escaping LinkFrame used before
+ * it.  PppCodec frames are decoded by FrameDecoder, as LinkLayer reads them;
+ * the old ones as LinkFrame.fromEncapsulated() did.<br>
+ * <br>
+ *
+ * The best of several runs, in MB of data a second, is logged under TAG.
+ */
+@LargeTest
+public class PppBenchmark extends TestCase {
+	private static final String TAG = "PppBenchmark";
+	private static final int[] SIZES = { 64, 512, 4096, 65536 };
+	private static final int BYTES_PER_RUN = 4 << 20;
+	private static final int RUNS = 20;
+	private static final short PROTOCOL = 0x0057;
+
+	public void testThroughput() {
+		Random random = new Random(11);
+		Log.i(TAG, String.format("%-7s %12s %12s", "size", "streams", "PppCodec"));
+		for (int size : SIZES) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			int frames = BYTES_PER_RUN / size;
+
+			long streams = Long.MAX_VALUE;
+			long codec = Long.MAX_VALUE;
+			for (int run = 0; run < RUNS; ++run) {
+				streams = Math.min(streams, runStreams(data, frames));
+				codec = Math.min(codec, runCodec(data, frames));
+			}
+			Log.i(TAG, String.format("%-7d %7.0f MB/s %7.0f MB/s", size,
+					mbPerSecond(size, frames, streams), mbPerSecond(size, frames, codec)));
+			assertTrue(codec < streams);
+		}
+	}
+
+	/** @return nanoseconds to encode and decode frames frames of data */
+	private static long runStreams(byte[] data, int frames) {
+		long start = System.nanoTime();
+		for (int k = 0; k < frames; ++k) {
+			byte[] decoded = streamDecode(streamEncode(PROTOCOL, data));
+			if (decoded.length != data.length) {
+				fail("stream decoded " + decoded.length + " bytes");
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runCodec(byte[] data, int frames) {
+		PppCodec codec = new PppCodec();
+		FrameDecoder decoder = new FrameDecoder();
+		long start = System.nanoTime();
+		for (int k = 0; k < frames; ++k) {
+			ByteBuffer frame = codec.encode(PROTOCOL, data, 0, data.length);
+			int fed = 0;
+			do {
+				fed += decoder.feed(frame.array(), fed, frame.limit() - fed);
+			} while (!decoder.hasFrame() && fed < frame.limit());
+			codec.release(frame);
+			if (decoder.getDataLength() != data.length) {
+				fail("codec decoded " + decoder.getDataLength() + " bytes");
+			}
+		}
+		long time = System.nanoTime() - start;
+		assertEquals(frames, decoder.getFramesDecoded());
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(decoder.getBuffer(),
+				FrameDecoder.DATA_OFFSET, FrameDecoder.DATA_OFFSET + data.length)));
+		return time;
+	}
+
+	private static double mbPerSecond(int size, int frames, long nanos) {
+		return (double) size * frames / (1 << 20) / (nanos / 1e9);
+	}
+
+	/** LinkFrame.encapsulate() as it was before PppCodec */
+	private static byte[] streamEncode(short protocol, byte[] data) {
+		ByteArrayOutputStream toEscape = new ByteArrayOutputStream();
+		toEscape.write((protocol >> 8) & 0xFF);
+		toEscape.write(protocol & 0xFF);
+		toEscape.write(data, 0, data.length);
+
+		ByteArrayOutputStream escaped = new ByteArrayOutputStream();
+		escaped.write(0x7e);
+		for (byte i : toEscape.toByteArray()) {
+			if (i != 0x7e && i != 0x7d) {
+				escaped.write(i);
+			} else {
+				escaped.write(0x7d);
+				escaped.write(i ^ 0x20);
+			}
+		}
+		escaped.write(0x7e);
+		return escaped.toByteArray();
+	}
+
+	/** LinkFrame.fromEncapsulated() as it was before PppCodec, giving the data */
+	private static byte[] streamDecode(byte[] bytes) {
+		int startReading = bytes[0] == 0x7e ? 1 : 0;
+		ByteArrayOutputStream unescaped = new ByteArrayOutputStream();
+		for (int i = startReading; i < bytes.length; ++i) {
+			if (bytes[i] == 0x7e) {
+				break;
+			} else if (bytes[i] == 0x7d) {
+				unescaped.write(bytes[i + 1] ^ 0x20);
+				i++;
+			} else {
+				unescaped.write(bytes[i]);
+			}
+		}
+		byte[] unescapedBytes = unescaped.toByteArray();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(unescapedBytes, 2, unescapedBytes.length - 2);
+		return data.toByteArray();
+	}
+}
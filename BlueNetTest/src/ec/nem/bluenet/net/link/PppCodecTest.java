@@ -0,0 +1,130 @@
+package ec.nem.bluenet.net.link;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.net.LinkLayer.LinkFrame;
+
+public class PppCodecTest extends TestCase {
+	private static final short PROTOCOL = 0x0057;
+
+	private final PppCodec mCodec = new PppCodec();
+
+	public void testFlagAndEscapeAreStuffed() {
+		byte[] data = { 1, 0x7e, 2, 0x7d, 0x5e, 0x5d, 0x7e, 0x7e };
+		byte[] expected = { 0x7e, 0x00, 0x57, 1, 0x7d, 0x5e, 2, 0x7d, 0x5d, 0x5e, 0x5d,
+				0x7d, 0x5e, 0x7d, 0x5e, 0x7e };
+		assertTrue(Arrays.equals(expected, encode(PROTOCOL, data)));
+	}
+
+	public void testProtocolFieldIsStuffed() {
+		byte[] frame = encode((short) 0x7e7d, new byte[] { 9 });
+		assertTrue(Arrays.equals(new byte[] { 0x7e, 0x7d, 0x5e, 0x7d, 0x5d, 9, 0x7e }, frame));
+		assertDecodesTo(frame, (short) 0x7e7d, new byte[] { 9 });
+	}
+
+	/** No flag is left between the opening and closing ones */
+	public void testNoFlagInsideFrame() {
+		byte[] data = new byte[1000];
+		new Random(3).nextBytes(data);
+		byte[] frame = encode(PROTOCOL, data);
+		for (int i = 1; i < frame.length - 1; ++i) {
+			assertTrue("flag at " + i, frame[i] != PppCodec.FLAG);
+		}
+	}
+
+	public void testEveryByteRoundTrips() {
+		for (int n : new int[] { 0, 1, 2, 255, 256, 1000, 70000 }) {
+			byte[] data = new byte[n];
+			for (int i = 0; i < n; ++i) {
+				data[i] = (byte) (i * 7);
+			}
+			byte[] frame = encode(PROTOCOL, data);
+			assertTrue(frame.length <= PppCodec.maxEncodedLength(n));
+			assertDecodesTo(frame, PROTOCOL, data);
+
+			byte[] copy = frame.clone();
+			int length = PppCodec.unescape(copy, 1, frame.length - 2);
+			assertEquals(2 + n, length);
+			assertTrue(Arrays.equals(data, Arrays.copyOfRange(copy, 3, 3 + n)));
+		}
+	}
+
+	/** Every byte escaped, protocol included, is as long as a frame gets */
+	public void testWorstCaseIsMaxEncodedLength() {
+		byte[] data = new byte[500];
+		Arrays.fill(data, PppCodec.ESCAPE);
+		assertEquals(PppCodec.maxEncodedLength(data.length), encode((short) 0x7d7e, data).length);
+	}
+
+	public void testEncodingsAgree() {
+		byte[] head = { 0x7e, 1, 2 };
+		byte[] data = { 5, 0x7d, 6, 7, 0x7e, 8 };
+		byte[] whole = { 0x7e, 1, 2, 0x7d, 6, 7 };
+		byte[] expected = encode(PROTOCOL, whole);
+
+		ByteBuffer frame = mCodec.encode(PROTOCOL, head, new byte[] { 0x7d, 6 }, new byte[] { 7 });
+		assertTrue(Arrays.equals(expected, Arrays.copyOf(frame.array(), frame.limit())));
+		mCodec.release(frame);
+		frame = mCodec.encode(PROTOCOL, head, data, 1, 3);
+		assertTrue(Arrays.equals(expected, Arrays.copyOf(frame.array(), frame.limit())));
+		mCodec.release(frame);
+		frame = mCodec.encode(PROTOCOL, whole, 0, whole.length);
+		assertTrue(Arrays.equals(expected, Arrays.copyOf(frame.array(), frame.limit())));
+		mCodec.release(frame);
+	}
+
+	public void testTrailingEscapeIsDropped() {
+		byte[] bytes = { 1, 0x7d, 0x5e, 2, 0x7d };
+		assertEquals(3, PppCodec.unescape(bytes, 0, bytes.length));
+		assertEquals(1, bytes[0]);
+		assertEquals(0x7e, bytes[1]);
+		assertEquals(2, bytes[2]);
+	}
+
+	/** A reused buffer still holding a longer frame gives only the new one */
+	public void testPooledBufferHoldsOnlyNewFrame() {
+		BufferPool pool = new BufferPool(1);
+		PppCodec codec = new PppCodec(pool);
+		byte[] big = new byte[100];
+		Arrays.fill(big, (byte) 0x7e);
+		pool.release(codec.encode(PROTOCOL, big, 0, 20));
+		ByteBuffer frame = codec.encode(PROTOCOL, new byte[] { 1, 2 }, 0, 2);
+		assertEquals(0, frame.position());
+		assertEquals(6, frame.limit());
+		assertEquals(PppCodec.FLAG, frame.get(5));
+	}
+
+	public void testLinkFrameRoundTrips() {
+		LinkFrame frame = new LinkFrame();
+		// A low byte with its top bit set, which must not be sign extended
+		frame.protocol = (short) 0x00fd;
+		frame.data = new byte[] { 0x7e, 0x7d, 0, (byte) 0xff };
+		byte[] stream = Arrays.copyOf(frame.encapsulate(), 20);
+
+		LinkFrame decoded = LinkFrame.fromEncapsulated(stream);
+		assertEquals((short) 0x00fd, decoded.protocol);
+		assertTrue(Arrays.equals(frame.data, decoded.data));
+		assertEquals(frame.encapsulate().length, decoded.bytesRead);
+	}
+
+	private byte[] encode(short protocol, byte[] data) {
+		ByteBuffer frame = mCodec.encode(protocol, data, 0, data.length);
+		byte[] bytes = Arrays.copyOf(frame.array(), frame.limit());
+		mCodec.release(frame);
+		return bytes;
+	}
+
+	private static void assertDecodesTo(byte[] frame, short protocol, byte[] data) {
+		FrameDecoder decoder = new FrameDecoder();
+		assertEquals(frame.length, decoder.feed(frame, 0, frame.length));
+		assertTrue(decoder.hasFrame());
+		assertEquals(protocol, decoder.getProtocol());
+		assertEquals(data.length, decoder.getDataLength());
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(decoder.getBuffer(),
+				FrameDecoder.DATA_OFFSET, FrameDecoder.DATA_OFFSET + data.length)));
+	}
+}
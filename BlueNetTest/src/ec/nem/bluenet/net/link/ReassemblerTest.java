@@ -0,0 +1,168 @@
+package ec.nem.bluenet.net.link;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ReassemblerTest extends TestCase {
+	private static final short PROTOCOL = 0x0057;
+	private static final int MAX_BYTES = 1000;
+	private static final long TIMEOUT = 100;
+
+	private final Reassembler mReassembler = new Reassembler(MAX_BYTES, TIMEOUT);
+
+	public void testDatagram() {
+		assertFalse(add(begin(1, 6, 0, 1, 2)));
+		assertEquals(6, mReassembler.getHeldBytes());
+		assertFalse(add(fragment(0, 1, 3, 4)));
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 1, 5)));
+		assertEquals(PROTOCOL, mReassembler.getProtocol());
+		assertEquals(6, mReassembler.getLength());
+		assertTrue(Arrays.equals(new byte[] { 0, 1, 2, 3, 4, 5 }, Arrays.copyOf(mReassembler.getBuffer(), 6)));
+		assertEquals(1, mReassembler.getDatagrams());
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	public void testInterleavedTags() {
+		assertFalse(add(begin(1, 4, 10, 11)));
+		assertFalse(add(begin(2, 4, 20, 21)));
+		assertFalse(add(begin(3, 2, 30)));
+		assertEquals(10, mReassembler.getHeldBytes());
+
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 2, 22, 23)));
+		assertTrue(Arrays.equals(new byte[] { 20, 21, 22, 23 }, Arrays.copyOf(mReassembler.getBuffer(), 4)));
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 1, 12, 13)));
+		assertTrue(Arrays.equals(new byte[] { 10, 11, 12, 13 }, Arrays.copyOf(mReassembler.getBuffer(), 4)));
+		assertEquals(2, mReassembler.getHeldBytes());
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 3, 31)));
+		assertEquals(0, mReassembler.getHeldBytes());
+		assertEquals(3, mReassembler.getDatagrams());
+	}
+
+	public void testBeginReplacesUnfinishedDatagram() {
+		assertFalse(add(begin(1, 100, 1, 2, 3)));
+		assertFalse(add(begin(1, 3, 7, 8)));
+		assertEquals(1, mReassembler.getDropped());
+		assertEquals(3, mReassembler.getHeldBytes());
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 1, 9)));
+		assertTrue(Arrays.equals(new byte[] { 7, 8, 9 }, Arrays.copyOf(mReassembler.getBuffer(), 3)));
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	public void testOverflow() {
+		assertFalse(add(begin(1, 600, 1)));
+		assertEquals(600, mReassembler.getHeldBytes());
+
+		// No room for another 600; the rest of it is thrown away as it comes
+		assertFalse(add(begin(2, 600, 2)));
+		assertEquals(1, mReassembler.getDropped());
+		assertEquals(600, mReassembler.getHeldBytes());
+		assertFalse(add(fragment(0, 2, new byte[300])));
+		assertFalse(add(fragment(Fragmenter.FLAG_END, 2, new byte[299])));
+		assertEquals(1, mReassembler.getDropped());
+		assertEquals(600, mReassembler.getHeldBytes());
+
+		// But there is for 400
+		assertFalse(add(begin(3, 400)));
+		assertEquals(1000, mReassembler.getHeldBytes());
+
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 1, new byte[599])));
+		assertEquals(400, mReassembler.getHeldBytes());
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 3, new byte[400])));
+		assertEquals(0, mReassembler.getHeldBytes());
+		assertEquals(2, mReassembler.getDatagrams());
+
+		// A datagram claiming a negative length never gets room
+		assertFalse(add(begin(4, -1)));
+		assertEquals(2, mReassembler.getDropped());
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	public void testTimeout() throws InterruptedException {
+		assertFalse(add(begin(1, 10, 1, 2)));
+		assertEquals(10, mReassembler.getHeldBytes());
+		Thread.sleep(TIMEOUT * 2);
+
+		// Any fragment lets the reassembler notice the other has gone stale
+		assertFalse(add(begin(2, 2, 1)));
+		assertEquals(1, mReassembler.getDropped());
+		assertEquals(2, mReassembler.getHeldBytes());
+		assertFalse(add(fragment(Fragmenter.FLAG_END, 1, 3, 4, 5, 6, 7, 8, 9, 10)));
+		assertEquals(1, mReassembler.getDropped());
+		assertEquals(0, mReassembler.getDatagrams());
+		assertTrue(add(fragment(Fragmenter.FLAG_END, 2, 2)));
+	}
+
+	public void testOverlongFragment() {
+		assertFalse(add(begin(1, 4, 1, 2)));
+		assertFalse(add(fragment(0, 1, 3, 4, 5)));
+		assertEquals(1, mReassembler.getDropped());
+		assertEquals(0, mReassembler.getHeldBytes());
+		// What is left of it is ignored
+		assertFalse(add(fragment(Fragmenter.FLAG_END, 1, 6)));
+		assertEquals(0, mReassembler.getDatagrams());
+
+		// Too long in the first fragment
+		assertFalse(add(begin(2, 2, 1, 2, 3)));
+		assertEquals(2, mReassembler.getDropped());
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	public void testShortDatagram() {
+		assertFalse(add(begin(1, 4, 1, 2)));
+		assertFalse(add(fragment(Fragmenter.FLAG_END, 1, 3)));
+		assertEquals(1, mReassembler.getDropped());
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	public void testStrayAndRuntFragments() {
+		assertFalse(add(fragment(0, 9, 1, 2)));
+		assertFalse(add(fragment(Fragmenter.FLAG_END, 9, 3)));
+		assertFalse(add(new byte[] { (byte) Fragmenter.FLAG_BEGIN, 0 }));
+		assertFalse(add(new byte[] { (byte) Fragmenter.FLAG_BEGIN, 0, 1, 0, 0x57 }));
+		assertEquals(0, mReassembler.getDatagrams());
+		assertEquals(0, mReassembler.getDropped());
+		assertEquals(0, mReassembler.getHeldBytes());
+	}
+
+	private boolean add(byte[] fragment) {
+		// At an offset, as the data of a decoded frame is
+		byte[] frame = new byte[FrameDecoder.DATA_OFFSET + fragment.length];
+		System.arraycopy(fragment, 0, frame, FrameDecoder.DATA_OFFSET, fragment.length);
+		return mReassembler.add(frame, FrameDecoder.DATA_OFFSET, fragment.length);
+	}
+
+	private static byte[] begin(int tag, int total, int... data) {
+		byte[] out = new byte[Fragmenter.HEADER_LENGTH + Fragmenter.BEGIN_HEADER_LENGTH + data.length];
+		out[0] = (byte) Fragmenter.FLAG_BEGIN;
+		out[1] = (byte) (tag >> 8);
+		out[2] = (byte) tag;
+		out[3] = (byte) (PROTOCOL >> 8);
+		out[4] = (byte) PROTOCOL;
+		out[5] = (byte) (total >>> 24);
+		out[6] = (byte) (total >>> 16);
+		out[7] = (byte) (total >>> 8);
+		out[8] = (byte) total;
+		for (int i = 0; i < data.length; ++i) {
+			out[9 + i] = (byte) data[i];
+		}
+		return out;
+	}
+
+	private static byte[] fragment(int flags, int tag, int... data) {
+		byte[] bytes = new byte[data.length];
+		for (int i = 0; i < data.length; ++i) {
+			bytes[i] = (byte) data[i];
+		}
+		return fragment(flags, tag, bytes);
+	}
+
+	private static byte[] fragment(int flags, int tag, byte[] data) {
+		byte[] out = new byte[Fragmenter.HEADER_LENGTH + data.length];
+		out[0] = (byte) flags;
+		out[1] = (byte) (tag >> 8);
+		out[2] = (byte) tag;
+		System.arraycopy(data, 0, out, Fragmenter.HEADER_LENGTH, data.length);
+		return out;
+	}
+}
@@ -0,0 +1,142 @@
+package ec.nem.bluenet.net.link;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Connects TcpTransports to each other over the loopback interface, on
+ * ports the system hands out.
+ */
+public class TcpTransportTest extends TestCase {
+	private static final String A = "00:00:09:00:00:01";
+	private static final String B = "00:00:09:00:00:02";
+	private static final String C = "00:00:09:00:00:03";
+
+	private final Map<String, Integer> mDirectory = new HashMap<String, Integer>();
+	private TcpTransport mA;
+	private TcpTransport mB;
+
+	@Override
+	protected void setUp() throws IOException {
+		mDirectory.put(A, freePort());
+		mDirectory.put(B, freePort());
+		mA = new TcpTransport(A, mDirectory);
+		mB = new TcpTransport(B, mDirectory);
+		mA.listen();
+	}
+
+	@Override
+	protected void tearDown() {
+		mA.close();
+		mB.close();
+	}
+
+	public void testConnectAndAccept() throws IOException {
+		LinkConnection client = mB.connect(A);
+		LinkConnection server = mA.accept();
+		// The connecting side announced itself
+		assertEquals(B, server.getRemoteAddress());
+		assertEquals(A, client.getRemoteAddress());
+
+		byte[] hello = { 1, 2, 3, 0x7e };
+		client.getOutputStream().write(hello);
+		assertTrue(Arrays.equals(hello, read(server, hello.length)));
+		byte[] reply = new byte[10000];
+		Arrays.fill(reply, (byte) 9);
+		server.getOutputStream().write(reply);
+		assertTrue(Arrays.equals(reply, read(client, reply.length)));
+
+		client.close();
+		assertEquals(-1, server.getInputStream().read());
+		server.close();
+	}
+
+	public void testPairedAddressesLeaveOutSelf() {
+		mDirectory.put(C, 1);
+		assertEquals(2, mA.getPairedAddresses().size());
+		assertTrue(mA.getPairedAddresses().contains(B));
+		assertTrue(mA.getPairedAddresses().contains(C));
+		assertFalse(mA.getPairedAddresses().contains(A));
+	}
+
+	public void testUnknownAddressThrows() {
+		try {
+			mB.connect(C);
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			new TcpTransport(C, mDirectory).listen();
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	public void testNobodyListeningThrows() {
+		try {
+			mA.connect(B);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	/** A client that never announces itself is dropped, and the next one accepted */
+	public void testBadClientIsSkipped() throws IOException {
+		Socket bad = new Socket();
+		bad.connect(new InetSocketAddress(InetAddress.getByName(null), mDirectory.get(A)));
+		bad.getOutputStream().write(new byte[] { 0, 5, 'a' });
+		bad.shutdownOutput();
+
+		LinkConnection client = mB.connect(A);
+		LinkConnection server = mA.accept();
+		assertEquals(B, server.getRemoteAddress());
+		// The bad one was closed
+		assertEquals(-1, bad.getInputStream().read());
+		bad.close();
+		client.close();
+		server.close();
+	}
+
+	public void testCloseStopsAccept() throws InterruptedException {
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result.set(mA.accept());
+				} catch (IOException e) {
+					result.set(e);
+				}
+			}
+		};
+		acceptor.start();
+		Thread.sleep(100);
+		mA.close();
+		acceptor.join(5000);
+		assertFalse(acceptor.isAlive());
+		assertTrue(result.get() instanceof IOException);
+	}
+
+	private static byte[] read(LinkConnection c, int length) throws IOException {
+		byte[] b = new byte[length];
+		new DataInputStream(c.getInputStream()).readFully(b);
+		return b;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		return port;
+	}
+}
@@ -0,0 +1,124 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Counts the transmissions it takes to get a broadcast from every node to
+ * every other in random meshes of 10 to 200 nodes, each link costing one
+ * hop: a random tree with twice as many links again, about six neighbors
+ * each, and a sparse one with a fifth as many, about 2.4.<br>
+ * <br>
+ *
+ * The mean over every source and TOPOLOGIES meshes of each kind is logged
+ * under TAG, relayed along the shortest path tree and sent as a unicast to
+ * every node, as broadcasts were before.
+ */
+@LargeTest
+public class BroadcastBenchmark extends TestCase {
+	private static final String TAG = "BroadcastBenchmark";
+	private static final int[] SIZES = { 10, 25, 50, 100, 200 };
+	private static final int TOPOLOGIES = 5;
+
+	private Random mRandom;
+	private Node[] mNodes;
+	private HashMap<Node, LinkStateAdvertisement> mGraph;
+
+	@Override
+	protected void setUp() {
+		mRandom = new Random(5);
+	}
+
+	public void testTransmissions() throws ParseException {
+		Log.i(TAG, String.format("%-6s %-7s %10s %10s %8s", "nodes", "mesh", "unicast", "tree", "saved"));
+		for (int size : SIZES) {
+			run(size, "dense", 2.0);
+			run(size, "sparse", 0.2);
+		}
+	}
+
+	/**
+	 * Runs every source in TOPOLOGIES meshes of a size.
+	 * @param chords links added to the tree, per node
+	 */
+	private void run(int size, String name, double chords) throws ParseException {
+		long unicast = 0;
+		long tree = 0;
+		for (int t = 0; t < TOPOLOGIES; ++t) {
+			mesh(size, chords);
+			RoutingProtocol[] protocols = new RoutingProtocol[size];
+			Map<Node, Integer> index = new HashMap<Node, Integer>();
+			for (int i = 0; i < size; ++i) {
+				protocols[i] = new RoutingProtocol(mNodes[i], null);
+				protocols[i].mGraph = mGraph;
+				protocols[i].recomputeRoutingTable();
+				index.put(mNodes[i], i);
+			}
+
+			for (int source = 0; source < size; ++source) {
+				// A unicast takes a transmission per hop to its destination
+				for (RoutingProtocol.GraphNode g : protocols[source].getRoutingTable().values()) {
+					unicast += g.distance / LinkCost.HOP_COST;
+				}
+
+				int[] received = new int[size];
+				byte[] sourceIp = mNodes[source].getIPAddress();
+				LinkedList<Integer> relaying = new LinkedList<Integer>();
+				relaying.add(source);
+				while (!relaying.isEmpty()) {
+					for (Node child : protocols[relaying.poll()].getBroadcastChildren(sourceIp)) {
+						int i = index.get(child);
+						tree++;
+						if (received[i]++ == 0) {
+							relaying.add(i);
+						}
+					}
+				}
+				for (int i = 0; i < size; ++i) {
+					assertEquals(i == source ? 0 : 1, received[i]);
+				}
+			}
+		}
+
+		double broadcasts = (double) size * TOPOLOGIES;
+		Log.i(TAG, String.format("%-6d %-7s %10.1f %10.1f %7.0f%%", size, name, unicast / broadcasts,
+				tree / broadcasts, 100.0 * (unicast - tree) / unicast));
+		assertEquals((long) (size - 1) * size * TOPOLOGIES, tree);
+		assertTrue(tree < unicast);
+	}
+
+	/** A random tree over size nodes, so the mesh is connected, and chords * size links more */
+	private void mesh(int size, double chords) throws ParseException {
+		mNodes = new Node[size];
+		mGraph = new HashMap<Node, LinkStateAdvertisement>();
+		for (int i = 0; i < size; ++i) {
+			mNodes[i] = NodeFactory.factory.fromMacAddress(
+					String.format("00:00:05:00:%02X:%02X", i >> 8, i & 0xFF));
+			LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+			lsa.source = mNodes[i];
+			mGraph.put(mNodes[i], lsa);
+		}
+		for (int i = 1; i < size; ++i) {
+			link(i, mRandom.nextInt(i));
+		}
+		for (int k = 0; k < chords * size; ++k) {
+			int i = mRandom.nextInt(size);
+			int j = mRandom.nextInt(size);
+			if (i != j && !mGraph.get(mNodes[i]).others.contains(mNodes[j])) {
+				link(i, j);
+			}
+		}
+	}
+
+	private void link(int i, int j) {
+		mGraph.get(mNodes[i]).others.add(mNodes[j]);
+		mGraph.get(mNodes[j]).others.add(mNodes[i]);
+	}
+}
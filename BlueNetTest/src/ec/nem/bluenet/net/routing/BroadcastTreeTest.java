@@ -0,0 +1,197 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Builds link state databases by hand and checks which neighbors each node
+ * relays a broadcast to, and that along those relays a broadcast from any
+ * source reaches every node exactly once.
+ */
+public class BroadcastTreeTest extends TestCase {
+	private static final int[] MESH_SIZES = { 10, 25, 50, 100, 200 };
+	/** Sources tried in each random mesh */
+	private static final int SOURCES = 10;
+
+	private Node[] mNodes;
+	private HashMap<Node, LinkStateAdvertisement> mGraph;
+
+	public void testLine() throws ParseException {
+		graph(3);
+		link(0, 1, LinkCost.HOP_COST);
+		link(1, 2, LinkCost.HOP_COST);
+		assertChildren(0, 0, 1);
+		assertChildren(0, 1, 2);
+		assertChildren(0, 2);
+		assertChildren(2, 1, 0);
+		assertChildren(1, 1, 0, 2);
+	}
+
+	public void testLowerAddressBreaksTies() throws ParseException {
+		// 0 reaches 3 as cheaply through 1 as through 2
+		graph(4);
+		link(0, 1, LinkCost.HOP_COST);
+		link(0, 2, LinkCost.HOP_COST);
+		link(1, 3, LinkCost.HOP_COST);
+		link(2, 3, LinkCost.HOP_COST);
+		assertChildren(0, 0, 1, 2);
+		assertChildren(0, 1, 3);
+		assertChildren(0, 2);
+		assertChildren(0, 3);
+	}
+
+	public void testCostsOverHops() throws ParseException {
+		// Two good hops to 1 beat one bad one
+		graph(3);
+		link(0, 1, LinkCost.HOP_COST * 3);
+		link(0, 2, LinkCost.HOP_COST);
+		link(2, 1, LinkCost.HOP_COST);
+		assertChildren(0, 0, 2);
+		assertChildren(0, 2, 1);
+		assertChildren(0, 1);
+	}
+
+	public void testOneSidedLinkIsNotUsed() throws ParseException {
+		graph(3);
+		link(0, 1, LinkCost.HOP_COST);
+		link(1, 2, LinkCost.HOP_COST);
+		// 0 claims 2 as a neighbor, but 2 doesn't claim 0
+		mGraph.get(mNodes[0]).others.add(mNodes[2]);
+		assertChildren(0, 0, 1);
+		assertChildren(0, 1, 2);
+	}
+
+	public void testUnknownOrUnreachableSource() throws ParseException {
+		graph(4);
+		link(0, 1, LinkCost.HOP_COST);
+		link(2, 3, LinkCost.HOP_COST);
+		assertTrue(protocol(0).getBroadcastChildren(new byte[16]).isEmpty());
+		// 2 and 3 are in the database but cut off from us
+		assertChildren(2, 0);
+		assertChildren(2, 2, 3);
+	}
+
+	public void testTreeFollowsChanges() throws ParseException {
+		graph(3);
+		link(0, 1, LinkCost.HOP_COST);
+		link(1, 2, LinkCost.HOP_COST);
+		RoutingProtocol rp = protocol(1);
+		assertEquals(Arrays.asList(mNodes[2]), rp.getBroadcastChildren(mNodes[0].getIPAddress()));
+
+		// 0 now reaches 2 directly, so 1 no longer relays to it
+		link(0, 2, LinkCost.HOP_COST);
+		rp.recomputeRoutingTable();
+		assertTrue(rp.getBroadcastChildren(mNodes[0].getIPAddress()).isEmpty());
+	}
+
+	public void testRandomMeshes() throws ParseException {
+		randomMeshes(true);
+	}
+
+	/** Equal costs everywhere, so most nodes have several shortest paths to choose a parent from */
+	public void testRandomHopCountMeshes() throws ParseException {
+		randomMeshes(false);
+	}
+
+	private void randomMeshes(boolean costs) throws ParseException {
+		Random random = new Random(17);
+		for (int size : MESH_SIZES) {
+			graph(size);
+			randomMesh(random, costs);
+			RoutingProtocol[] protocols = new RoutingProtocol[size];
+			for (int i = 0; i < size; ++i) {
+				protocols[i] = protocol(i);
+			}
+			for (int k = 0; k < SOURCES; ++k) {
+				int source = random.nextInt(size);
+				int[] received = flood(protocols, source);
+				for (int i = 0; i < size; ++i) {
+					assertEquals(size + " nodes, from " + source + " to " + i, i == source ? 0 : 1, received[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a broadcast from source along every node's relays.
+	 * @return how many times each node received it
+	 */
+	static int[] flood(RoutingProtocol[] protocols, int source) {
+		Map<Node, Integer> index = new HashMap<Node, Integer>();
+		for (int i = 0; i < protocols.length; ++i) {
+			index.put(protocols[i].mNode, i);
+		}
+		byte[] sourceIp = protocols[source].mNode.getIPAddress();
+		int[] received = new int[protocols.length];
+		LinkedList<Integer> relaying = new LinkedList<Integer>();
+		relaying.add(source);
+		while (!relaying.isEmpty()) {
+			for (Node child : protocols[relaying.poll()].getBroadcastChildren(sourceIp)) {
+				int i = index.get(child);
+				// Only the first copy is passed on
+				if (received[i]++ == 0) {
+					relaying.add(i);
+				}
+			}
+		}
+		return received;
+	}
+
+	private void assertChildren(int source, int at, int... children) {
+		List<Node> expected = new ArrayList<Node>();
+		for (int i : children) {
+			expected.add(mNodes[i]);
+		}
+		assertEquals(expected, protocol(at).getBroadcastChildren(mNodes[source].getIPAddress()));
+	}
+
+	private RoutingProtocol protocol(int i) {
+		RoutingProtocol rp = new RoutingProtocol(mNodes[i], null);
+		rp.mGraph = mGraph;
+		rp.recomputeRoutingTable();
+		return rp;
+	}
+
+	/** Starts a database of count nodes with no links, in address order */
+	private void graph(int count) throws ParseException {
+		mNodes = new Node[count];
+		mGraph = new HashMap<Node, LinkStateAdvertisement>();
+		for (int i = 0; i < count; ++i) {
+			mNodes[i] = NodeFactory.factory.fromMacAddress(
+					String.format("00:00:04:00:%02X:%02X", i >> 8, i & 0xFF));
+			LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+			lsa.source = mNodes[i];
+			mGraph.put(mNodes[i], lsa);
+		}
+	}
+
+	/**
+	 * A random tree, so the mesh is connected, with as many links again.
+	 * @param costs whether links get random costs, or all cost one hop
+	 */
+	private void randomMesh(Random random, boolean costs) {
+		for (int i = 1; i < mNodes.length; ++i) {
+			link(i, random.nextInt(i), costs ? LinkCost.HOP_COST + random.nextInt(LinkCost.HOP_COST) : LinkCost.HOP_COST);
+		}
+		for (int k = 0; k < mNodes.length; ++k) {
+			int i = random.nextInt(mNodes.length);
+			int j = random.nextInt(mNodes.length);
+			if (i != j && !mGraph.get(mNodes[i]).others.contains(mNodes[j])) {
+				link(i, j, costs ? LinkCost.HOP_COST + random.nextInt(LinkCost.HOP_COST) : LinkCost.HOP_COST);
+			}
+		}
+	}
+
+	private void link(int i, int j, int cost) {
+		LinkStateAdvertisement a = mGraph.get(mNodes[i]);
+		LinkStateAdvertisement b = mGraph.get(mNodes[j]);
+		a.others.add(b.source);
+		a.costs.put(b.source, cost);
+		b.others.add(a.source);
+		b.costs.put(a.source, cost);
+	}
+}
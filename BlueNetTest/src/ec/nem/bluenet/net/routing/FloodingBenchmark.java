@@ -0,0 +1,116 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Floods LSAS LSAs, each with 4 neighbors, through a node with 1, 4, 8 and
+ * 16 neighbors.  Each arrives encoded in a LinkStateUpdate from one
+ * neighbor, and is decoded, taken in and sent on to the others, encoded as
+ * they would go on the wire.<br>
+ * <br>
+ *
+ * The best of several runs, per LSA, is logged under TAG with the LSA
+ * encoded again for every copy, as before LSAs kept their bytes, and with
+ * every copy sharing the bytes it arrived in: the whole time, and the part
+ * of it spent encoding the updates sent on.
+ */
+@LargeTest
+public class FloodingBenchmark extends TestCase {
+	private static final String TAG = "FloodingBenchmark";
+	private static final int LSAS = 200;
+	private static final int RUNS = 500;
+
+	public void testFlooding() throws ParseException {
+		Log.i(TAG, String.format("%-7s %21s %21s", "degree", "encode per copy", "shared"));
+		Log.i(TAG, String.format("%-7s %10s %10s %10s %10s", "", "flood", "encoding", "flood", "encoding"));
+		for (int degree : new int[] { 1, 4, 8, 16 }) {
+			long[] perCopy = run(degree, false);
+			long[] shared = run(degree, true);
+			Log.i(TAG, String.format("%-7d %7d ns %7d ns %7d ns %7d ns", degree,
+					perCopy[0], perCopy[1], shared[0], shared[1]));
+			if (degree > 1) {
+				assertTrue(shared[1] < perCopy[1]);
+			}
+		}
+	}
+
+	/** @return the best times to flood one LSA and to encode what is sent on, in nanoseconds */
+	private long[] run(int degree, final boolean shared) throws ParseException {
+		Node local = NodeFactory.factory.fromMacAddress("00:00:07:00:00:00");
+		// Copies sent, and the time spent encoding them
+		final long[] sent = new long[2];
+		RoutingProtocol protocol = new RoutingProtocol(local, new RoutingMessageSender() {
+			public void sendRoutingMessage(Node n, RoutingMessage msg) {
+				long start = System.nanoTime();
+				if (!shared) {
+					for (LinkStateAdvertisement lsa : ((LinkStateUpdate) msg.obj).lsas) {
+						lsa.setWireBytes(null);
+					}
+				}
+				if (RoutingMessage.serializeMessage(msg) != null) {
+					sent[0]++;
+				}
+				sent[1] += System.nanoTime() - start;
+			}
+
+			public int getMaxRoutingMessageLength(Node n) {
+				return MeshSimulation.MAX_MESSAGE_LENGTH;
+			}
+		});
+
+		LinkStateAdvertisement ours = new LinkStateAdvertisement();
+		ours.source = local;
+		for (int i = 0; i < degree; ++i) {
+			Node n = NodeFactory.factory.fromMacAddress(String.format("00:00:07:00:01:%02X", i));
+			ours.others.add(n);
+			protocol.mBinaryNeighbors.add(n);
+		}
+		protocol.mGraph.put(local, ours);
+
+		Node from = ours.others.get(0);
+		Node[] origins = new Node[LSAS];
+		for (int i = 0; i < LSAS; ++i) {
+			origins[i] = NodeFactory.factory.fromMacAddress(String.format("00:00:07:00:02:%02X", i));
+		}
+
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int run = 0; run < RUNS; ++run) {
+			// Encoded ahead, as they would come off the air
+			byte[][] updates = new byte[LSAS][];
+			for (int i = 0; i < LSAS; ++i) {
+				LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+				lsa.source = origins[i];
+				lsa.sequence = run + 1;
+				for (int k = 0; k < 4; ++k) {
+					lsa.others.add(origins[(i + k + 1) % LSAS]);
+				}
+				LinkStateUpdate lsu = new LinkStateUpdate();
+				lsu.source = from;
+				lsu.lsas.add(lsa);
+				RoutingMessage msg = new RoutingMessage();
+				msg.type = RoutingMessage.Type.LinkStateUpdate;
+				msg.obj = lsu;
+				updates[i] = RoutingMessage.serializeMessage(msg);
+			}
+
+			sent[0] = 0;
+			sent[1] = 0;
+			long start = System.nanoTime();
+			for (byte[] update : updates) {
+				protocol.receiveMessage(RoutingMessage.deserializeMessage(update));
+			}
+			best[0] = Math.min(best[0], System.nanoTime() - start);
+			best[1] = Math.min(best[1], sent[1]);
+			assertEquals(LSAS * (degree - 1), sent[0]);
+		}
+		return new long[] { best[0] / LSAS, best[1] / LSAS };
+	}
+}
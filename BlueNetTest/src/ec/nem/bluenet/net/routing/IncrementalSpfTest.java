@@ -0,0 +1,170 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Changes links and nodes in a mesh one LSA at a time, and checks after
+ * each change that the routing table brought up to date incrementally is
+ * the one a full computation gives.
+ */
+public class IncrementalSpfTest extends TestCase {
+	private static final int NODES = 200;
+	private static final int CHANGES = 300;
+
+	private Random mRandom;
+	private Node[] mNodes;
+	private HashMap<Node, LinkStateAdvertisement> mGraph;
+	private RoutingProtocol mProtocol;
+
+	@Override
+	protected void setUp() throws ParseException {
+		mRandom = new Random(5);
+		mNodes = new Node[NODES];
+		mGraph = new HashMap<Node, LinkStateAdvertisement>();
+		for (int i = 0; i < NODES; ++i) {
+			mNodes[i] = NodeFactory.factory.fromMacAddress(
+					String.format("00:00:03:00:%02X:%02X", i >> 8, i & 0xFF));
+			LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+			lsa.source = mNodes[i];
+			mGraph.put(mNodes[i], lsa);
+		}
+		// A random tree, so the mesh is connected, and as many links again
+		for (int i = 1; i < NODES; ++i) {
+			link(i, mRandom.nextInt(i));
+		}
+		for (int k = 0; k < NODES; ++k) {
+			int i = mRandom.nextInt(NODES);
+			int j = mRandom.nextInt(NODES);
+			if (i != j && !mGraph.get(mNodes[i]).others.contains(mNodes[j])) {
+				link(i, j);
+			}
+		}
+
+		mProtocol = new RoutingProtocol(mNodes[0], null);
+		mProtocol.mGraph = mGraph;
+		mProtocol.recomputeRoutingTable();
+	}
+
+	public void testCostChanges() {
+		for (int k = 0; k < CHANGES; ++k) {
+			LinkStateAdvertisement lsa = mGraph.get(randomNode());
+			Node other = lsa.others.get(mRandom.nextInt(lsa.others.size()));
+			lsa.costs.put(other, randomCost());
+			change(lsa.source);
+		}
+		assertIncremental();
+	}
+
+	/** Equal costs everywhere, so most nodes have several shortest paths */
+	public void testHopCountChanges() {
+		for (LinkStateAdvertisement lsa : mGraph.values()) {
+			lsa.costs.clear();
+		}
+		mProtocol = new RoutingProtocol(mNodes[0], null);
+		mProtocol.mGraph = mGraph;
+		mProtocol.recomputeRoutingTable();
+
+		for (int k = 0; k < CHANGES; ++k) {
+			LinkStateAdvertisement lsa = mGraph.get(randomNode());
+			Node other = lsa.others.get(mRandom.nextInt(lsa.others.size()));
+			lsa.costs.put(other, lsa.costTo(other) == LinkCost.HOP_COST
+					? LinkCost.HOP_COST * 3 / 2 : LinkCost.HOP_COST);
+			change(lsa.source);
+		}
+		assertIncremental();
+	}
+
+	public void testLinksDownAndUp() {
+		for (int k = 0; k < CHANGES; ++k) {
+			// Now and then one of our own links
+			Node a = k % 10 == 0 ? mNodes[0] : randomNode();
+			LinkStateAdvertisement lsa = mGraph.get(a);
+			Node b = lsa.others.get(mRandom.nextInt(lsa.others.size()));
+
+			lsa.others.remove(b);
+			mGraph.get(b).others.remove(a);
+			change(a, b);
+
+			lsa.others.add(b);
+			mGraph.get(b).others.add(a);
+			change(a, b);
+		}
+		assertIncremental();
+	}
+
+	public void testNodesLeaveAndJoin() {
+		for (int k = 0; k < CHANGES; ++k) {
+			Node n = randomNode();
+			LinkStateAdvertisement lsa = mGraph.remove(n);
+			List<Node> changed = new ArrayList<Node>();
+			changed.add(n);
+			for (Node other : lsa.others) {
+				mGraph.get(other).others.remove(n);
+				changed.add(other);
+			}
+			change(changed.toArray(new Node[changed.size()]));
+
+			mGraph.put(n, lsa);
+			for (Node other : lsa.others) {
+				mGraph.get(other).others.add(n);
+			}
+			change(changed.toArray(new Node[changed.size()]));
+		}
+		assertIncremental();
+	}
+
+	/**
+	 * Hands the changed LSAs to the protocol one at a time, as they arrive
+	 * during joins and partitions, then checks the result.
+	 */
+	private void change(Node... changed) {
+		for (Node n : changed) {
+			mProtocol.mChanged.add(n);
+			mProtocol.recomputeRoutingTable();
+		}
+
+		RoutingProtocol full = new RoutingProtocol(mNodes[0], null);
+		full.mGraph = mGraph;
+		full.recomputeRoutingTable();
+
+		Map<Node, RoutingProtocol.GraphNode> expected = full.getRoutingTable();
+		Map<Node, RoutingProtocol.GraphNode> actual = mProtocol.getRoutingTable();
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Node n : expected.keySet()) {
+			RoutingProtocol.GraphNode want = expected.get(n);
+			RoutingProtocol.GraphNode got = actual.get(n);
+			assertEquals(n.getAddress(), want.distance, got.distance);
+			assertEquals(n.getAddress(), want.nextHops, got.nextHops);
+			assertSame(n.getAddress(), want.nextHop, got.nextHop);
+		}
+	}
+
+	/** Most changes should have been handled without a full computation */
+	private void assertIncremental() {
+		assertTrue(mProtocol.mFullSpfRuns * 2 < mProtocol.mSpfRuns);
+	}
+
+	private void link(int i, int j) {
+		LinkStateAdvertisement a = mGraph.get(mNodes[i]);
+		LinkStateAdvertisement b = mGraph.get(mNodes[j]);
+		int cost = randomCost();
+		a.others.add(b.source);
+		a.costs.put(b.source, cost);
+		b.others.add(a.source);
+		b.costs.put(a.source, cost);
+	}
+
+	/** Any node but our own */
+	private Node randomNode() {
+		return mNodes[1 + mRandom.nextInt(NODES - 1)];
+	}
+
+	private int randomCost() {
+		return LinkCost.HOP_COST + mRandom.nextInt(LinkCost.HOP_COST);
+	}
+}
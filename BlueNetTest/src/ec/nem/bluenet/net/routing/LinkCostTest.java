@@ -0,0 +1,96 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+
+import junit.framework.TestCase;
+
+public class LinkCostTest extends TestCase {
+	public void testPerfectLinkCostsAHop() {
+		assertEquals(LinkCost.HOP_COST, LinkCost.fromMeasurements(0, 0));
+		// No round trip time is better than none
+		assertEquals(LinkCost.HOP_COST, LinkCost.fromMeasurements(0, -5));
+	}
+
+	public void testLossScalesByEtx() {
+		assertEquals(LinkCost.HOP_COST * 2, LinkCost.fromMeasurements(0.5, 0));
+		assertEquals(LinkCost.HOP_COST * 4, LinkCost.fromMeasurements(0.75, 0));
+		// Rounded, not truncated: 256 / 0.7 is 365.7
+		assertEquals(366, LinkCost.fromMeasurements(0.3, 0));
+	}
+
+	public void testDeliveryRatioIsFloored() {
+		int floor = (int) (LinkCost.HOP_COST / LinkCost.MIN_DELIVERY_RATIO);
+		assertEquals(floor, LinkCost.fromMeasurements(1 - LinkCost.MIN_DELIVERY_RATIO, 0));
+		assertEquals(floor, LinkCost.fromMeasurements(0.99, 0));
+		assertEquals(floor, LinkCost.fromMeasurements(1, 0));
+	}
+
+	public void testRttAddsHops() {
+		assertEquals(LinkCost.HOP_COST * 2, LinkCost.fromMeasurements(0, LinkCost.RTT_PER_HOP));
+		assertEquals(LinkCost.HOP_COST * 3 / 2, LinkCost.fromMeasurements(0, LinkCost.RTT_PER_HOP / 2));
+		assertEquals(LinkCost.HOP_COST * 4, LinkCost.fromMeasurements(0.5, LinkCost.RTT_PER_HOP * 2));
+	}
+
+	public void testCostIsCapped() {
+		assertEquals(LinkCost.MAX_COST, LinkCost.fromMeasurements(0, LinkCost.RTT_PER_HOP * 1000));
+		assertEquals(LinkCost.MAX_COST, LinkCost.fromMeasurements(1, Long.MAX_VALUE / LinkCost.HOP_COST));
+	}
+
+	/** Worse measurements never make a link cheaper */
+	public void testMonotonic() {
+		for (int l = 0; l <= 100; ++l) {
+			for (long rtt = 0; rtt <= 30 * LinkCost.RTT_PER_HOP; rtt += LinkCost.RTT_PER_HOP / 10) {
+				int cost = LinkCost.fromMeasurements(l / 100.0, rtt);
+				assertTrue(cost >= LinkCost.HOP_COST);
+				assertTrue(cost <= LinkCost.MAX_COST);
+				if (l > 0) {
+					assertTrue(l + "% " + rtt, cost >= LinkCost.fromMeasurements((l - 1) / 100.0, rtt));
+				}
+				if (rtt > 0) {
+					assertTrue(l + "% " + rtt, cost >= LinkCost.fromMeasurements(l / 100.0,
+							rtt - LinkCost.RTT_PER_HOP / 10));
+				}
+			}
+		}
+	}
+
+	public void testChangedByMoreThanHalf() {
+		int advertised = LinkCost.HOP_COST * 4;
+		assertFalse(LinkCost.changed(advertised, advertised));
+		assertFalse(LinkCost.changed(advertised, advertised * 3 / 2));
+		assertTrue(LinkCost.changed(advertised, advertised * 3 / 2 + 1));
+		assertFalse(LinkCost.changed(advertised, advertised / 2));
+		assertTrue(LinkCost.changed(advertised, advertised / 2 - 1));
+	}
+
+	public void testChangedByMoreThanAnEighthOfAHop() {
+		// Half of so small a cost is less than an eighth of a hop, which decides
+		int advertised = LinkCost.HOP_COST / 8;
+		int eighth = LinkCost.HOP_COST / 8;
+		assertFalse(LinkCost.changed(advertised, advertised + eighth));
+		assertTrue(LinkCost.changed(advertised, advertised + eighth + 1));
+		assertFalse(LinkCost.changed(advertised, 0));
+	}
+
+	/** A hop that loses most frames costs more than two clean ones */
+	public void testLossyLinkIsRoutedAround() throws ParseException {
+		MeshSimulation mesh = new MeshSimulation(3);
+		mesh.connect(0, 1);
+		mesh.connect(0, 2);
+		mesh.connect(1, 2);
+		mesh.protocol(0).recomputeRoutingTable();
+		assertSame(mesh.mNodes.get(1), mesh.protocol(0).getRoutingTable().get(mesh.mNodes.get(1)).nextHop);
+
+		int cost = LinkCost.fromMeasurements(0.6, 0);
+		assertTrue(mesh.protocol(0).updateLinkCost(mesh.mNodes.get(1), cost));
+		assertTrue(mesh.protocol(1).updateLinkCost(mesh.mNodes.get(0), cost));
+		mesh.drain();
+		mesh.protocol(0).recomputeRoutingTable();
+		RoutingProtocol.GraphNode route = mesh.protocol(0).getRoutingTable().get(mesh.mNodes.get(1));
+		assertSame(mesh.mNodes.get(2), route.nextHop);
+		assertEquals(LinkCost.HOP_COST * 2, route.distance);
+
+		// Once it is only a little worse, it is left as it is
+		assertFalse(mesh.protocol(0).updateLinkCost(mesh.mNodes.get(1), cost * 5 / 4));
+	}
+}
@@ -0,0 +1,95 @@
+package ec.nem.bluenet.net.routing;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.net.LinkLayer;
+import ec.nem.bluenet.net.NetworkLayer;
+import ec.nem.bluenet.net.link.LinkMonitor;
+
+/**
+ * Probes a simulated loopback that loses a fixed fraction of echoes, with
+ * a 20 ms round trip time give or take 10 ms, once a keepalive interval for
+ * an hour of simulated time.  Every link cost interval the cost is worked
+ * out from the LinkMonitor as NetworkLayer does, and advertised if
+ * LinkCost.changed() says so.<br>
+ * <br>
+ *
+ * For each loss rate, the mean cost against the ideal one, how often the
+ * measured cost moved at all, and how often it would have been advertised,
+ * per hour and leaving out the first minute, are logged under TAG.
+ */
+@LargeTest
+public class LossyLinkBenchmark extends TestCase {
+	private static final String TAG = "LossyLinkBenchmark";
+	private static final double[] LOSS = { 0, 0.05, 0.2, 0.4, 0.6 };
+	private static final long MS = 1000000L;
+	private static final long HOUR = 3600 * 1000 * MS;
+	private static final long WARMUP = 60 * 1000 * MS;
+	private static final long RTT = 20 * MS;
+	private static final long RTT_JITTER = 10 * MS;
+
+	public void testCosts() {
+		Random random = new Random(5);
+		Log.i(TAG, String.format("%-5s %6s %6s %9s %11s", "loss", "ideal", "mean", "changes/h", "adverts/h"));
+		for (double loss : LOSS) {
+			run(random, loss);
+		}
+	}
+
+	private void run(Random random, double loss) {
+		LinkMonitor monitor = new LinkMonitor(0);
+		long probeInterval = LinkLayer.DEFAULT_KEEPALIVE_INTERVAL * MS;
+		long costInterval = NetworkLayer.LINK_COST_INTERVAL * MS;
+
+		// Replies on their way, by when they arrive
+		TreeMap<Long, byte[]> replies = new TreeMap<Long, byte[]>();
+		int advertised = LinkCost.HOP_COST;
+		int last = advertised;
+		int changes = 0;
+		int adverts = 0;
+		long costSum = 0;
+		int costs = 0;
+		for (long now = 0; now < HOUR; now += probeInterval) {
+			while (!replies.isEmpty() && replies.firstKey() <= now) {
+				Map.Entry<Long, byte[]> reply = replies.pollFirstEntry();
+				monitor.receive(reply.getValue(), 0, reply.getValue().length, reply.getKey());
+			}
+			byte[] probe = monitor.probe(now);
+			if (random.nextDouble() >= loss) {
+				long rtt = RTT + (long) ((random.nextDouble() * 2 - 1) * RTT_JITTER);
+				replies.put(now + rtt, LinkMonitor.reply(probe, 0, probe.length));
+			}
+
+			if (now % costInterval == 0 && now >= WARMUP) {
+				int cost = LinkCost.fromMeasurements(monitor.getLoss(), monitor.getRtt() / 1000);
+				costSum += cost;
+				costs++;
+				if (cost != last) {
+					changes++;
+					last = cost;
+				}
+				if (LinkCost.changed(advertised, cost)) {
+					adverts++;
+					advertised = cost;
+				}
+			}
+		}
+
+		int ideal = LinkCost.fromMeasurements(loss, RTT / 1000);
+		double mean = (double) costSum / costs;
+		double hours = (double) (HOUR - WARMUP) / HOUR;
+		Log.i(TAG, String.format("%-5.2f %6d %6.0f %9.0f %11.0f", loss, ideal, mean, changes / hours, adverts / hours));
+
+		// On average the estimate is about right
+		assertEquals(ideal, mean, ideal * 0.15);
+		assertTrue(adverts <= changes);
+		if (loss == 0) {
+			assertEquals(0, adverts);
+		}
+	}
+}
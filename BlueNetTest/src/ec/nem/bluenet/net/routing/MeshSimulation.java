@@ -0,0 +1,133 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Runs the routing protocols of a whole mesh in one thread, without radios
+ * or network layers.  Routing messages are encoded as on the wire and
+ * queued, and delivered in order by drain().  Override send() to watch,
+ * drop or hold back messages.
+ */
+class MeshSimulation {
+	/** What a routing message may take, as over a Bluetooth link */
+	static final int MAX_MESSAGE_LENGTH = 1024 - 40;
+
+	final List<Node> mNodes = new ArrayList<Node>();
+	final Map<Node, RoutingProtocol> mProtocols = new HashMap<Node, RoutingProtocol>();
+	private final LinkedList<Delivery> mQueue = new LinkedList<Delivery>();
+
+	/** A message on its way */
+	static class Delivery {
+		final Node from;
+		final Node to;
+		final byte[] bytes;
+
+		Delivery(Node from, Node to, byte[] bytes) {
+			this.from = from;
+			this.to = to;
+			this.bytes = bytes;
+		}
+	}
+
+	/** Hands one node's routing messages to the simulation */
+	private class SimulatedSender implements RoutingMessageSender {
+		private final Node mSelf;
+
+		SimulatedSender(Node self) {
+			mSelf = self;
+		}
+
+		public void sendRoutingMessage(Node n, RoutingMessage msg) {
+			send(mSelf, n, msg);
+		}
+
+		public int getMaxRoutingMessageLength(Node n) {
+			return MAX_MESSAGE_LENGTH;
+		}
+	}
+
+	/** Adds count nodes, with addresses from 00:1A:7D:DA:00:00 up */
+	MeshSimulation(int count) throws ParseException {
+		for (int i = 0; i < count; ++i) {
+			Node n = node(i);
+			mNodes.add(n);
+			mProtocols.put(n, new RoutingProtocol(n, new SimulatedSender(n)));
+		}
+	}
+
+	static Node node(int i) throws ParseException {
+		return NodeFactory.factory.fromMacAddress(String.format("00:1A:7D:DA:%02X:%02X", i >> 8, i & 0xFF));
+	}
+
+	RoutingProtocol protocol(int i) {
+		return mProtocols.get(mNodes.get(i));
+	}
+
+	/** Called for every message a protocol sends; queues it by default */
+	void send(Node from, Node to, RoutingMessage msg) {
+		enqueue(new Delivery(from, to, RoutingMessage.serializeMessage(msg)));
+	}
+
+	void enqueue(Delivery d) {
+		mQueue.add(d);
+	}
+
+	/** Delivers messages until none are left */
+	void drain() {
+		while (!mQueue.isEmpty()) {
+			Delivery d = mQueue.poll();
+			mProtocols.get(d.to).receiveMessage(RoutingMessage.deserializeMessage(d.bytes));
+		}
+	}
+
+	/** Brings up the link between nodes i and j, and lets routing settle */
+	void connect(int i, int j) {
+		protocol(i).connectTo(mNodes.get(j));
+		drain();
+	}
+
+	/** Takes down the link between nodes i and j on both ends */
+	void disconnect(int i, int j) {
+		protocol(i).removeNode(mNodes.get(j));
+		protocol(j).removeNode(mNodes.get(i));
+		drain();
+	}
+
+	/** Lets every protocol resend what is unanswered, as at time now */
+	void retransmit(long now) {
+		for (RoutingProtocol rp : mProtocols.values()) {
+			rp.retransmitSync(now);
+		}
+		drain();
+	}
+
+	/**
+	 * Counts, over every node and every origin anyone has heard of, the LSAs
+	 * that are missing or older than the newest anyone holds.
+	 */
+	int staleEntries() {
+		Map<Node, Integer> newest = new HashMap<Node, Integer>();
+		for (RoutingProtocol rp : mProtocols.values()) {
+			for (LinkStateAdvertisement lsa : rp.mGraph.values()) {
+				Integer sequence = newest.get(lsa.source);
+				if (sequence == null || sequence < lsa.sequence) {
+					newest.put(lsa.source, lsa.sequence);
+				}
+			}
+		}
+
+		int stale = 0;
+		for (RoutingProtocol rp : mProtocols.values()) {
+			for (Map.Entry<Node, Integer> e : newest.entrySet()) {
+				LinkStateAdvertisement lsa = rp.mGraph.get(e.getKey());
+				if (lsa == null || lsa.sequence != e.getValue()) {
+					stale++;
+				}
+			}
+		}
+		return stale;
+	}
+}
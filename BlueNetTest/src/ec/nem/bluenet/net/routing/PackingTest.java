@@ -0,0 +1,167 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Floods LSAs through one routing protocol, from one neighbor to another
+ * that reads the binary encoding, and checks how they are packed into
+ * LinkStateUpdates as they would go on the wire.
+ */
+public class PackingTest extends TestCase {
+	/** LSAs that fit in one update */
+	private static final int PER_UPDATE = 3;
+
+	private Node mLocal;
+	private Node mFrom;
+	private Node mTo;
+	private RoutingProtocol mProtocol;
+	/** Bytes an LSA with one neighbor takes in an update, with its length */
+	private int mLsaLength;
+	private int mMaxLength;
+	/** What was sent to mTo, encoded */
+	private final List<byte[]> mSent = new ArrayList<byte[]>();
+
+	@Override
+	protected void setUp() throws ParseException {
+		mLocal = NodeFactory.factory.fromMacAddress("00:00:08:00:00:01");
+		mFrom = NodeFactory.factory.fromMacAddress("00:00:08:00:00:02");
+		mTo = NodeFactory.factory.fromMacAddress("00:00:08:00:00:03");
+		mLsaLength = RoutingMessage.serializeLsa(lsa(0, 1, 1)).length + 2;
+		mMaxLength = RoutingProtocol.UPDATE_HEADER_LENGTH + PER_UPDATE * mLsaLength;
+		mProtocol = new RoutingProtocol(mLocal, new RoutingMessageSender() {
+			public void sendRoutingMessage(Node n, RoutingMessage msg) {
+				if (n == mTo) {
+					mSent.add(RoutingMessage.serializeMessage(msg));
+				}
+			}
+
+			public int getMaxRoutingMessageLength(Node n) {
+				return mMaxLength;
+			}
+		});
+
+		LinkStateAdvertisement ours = new LinkStateAdvertisement();
+		ours.source = mLocal;
+		ours.others.add(mFrom);
+		ours.others.add(mTo);
+		mProtocol.mGraph.put(mLocal, ours);
+		mProtocol.mBinaryNeighbors.add(mFrom);
+		mProtocol.mBinaryNeighbors.add(mTo);
+	}
+
+	public void testPackedUnderMaxLength() {
+		int count = 3 * PER_UPDATE + 1;
+		List<LinkStateAdvertisement> lsas = new ArrayList<LinkStateAdvertisement>();
+		for (int i = 0; i < count; ++i) {
+			lsas.add(lsa(i, 1, 1));
+		}
+		receive(lsas);
+
+		assertEquals(4, mSent.size());
+		List<Node> origins = new ArrayList<Node>();
+		for (int u = 0; u < mSent.size(); ++u) {
+			byte[] bytes = mSent.get(u);
+			assertTrue(bytes.length <= mMaxLength);
+			LinkStateUpdate lsu = update(bytes);
+			assertEquals(mLocal, lsu.source);
+			assertEquals(u < 3 ? PER_UPDATE : 1, lsu.lsas.size());
+			// flushLSAs reckons two bytes for the count and each length, which
+			// these take one of, so full ones come within that of the limit
+			if (u < 3) {
+				assertTrue(bytes.length >= mMaxLength - PER_UPDATE - 1);
+			}
+			for (LinkStateAdvertisement lsa : lsu.lsas) {
+				origins.add(lsa.source);
+			}
+		}
+		// Each once, in the order they came
+		List<Node> expected = new ArrayList<Node>();
+		for (LinkStateAdvertisement lsa : lsas) {
+			expected.add(lsa.source);
+		}
+		assertEquals(expected, origins);
+	}
+
+	public void testSingleLsaIsUpdate() {
+		receive(Collections.singletonList(lsa(0, 1, 1)));
+		assertEquals(1, mSent.size());
+		LinkStateUpdate lsu = update(mSent.get(0));
+		// So mTo knows not to send it back to us
+		assertEquals(mLocal, lsu.source);
+		assertEquals(1, lsu.lsas.size());
+		assertEquals(origin(0), lsu.lsas.get(0).source);
+	}
+
+	public void testOversizedLsaGoesOnItsOwn() {
+		List<LinkStateAdvertisement> lsas = new ArrayList<LinkStateAdvertisement>();
+		lsas.add(lsa(0, 1, 1));
+		lsas.add(lsa(1, 1, 2 * PER_UPDATE + 20));
+		lsas.add(lsa(2, 1, 1));
+		receive(lsas);
+
+		assertEquals(3, mSent.size());
+		assertTrue(mSent.get(1).length > mMaxLength);
+		for (int u = 0; u < 3; ++u) {
+			LinkStateUpdate lsu = update(mSent.get(u));
+			assertEquals(1, lsu.lsas.size());
+			assertEquals(origin(u), lsu.lsas.get(0).source);
+		}
+	}
+
+	public void testNewerLsaReplacesQueuedOne() {
+		List<LinkStateAdvertisement> lsas = new ArrayList<LinkStateAdvertisement>();
+		lsas.add(lsa(0, 1, 1));
+		lsas.add(lsa(1, 1, 1));
+		lsas.add(lsa(0, 2, 1));
+		receive(lsas);
+
+		assertEquals(1, mSent.size());
+		LinkStateUpdate lsu = update(mSent.get(0));
+		assertEquals(2, lsu.lsas.size());
+		assertEquals(origin(0), lsu.lsas.get(0).source);
+		assertEquals(2, lsu.lsas.get(0).sequence);
+		assertEquals(origin(1), lsu.lsas.get(1).source);
+	}
+
+	/** Hands the protocol the LSAs from mFrom, in one update as they would arrive */
+	private void receive(List<LinkStateAdvertisement> lsas) {
+		LinkStateUpdate lsu = new LinkStateUpdate();
+		lsu.source = mFrom;
+		lsu.lsas.addAll(lsas);
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = RoutingMessage.Type.LinkStateUpdate;
+		msg.obj = lsu;
+		mProtocol.receiveMessage(RoutingMessage.deserializeMessage(RoutingMessage.serializeMessage(msg)));
+	}
+
+	private static LinkStateUpdate update(byte[] bytes) {
+		assertEquals(RoutingMessage.WIRE_VERSION, bytes[0]);
+		RoutingMessage msg = RoutingMessage.deserializeMessage(bytes);
+		assertEquals(RoutingMessage.Type.LinkStateUpdate, msg.type);
+		return (LinkStateUpdate) msg.obj;
+	}
+
+	/** An LSA from origin(i), with neighbors others of origins after it */
+	private static LinkStateAdvertisement lsa(int i, int sequence, int others) {
+		LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+		lsa.source = origin(i);
+		lsa.sequence = sequence;
+		for (int k = 1; k <= others; ++k) {
+			lsa.others.add(origin(100 + i + k));
+		}
+		return lsa;
+	}
+
+	private static Node origin(int i) {
+		try {
+			return NodeFactory.factory.fromMacAddress(String.format("00:00:08:00:01:%02X", i));
+		} catch (ParseException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
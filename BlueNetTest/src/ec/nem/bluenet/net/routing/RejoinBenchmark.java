@@ -0,0 +1,150 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Splits a 200 node mesh into two halves at its one bridge link, changes
+ * link costs in each half while they are apart, and joins them again.<br>
+ * <br>
+ *
+ * The routing messages and bytes it takes, with a 40 byte IPv6 header on
+ * each, are logged under TAG, over the bridge and over the whole mesh and
+ * by message type, for no changes and for more and more of them, beside
+ * what the first join of the two halves took.  Every node should come out
+ * holding the same database.
+ */
+@LargeTest
+public class RejoinBenchmark extends TestCase {
+	private static final String TAG = "RejoinBenchmark";
+	private static final int NODES = 200;
+	private static final int HEADER_LENGTH = 40;
+
+	/** Counts what is sent, and drops whatever crosses the split */
+	private static class CountingMesh extends MeshSimulation {
+		boolean mSplit;
+		boolean mCounting;
+		Node mBridgeLeft;
+		Node mBridgeRight;
+		long mMessages;
+		long mBytes;
+		long mBridgeMessages;
+		long mBridgeBytes;
+		Map<RoutingMessage.Type, long[]> mByType = new TreeMap<RoutingMessage.Type, long[]>();
+
+		CountingMesh() throws ParseException {
+			super(NODES);
+		}
+
+		@Override
+		void send(Node from, Node to, RoutingMessage msg) {
+			if (mSplit && side(from) != side(to)) {
+				return;
+			}
+			byte[] bytes = RoutingMessage.serializeMessage(msg);
+			if (mCounting) {
+				int length = bytes.length + HEADER_LENGTH;
+				mMessages++;
+				mBytes += length;
+				long[] counts = mByType.get(msg.type);
+				if (counts == null) {
+					counts = new long[2];
+					mByType.put(msg.type, counts);
+				}
+				counts[0]++;
+				counts[1] += length;
+				if ((from == mBridgeLeft && to == mBridgeRight) || (from == mBridgeRight && to == mBridgeLeft)) {
+					mBridgeMessages++;
+					mBridgeBytes += length;
+				}
+			}
+			enqueue(new Delivery(from, to, bytes));
+		}
+
+		private int side(Node n) {
+			return mNodes.indexOf(n) < NODES / 2 ? 0 : 1;
+		}
+	}
+
+	public void testNoChanges() throws ParseException {
+		run(0);
+	}
+
+	public void testTenChangesEachSide() throws ParseException {
+		run(10);
+	}
+
+	public void testHundredChangesEachSide() throws ParseException {
+		run(100);
+	}
+
+	public void testThousandChangesEachSide() throws ParseException {
+		run(1000);
+	}
+
+	private void run(int changes) throws ParseException {
+		CountingMesh mesh = new CountingMesh();
+		Random random = new Random(11);
+
+		// Each half is a random tree with as many links again, bridged at 0
+		Set<String> links = new HashSet<String>();
+		for (int half = 0; half < 2; ++half) {
+			int base = half * NODES / 2;
+			for (int i = 1; i < NODES / 2; ++i) {
+				link(mesh, links, base + i, base + random.nextInt(i));
+			}
+			for (int k = 0; k < NODES / 2; ++k) {
+				link(mesh, links, base + random.nextInt(NODES / 2), base + random.nextInt(NODES / 2));
+			}
+		}
+		mesh.mCounting = true;
+		link(mesh, links, 0, NODES / 2);
+		long firstJoinMessages = mesh.mMessages;
+		long firstJoinBytes = mesh.mBytes;
+
+		mesh.mSplit = true;
+		mesh.disconnect(0, NODES / 2);
+		mesh.mCounting = false;
+		for (int half = 0; half < 2; ++half) {
+			for (int k = 0; k < changes; ++k) {
+				RoutingProtocol rp = mesh.protocol(half * NODES / 2 + random.nextInt(NODES / 2));
+				List<Node> neighbors = rp.getNeighbors();
+				if (!neighbors.isEmpty()) {
+					rp.updateLinkCost(neighbors.get(random.nextInt(neighbors.size())),
+							LinkCost.HOP_COST * (2 + random.nextInt(6)));
+					mesh.drain();
+				}
+			}
+		}
+
+		mesh.mSplit = false;
+		mesh.mMessages = mesh.mBytes = 0;
+		mesh.mByType.clear();
+		mesh.mCounting = true;
+		mesh.mBridgeLeft = mesh.mNodes.get(0);
+		mesh.mBridgeRight = mesh.mNodes.get(NODES / 2);
+		mesh.connect(0, NODES / 2);
+		assertEquals(0, mesh.staleEntries());
+
+		StringBuilder byType = new StringBuilder();
+		for (Map.Entry<RoutingMessage.Type, long[]> e : mesh.mByType.entrySet()) {
+			byType.append(String.format("; %s %d/%d B", e.getKey(), e.getValue()[0], e.getValue()[1]));
+		}
+		Log.i(TAG, String.format("%d changes each side: bridge %d messages %d B, mesh %d messages %d B%s; the first join took %d messages %d B",
+				changes, mesh.mBridgeMessages, mesh.mBridgeBytes, mesh.mMessages, mesh.mBytes, byType,
+				firstJoinMessages, firstJoinBytes));
+	}
+
+	private static void link(MeshSimulation mesh, Set<String> links, int i, int j) {
+		if (i != j && links.add(Math.min(i, j) + "-" + Math.max(i, j))) {
+			mesh.connect(i, j);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package ec.nem.bluenet.net.routing;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+public class RoutingMessageTest extends TestCase {
+	private Node mSource;
+	private Node[] mOthers;
+
+	@Override
+	protected void setUp() throws ParseException {
+		mSource = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:00");
+		mOthers = new Node[16];
+		for (int i = 0; i < mOthers.length; ++i) {
+			mOthers[i] = NodeFactory.factory.fromMacAddress(String.format("00:1A:7D:DA:72:%02X", i));
+		}
+	}
+
+	public void testHello() {
+		for (RoutingMessage.Type type : new RoutingMessage.Type[] {
+				RoutingMessage.Type.Hello, RoutingMessage.Type.HelloAck }) {
+			RoutingMessage msg = message(type, mSource);
+			msg.deflateDictionary = 0x62074faa;
+			msg.linkFeatures = 3;
+
+			RoutingMessage back = roundTrip(msg);
+			assertSame(mSource, back.obj);
+			assertEquals(0x62074faa, back.deflateDictionary);
+			assertEquals(3, back.linkFeatures);
+		}
+	}
+
+	public void testQuit() {
+		assertSame(mSource, roundTrip(message(RoutingMessage.Type.Quit, mSource)).obj);
+	}
+
+	public void testLinkStateAdvertisement() {
+		for (int count : new int[] { 0, 1, 4, 16 }) {
+			LinkStateAdvertisement lsa = lsa(count, 1234);
+			RoutingMessage back = roundTrip(message(RoutingMessage.Type.LinkStateAdvertisement, lsa));
+			assertLsaEquals(lsa, (LinkStateAdvertisement) back.obj);
+		}
+	}
+
+	public void testLsaBytesAreKeptForItsSequence() {
+		LinkStateAdvertisement lsa = lsa(4, 7);
+		RoutingMessage msg = message(RoutingMessage.Type.LinkStateAdvertisement, lsa);
+		byte[] first = RoutingMessage.serializeMessage(msg);
+		assertSame(first, RoutingMessage.serializeMessage(msg));
+
+		lsa.others.remove(0);
+		lsa.sequence++;
+		byte[] second = RoutingMessage.serializeMessage(msg);
+		assertNotSame(first, second);
+		assertLsaEquals(lsa, (LinkStateAdvertisement) RoutingMessage.deserializeMessage(second).obj);
+
+		// A received LSA floods on as the bytes it came in
+		RoutingMessage received = RoutingMessage.deserializeMessage(second);
+		assertSame(second, RoutingMessage.serializeMessage(received));
+	}
+
+	public void testDatabaseDescription() {
+		DatabaseDescription dd = new DatabaseDescription();
+		dd.source = mSource;
+		for (int i = 0; i < mOthers.length; ++i) {
+			dd.sequences.put(mOthers[i], 1 << i);
+		}
+
+		DatabaseDescription back = (DatabaseDescription) roundTrip(
+				message(RoutingMessage.Type.DatabaseDescription, dd)).obj;
+		assertSame(mSource, back.source);
+		assertEquals(dd.sequences, back.sequences);
+	}
+
+	/** An empty request acknowledges a summary that held nothing new */
+	public void testLinkStateRequest() {
+		for (int count : new int[] { 0, 3, 16 }) {
+			LinkStateRequest lsr = new LinkStateRequest();
+			lsr.source = mSource;
+			lsr.origins.addAll(Arrays.asList(mOthers).subList(0, count));
+
+			LinkStateRequest back = (LinkStateRequest) roundTrip(
+					message(RoutingMessage.Type.LinkStateRequest, lsr)).obj;
+			assertSame(mSource, back.source);
+			assertEquals(lsr.origins, back.origins);
+		}
+	}
+
+	public void testLinkStateUpdate() {
+		LinkStateUpdate lsu = new LinkStateUpdate();
+		lsu.source = mSource;
+		lsu.lsas.add(lsa(0, 1));
+		lsu.lsas.add(lsa(5, 300));
+		lsu.lsas.add(lsa(16, 70000));
+
+		LinkStateUpdate back = (LinkStateUpdate) roundTrip(
+				message(RoutingMessage.Type.LinkStateUpdate, lsu)).obj;
+		assertSame(mSource, back.source);
+		assertEquals(lsu.lsas.size(), back.lsas.size());
+		for (int i = 0; i < lsu.lsas.size(); ++i) {
+			assertLsaEquals(lsu.lsas.get(i), back.lsas.get(i));
+		}
+	}
+
+	public void testWrongObjectIsNotSent() {
+		assertNull(RoutingMessage.serializeMessage(message(RoutingMessage.Type.Quit, "not a node")));
+	}
+
+	public void testEveryTruncationIsRejected() {
+		LinkStateUpdate lsu = new LinkStateUpdate();
+		lsu.source = mSource;
+		lsu.lsas.add(lsa(3, 1));
+		lsu.lsas.add(lsa(2, 2));
+		DatabaseDescription dd = new DatabaseDescription();
+		dd.source = mSource;
+		dd.sequences.put(mOthers[0], 200);
+		LinkStateRequest lsr = new LinkStateRequest();
+		lsr.source = mSource;
+		lsr.origins.add(mOthers[1]);
+
+		RoutingMessage[] messages = {
+			message(RoutingMessage.Type.Quit, mSource),
+			message(RoutingMessage.Type.LinkStateAdvertisement, lsa(3, 1)),
+			message(RoutingMessage.Type.DatabaseDescription, dd),
+			message(RoutingMessage.Type.LinkStateRequest, lsr),
+			message(RoutingMessage.Type.LinkStateUpdate, lsu),
+		};
+		for (RoutingMessage msg : messages) {
+			byte[] bytes = RoutingMessage.serializeMessage(msg);
+			for (int length = 0; length < bytes.length; ++length) {
+				assertNull(msg.type + " cut to " + length,
+						RoutingMessage.deserializeMessage(Arrays.copyOf(bytes, length)));
+			}
+		}
+	}
+
+	public void testUnknownVersionAndType() {
+		byte[] bytes = RoutingMessage.serializeMessage(message(RoutingMessage.Type.Quit, mSource));
+		bytes[0] = RoutingMessage.WIRE_VERSION + 1;
+		assertNull(RoutingMessage.deserializeMessage(bytes));
+
+		bytes[0] = RoutingMessage.WIRE_VERSION;
+		bytes[1] = (byte) RoutingMessage.Type.values().length;
+		assertNull(RoutingMessage.deserializeMessage(bytes));
+	}
+
+	/** Nodes that haven't moved to the binary encoding send these */
+	public void testLegacySerialization() throws IOException {
+		RoutingMessage msg = message(RoutingMessage.Type.Hello, mSource);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(msg);
+		out.close();
+
+		RoutingMessage back = RoutingMessage.deserializeMessage(bytes.toByteArray());
+		assertEquals(RoutingMessage.Type.Hello, back.type);
+		assertSame(mSource, back.obj);
+	}
+
+	public void testLegacyEncoding() {
+		RoutingMessage msg = message(RoutingMessage.Type.Hello, mSource);
+		msg.wireVersion = RoutingMessage.WIRE_VERSION;
+		msg.legacyEncoding = true;
+		byte[] bytes = RoutingMessage.serializeMessage(msg);
+		// The Java serialization magic, as older nodes expect
+		assertEquals((byte) 0xAC, bytes[0]);
+		assertEquals((byte) 0xED, bytes[1]);
+
+		RoutingMessage back = RoutingMessage.deserializeMessage(bytes);
+		assertEquals(RoutingMessage.Type.Hello, back.type);
+		assertSame(mSource, back.obj);
+		assertEquals(RoutingMessage.WIRE_VERSION, back.wireVersion);
+		assertFalse(back.legacyEncoding);
+	}
+
+	/** Not the bytes cached for the binary encoding */
+	public void testLegacyLsa() {
+		LinkStateAdvertisement lsa = lsa(4, 9);
+		byte[] binary = RoutingMessage.serializeLsa(lsa);
+		RoutingMessage msg = message(RoutingMessage.Type.LinkStateAdvertisement, lsa);
+		msg.legacyEncoding = true;
+		byte[] bytes = RoutingMessage.serializeMessage(msg);
+		assertEquals((byte) 0xAC, bytes[0]);
+		assertLsaEquals(lsa, (LinkStateAdvertisement) RoutingMessage.deserializeMessage(bytes).obj);
+		assertSame(binary, RoutingMessage.serializeLsa(lsa));
+	}
+
+	public void testWireVersion() {
+		// Older nodes don't send it
+		RoutingMessage msg = message(RoutingMessage.Type.Hello, mSource);
+		msg.legacyEncoding = true;
+		assertEquals(0, RoutingMessage.deserializeMessage(RoutingMessage.serializeMessage(msg)).wireVersion);
+
+		// A binary message shows it without being told
+		msg.legacyEncoding = false;
+		assertEquals(RoutingMessage.WIRE_VERSION, roundTrip(msg).wireVersion);
+		assertEquals(RoutingMessage.WIRE_VERSION, roundTrip(message(RoutingMessage.Type.Quit, mSource)).wireVersion);
+	}
+
+	private static RoutingMessage message(RoutingMessage.Type type, Object obj) {
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = type;
+		msg.obj = obj;
+		return msg;
+	}
+
+	private static RoutingMessage roundTrip(RoutingMessage msg) {
+		byte[] bytes = RoutingMessage.serializeMessage(msg);
+		assertEquals(RoutingMessage.WIRE_VERSION, bytes[0]);
+		RoutingMessage back = RoutingMessage.deserializeMessage(bytes);
+		assertNotNull(msg.type.toString(), back);
+		assertEquals(msg.type, back.type);
+		return back;
+	}
+
+	/** An LSA from mSource with count neighbors, every other one with a cost */
+	private LinkStateAdvertisement lsa(int count, int sequence) {
+		LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+		lsa.source = mSource;
+		lsa.sequence = sequence;
+		for (int i = 0; i < count; ++i) {
+			lsa.others.add(mOthers[i]);
+			if (i % 2 == 0) {
+				lsa.costs.put(mOthers[i], 300 + 100 * i);
+			}
+		}
+		return lsa;
+	}
+
+	private static void assertLsaEquals(LinkStateAdvertisement expected, LinkStateAdvertisement actual) {
+		assertSame(expected.source, actual.source);
+		assertEquals(expected.sequence, actual.sequence);
+		assertEquals(expected.others, actual.others);
+		for (Node n : expected.others) {
+			assertEquals(expected.costTo(n), actual.costTo(n));
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Times bringing the routing table of a 1,000 node mesh up to date after a
+ * change, incrementally and from scratch, in a random geometric mesh like
+ * phones scattered over an area and in a 40 by 25 grid, with random link
+ * costs and with every link costing one hop.<br>
+ * <br>
+ *
+ * Link cost changes, links going down and coming back, and nodes leaving
+ * and rejoining are each applied one LSA at a time, as they arrive.  The
+ * mean time per computation each way, and how many incremental ones gave
+ * way to a full one, are logged under TAG.
+ */
+@LargeTest
+public class SpfBenchmark extends TestCase {
+	private static final String TAG = "SpfBenchmark";
+	private static final int NODES = 1000;
+	private static final int CHANGES = 500;
+	/** Changes made first, to warm up, and not timed */
+	private static final int WARMUP = 100;
+
+	private Random mRandom;
+	private Node[] mNodes;
+	private HashMap<Node, LinkStateAdvertisement> mGraph;
+	private RoutingProtocol mProtocol;
+	private long mIncrementalTime;
+	private long mFullTime;
+	private int mRuns;
+
+	@Override
+	protected void setUp() {
+		mRandom = new Random(5);
+	}
+
+	public void testGeometric() throws ParseException {
+		run("geometric", geometric(), false);
+	}
+
+	public void testGeometricHops() throws ParseException {
+		run("geometric", geometric(), true);
+	}
+
+	public void testGrid() throws ParseException {
+		run("grid", grid(40, 25), false);
+	}
+
+	public void testGridHops() throws ParseException {
+		run("grid", grid(40, 25), true);
+	}
+
+	private void run(String mesh, List<Set<Integer>> links, boolean hops) throws ParseException {
+		for (String event : new String[] { "cost change", "link down/up", "node leave/join" }) {
+			build(links, hops);
+			mIncrementalTime = mFullTime = mRuns = 0;
+			for (int k = 0; k < WARMUP + CHANGES; ++k) {
+				if (k == WARMUP) {
+					mIncrementalTime = mFullTime = mRuns = 0;
+					mProtocol.mFullSpfRuns = mProtocol.mSpfRuns = 0;
+				}
+				Node a = mNodes[1 + mRandom.nextInt(NODES - 1)];
+				LinkStateAdvertisement lsa = mGraph.get(a);
+				Node b = lsa.others.get(mRandom.nextInt(lsa.others.size()));
+				if (event.equals("cost change")) {
+					lsa.costs.put(b, hops
+							? (lsa.costTo(b) == LinkCost.HOP_COST ? LinkCost.HOP_COST * 3 / 2 : LinkCost.HOP_COST)
+							: randomCost());
+					change(a);
+				} else if (event.equals("link down/up")) {
+					lsa.others.remove(b);
+					mGraph.get(b).others.remove(a);
+					change(a, b);
+					lsa.others.add(b);
+					mGraph.get(b).others.add(a);
+					change(a, b);
+				} else {
+					mGraph.remove(a);
+					Node[] changed = new Node[lsa.others.size() + 1];
+					changed[0] = a;
+					for (int i = 0; i < lsa.others.size(); ++i) {
+						changed[i + 1] = lsa.others.get(i);
+						mGraph.get(changed[i + 1]).others.remove(a);
+					}
+					change(changed);
+					mGraph.put(a, lsa);
+					for (Node other : lsa.others) {
+						mGraph.get(other).others.add(a);
+					}
+					change(changed);
+				}
+			}
+
+			double incremental = mIncrementalTime / 1e3 / mRuns;
+			double full = mFullTime / 1e3 / mRuns;
+			Log.i(TAG, String.format("%s %s, %s: incremental %.1f us, full %.1f us (%.1fx), %d of %d fell back to full",
+					mesh, hops ? "hops" : "costs", event, incremental, full, full / incremental,
+					mProtocol.mFullSpfRuns, mProtocol.mSpfRuns));
+		}
+	}
+
+	/**
+	 * Hands the changed LSAs to the protocol one at a time, timing each
+	 * update against a computation from scratch, and checks they agree.
+	 */
+	private void change(Node... changed) {
+		for (Node n : changed) {
+			mProtocol.mChanged.add(n);
+			long start = System.nanoTime();
+			mProtocol.recomputeRoutingTable();
+			mIncrementalTime += System.nanoTime() - start;
+
+			RoutingProtocol full = new RoutingProtocol(mNodes[0], null);
+			full.mGraph = mGraph;
+			start = System.nanoTime();
+			full.recomputeRoutingTable();
+			mFullTime += System.nanoTime() - start;
+			mRuns++;
+
+			assertEquals(full.getRoutingTable().size(), mProtocol.getRoutingTable().size());
+		}
+	}
+
+	private void build(List<Set<Integer>> links, boolean hops) throws ParseException {
+		mNodes = new Node[NODES];
+		mGraph = new HashMap<Node, LinkStateAdvertisement>();
+		for (int i = 0; i < NODES; ++i) {
+			mNodes[i] = NodeFactory.factory.fromMacAddress(
+					String.format("00:00:04:00:%02X:%02X", i >> 8, i & 0xFF));
+			LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+			lsa.source = mNodes[i];
+			mGraph.put(mNodes[i], lsa);
+		}
+		for (int i = 0; i < NODES; ++i) {
+			LinkStateAdvertisement lsa = mGraph.get(mNodes[i]);
+			for (int j : links.get(i)) {
+				lsa.others.add(mNodes[j]);
+				if (!hops) {
+					lsa.costs.put(mNodes[j], randomCost());
+				}
+			}
+		}
+
+		mProtocol = new RoutingProtocol(mNodes[0], null);
+		mProtocol.mGraph = mGraph;
+		mProtocol.recomputeRoutingTable();
+	}
+
+	private int randomCost() {
+		return LinkCost.HOP_COST + mRandom.nextInt(LinkCost.HOP_COST);
+	}
+
+	private static List<Set<Integer>> grid(int width, int height) {
+		List<Set<Integer>> links = emptyLinks(width * height);
+		for (int x = 0; x < width; ++x) {
+			for (int y = 0; y < height; ++y) {
+				int i = x * height + y;
+				if (x + 1 < width) {
+					connect(links, i, i + height);
+				}
+				if (y + 1 < height) {
+					connect(links, i, i + 1);
+				}
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Nodes placed at random in a unit square and linked to those within
+	 * radio range, at most 7 each as Bluetooth allows, retried until the
+	 * mesh is connected.
+	 */
+	private List<Set<Integer>> geometric() {
+		double range = Math.sqrt(2.5 * Math.log(NODES) / (Math.PI * NODES));
+		while (true) {
+			List<Set<Integer>> links = emptyLinks(NODES);
+			double[] x = new double[NODES];
+			double[] y = new double[NODES];
+			for (int i = 0; i < NODES; ++i) {
+				x[i] = mRandom.nextDouble();
+				y[i] = mRandom.nextDouble();
+			}
+			for (int i = 0; i < NODES; ++i) {
+				for (int j = i + 1; j < NODES; ++j) {
+					if (Math.hypot(x[i] - x[j], y[i] - y[j]) < range
+							&& links.get(i).size() < 7 && links.get(j).size() < 7) {
+						connect(links, i, j);
+					}
+				}
+			}
+			if (isConnected(links)) {
+				return links;
+			}
+		}
+	}
+
+	private static boolean isConnected(List<Set<Integer>> links) {
+		boolean[] seen = new boolean[links.size()];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		seen[0] = true;
+		queue.add(0);
+		int count = 1;
+		while (!queue.isEmpty()) {
+			for (int j : links.get(queue.poll())) {
+				if (!seen[j]) {
+					seen[j] = true;
+					count++;
+					queue.add(j);
+				}
+			}
+		}
+		return count == links.size();
+	}
+
+	private static List<Set<Integer>> emptyLinks(int count) {
+		List<Set<Integer>> links = new ArrayList<Set<Integer>>(count);
+		for (int i = 0; i < count; ++i) {
+			links.add(new TreeSet<Integer>());
+		}
+		return links;
+	}
+
+	private static void connect(List<Set<Integer>> links, int i, int j) {
+		links.get(i).add(j);
+		links.get(j).add(i);
+	}
+}
@@ -0,0 +1,169 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Two halves of a mesh change apart and then join over one bridge link,
+ * losing database summaries, requests or updates on the bridge.  Resending
+ * what goes unanswered should bring every node the same database.
+ */
+public class SyncRetransmitTest extends TestCase {
+	private static final int NODES = 60;
+
+	private BridgedMesh mMesh;
+	private Node mLeft;
+	private Node mRight;
+
+	/** A mesh that can be split in two, and that loses messages on the bridge */
+	private class BridgedMesh extends MeshSimulation {
+		boolean mSplit = true;
+		RoutingMessage.Type mDropType;
+		int mDrops;
+		boolean mHoldHelloAck;
+		Delivery mHeld;
+
+		BridgedMesh() throws ParseException {
+			super(NODES);
+		}
+
+		@Override
+		void send(Node from, Node to, RoutingMessage msg) {
+			if (mSplit && side(from) != side(to)) {
+				return;
+			}
+			if (!isBridge(from, to)) {
+				super.send(from, to, msg);
+				return;
+			}
+			if (msg.type == mDropType && mDrops > 0) {
+				mDrops--;
+				return;
+			}
+			Delivery d = new Delivery(from, to, RoutingMessage.serializeMessage(msg));
+			if (mHoldHelloAck && msg.type == RoutingMessage.Type.HelloAck) {
+				mHeld = d;
+				return;
+			}
+			enqueue(d);
+			if (mHeld != null && msg.type == RoutingMessage.Type.DatabaseDescription) {
+				// The ack arrives after the summary that followed it
+				enqueue(mHeld);
+				mHeld = null;
+			}
+		}
+
+		private int side(Node n) {
+			return mNodes.indexOf(n) < NODES / 2 ? 0 : 1;
+		}
+
+		private boolean isBridge(Node from, Node to) {
+			return (from == mLeft && to == mRight) || (from == mRight && to == mLeft);
+		}
+	}
+
+	@Override
+	protected void setUp() throws ParseException {
+		mMesh = new BridgedMesh();
+		mLeft = mMesh.mNodes.get(0);
+		mRight = mMesh.mNodes.get(NODES / 2);
+
+		// Each half is a random tree, whose costs change while they're apart
+		Random random = new Random(11);
+		for (int half = 0; half < 2; ++half) {
+			int base = half * NODES / 2;
+			for (int i = 1; i < NODES / 2; ++i) {
+				mMesh.connect(base + i, base + random.nextInt(i));
+			}
+		}
+		for (int half = 0; half < 2; ++half) {
+			for (int k = 0; k < 10; ++k) {
+				RoutingProtocol rp = mMesh.protocol(half * NODES / 2 + random.nextInt(NODES / 2));
+				List<Node> neighbors = rp.getNeighbors();
+				rp.updateLinkCost(neighbors.get(random.nextInt(neighbors.size())),
+						LinkCost.HOP_COST * (2 + random.nextInt(6)));
+				mMesh.drain();
+			}
+		}
+		mMesh.mSplit = false;
+	}
+
+	public void testNothingLost() {
+		join();
+		assertEquals(0, mMesh.staleEntries());
+		assertSettles();
+	}
+
+	public void testDatabaseDescriptionLost() {
+		drop(RoutingMessage.Type.DatabaseDescription, 1);
+		join();
+		assertTrue(mMesh.staleEntries() > 0);
+		assertSettles();
+		assertEquals(0, mMesh.staleEntries());
+	}
+
+	public void testDatabaseDescriptionLostRepeatedly() {
+		drop(RoutingMessage.Type.DatabaseDescription, RoutingProtocol.MAX_SYNC_SENDS);
+		join();
+		assertSettles();
+		assertEquals(0, mMesh.staleEntries());
+	}
+
+	public void testLinkStateRequestLost() {
+		drop(RoutingMessage.Type.LinkStateRequest, 1);
+		join();
+		assertTrue(mMesh.staleEntries() > 0);
+		assertSettles();
+		assertEquals(0, mMesh.staleEntries());
+	}
+
+	public void testLinkStateUpdatesLost() {
+		drop(RoutingMessage.Type.LinkStateUpdate, 3);
+		join();
+		assertTrue(mMesh.staleEntries() > 0);
+		assertSettles();
+		assertEquals(0, mMesh.staleEntries());
+	}
+
+	/** Past MAX_SYNC_SENDS a neighbor gives up rather than resend forever */
+	public void testGivesUp() {
+		drop(RoutingMessage.Type.LinkStateUpdate, 100);
+		join();
+		assertSettles();
+	}
+
+	/** A summary that arrives before the handshake finishes is kept for it */
+	public void testEarlyDatabaseDescription() {
+		mMesh.mHoldHelloAck = true;
+		join();
+		assertNull(mMesh.mHeld);
+		assertEquals(0, mMesh.staleEntries());
+		assertSettles();
+	}
+
+	private void drop(RoutingMessage.Type type, int count) {
+		mMesh.mDropType = type;
+		mMesh.mDrops = count;
+	}
+
+	private void join() {
+		mMesh.connect(0, NODES / 2);
+	}
+
+	/** Resends until both ends of the bridge have nothing left waiting */
+	private void assertSettles() {
+		long now = System.currentTimeMillis();
+		for (int tick = 0; tick <= RoutingProtocol.MAX_SYNC_SENDS + 1; ++tick) {
+			if (mMesh.protocol(0).mSyncs.isEmpty() && mMesh.protocol(NODES / 2).mSyncs.isEmpty()) {
+				return;
+			}
+			now += RoutingProtocol.SYNC_RETRANSMIT_INTERVAL;
+			mMesh.retransmit(now);
+		}
+		fail("Still waiting on answers after " + RoutingProtocol.MAX_SYNC_SENDS + " sends");
+	}
+}
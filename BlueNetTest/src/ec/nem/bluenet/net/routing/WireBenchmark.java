@@ -0,0 +1,126 @@
+package ec.nem.bluenet.net.routing;
+
+import java.io.*;
+import java.text.ParseException;
+
+import junit.framework.TestCase;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Encodes and decodes routing messages in the binary encoding and with
+ * Java serialization, which it replaced and which older nodes still send:
+ * a Hello, a Quit, and LSAs with 1, 4 and 16 neighbors.<br>
+ * <br>
+ *
+ * The size of each message and the best of several runs of MESSAGES
+ * encodings and decodings each way are logged under TAG.  LSAs are encoded
+ * afresh each time, as they would be after every change, not from the
+ * bytes kept with them.
+ */
+@LargeTest
+public class WireBenchmark extends TestCase {
+	private static final String TAG = "WireBenchmark";
+	private static final int MESSAGES = 20000;
+	private static final int RUNS = 5;
+
+	private Node mSource;
+
+	@Override
+	protected void setUp() throws ParseException {
+		mSource = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:00");
+	}
+
+	public void testHello() throws IOException {
+		RoutingMessage msg = message(RoutingMessage.Type.Hello, mSource);
+		msg.deflateDictionary = 0x62074faa;
+		msg.linkFeatures = 3;
+		run("Hello", msg);
+	}
+
+	public void testQuit() throws IOException {
+		run("Quit", message(RoutingMessage.Type.Quit, mSource));
+	}
+
+	public void testLsa() throws IOException, ParseException {
+		for (int count : new int[] { 1, 4, 16 }) {
+			LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+			lsa.source = mSource;
+			lsa.sequence = 1234;
+			for (int i = 0; i < count; ++i) {
+				Node n = NodeFactory.factory.fromMacAddress(String.format("00:1A:7D:DA:72:%02X", i));
+				lsa.others.add(n);
+				if (i % 2 == 0) {
+					lsa.costs.put(n, 300 + i);
+				}
+			}
+			run("LSA with " + count + (count == 1 ? " neighbor" : " neighbors"), message(RoutingMessage.Type.LinkStateAdvertisement, lsa));
+		}
+	}
+
+	private void run(String name, RoutingMessage msg) throws IOException {
+		byte[] legacy = serialize(msg);
+		byte[] binary = encode(msg);
+		assertEquals(msg.type, RoutingMessage.deserializeMessage(legacy).type);
+		assertEquals(msg.type, RoutingMessage.deserializeMessage(binary).type);
+
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		int total = 0;
+		for (int run = 0; run < RUNS; ++run) {
+			long start = System.nanoTime();
+			for (int i = 0; i < MESSAGES; ++i) {
+				total += serialize(msg).length;
+			}
+			best[0] = Math.min(best[0], System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < MESSAGES; ++i) {
+				total += RoutingMessage.deserializeMessage(legacy).type.ordinal();
+			}
+			best[1] = Math.min(best[1], System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < MESSAGES; ++i) {
+				total += encode(msg).length;
+			}
+			best[2] = Math.min(best[2], System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < MESSAGES; ++i) {
+				total += RoutingMessage.deserializeMessage(binary).type.ordinal();
+			}
+			best[3] = Math.min(best[3], System.nanoTime() - start);
+		}
+		assertTrue(total > 0);
+
+		Log.i(TAG, String.format("%s: serialized %d B, encode %d ns, decode %d ns; binary %d B, encode %d ns, decode %d ns",
+				name, legacy.length, best[0] / MESSAGES, best[1] / MESSAGES,
+				binary.length, best[2] / MESSAGES, best[3] / MESSAGES));
+	}
+
+	/** Encodes without the bytes an LSA keeps from last time */
+	private static byte[] encode(RoutingMessage msg) {
+		if (msg.obj instanceof LinkStateAdvertisement) {
+			((LinkStateAdvertisement) msg.obj).setWireBytes(null);
+		}
+		return RoutingMessage.serializeMessage(msg);
+	}
+
+	private static byte[] serialize(RoutingMessage msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(msg);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static RoutingMessage message(RoutingMessage.Type type, Object obj) {
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = type;
+		msg.obj = obj;
+		return msg;
+	}
+}
@@ -0,0 +1,121 @@
+package ec.nem.bluenet.net.routing;
+
+import java.io.EOFException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+public class WireBufferTest extends TestCase {
+	public void testVarintsAtEveryLengthBoundary() throws EOFException {
+		int[] values = { 0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000,
+				0xFFFFFFF, 0x10000000, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+		int[] lengths = { 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 5, 5 };
+
+		for (int i = 0; i < values.length; ++i) {
+			WireBuffer out = new WireBuffer(0);
+			out.writeVarint(values[i]);
+			byte[] bytes = out.toByteArray();
+			assertEquals(Integer.toHexString(values[i]), lengths[i], bytes.length);
+
+			WireBuffer in = new WireBuffer(bytes, 0, bytes.length);
+			assertEquals(values[i], in.readVarint());
+			assertEquals(0, in.remaining());
+		}
+	}
+
+	public void testVarintEncoding() {
+		WireBuffer out = new WireBuffer(0);
+		out.writeVarint(300);
+		assertTrue(Arrays.equals(new byte[] { (byte) 0xAC, 0x02 }, out.toByteArray()));
+	}
+
+	public void testNodeIsTheOneNodeFactoryKeeps() throws ParseException, EOFException {
+		Node n = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:0F");
+		WireBuffer out = new WireBuffer(0);
+		out.writeNode(n);
+		byte[] bytes = out.toByteArray();
+		assertEquals(WireBuffer.ADDRESS_LENGTH, bytes.length);
+
+		WireBuffer in = new WireBuffer(bytes, 0, bytes.length);
+		assertSame(n, in.readNode());
+	}
+
+	public void testMixedFieldsAtAnOffset() throws ParseException, EOFException {
+		Node n = NodeFactory.factory.fromMacAddress("00:1A:7D:DA:71:10");
+		byte[] blob = { 1, 0, (byte) 0xFF };
+
+		// Small enough that every write grows it
+		WireBuffer out = new WireBuffer(0);
+		for (int i = 0; i < 20; ++i) {
+			out.writeByte(0xEE);
+			out.writeVarint(i * 1000);
+			out.writeNode(n);
+			out.writeBytes(blob);
+		}
+		byte[] written = out.toByteArray();
+		byte[] bytes = new byte[written.length + 10];
+		System.arraycopy(written, 0, bytes, 5, written.length);
+
+		WireBuffer in = new WireBuffer(bytes, 5, written.length);
+		for (int i = 0; i < 20; ++i) {
+			assertEquals(0xEE, in.readByte());
+			assertEquals(i * 1000, in.readVarint());
+			assertSame(n, in.readNode());
+			assertTrue(Arrays.equals(blob, in.readBytes(blob.length)));
+		}
+		assertEquals(0, in.remaining());
+	}
+
+	public void testReadsStopAtTheLimit() throws EOFException {
+		byte[] bytes = { 1, 2, 3, 4, 5, 6, 7, 8 };
+		WireBuffer in = new WireBuffer(bytes, 1, 5);
+		assertEquals(2, in.readByte());
+		assertEquals(4, in.remaining());
+		try {
+			in.readNode();
+			fail("Read a node from 4 bytes");
+		} catch (EOFException e) {
+		}
+		try {
+			in.readBytes(5);
+			fail("Read 5 bytes from 4");
+		} catch (EOFException e) {
+		}
+		assertTrue(Arrays.equals(new byte[] { 3, 4, 5, 6 }, in.readBytes(4)));
+		try {
+			in.readByte();
+			fail("Read past the limit");
+		} catch (EOFException e) {
+		}
+	}
+
+	public void testTruncatedVarint() {
+		byte[] bytes = { (byte) 0x80, (byte) 0x80 };
+		try {
+			new WireBuffer(bytes, 0, bytes.length).readVarint();
+			fail("Read a varint with no last byte");
+		} catch (EOFException e) {
+		}
+	}
+
+	public void testOverlongVarint() {
+		byte[] bytes = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0 };
+		try {
+			new WireBuffer(bytes, 0, bytes.length).readVarint();
+			fail("Read a 6 byte varint");
+		} catch (EOFException e) {
+		}
+	}
+
+	public void testNegativeLength() {
+		byte[] bytes = { 1, 2 };
+		try {
+			new WireBuffer(bytes, 0, bytes.length).readBytes(-1);
+			fail("Read a negative length");
+		} catch (EOFException e) {
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package ec.nem.bluenet.net.routing;
+
+import java.text.ParseException;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import ec.nem.bluenet.*;
+
+/**
+ * Plays neighbors of one routing protocol, some from before the binary
+ * encoding and some after, and checks what is sent to each of them as it
+ * would go on the wire.
+ */
+public class WireVersionTest extends TestCase {
+	/** First byte of a Java serialization stream */
+	private static final byte LEGACY_MAGIC = (byte) 0xAC;
+
+	private Node mLocal;
+	private Node mOld;
+	private Node mNew;
+	private Node mOther;
+	private RoutingProtocol mProtocol;
+	/** What was sent to each node, encoded */
+	private final Map<Node, List<byte[]>> mSent = new HashMap<Node, List<byte[]>>();
+
+	@Override
+	protected void setUp() throws ParseException {
+		mLocal = NodeFactory.factory.fromMacAddress("00:00:06:00:00:01");
+		mOld = NodeFactory.factory.fromMacAddress("00:00:06:00:00:02");
+		mNew = NodeFactory.factory.fromMacAddress("00:00:06:00:00:03");
+		mOther = NodeFactory.factory.fromMacAddress("00:00:06:00:00:04");
+		mProtocol = new RoutingProtocol(mLocal, new RoutingMessageSender() {
+			public void sendRoutingMessage(Node n, RoutingMessage msg) {
+				List<byte[]> sent = mSent.get(n);
+				if (sent == null) {
+					sent = new ArrayList<byte[]>();
+					mSent.put(n, sent);
+				}
+				sent.add(RoutingMessage.serializeMessage(msg));
+			}
+
+			public int getMaxRoutingMessageLength(Node n) {
+				return MeshSimulation.MAX_MESSAGE_LENGTH;
+			}
+		});
+	}
+
+	public void testHelloToUnknownNodeIsLegacy() {
+		mProtocol.connectTo(mOld);
+		byte[] hello = only(mOld);
+		assertEquals(LEGACY_MAGIC, hello[0]);
+		RoutingMessage msg = RoutingMessage.deserializeMessage(hello);
+		assertEquals(RoutingMessage.Type.Hello, msg.type);
+		// So a node that reads the binary encoding knows we do too
+		assertEquals(RoutingMessage.WIRE_VERSION, msg.wireVersion);
+	}
+
+	public void testNewNeighborIsSentBinary() {
+		mProtocol.connectTo(mNew);
+		mSent.clear();
+		// Its Hello to us is in the old encoding too, but says it reads the new
+		receive(hello(RoutingMessage.Type.Hello, mNew, RoutingMessage.WIRE_VERSION, true));
+
+		List<RoutingMessage.Type> types = new ArrayList<RoutingMessage.Type>();
+		for (byte[] bytes : mSent.get(mNew)) {
+			assertEquals(RoutingMessage.WIRE_VERSION, bytes[0]);
+			types.add(RoutingMessage.deserializeMessage(bytes).type);
+		}
+		assertEquals(Arrays.asList(RoutingMessage.Type.HelloAck, RoutingMessage.Type.DatabaseDescription,
+				RoutingMessage.Type.LinkStateUpdate), types);
+	}
+
+	public void testBinaryMessageMarksNeighbor() {
+		// A binary Hello before we have sent it anything
+		receive(hello(RoutingMessage.Type.Hello, mNew, 0, false));
+		byte[] hello = only(mNew);
+		assertEquals(RoutingMessage.WIRE_VERSION, hello[0]);
+		assertEquals(RoutingMessage.Type.Hello, RoutingMessage.deserializeMessage(hello).type);
+	}
+
+	public void testOldNeighborGetsBareLsasAndWholeDatabase() {
+		// Origins we heard of before the old node came along
+		Set<Node> expected = new HashSet<Node>();
+		for (int i = 0; i < 3; ++i) {
+			LinkStateAdvertisement lsa = lsa(node(0x10 + i), 5, mOther);
+			mProtocol.handleNewLsa(lsa, null);
+			expected.add(lsa.source);
+		}
+		expected.add(mLocal);
+
+		mProtocol.connectTo(mOld);
+		mSent.clear();
+		receive(hello(RoutingMessage.Type.Hello, mOld, 0, true));
+
+		List<byte[]> sent = mSent.get(mOld);
+		assertEquals(RoutingMessage.Type.HelloAck, legacy(sent.get(0)).type);
+		Set<Node> origins = new HashSet<Node>();
+		for (byte[] bytes : sent.subList(1, sent.size())) {
+			RoutingMessage msg = legacy(bytes);
+			assertEquals(RoutingMessage.Type.LinkStateAdvertisement, msg.type);
+			assertTrue(origins.add(((LinkStateAdvertisement) msg.obj).source));
+		}
+		assertEquals(expected, origins);
+		// No summaries to wait on an answer to
+		assertTrue(mProtocol.mSyncs.isEmpty());
+	}
+
+	public void testFloodReachesOldAndNewNeighbors() throws ParseException {
+		connectOld();
+		connectNew(mNew);
+		connectNew(mOther);
+		mSent.clear();
+
+		LinkStateUpdate lsu = new LinkStateUpdate();
+		lsu.source = mNew;
+		lsu.lsas.add(lsa(node(0x20), 7, mNew));
+		lsu.lsas.add(lsa(node(0x21), 7, mNew));
+		receive(message(RoutingMessage.Type.LinkStateUpdate, lsu));
+
+		// Not back to where they came from
+		assertNull(mSent.get(mNew));
+		RoutingMessage update = RoutingMessage.deserializeMessage(only(mOther));
+		assertEquals(RoutingMessage.Type.LinkStateUpdate, update.type);
+		assertEquals(2, ((LinkStateUpdate) update.obj).lsas.size());
+		List<byte[]> old = mSent.get(mOld);
+		assertEquals(2, old.size());
+		assertEquals(node(0x20), ((LinkStateAdvertisement) legacy(old.get(0)).obj).source);
+		assertEquals(node(0x21), ((LinkStateAdvertisement) legacy(old.get(1)).obj).source);
+	}
+
+	public void testQuitToOldNeighborIsLegacy() {
+		connectOld();
+		mSent.clear();
+		mProtocol.removeNode(mOld);
+		assertEquals(RoutingMessage.Type.Quit, legacy(only(mOld)).type);
+		assertFalse(mProtocol.mBinaryNeighbors.contains(mOld));
+	}
+
+	/** Its Hello is what decides, so a node going back to old software is caught */
+	public void testOldHelloTakesBackBinary() {
+		receive(hello(RoutingMessage.Type.Hello, mNew, 0, false));
+		assertTrue(mProtocol.mBinaryNeighbors.contains(mNew));
+		receive(hello(RoutingMessage.Type.HelloAck, mNew, 0, true));
+		assertFalse(mProtocol.mBinaryNeighbors.contains(mNew));
+	}
+
+	/** Connects mOld, which answers our Hello as nodes from before the binary encoding do */
+	private void connectOld() {
+		mProtocol.connectTo(mOld);
+		receive(hello(RoutingMessage.Type.Hello, mOld, 0, true));
+		assertFalse(mProtocol.mBinaryNeighbors.contains(mOld));
+	}
+
+	private void connectNew(Node n) {
+		mProtocol.connectTo(n);
+		receive(hello(RoutingMessage.Type.HelloAck, n, RoutingMessage.WIRE_VERSION, true));
+		assertTrue(mProtocol.mBinaryNeighbors.contains(n));
+	}
+
+	/** Hands the protocol a message as it would arrive */
+	private void receive(RoutingMessage msg) {
+		mProtocol.receiveMessage(RoutingMessage.deserializeMessage(RoutingMessage.serializeMessage(msg)));
+	}
+
+	/** The one message sent to n */
+	private byte[] only(Node n) {
+		List<byte[]> sent = mSent.get(n);
+		assertNotNull(sent);
+		assertEquals(1, sent.size());
+		return sent.get(0);
+	}
+
+	private static RoutingMessage legacy(byte[] bytes) {
+		assertEquals(LEGACY_MAGIC, bytes[0]);
+		return RoutingMessage.deserializeMessage(bytes);
+	}
+
+	private static RoutingMessage hello(RoutingMessage.Type type, Node from, int wireVersion, boolean legacy) {
+		RoutingMessage msg = message(type, from);
+		msg.wireVersion = wireVersion;
+		msg.legacyEncoding = legacy;
+		return msg;
+	}
+
+	private static RoutingMessage message(RoutingMessage.Type type, Object obj) {
+		RoutingMessage msg = new RoutingMessage();
+		msg.type = type;
+		msg.obj = obj;
+		return msg;
+	}
+
+	private static LinkStateAdvertisement lsa(Node source, int sequence, Node neighbor) {
+		LinkStateAdvertisement lsa = new LinkStateAdvertisement();
+		lsa.source = source;
+		lsa.sequence = sequence;
+		lsa.others.add(neighbor);
+		return lsa;
+	}
+
+	private static Node node(int i) {
+		try {
+			return NodeFactory.factory.fromMacAddress(String.format("00:00:06:00:01:%02X", i));
+		} catch (ParseException e) {
+			throw new AssertionError(e);
+		}
+	}
+}